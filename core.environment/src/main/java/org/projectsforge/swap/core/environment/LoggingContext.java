@@ -0,0 +1,186 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.environment;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.MDC;
+
+/**
+ * The logging context of the request being served by the current thread. The
+ * context is stored in the {@link MDC} so that the loggers can be static while
+ * the log lines still identify the request (see the %X{...} conversion
+ * patterns of log4j). Since the MDC is bound to a thread, the context must be
+ * given explicitly to the tasks run by other threads with
+ * {@link #wrap(Runnable)} or {@link #wrap(Executor)}.
+ *
+ * @author Sébastien Aupetit
+ */
+public final class LoggingContext {
+
+  /** The MDC key of the request identifier. */
+  public static final String REQUEST_ID = "requestId";
+
+  /** The MDC key of the URL of the request. */
+  public static final String URL = "url";
+
+  /** The MDC key of the running handler. */
+  public static final String HANDLER = "handler";
+
+  /** The counter of the request identifiers. */
+  private static final AtomicLong requestCounter = new AtomicLong();
+
+  /**
+   * Capture the context of the current thread.
+   *
+   * @return the context (null if empty)
+   */
+  public static Map<String, String> capture() {
+    return MDC.getCopyOfContextMap();
+  }
+
+  /**
+   * Gets the identifier of the current request.
+   *
+   * @return the request identifier or null if no request is served
+   */
+  public static String getRequestId() {
+    return MDC.get(REQUEST_ID);
+  }
+
+  /**
+   * Gets the URL of the current request.
+   *
+   * @return the URL or null if no request is served
+   */
+  public static String getUrl() {
+    return MDC.get(URL);
+  }
+
+  /**
+   * Restore a context previously captured.
+   *
+   * @param context the context (may be null)
+   */
+  public static void restore(final Map<String, String> context) {
+    if (context == null) {
+      MDC.clear();
+    } else {
+      MDC.setContextMap(context);
+    }
+  }
+
+  /**
+   * Set the running handler.
+   *
+   * @param handler the handler (null to remove it)
+   * @return the previous handler
+   */
+  public static String setHandler(final String handler) {
+    final String previous = MDC.get(HANDLER);
+    if (handler == null) {
+      MDC.remove(HANDLER);
+    } else {
+      MDC.put(HANDLER, handler);
+    }
+    return previous;
+  }
+
+  /**
+   * Set the URL of the current request.
+   *
+   * @param url the url
+   */
+  public static void setUrl(final String url) {
+    MDC.put(URL, url);
+  }
+
+  /**
+   * Start a new request in the current thread.
+   *
+   * @param url the url of the request
+   * @return the identifier of the request
+   */
+  public static String startRequest(final String url) {
+    final String requestId = Long.toString(requestCounter.incrementAndGet());
+    MDC.remove(HANDLER);
+    MDC.put(REQUEST_ID, requestId);
+    MDC.put(URL, url);
+    return requestId;
+  }
+
+  /**
+   * End the request served by the current thread.
+   */
+  public static void endRequest() {
+    MDC.remove(REQUEST_ID);
+    MDC.remove(URL);
+    MDC.remove(HANDLER);
+  }
+
+  /**
+   * Wrap an executor so that the tasks it runs get the context of the current
+   * thread.
+   *
+   * @param executor the executor
+   * @return the wrapped executor
+   */
+  public static Executor wrap(final Executor executor) {
+    final Map<String, String> context = capture();
+    return new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        executor.execute(wrap(command, context));
+      }
+    };
+  }
+
+  /**
+   * Wrap a task so that it runs with the context of the current thread.
+   *
+   * @param task the task
+   * @return the wrapped task
+   */
+  public static Runnable wrap(final Runnable task) {
+    return wrap(task, capture());
+  }
+
+  /**
+   * Wrap a task so that it runs with the given context.
+   *
+   * @param task the task
+   * @param context the context
+   * @return the wrapped task
+   */
+  private static Runnable wrap(final Runnable task, final Map<String, String> context) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        final Map<String, String> previous = capture();
+        restore(context);
+        try {
+          task.run();
+        } finally {
+          restore(previous);
+        }
+      }
+    };
+  }
+
+  /**
+   * Instantiates a new logging context.
+   */
+  private LoggingContext() {
+  }
+}
@@ -187,7 +187,8 @@ public abstract class EnvironmentImpl implements org.projectsforge.swap.core.env
     initialLog4jSettings.setProperty("log4j.appender.CONSOLE", "org.apache.log4j.ConsoleAppender");
     initialLog4jSettings.setProperty("log4j.appender.CONSOLE.Threshold", "DEBUG");
     initialLog4jSettings.setProperty("log4j.appender.CONSOLE.layout", "org.apache.log4j.PatternLayout");
-    initialLog4jSettings.setProperty("log4j.appender.CONSOLE.layout.ConversionPattern", "%-4r [%t] %-5p %c %x - %m%n");
+    initialLog4jSettings.setProperty("log4j.appender.CONSOLE.layout.ConversionPattern",
+        "%-4r [%t] %-5p %c %X{requestId} %X{handler} %x - %m%n");
     initialLog4jSettings.setProperty("log4j.logger.org.projectsforge.utils.path", "INFO");
     initialLog4jSettings.setProperty("log4j.logger.org.projectsforge.utils.path.ManifestClassPathDetector", "ERROR");
     initialLog4jSettings.setProperty("log4j.logger.org.springframework.web.context", "INFO");
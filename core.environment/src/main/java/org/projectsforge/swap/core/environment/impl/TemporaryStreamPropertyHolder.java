@@ -12,6 +12,9 @@ public class TemporaryStreamPropertyHolder implements PropertyHolder {
   public static final IntegerProperty inMemoryMaxSize = new IntegerProperty(new SystemValueHolder(
       TemporaryStreamsFactory.inMemoryMaxSizeProperty), 128 * 1024 * 1024);
 
+  public static final IntegerProperty inMemoryBudget = new IntegerProperty("temporarystreams.inMemoryBudget",
+      128 * 1024 * 1024);
+
   public static final StringProperty prefix = new StringProperty(new SystemValueHolder(
       TemporaryStreamsFactory.prefixProperty), "temp");
 
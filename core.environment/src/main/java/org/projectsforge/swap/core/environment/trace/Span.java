@@ -0,0 +1,218 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.environment.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A timed step of a traced request. The spans of a request form a tree whose
+ * root is the request itself. A span is started with {@link Tracer#start(String)}
+ * and must be closed by the code which started it, usually in a finally block
+ * or a try-with-resources statement.
+ *
+ * @author Sébastien Aupetit
+ */
+public class Span implements AutoCloseable {
+
+  /** The span returned when the tracing is disabled or no request is traced. */
+  public static final Span NOOP = new Span(null, null, "noop");
+
+  /** The maximum number of children of a span. */
+  private static final int MAX_CHILDREN = 512;
+
+  /**
+   * Converts a duration in ns to ms rounded to the µs.
+   *
+   * @param duration the duration in ns
+   * @return the duration in ms
+   */
+  private static double toMillis(final long duration) {
+    return Math.round(duration / 1000.0) / 1000.0;
+  }
+
+  /** The trace. */
+  private final Trace trace;
+
+  /** The parent span or null for the root span. */
+  private final Span parent;
+
+  /** The name. */
+  private final String name;
+
+  /** The name of the thread which started the span. */
+  private final String threadName;
+
+  /** The start time in ns. */
+  private final long start;
+
+  /** The end time in ns (0 while the span is open, written under this). */
+  private volatile long end;
+
+  /** The children (guarded by this). */
+  private final List<Span> children = new ArrayList<>();
+
+  /** The number of children not recorded (guarded by this). */
+  private int droppedChildren;
+
+  /**
+   * Instantiates a new span.
+   *
+   * @param trace the trace
+   * @param parent the parent
+   * @param name the name
+   */
+  Span(final Trace trace, final Span parent, final String name) {
+    this.trace = trace;
+    this.parent = parent;
+    this.name = name;
+    this.threadName = Thread.currentThread().getName();
+    this.start = System.nanoTime();
+  }
+
+  /**
+   * Close the span. Closing a span several times has no effect.
+   */
+  @Override
+  public void close() {
+    if (this == NOOP) {
+      return;
+    }
+    synchronized (this) {
+      if (end != 0) {
+        return;
+      }
+      end = System.nanoTime();
+    }
+    Tracer.exit(this);
+  }
+
+  /**
+   * Gets a copy of the children.
+   *
+   * @return the children
+   */
+  public synchronized List<Span> getChildren() {
+    return new ArrayList<>(children);
+  }
+
+  /**
+   * Gets the depth of the span in the tree (0 for the root span).
+   *
+   * @return the depth
+   */
+  public int getDepth() {
+    int depth = 0;
+    for (Span span = parent; span != null; span = span.parent) {
+      ++depth;
+    }
+    return depth;
+  }
+
+  /**
+   * Gets the number of children which have not been recorded since the span
+   * has too many children.
+   *
+   * @return the number of dropped children
+   */
+  public synchronized int getDroppedChildren() {
+    return droppedChildren;
+  }
+
+  /**
+   * Gets the duration in ms.
+   *
+   * @return the duration or -1 if the span is still open
+   */
+  public double getDuration() {
+    final long endTime = end;
+    return endTime == 0 ? -1 : toMillis(endTime - start);
+  }
+
+  /**
+   * Gets the name.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the start time in ms relatively to the start of the trace.
+   *
+   * @return the offset
+   */
+  public double getOffset() {
+    return toMillis(start - trace.getRoot().start);
+  }
+
+  /**
+   * Gets the parent.
+   *
+   * @return the parent or null for the root span
+   */
+  Span getParent() {
+    return parent;
+  }
+
+  /**
+   * Gets the name of the thread which started the span.
+   *
+   * @return the thread name
+   */
+  public String getThreadName() {
+    return threadName;
+  }
+
+  /**
+   * Gets the trace.
+   *
+   * @return the trace
+   */
+  Trace getTrace() {
+    return trace;
+  }
+
+  /**
+   * Checks if the span is open.
+   *
+   * @return true, if is open
+   */
+  public boolean isOpen() {
+    return end == 0;
+  }
+
+  /**
+   * Start a child span.
+   *
+   * @param childName the name of the child
+   * @return the child or null if the span has too many children
+   */
+  Span newChild(final String childName) {
+    synchronized (this) {
+      if (children.size() >= MAX_CHILDREN) {
+        droppedChildren++;
+        return null;
+      }
+      final Span child = new Span(trace, this, childName);
+      children.add(child);
+      return child;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Span [" + name + "]";
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.environment.trace;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The span tree of a traced request.
+ *
+ * @author Sébastien Aupetit
+ */
+public class Trace {
+
+  /**
+   * Append a JSON string.
+   *
+   * @param sb the string builder
+   * @param value the value
+   */
+  static void appendJsonString(final StringBuilder sb, final String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * Append a span and its children in JSON.
+   *
+   * @param sb the string builder
+   * @param span the span
+   */
+  private static void appendJsonSpan(final StringBuilder sb, final Span span) {
+    sb.append("{\"name\":");
+    appendJsonString(sb, span.getName());
+    sb.append(",\"thread\":");
+    appendJsonString(sb, span.getThreadName());
+    sb.append(",\"offset\":").append(String.format(Locale.ROOT, "%.3f", span.getOffset()));
+    sb.append(",\"duration\":");
+    if (span.isOpen()) {
+      sb.append("null");
+    } else {
+      sb.append(String.format(Locale.ROOT, "%.3f", span.getDuration()));
+    }
+    if (span.getDroppedChildren() > 0) {
+      sb.append(",\"dropped\":").append(span.getDroppedChildren());
+    }
+    final List<Span> children = span.getChildren();
+    if (!children.isEmpty()) {
+      sb.append(",\"children\":[");
+      for (int i = 0; i < children.size(); ++i) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        appendJsonSpan(sb, children.get(i));
+      }
+      sb.append(']');
+    }
+    sb.append('}');
+  }
+
+  /**
+   * Append a span and its descendants in depth-first order.
+   *
+   * @param spans the spans
+   * @param span the span
+   */
+  private static void collect(final List<Span> spans, final Span span) {
+    spans.add(span);
+    for (final Span child : span.getChildren()) {
+      collect(spans, child);
+    }
+  }
+
+  /** The identifier of the request. */
+  private final String requestId;
+
+  /** The url. */
+  private final String url;
+
+  /** The date of the start of the request. */
+  private final Date date = new Date();
+
+  /** The root span. */
+  private final Span root;
+
+  /**
+   * Instantiates a new trace.
+   *
+   * @param requestId the request identifier
+   * @param url the url
+   */
+  Trace(final String requestId, final String url) {
+    this.requestId = requestId;
+    this.url = url;
+    this.root = new Span(this, null, url);
+  }
+
+  /**
+   * Append the trace in JSON.
+   *
+   * @param sb the string builder
+   */
+  void appendJson(final StringBuilder sb) {
+    sb.append("{\"requestId\":");
+    appendJsonString(sb, requestId);
+    sb.append(",\"url\":");
+    appendJsonString(sb, url);
+    sb.append(",\"date\":").append(date.getTime());
+    sb.append(",\"root\":");
+    appendJsonSpan(sb, root);
+    sb.append('}');
+  }
+
+  /**
+   * Gets the date of the start of the request.
+   *
+   * @return the date
+   */
+  public Date getDate() {
+    return date;
+  }
+
+  /**
+   * Gets the duration of the request in ms.
+   *
+   * @return the duration or -1 if the request is in progress
+   */
+  public double getDuration() {
+    return root.getDuration();
+  }
+
+  /**
+   * Gets the identifier of the request.
+   *
+   * @return the request identifier (may be null)
+   */
+  public String getRequestId() {
+    return requestId;
+  }
+
+  /**
+   * Gets the root span.
+   *
+   * @return the root span
+   */
+  public Span getRoot() {
+    return root;
+  }
+
+  /**
+   * Gets the spans in depth-first order.
+   *
+   * @return the spans
+   */
+  public List<Span> getSpans() {
+    final List<Span> spans = new ArrayList<>();
+    collect(spans, root);
+    return spans;
+  }
+
+  /**
+   * Gets the url.
+   *
+   * @return the url
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  @Override
+  public String toString() {
+    return "Trace [" + url + "]";
+  }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.environment.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.projectsforge.swap.core.environment.LoggingContext;
+
+/**
+ * The tracer of the slow requests. When enabled, each request records a tree
+ * of spans (stages, handlers, waits for resources and locks). The requests
+ * lasting longer than a threshold are kept in a bounded ring buffer. When
+ * disabled, starting a span only reads a volatile field and returns
+ * {@link Span#NOOP}.
+ * <p>
+ * Like the {@link LoggingContext}, the current span is bound to the thread so
+ * the tasks run by other threads must be wrapped with {@link #wrap(Runnable)}
+ * or {@link #wrap(Executor)}.
+ *
+ * @author Sébastien Aupetit
+ */
+public final class Tracer {
+
+  /** Indicate if the tracing is enabled. */
+  private static volatile boolean enabled = false;
+
+  /** The duration (in ns) above which a trace is kept. */
+  private static volatile long threshold = TimeUnit.SECONDS.toNanos(1);
+
+  /** The ring buffer of the slow traces. */
+  private static volatile AtomicReferenceArray<Trace> traces = new AtomicReferenceArray<>(64);
+
+  /** The number of slow traces recorded. */
+  private static final AtomicLong traceCounter = new AtomicLong();
+
+  /** The current span of the thread. */
+  private static final ThreadLocal<Span> current = new ThreadLocal<>();
+
+  /**
+   * Clear the recorded traces.
+   */
+  public static void clear() {
+    traces = new AtomicReferenceArray<>(traces.length());
+    traceCounter.set(0);
+  }
+
+  /**
+   * Configure the tracer. The recorded traces are kept if the capacity does
+   * not change.
+   *
+   * @param tracingEnabled true to enable the tracing
+   * @param thresholdMs the duration (in ms) above which a trace is kept
+   * @param capacity the maximum number of traces kept
+   */
+  public static void configure(final boolean tracingEnabled, final long thresholdMs, final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    threshold = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+    if (traces.length() != capacity) {
+      traces = new AtomicReferenceArray<>(capacity);
+      traceCounter.set(0);
+    }
+    enabled = tracingEnabled;
+  }
+
+  /**
+   * Detach the current span from the thread. Must be called when a thread
+   * stops serving a request without closing its root span (the request is
+   * continued by another thread).
+   */
+  public static void detach() {
+    current.remove();
+  }
+
+  /**
+   * Called when a span is closed.
+   *
+   * @param span the span
+   */
+  static void exit(final Span span) {
+    if (current.get() == span) {
+      if (span.getParent() == null) {
+        current.remove();
+      } else {
+        current.set(span.getParent());
+      }
+    }
+    if (span.getParent() == null && span.getDuration() >= getThreshold()) {
+      final AtomicReferenceArray<Trace> buffer = traces;
+      buffer.set((int) (traceCounter.getAndIncrement() % buffer.length()), span.getTrace());
+    }
+  }
+
+  /**
+   * Gets the duration (in ms) above which a trace is kept.
+   *
+   * @return the threshold
+   */
+  public static long getThreshold() {
+    return TimeUnit.NANOSECONDS.toMillis(threshold);
+  }
+
+  /**
+   * Gets the recorded traces, the most recent first.
+   *
+   * @return the traces
+   */
+  public static List<Trace> getTraces() {
+    final AtomicReferenceArray<Trace> buffer = traces;
+    final long count = traceCounter.get();
+    final List<Trace> result = new ArrayList<>();
+    for (long i = count - 1; i >= 0 && i >= count - buffer.length(); --i) {
+      final Trace trace = buffer.get((int) (i % buffer.length()));
+      if (trace != null) {
+        result.add(trace);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Checks if the tracing is enabled.
+   *
+   * @return true, if is enabled
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Start a span as a child of the current span of the thread. The span
+   * becomes the current span until it is closed.
+   *
+   * @param name the name
+   * @return the span or {@link Span#NOOP} if no request is traced by the
+   *         thread
+   */
+  public static Span start(final String name) {
+    if (!enabled) {
+      return Span.NOOP;
+    }
+    final Span parent = current.get();
+    if (parent == null) {
+      return Span.NOOP;
+    }
+    final Span span = parent.newChild(name);
+    if (span == null) {
+      return Span.NOOP;
+    }
+    current.set(span);
+    return span;
+  }
+
+  /**
+   * Start a span as a child of the current span of the thread. The name is
+   * built only if the request is traced.
+   *
+   * @param prefix the prefix of the name
+   * @param name the end of the name
+   * @return the span or {@link Span#NOOP} if no request is traced by the
+   *         thread
+   */
+  public static Span start(final String prefix, final String name) {
+    if (!enabled || current.get() == null) {
+      return Span.NOOP;
+    }
+    return start(prefix + name);
+  }
+
+  /**
+   * Start tracing a request in the current thread. The request is traced until
+   * the returned root span is closed.
+   *
+   * @param url the url of the request
+   * @return the root span or {@link Span#NOOP} if the tracing is disabled
+   */
+  public static Span startTrace(final String url) {
+    if (!enabled) {
+      return Span.NOOP;
+    }
+    final Span root = new Trace(LoggingContext.getRequestId(), url).getRoot();
+    current.set(root);
+    return root;
+  }
+
+  /**
+   * Export the recorded traces in JSON.
+   *
+   * @return the JSON text
+   */
+  public static String toJson() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("{\"enabled\":").append(enabled);
+    sb.append(",\"threshold\":").append(getThreshold());
+    sb.append(",\"traces\":[");
+    boolean first = true;
+    for (final Trace trace : getTraces()) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      trace.appendJson(sb);
+    }
+    sb.append("]}");
+    return sb.toString();
+  }
+
+  /**
+   * Wrap an executor so that the tasks it runs are traced as children of the
+   * current span.
+   *
+   * @param executor the executor
+   * @return the wrapped executor
+   */
+  public static Executor wrap(final Executor executor) {
+    final Span span = enabled ? current.get() : null;
+    if (span == null) {
+      return executor;
+    }
+    return new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        executor.execute(wrap(command, span));
+      }
+    };
+  }
+
+  /**
+   * Wrap a task so that it is traced as a child of the current span.
+   *
+   * @param task the task
+   * @return the wrapped task
+   */
+  public static Runnable wrap(final Runnable task) {
+    final Span span = enabled ? current.get() : null;
+    if (span == null) {
+      return task;
+    }
+    return wrap(task, span);
+  }
+
+  /**
+   * Wrap a task so that it is traced as a child of the given span.
+   *
+   * @param task the task
+   * @param span the span
+   * @return the wrapped task
+   */
+  private static Runnable wrap(final Runnable task, final Span span) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        final Span previous = current.get();
+        current.set(span);
+        try {
+          task.run();
+        } finally {
+          if (previous == null) {
+            current.remove();
+          } else {
+            current.set(previous);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Instantiates a new tracer.
+   */
+  private Tracer() {
+  }
+}
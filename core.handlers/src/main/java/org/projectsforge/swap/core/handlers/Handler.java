@@ -27,7 +27,11 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * The annotation Handler used to mark a class as being a handler.
+ * The annotation Handler used to mark a class as being a handler. A handler
+ * can declare the resources it consumes and produces so that the
+ * {@link HandlerContext} only starts it once the resources it needs are
+ * available instead of parking a thread in
+ * {@link HandlerContext#waitForResource(String)}.
  */
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.RUNTIME)
@@ -40,4 +44,30 @@ public @interface Handler {
    * @return true, if the instance can be reused (it's a singleton)
    */
   boolean singleton();
+
+  /**
+   * Indicates whether the output of the handler only depends on its inputs, so
+   * that the result of a processing can be cached and reused for identical
+   * inputs. Handlers whose output depends on the user or is non-deterministic
+   * must not be cacheable.
+   * 
+   * @return true, if the output of the handler can be cached
+   */
+  boolean cacheable() default true;
+
+  /**
+   * The names of the resources the handler needs. The handler is started once
+   * all the handlers of the phase producing these resources are done. Every
+   * consumed resource must be produced by a handler.
+   * 
+   * @return the consumed resources
+   */
+  String[] consumes() default {};
+
+  /**
+   * The names of the resources the handler adds to the context.
+   * 
+   * @return the produced resources
+   */
+  String[] produces() default {};
 }
@@ -12,27 +12,171 @@
  */
 package org.projectsforge.swap.core.handlers;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import org.projectsforge.swap.core.environment.trace.Span;
+import org.projectsforge.swap.core.environment.trace.Tracer;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * The context class which manage resources access and the synchronization and
- * execution of tasks.
+ * execution of tasks. The handlers of a phase are started as soon as the
+ * handlers producing the resources they declare consuming (see
+ * {@link Handler#consumes()}) are done.
  * 
  * @param <T> the generic type
  * @author Sébastien Aupetit
  */
 public class HandlerContext<T> implements AutoCloseable {
 
+  /**
+   * The task running a handler of the phase.
+   */
+  private final class HandlerTask implements Runnable {
+
+    /** The handler executor manager. */
+    private final HandlerExecutorManager<?> handlerExecutorManager;
+
+    /** The tasks of the phase. */
+    private final List<HandlerTask> tasks;
+
+    /** The latch released when the task is done. */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /** The thread currently running the task. */
+    private Thread runner;
+
+    /** The thread which ran the task. */
+    private Thread lastRunner;
+
+    /** Indicate if the task runs on the thread of the caller of execute(). */
+    private final boolean inline;
+
+    /** The resources consumed by the handler. */
+    private final Set<String> consumedResources;
+
+    /** The tasks waiting for the end of this task (guarded by tasks). */
+    private final List<HandlerTask> dependents = new ArrayList<HandlerTask>();
+
+    /** The number of producer tasks not yet done (guarded by tasks). */
+    private int pendingDependencies;
+
+    /**
+     * Instantiates a new handler task.
+     * 
+     * @param handlerExecutorManager the handler executor manager
+     * @param tasks the tasks of the phase
+     * @param inline true if the task runs on the caller thread
+     */
+    HandlerTask(final HandlerExecutorManager<?> handlerExecutorManager, final List<HandlerTask> tasks,
+        final boolean inline) {
+      this.handlerExecutorManager = handlerExecutorManager;
+      this.tasks = tasks;
+      this.inline = inline;
+      this.consumedResources = handlersManager.getConsumedResources(handlerExecutorManager.getHandlerClass());
+    }
+
+    /**
+     * Wait for the task to be done.
+     * 
+     * @throws InterruptedException the interrupted exception
+     */
+    void await() throws InterruptedException {
+      done.await();
+    }
+
+    /**
+     * Interrupt the thread running the task if the task is still running.
+     */
+    synchronized void interrupt() {
+      if (runner != null) {
+        runner.interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      final Thread thread = Thread.currentThread();
+      synchronized (this) {
+        runner = thread;
+        lastRunner = thread;
+      }
+      try {
+        try {
+          handlerExecutorManager.execute();
+        } finally {
+          // free locks on resources owned by this thread
+          resourcesLock.lock();
+          try {
+            for (final Resource<?> resource : resources.values()) {
+              resource.readWriteLock.unlockAllPendingLocks(thread);
+            }
+          } finally {
+            resourcesLock.unlock();
+          }
+        }
+        if (handlerExecutorManager.getException() != null) {
+          // on error, we interrupt all tasks to remove never ending locking
+          for (final HandlerTask task : tasks) {
+            if (task != this) {
+              task.interrupt();
+            }
+          }
+        }
+      } finally {
+        synchronized (this) {
+          runner = null;
+        }
+        if (!inline) {
+          // do not leak an interruption to the next task of a pooled thread
+          Thread.interrupted();
+        }
+        release();
+      }
+    }
+
+    /**
+     * Mark the task as done and start the dependent tasks which are now ready.
+     */
+    void release() {
+      final List<HandlerTask> readyTasks = new ArrayList<HandlerTask>();
+      synchronized (tasks) {
+        for (final HandlerTask dependent : dependents) {
+          if (--dependent.pendingDependencies == 0) {
+            readyTasks.add(dependent);
+          }
+        }
+      }
+      done.countDown();
+      for (final HandlerTask dependent : readyTasks) {
+        start(dependent);
+      }
+    }
+
+    /**
+     * Mark the task as done without running the handler.
+     * 
+     * @param missingResource the consumed resource which is not available
+     */
+    void skip(final String missingResource) {
+      logger.warn("{} not executed since the resource '{}' is not available",
+          handlerExecutorManager.getHandlerClass().getCanonicalName(), missingResource);
+      handlerExecutorManager.skip();
+      release();
+    }
+  }
+
   /** The logger. */
   private final Logger logger;
 
@@ -40,6 +184,13 @@ public class HandlerContext<T> implements AutoCloseable {
   @Autowired
   private HandlersManager handlersManager;
 
+  /** The worker pool (shared by contexts). */
+  @Autowired
+  private HandlerWorkerPool workerPool;
+
+  /** Indicate if the context is nested in the context of another phase. */
+  private final boolean nested;
+
   /** The resources (shared by contexts). */
   @SuppressWarnings("rawtypes")
   private final Map<String, Resource> resources;
@@ -81,6 +232,7 @@ public class HandlerContext<T> implements AutoCloseable {
     this.handlerExecutor = handlerExecutor;
     this.logger = parent.logger;
     this.handlerFilter = handlerFilter;
+    this.nested = true;
   }
 
   /**
@@ -101,6 +253,7 @@ public class HandlerContext<T> implements AutoCloseable {
     this.handlerBaseClass = handlerBaseClass;
     this.handlerExecutor = handlerExecutor;
     this.handlerFilter = handlerFilter;
+    this.nested = false;
   }
 
   /**
@@ -160,6 +313,17 @@ public class HandlerContext<T> implements AutoCloseable {
    * @return true if not error occurred
    */
   public boolean execute() {
+    try (final Span span = Tracer.start("phase ", handlerBaseClass.getName())) {
+      return executeHandlers();
+    }
+  }
+
+  /**
+   * Execute the handlers associated to the context.
+   * 
+   * @return true if not error occurred
+   */
+  private boolean executeHandlers() {
     boolean anExceptionOccurred = false;
 
     // Build handler list for the phase
@@ -172,54 +336,70 @@ public class HandlerContext<T> implements AutoCloseable {
         handlerInfos.put(c, hi);
       }
     }
-    final Set<Thread> threads = new HashSet<Thread>();
 
-    // create threads
+    // A single handler of a top level phase can be run by the caller thread
+    // since nobody can wait for it. Handlers of nested phases are never inlined
+    // because the caller thread may already own locks on the shared resources.
+    final boolean inline = !nested && handlerInfos.size() == 1
+        && HandlersPropertyHolder.inlineSingleHandler.get();
+
+    final List<HandlerTask> tasks = new ArrayList<HandlerTask>();
+    final Map<String, List<HandlerTask>> producers = new HashMap<String, List<HandlerTask>>();
     for (final HandlerExecutorManager<?> hi : handlerInfos.values()) {
-      final Thread thread = new Thread() {
-        @Override
-        public void run() {
-          try {
-            hi.execute();
-          } finally {
-            // free locks on resources owned by this threads
-            resourcesLock.lock();
-            try {
-              for (final Resource<?> resource : resources.values()) {
-                resource.readWriteLock.unlockAllPendingLocks(this);
+      final HandlerTask task = new HandlerTask(hi, tasks, inline);
+      tasks.add(task);
+      for (final String resource : handlersManager.getProducedResources(hi.getHandlerClass())) {
+        List<HandlerTask> list = producers.get(resource);
+        if (list == null) {
+          list = new ArrayList<HandlerTask>();
+          producers.put(resource, list);
+        }
+        list.add(task);
+      }
+    }
+
+    // a task depends on the tasks of the phase producing the resources it
+    // consumes, unless the resources are already available
+    final List<HandlerTask> readyTasks = new ArrayList<HandlerTask>();
+    resourcesLock.lock();
+    try {
+      for (final HandlerTask task : tasks) {
+        for (final String resource : task.consumedResources) {
+          final List<HandlerTask> list = producers.get(resource);
+          if (!resources.containsKey(resource) && list != null) {
+            for (final HandlerTask producer : list) {
+              if (!producer.dependents.contains(task)) {
+                producer.dependents.add(task);
+                task.pendingDependencies++;
               }
-            } finally {
-              resourcesLock.unlock();
-            }
-          }
-          if (hi.getException() != null) {
-            // on error, we interrupt all threads to remove never ending locking
-            for (final Thread t : threads) {
-              t.interrupt();
             }
           }
         }
-      };
-      thread.setName(logger.getName() + " " + hi);
-      threads.add(thread);
+        if (task.pendingDependencies == 0) {
+          readyTasks.add(task);
+        }
+      }
+    } finally {
+      resourcesLock.unlock();
     }
 
-    // start all threads of the phase
-    for (final Thread thread : threads) {
-      thread.start();
+    // start the ready tasks of the phase, the other ones are started when their
+    // producers are done
+    for (final HandlerTask task : readyTasks) {
+      start(task);
     }
 
-    // join threads
+    // wait for tasks
     boolean allDone = false;
     while (!allDone) {
       try {
-        for (final Thread thread : threads) {
-          thread.join();
+        for (final HandlerTask task : tasks) {
+          task.await();
         }
         allDone = true;
       } catch (final InterruptedException e) {
-        for (final Thread thread : threads) {
-          thread.interrupt();
+        for (final HandlerTask task : tasks) {
+          task.interrupt();
         }
       }
     }
@@ -236,17 +416,49 @@ public class HandlerContext<T> implements AutoCloseable {
     }
 
     // check for active lock on resource and log an error for active lock
-    // from dead threads
+    // from dead threads (pooled threads are cleaned at the end of each task)
+    final Set<Thread> threads = new HashSet<Thread>();
+    for (final HandlerTask task : tasks) {
+      synchronized (task) {
+        if (task.lastRunner != null && !task.lastRunner.isAlive()) {
+          threads.add(task.lastRunner);
+        }
+      }
+    }
+    if (!threads.isEmpty()) {
+      resourcesLock.lock();
+      try {
+        for (final Resource<?> resource : resources.values()) {
+          resource.readWriteLock.unlockAllPendingLocks(threads);
+        }
+      } finally {
+        resourcesLock.unlock();
+      }
+    }
+
+    return !anExceptionOccurred;
+  }
+
+  /**
+   * Gets the time (in ns) spent by threads waiting to lock each resource of the
+   * context. Resources which have never been contended are omitted.
+   * 
+   * @return the contention time of the resources
+   */
+  public Map<String, Long> getResourcesContentionTime() {
+    final Map<String, Long> result = new HashMap<String, Long>();
     resourcesLock.lock();
     try {
       for (final Resource<?> resource : resources.values()) {
-        resource.readWriteLock.unlockAllPendingLocks(threads);
+        final long contentionTime = resource.getContentionTime();
+        if (contentionTime > 0) {
+          result.put(resource.getName(), contentionTime);
+        }
       }
     } finally {
       resourcesLock.unlock();
     }
-
-    return !anExceptionOccurred;
+    return result;
   }
 
   /**
@@ -258,6 +470,35 @@ public class HandlerContext<T> implements AutoCloseable {
     return logger;
   }
 
+  /**
+   * Start a task whose producers are done. The task is skipped if one of the
+   * resources it consumes is still not available.
+   * 
+   * @param task the task
+   */
+  private void start(final HandlerTask task) {
+    String missingResource = null;
+    resourcesLock.lock();
+    try {
+      for (final String resource : task.consumedResources) {
+        if (!resources.containsKey(resource)) {
+          missingResource = resource;
+          break;
+        }
+      }
+    } finally {
+      resourcesLock.unlock();
+    }
+
+    if (missingResource != null) {
+      task.skip(missingResource);
+    } else if (task.inline) {
+      task.run();
+    } else {
+      workerPool.execute(task, logger.getName() + " " + task.handlerExecutorManager);
+    }
+  }
+
   /**
    * Gets the resource.
    * 
@@ -364,8 +605,12 @@ public class HandlerContext<T> implements AutoCloseable {
   public <TData> Resource<TData> waitForResource(final String name) throws InterruptedException {
     resourcesLock.lock();
     try {
-      while (!resources.containsKey(name)) {
-        resourcesChanged.await();
+      if (!resources.containsKey(name)) {
+        try (final Span span = Tracer.start("wait resource ", name)) {
+          do {
+            resourcesChanged.await();
+          } while (!resources.containsKey(name));
+        }
       }
       return resources.get(name);
     } finally {
@@ -389,7 +634,9 @@ public class HandlerContext<T> implements AutoCloseable {
     resourcesLock.lock();
     try {
       if (!resources.containsKey(name)) {
-        resourcesChanged.await(timeout, timeUnit);
+        try (final Span span = Tracer.start("wait resource ", name)) {
+          resourcesChanged.await(timeout, timeUnit);
+        }
       }
       return resources.get(name);
     } finally {
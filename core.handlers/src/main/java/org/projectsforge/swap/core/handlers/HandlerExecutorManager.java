@@ -15,6 +15,9 @@ package org.projectsforge.swap.core.handlers;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import org.projectsforge.swap.core.environment.LoggingContext;
+import org.projectsforge.swap.core.environment.trace.Span;
+import org.projectsforge.swap.core.environment.trace.Tracer;
 
 /**
  * The HandlerExecutorManager manages the execution of a handler.
@@ -67,6 +70,8 @@ class HandlerExecutorManager<T> {
    * Execute the handler.
    */
   void execute() {
+    final String previousHandler = LoggingContext.setHandler(handlerClass.getSimpleName());
+    final Span span = Tracer.start(handlerClass.getName());
     final long startTime = System.currentTimeMillis();
     try {
       executor.execute(context, handlerClass, handlerInstance);
@@ -86,9 +91,25 @@ class HandlerExecutorManager<T> {
       } finally {
         lock.unlock();
       }
+    } finally {
+      final long endTime = System.currentTimeMillis();
+      span.close();
+      context.getLogger().info("{} executed in {}ms", handlerClass.getCanonicalName(), endTime - startTime);
+      LoggingContext.setHandler(previousHandler);
+    }
+  }
+
+  /**
+   * Mark the handler as terminated without executing it.
+   */
+  void skip() {
+    try {
+      lock.lock();
+      terminated = true;
+      stateChanged.signalAll();
+    } finally {
+      lock.unlock();
     }
-    final long endTime = System.currentTimeMillis();
-    context.getLogger().info("{} executed in {}ms", handlerClass.getCanonicalName(), endTime - startTime);
   }
 
   /**
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.handlers;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.projectsforge.swap.core.environment.LoggingContext;
+import org.projectsforge.swap.core.environment.trace.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * The worker threads shared by all the {@link HandlerContext}s. Depending on
+ * {@link HandlersPropertyHolder#executionMode}, tasks are either run by a
+ * dedicated thread or by a thread of a shared pool. Since handlers block while
+ * waiting for other handlers or resources, tasks are never queued: when all the
+ * pooled threads are busy, the task is run by a daemon overflow thread so that
+ * a phase can never deadlock on a saturated pool. The overflow threads are
+ * bounded by {@link HandlersPropertyHolder#poolMaxOverflow}; beyond it, and
+ * once the pool is shut down, the task is run by the submitting thread.
+ * 
+ * @author Sébastien Aupetit
+ */
+@Component
+public class HandlerWorkerPool {
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(HandlerWorkerPool.class);
+
+  /** The pool. */
+  private ThreadPoolExecutor executor;
+
+  /** The number of created threads. */
+  private final AtomicLong createdThreadCount = new AtomicLong();
+
+  /** The number of executed tasks. */
+  private final AtomicLong executedTaskCount = new AtomicLong();
+
+  /** The number of tasks run by an overflow thread. */
+  private final AtomicLong overflowTaskCount = new AtomicLong();
+
+  /** The number of tasks run by the submitting thread. */
+  private final AtomicLong callerRunsTaskCount = new AtomicLong();
+
+  /** The permits of the overflow threads. */
+  private Semaphore overflowPermits;
+
+  /** The cumulated delay (in ns) between submission and start of the tasks. */
+  private final AtomicLong totalQueueingDelay = new AtomicLong();
+
+  /** The maximum delay (in ns) between submission and start of a task. */
+  private final AtomicLong maxQueueingDelay = new AtomicLong();
+
+  /**
+   * Execute a task. The task runs with the {@link LoggingContext} and the
+   * current span of the {@link Tracer} of the submitting thread.
+   * 
+   * @param task the task
+   * @param name the name given to the thread while it runs the task
+   */
+  public void execute(final Runnable task, final String name) {
+    final Runnable contextTask = LoggingContext.wrap(Tracer.wrap(task));
+    final Runnable wrapper = new Runnable() {
+      private final long submitTime = System.nanoTime();
+
+      @Override
+      public void run() {
+        recordQueueingDelay(System.nanoTime() - submitTime);
+        final Thread thread = Thread.currentThread();
+        final String previousName = thread.getName();
+        thread.setName(name);
+        try {
+          contextTask.run();
+        } finally {
+          thread.setName(previousName);
+        }
+      }
+    };
+
+    if (HandlersPropertyHolder.executionMode.get() == HandlerExecutionMode.POOL) {
+      executor.execute(wrapper);
+    } else {
+      newThread(wrapper).start();
+    }
+  }
+
+  /**
+   * Gets the number of threads created to run tasks.
+   * 
+   * @return the created thread count
+   */
+  public long getCreatedThreadCount() {
+    return createdThreadCount.get();
+  }
+
+  /**
+   * Gets the number of executed tasks.
+   * 
+   * @return the executed task count
+   */
+  public long getExecutedTaskCount() {
+    return executedTaskCount.get();
+  }
+
+  /**
+   * Gets the average delay (in ms) between the submission and the start of a
+   * task.
+   * 
+   * @return the average queueing delay
+   */
+  public double getAverageQueueingDelay() {
+    final long count = executedTaskCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    return totalQueueingDelay.get() / (count * 1000000.0);
+  }
+
+  /**
+   * Gets the maximum delay (in ms) between the submission and the start of a
+   * task.
+   * 
+   * @return the max queueing delay
+   */
+  public double getMaxQueueingDelay() {
+    return maxQueueingDelay.get() / 1000000.0;
+  }
+
+  /**
+   * Gets the number of tasks run by an overflow thread because the pool was
+   * saturated.
+   * 
+   * @return the overflow task count
+   */
+  public long getOverflowTaskCount() {
+    return overflowTaskCount.get();
+  }
+
+  /**
+   * Gets the number of tasks run by the submitting thread because the pool and
+   * the overflow threads were saturated or the pool was shut down.
+   * 
+   * @return the caller runs task count
+   */
+  public long getCallerRunsTaskCount() {
+    return callerRunsTaskCount.get();
+  }
+
+  /**
+   * Gets the number of threads currently in the pool.
+   * 
+   * @return the pool size
+   */
+  public int getPoolSize() {
+    return executor.getPoolSize();
+  }
+
+  /**
+   * Gets the number of pooled threads currently running a task.
+   * 
+   * @return the active thread count
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Initializes the pool.
+   */
+  @PostConstruct
+  void init() {
+    final int maxSize = Math.max(1, HandlersPropertyHolder.poolMaxSize.get());
+    final int coreSize = Math.min(maxSize, Math.max(0, HandlersPropertyHolder.poolCoreSize.get()));
+    final int maxOverflow = Math.max(0, HandlersPropertyHolder.poolMaxOverflow.get());
+    overflowPermits = new Semaphore(maxOverflow);
+
+    executor = new ThreadPoolExecutor(coreSize, maxSize, HandlersPropertyHolder.poolKeepAlive.get(),
+        TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable runnable) {
+            final Thread thread = HandlerWorkerPool.this.newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new RejectedExecutionHandler() {
+          @Override
+          public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+            if (!executor.isShutdown() && overflowPermits.tryAcquire()) {
+              overflowTaskCount.incrementAndGet();
+              final Thread thread = newThread(new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    runnable.run();
+                  } finally {
+                    overflowPermits.release();
+                  }
+                }
+              });
+              thread.setDaemon(true);
+              thread.start();
+            } else {
+              callerRunsTaskCount.incrementAndGet();
+              runnable.run();
+            }
+          }
+        });
+    logger.info("Handler worker pool created (core size: {}, max size: {}, max overflow: {}, mode: {})",
+        coreSize, maxSize, maxOverflow, HandlersPropertyHolder.executionMode.get());
+  }
+
+  /**
+   * Creates a new thread.
+   * 
+   * @param runnable the runnable
+   * @return the thread
+   */
+  private Thread newThread(final Runnable runnable) {
+    return new Thread(runnable, "handler-worker-" + createdThreadCount.incrementAndGet());
+  }
+
+  /**
+   * Record the queueing delay of a task.
+   * 
+   * @param delay the delay in ns
+   */
+  private void recordQueueingDelay(final long delay) {
+    executedTaskCount.incrementAndGet();
+    totalQueueingDelay.addAndGet(delay);
+    long max = maxQueueingDelay.get();
+    while (delay > max && !maxQueueingDelay.compareAndSet(max, delay)) {
+      max = maxQueueingDelay.get();
+    }
+  }
+
+  /**
+   * Shutdown the pool.
+   */
+  @PreDestroy
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "HandlerWorkerPool [createdThreads=%s, executedTasks=%s, overflowTasks=%s, callerRunsTasks=%s, "
+            + "avgQueueingDelay=%.3fms]", getCreatedThreadCount(), getExecutedTaskCount(), getOverflowTaskCount(),
+        getCallerRunsTaskCount(), getAverageQueueingDelay());
+  }
+}
@@ -15,8 +15,12 @@ package org.projectsforge.swap.core.handlers;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -49,9 +53,18 @@ public class HandlersManager {
   /** The singletons. */
   private final Map<Class<?>, Object> singletons = new HashMap<Class<?>, Object>();
 
+  /** The resources consumed by the handlers. */
+  private final Map<Class<?>, Set<String>> consumedResources = new HashMap<Class<?>, Set<String>>();
+
+  /** The resources produced by the handlers. */
+  private final Map<Class<?>, Set<String>> producedResources = new HashMap<Class<?>, Set<String>>();
+
   /** The disabled handlers. */
   private final Set<String> disabledHandlers = new HashSet<String>();
 
+  /** The enabled handlers (null if it must be computed). */
+  private Set<Class<?>> enabledHandlers;
+
   /** The annotation scanner. */
   @Autowired
   private AnnotationScanner annotationScanner;
@@ -60,6 +73,85 @@ public class HandlersManager {
   @Autowired
   private Environment environment;
 
+  /**
+   * Check that the dependency graph of the handlers is a DAG.
+   * 
+   * @param handler the handler being visited
+   * @param producers the handlers producing each resource
+   * @param visited the fully visited handlers
+   * @param path the handlers on the current path
+   */
+  private void checkCycles(final Class<?> handler, final Map<String, Set<Class<?>>> producers,
+      final Set<Class<?>> visited, final List<Class<?>> path) {
+    if (visited.contains(handler)) {
+      return;
+    }
+    final int index = path.indexOf(handler);
+    if (index >= 0) {
+      final StringBuilder cycle = new StringBuilder();
+      for (final Class<?> c : path.subList(index, path.size())) {
+        cycle.append(c.getName()).append(" -> ");
+      }
+      cycle.append(handler.getName());
+      throw new IllegalStateException("Cyclic dependency between handlers: " + cycle);
+    }
+    path.add(handler);
+    for (final String resource : consumedResources.get(handler)) {
+      for (final Class<?> producer : producers.get(resource)) {
+        checkCycles(producer, producers, visited, path);
+      }
+    }
+    path.remove(path.size() - 1);
+    visited.add(handler);
+  }
+
+  /**
+   * Build the dependency graph of the handlers from the resources they declare
+   * and check that it is consistent: every consumed resource must be produced
+   * by a handler and the graph must not contain cycle.
+   */
+  private void checkDependencies() {
+    final Map<String, Set<Class<?>>> producers = new HashMap<String, Set<Class<?>>>();
+    for (final Class<?> handler : handlers.values()) {
+      final Handler annotation = handler.getAnnotation(Handler.class);
+      consumedResources.put(handler,
+          Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(annotation.consumes()))));
+      producedResources.put(handler,
+          Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(annotation.produces()))));
+      for (final String resource : annotation.produces()) {
+        Set<Class<?>> set = producers.get(resource);
+        if (set == null) {
+          set = new HashSet<Class<?>>();
+          producers.put(resource, set);
+        }
+        set.add(handler);
+      }
+    }
+
+    for (final Class<?> handler : handlers.values()) {
+      for (final String resource : consumedResources.get(handler)) {
+        if (!producers.containsKey(resource)) {
+          throw new IllegalStateException("The resource '" + resource + "' consumed by " + handler.getName()
+              + " is produced by no handler");
+        }
+      }
+    }
+
+    final Set<Class<?>> visited = new HashSet<Class<?>>();
+    for (final Class<?> handler : handlers.values()) {
+      checkCycles(handler, producers, visited, new ArrayList<Class<?>>());
+    }
+
+    if (logger.isInfoEnabled()) {
+      for (final Class<?> handler : handlers.values()) {
+        if (!consumedResources.get(handler).isEmpty() || !producedResources.get(handler).isEmpty()) {
+          logger.info("Handler {} consumes {} and produces {}", new Object[] { handler.getName(),
+              consumedResources.get(handler), producedResources.get(handler) });
+        }
+      }
+    }
+  }
+
   @PreDestroy
   private void destroy() {
     for (final Object singleton : singletons.values()) {
@@ -97,6 +189,7 @@ public class HandlersManager {
       HandlersPropertyHolder.disabledHandlers.set(result);
       environment.saveConfigurationProperties();
       handlersByInterfaces.clear();
+      enabledHandlers = null;
     }
   }
 
@@ -120,10 +213,52 @@ public class HandlersManager {
       HandlersPropertyHolder.disabledHandlers.set(result);
       environment.saveConfigurationProperties();
       handlersByInterfaces.clear();
+      enabledHandlers = null;
     }
     handlersByInterfaces.clear();
   }
 
+  /**
+   * Gets the resources consumed by a handler.
+   * 
+   * @param handler the handler
+   * @return the consumed resources
+   */
+  public Set<String> getConsumedResources(final Class<?> handler) {
+    final Set<String> result = consumedResources.get(handler);
+    return result == null ? Collections.<String> emptySet() : result;
+  }
+
+  /**
+   * Gets the resources produced by a handler.
+   * 
+   * @param handler the handler
+   * @return the produced resources
+   */
+  public Set<String> getProducedResources(final Class<?> handler) {
+    final Set<String> result = producedResources.get(handler);
+    return result == null ? Collections.<String> emptySet() : result;
+  }
+
+  /**
+   * Gets the enabled handlers. The same instance is returned as long as no
+   * handler is enabled or disabled.
+   * 
+   * @return the enabled handlers
+   */
+  public synchronized Set<Class<?>> getEnabledHandlers() {
+    if (enabledHandlers == null) {
+      final Set<Class<?>> result = new HashSet<Class<?>>();
+      for (final Entry<String, Class<?>> handler : handlers.entrySet()) {
+        if (!disabledHandlers.contains(handler.getKey())) {
+          result.add(handler.getValue());
+        }
+      }
+      enabledHandlers = Collections.unmodifiableSet(result);
+    }
+    return enabledHandlers;
+  }
+
   /**
    * Gets the handlers by interface.
    * 
@@ -189,6 +324,7 @@ public class HandlersManager {
     for (final Entry<String, Class<?>> entry : classes.entrySet()) {
       handlers.put(entry.getKey(), entry.getValue());
     }
+    checkDependencies();
 
     final StringTokenizer tokenizer = new StringTokenizer(HandlersPropertyHolder.disabledHandlers.get(), ";");
     while (tokenizer.hasMoreTokens()) {
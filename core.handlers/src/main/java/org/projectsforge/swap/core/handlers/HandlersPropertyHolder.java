@@ -1,9 +1,26 @@
 package org.projectsforge.swap.core.handlers;
 
+import org.projectsforge.utils.propertyregistry.BooleanProperty;
+import org.projectsforge.utils.propertyregistry.EnumProperty;
+import org.projectsforge.utils.propertyregistry.IntegerProperty;
 import org.projectsforge.utils.propertyregistry.PropertyHolder;
 import org.projectsforge.utils.propertyregistry.StringProperty;
 
 public class HandlersPropertyHolder implements PropertyHolder {
   public static final StringProperty disabledHandlers = new StringProperty("handlers.disabled", "");
 
+  public static final EnumProperty<HandlerExecutionMode> executionMode = new EnumProperty<>(
+      "handlers.executionMode", HandlerExecutionMode.class, HandlerExecutionMode.POOL);
+
+  public static final BooleanProperty inlineSingleHandler = new BooleanProperty("handlers.inlineSingleHandler",
+      true);
+
+  public static final IntegerProperty poolCoreSize = new IntegerProperty("handlers.pool.coreSize", 16);
+
+  public static final IntegerProperty poolMaxSize = new IntegerProperty("handlers.pool.maxSize", 256);
+
+  public static final IntegerProperty poolMaxOverflow = new IntegerProperty("handlers.pool.maxOverflow", 256);
+
+  public static final IntegerProperty poolKeepAlive = new IntegerProperty("handlers.pool.keepAlive", 60 * 1000);
+
 }
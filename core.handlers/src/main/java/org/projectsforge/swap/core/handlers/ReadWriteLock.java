@@ -15,15 +15,34 @@ package org.projectsforge.swap.core.handlers;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.projectsforge.swap.core.environment.trace.Span;
+import org.projectsforge.swap.core.environment.trace.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * The a reentrant, unlockable ReadWriteLock which allows the promotion of read
  * lock into write lock and write lock into read lock without interblocking.
+ * Besides the owners needed to force the release of the locks held by a dead
+ * thread, the lock maintains a stamp changed by each write locking so that
+ * short reads can be done optimistically without locking (see
+ * {@link #tryOptimisticRead()}). The time spent by threads waiting for the lock
+ * is accumulated.
  */
 public class ReadWriteLock {
 
+  /** The initial stamp. The stamp is odd while the write lock is owned. */
+  private static final long ORIGIN = 256;
+
+  /** The lock protecting the state. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** The condition 'the lock state has changed'. */
+  private final Condition stateChanged = lock.newCondition();
+
   /** The reading threads. */
   private final Map<Thread, Integer> readingThreads = new HashMap<Thread, Integer>();
 
@@ -36,6 +55,18 @@ public class ReadWriteLock {
   /** The writing thread. */
   private Thread writingThread = null;
 
+  /** The stamp. */
+  private volatile long stamp = ORIGIN;
+
+  /** The number of lockings which had to wait. */
+  private final AtomicLong contentionCount = new AtomicLong();
+
+  /** The cumulated time (in ns) spent waiting for the lock. */
+  private final AtomicLong contentionTime = new AtomicLong();
+
+  /** The name. */
+  private final String name;
+
   /** The logger. */
   private final Logger logger;
 
@@ -45,6 +76,7 @@ public class ReadWriteLock {
    * @param name the name
    */
   public ReadWriteLock(final String name) {
+    this.name = name;
     logger = LoggerFactory.getLogger(ReadWriteLock.class.getName() + "." + name);
   }
 
@@ -92,6 +124,47 @@ public class ReadWriteLock {
     return true;
   }
 
+  /**
+   * Force the release of the locks held by a thread. Must be called with the
+   * lock held.
+   * 
+   * @param thread the thread
+   * @return true, if a lock has been released
+   */
+  private boolean forceUnlock(final Thread thread) {
+    boolean changed = false;
+    if (readingThreads.remove(thread) != null) {
+      logger.warn("Read lock currently locked by {}. Forcing unlocking.", thread);
+      changed = true;
+    }
+    if (writingThread != null && thread == writingThread) {
+      logger.warn("Write lock currentlty locked by {}", writingThread);
+      writingThread = null;
+      writeAccesses = 0;
+      stamp++;
+      changed = true;
+    }
+    return changed;
+  }
+
+  /**
+   * Gets the number of lockings which had to wait for the lock.
+   * 
+   * @return the contention count
+   */
+  public long getContentionCount() {
+    return contentionCount.get();
+  }
+
+  /**
+   * Gets the cumulated time (in ns) spent by threads waiting for the lock.
+   * 
+   * @return the contention time
+   */
+  public long getContentionTime() {
+    return contentionTime.get();
+  }
+
   /**
    * Gets the read access count.
    * 
@@ -168,13 +241,25 @@ public class ReadWriteLock {
    * 
    * @throws InterruptedException the interrupted exception
    */
-  public synchronized void lockRead() throws InterruptedException {
+  public void lockRead() throws InterruptedException {
     final Thread callingThread = Thread.currentThread();
-    while (!canGrantReadAccess(callingThread)) {
-      wait();
+    lock.lock();
+    try {
+      if (!canGrantReadAccess(callingThread)) {
+        contentionCount.incrementAndGet();
+        final long startTime = System.nanoTime();
+        try (final Span span = Tracer.start("lock read ", name)) {
+          do {
+            stateChanged.await();
+          } while (!canGrantReadAccess(callingThread));
+        } finally {
+          contentionTime.addAndGet(System.nanoTime() - startTime);
+        }
+      }
+      readingThreads.put(callingThread, (getReadAccessCount(callingThread) + 1));
+    } finally {
+      lock.unlock();
     }
-
-    readingThreads.put(callingThread, (getReadAccessCount(callingThread) + 1));
   }
 
   /**
@@ -182,15 +267,51 @@ public class ReadWriteLock {
    * 
    * @throws InterruptedException the interrupted exception
    */
-  public synchronized void lockWrite() throws InterruptedException {
-    writeRequests++;
+  public void lockWrite() throws InterruptedException {
     final Thread callingThread = Thread.currentThread();
-    while (!canGrantWriteAccess(callingThread)) {
-      wait();
+    lock.lock();
+    try {
+      writeRequests++;
+      boolean granted = false;
+      try {
+        if (!canGrantWriteAccess(callingThread)) {
+          contentionCount.incrementAndGet();
+          final long startTime = System.nanoTime();
+          try (final Span span = Tracer.start("lock write ", name)) {
+            do {
+              stateChanged.await();
+            } while (!canGrantWriteAccess(callingThread));
+          } finally {
+            contentionTime.addAndGet(System.nanoTime() - startTime);
+          }
+        }
+        granted = true;
+      } finally {
+        writeRequests--;
+        if (!granted) {
+          // readers may have been blocked by this request
+          stateChanged.signalAll();
+        }
+      }
+      if (writeAccesses++ == 0) {
+        stamp++;
+      }
+      writingThread = callingThread;
+    } finally {
+      lock.unlock();
     }
-    writeRequests--;
-    writeAccesses++;
-    writingThread = callingThread;
+  }
+
+  /**
+   * Try an optimistic read. The returned stamp must be checked with
+   * {@link #validate(long)} after the read to ensure that no write lock has been
+   * acquired in between.
+   * 
+   * @return the stamp or zero if the write lock is currently owned
+   */
+  public long tryOptimisticRead() {
+    final long current = stamp;
+    return (current & 1) == 0 ? current : 0;
   }
 
   /**
@@ -198,59 +319,62 @@ public class ReadWriteLock {
    * 
    * @param threads the threads
    */
-  public synchronized void unlockAllPendingLocks(final Set<Thread> threads) {
-    for (final Thread t : readingThreads.keySet()) {
-      if (threads.contains(t)) {
-        logger.warn("Read lock currently locked by {}. Forcing unlocking.", t);
-        readingThreads.remove(t);
+  public void unlockAllPendingLocks(final Set<Thread> threads) {
+    lock.lock();
+    try {
+      boolean changed = false;
+      for (final Thread thread : threads) {
+        changed |= forceUnlock(thread);
       }
-    }
-    if (writingThread != null) {
-      if (threads.contains(writingThread)) {
-        logger.warn("Write lock currentlty locked by {}", writingThread);
-        writingThread = null;
+      if (changed) {
+        stateChanged.signalAll();
       }
+    } finally {
+      lock.unlock();
     }
-    notifyAll();
   }
 
   /**
    * Unlock all pending locks.
    * 
-   * @param threads the threads
+   * @param thread the thread
    */
-  public synchronized void unlockAllPendingLocks(final Thread thread) {
-    for (final Thread t : readingThreads.keySet()) {
-      if (thread == t) {
-        logger.warn("Read lock currently locked by {}. Forcing unlocking.", t);
-        readingThreads.remove(t);
-      }
-    }
-    if (writingThread != null) {
-      if (thread == writingThread) {
-        logger.warn("Write lock currentlty locked by {}", writingThread);
-        writingThread = null;
+  public void unlockAllPendingLocks(final Thread thread) {
+    lock.lock();
+    try {
+      if (forceUnlock(thread)) {
+        stateChanged.signalAll();
       }
+    } finally {
+      lock.unlock();
     }
-    notifyAll();
   }
 
   /**
    * Unlock read.
    */
-  public synchronized void unlockRead() {
+  public void unlockRead() {
     final Thread callingThread = Thread.currentThread();
-    if (!isReader(callingThread)) {
-      throw new IllegalMonitorStateException("Calling Thread does not"
-          + " hold a read lock on this ReadWriteLock");
-    }
-    final int accessCount = getReadAccessCount(callingThread);
-    if (accessCount == 1) {
-      readingThreads.remove(callingThread);
-    } else {
-      readingThreads.put(callingThread, (accessCount - 1));
+    lock.lock();
+    try {
+      if (!isReader(callingThread)) {
+        throw new IllegalMonitorStateException("Calling Thread does not"
+            + " hold a read lock on this ReadWriteLock");
+      }
+      final int accessCount = getReadAccessCount(callingThread);
+      if (accessCount == 1) {
+        readingThreads.remove(callingThread);
+        // a writer can only be waiting for the last reader or for a reader
+        // which wants to promote its lock
+        if (readingThreads.size() <= 1) {
+          stateChanged.signalAll();
+        }
+      } else {
+        readingThreads.put(callingThread, (accessCount - 1));
+      }
+    } finally {
+      lock.unlock();
     }
-    notifyAll();
   }
 
   /**
@@ -258,16 +382,33 @@ public class ReadWriteLock {
    * 
    * @throws InterruptedException the interrupted exception
    */
-  public synchronized void unlockWrite() throws InterruptedException {
-    if (!isWriter(Thread.currentThread())) {
-      throw new IllegalMonitorStateException("Calling Thread does not"
-          + " hold the write lock on this ReadWriteLock");
-    }
+  public void unlockWrite() throws InterruptedException {
+    lock.lock();
+    try {
+      if (!isWriter(Thread.currentThread())) {
+        throw new IllegalMonitorStateException("Calling Thread does not"
+            + " hold the write lock on this ReadWriteLock");
+      }
 
-    writeAccesses--;
-    if (writeAccesses == 0) {
-      writingThread = null;
+      writeAccesses--;
+      if (writeAccesses == 0) {
+        writingThread = null;
+        stamp++;
+        stateChanged.signalAll();
+      }
+    } finally {
+      lock.unlock();
     }
-    notifyAll();
+  }
+
+  /**
+   * Checks that no write lock has been acquired since the stamp has been
+   * obtained.
+   * 
+   * @param stamp the stamp returned by {@link #tryOptimisticRead()}
+   * @return true, if the optimistic read is valid
+   */
+  public boolean validate(final long stamp) {
+    return stamp != 0 && stamp == this.stamp;
   }
 }
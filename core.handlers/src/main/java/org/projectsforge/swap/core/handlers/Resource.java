@@ -21,7 +21,10 @@
 package org.projectsforge.swap.core.handlers;
 
 /**
- * The class that manages resource access.
+ * The class that manages resource access. The value of a write-once resource
+ * (see {@link #writeOnce(String, Object)}) is published when the resource is
+ * created and is read without locking. The value of other resources is read
+ * optimistically and the read lock is only taken when a writer is active.
  * 
  * @param <TData>
  *          the generic type
@@ -32,11 +35,30 @@ public class Resource<TData> {
   final ReadWriteLock readWriteLock;
 
   /** The value. */
-  TData value;
+  volatile TData value;
 
   /** The name. */
   private final String name;
 
+  /** Indicate if the value can not be changed once published. */
+  private final boolean writeOnce;
+
+  /**
+   * Creates a write-once resource. The value can not be changed and reading it
+   * never locks.
+   * 
+   * @param <TData>
+   *          the generic type
+   * @param name
+   *          the name
+   * @param value
+   *          the value
+   * @return the resource
+   */
+  public static <TData> Resource<TData> writeOnce(final String name, final TData value) {
+    return new Resource<TData>(name, value, true);
+  }
+
   /**
    * Instantiates a new resource.
    * 
@@ -44,9 +66,7 @@ public class Resource<TData> {
    *          the name
    */
   public Resource(final String name) {
-    this.name = name;
-    readWriteLock = new ReadWriteLock(name);
-    this.value = null;
+    this(name, null, false);
   }
 
   /**
@@ -58,9 +78,24 @@ public class Resource<TData> {
    *          the value
    */
   public Resource(final String name, final TData value) {
+    this(name, value, false);
+  }
+
+  /**
+   * The Constructor.
+   * 
+   * @param name
+   *          the name
+   * @param value
+   *          the value
+   * @param writeOnce
+   *          true if the value can not be changed
+   */
+  private Resource(final String name, final TData value, final boolean writeOnce) {
     this.name = name;
     readWriteLock = new ReadWriteLock(name);
     this.value = value;
+    this.writeOnce = writeOnce;
   }
 
   /**
@@ -71,6 +106,14 @@ public class Resource<TData> {
    *           the interrupted exception
    */
   public TData get() throws InterruptedException {
+    if (writeOnce) {
+      return this.value;
+    }
+    final long stamp = readWriteLock.tryOptimisticRead();
+    final TData result = this.value;
+    if (readWriteLock.validate(stamp)) {
+      return result;
+    }
     readWriteLock.lockRead();
     try {
       return this.value;
@@ -79,6 +122,25 @@ public class Resource<TData> {
     }
   }
 
+  /**
+   * Gets the number of lockings of the resource which had to wait.
+   * 
+   * @return the contention count
+   */
+  public long getContentionCount() {
+    return readWriteLock.getContentionCount();
+  }
+
+  /**
+   * Gets the cumulated time (in ns) spent by threads waiting to lock the
+   * resource.
+   * 
+   * @return the contention time
+   */
+  public long getContentionTime() {
+    return readWriteLock.getContentionTime();
+  }
+
   /**
    * Gets the name.
    * 
@@ -115,8 +177,13 @@ public class Resource<TData> {
    *          the value
    * @throws InterruptedException
    *           the interrupted exception
+   * @throws IllegalStateException
+   *           if the resource is write-once
    */
   public void set(final TData value) throws InterruptedException {
+    if (writeOnce) {
+      throw new IllegalStateException("Resource " + name + " is write-once");
+    }
     readWriteLock.lockWrite();
     try {
       this.value = value;
@@ -14,21 +14,33 @@
 package org.projectsforge.swap.core.http;
 
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Locale;
 import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.projectsforge.swap.core.environment.Environment;
 import org.projectsforge.swap.core.handlers.HandlersManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -40,8 +52,45 @@ import org.springframework.stereotype.Component;
 @Component("http.cacheManager")
 public class CacheManager {
 
+  /** The maximum number of resources whose variance is remembered. */
+  private static final int MAX_VARY_ENTRIES = 16384;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(CacheManager.class);
+
+  /**
+   * The lower cased and sorted names of the request headers identifying a
+   * variant of a resource, by primary key (method and normalized url).
+   */
+  private final ConcurrentMap<String, List<String>> keyHeaders = new ConcurrentHashMap<>();
+
+  /** The persistent cache tier (null if disabled). */
+  private DiskCache diskCache;
+
   /** The request to response cache. */
-  final Map<RequestIdentity, SoftReference<Response>> requestToResponseCache = new HashMap<>();
+  private final ResponseCache responseCache = new ResponseCache(this::responseRemoved);
+
+  /** The listeners notified of the responses leaving the in-memory cache. */
+  private final List<Consumer<Response>> removalListeners = new CopyOnWriteArrayList<>();
+
+  /** The refreshes in progress of cacheable responses. */
+  private final ConcurrentMap<RequestIdentity, CompletableFuture<Response>> inFlightRefreshes =
+      new ConcurrentHashMap<>();
+
+  /** The number of requests which waited for the refresh of another request. */
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * The number of coalesced requests which could not share the response of the
+   * refresh they waited for.
+   */
+  private final AtomicLong coalescingFailureCount = new AtomicLong();
+
+  /** The number of conditional requests sent to revalidate stored responses. */
+  private final AtomicLong revalidationCount = new AtomicLong();
+
+  /** The number of revalidations answered by a 304 (not modified). */
+  private final AtomicLong notModifiedCount = new AtomicLong();
 
   /** The handler manager. */
   @Autowired
@@ -50,21 +99,126 @@ public class CacheManager {
   /** The cached mimes. */
   private final Set<String> cachedMimes = new HashSet<String>();
 
+  /** The cached mimes whose content can be streamed to the client. */
+  private final Set<String> streamedMimes = new HashSet<String>();
+
   /** The environment. */
   @Autowired
   private Environment environment;
 
   /**
-   * Clear soft references.
+   * Adds a listener notified of the responses leaving the in-memory cache
+   * because they are evicted, expired, replaced or no longer storable. It is
+   * called while a part of the cache is locked, so it must be fast and must not
+   * use the cache manager.
+   * 
+   * @param listener the listener
    */
-  private void clearSoftReferences() {
-    final Iterator<Entry<RequestIdentity, SoftReference<Response>>> it = requestToResponseCache.entrySet().iterator();
-    while (it.hasNext()) {
-      final Entry<RequestIdentity, SoftReference<Response>> entry = it.next();
-      if (entry.getValue().get() == null) {
-        it.remove();
-      }
-    }
+  public void addRemovalListener(final Consumer<Response> listener) {
+    removalListeners.add(listener);
+  }
+
+  /**
+   * Gets the number of requests which waited for the refresh of an identical
+   * request instead of contacting the server.
+   * 
+   * @return the coalesced count
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Gets the number of coalesced requests which could not share the response
+   * of the refresh they waited for and contacted the server themselves.
+   * 
+   * @return the coalescing failure count
+   */
+  public long getCoalescingFailureCount() {
+    return coalescingFailureCount.get();
+  }
+
+  /**
+   * Gets the number of responses dropped from the disk cache to respect its
+   * size limit.
+   * 
+   * @return the disk dropped count
+   */
+  public long getDiskDroppedCount() {
+    return diskCache == null ? 0 : diskCache.getDroppedCount();
+  }
+
+  /**
+   * Gets the number of responses restored from the disk cache.
+   * 
+   * @return the disk hit count
+   */
+  public long getDiskHitCount() {
+    return diskCache == null ? 0 : diskCache.getHitCount();
+  }
+
+  /**
+   * Gets the number of responses stored in the disk cache.
+   * 
+   * @return the disk size
+   */
+  public int getDiskSize() {
+    return diskCache == null ? 0 : diskCache.getSize();
+  }
+
+  /**
+   * Gets the size (in bytes) of the disk cache files.
+   * 
+   * @return the disk weight
+   */
+  public long getDiskWeight() {
+    return diskCache == null ? 0 : diskCache.getWeight();
+  }
+
+  /**
+   * Gets the number of responses written to the disk cache.
+   * 
+   * @return the disk write count
+   */
+  public long getDiskWriteCount() {
+    return diskCache == null ? 0 : diskCache.getWriteCount();
+  }
+
+  /**
+   * Gets the number of cached responses evicted to respect the size limit.
+   * 
+   * @return the eviction count
+   */
+  public long getEvictionCount() {
+    return responseCache.getEvictionCount();
+  }
+
+  /**
+   * Gets the number of cached responses dropped because their time to live was
+   * exceeded.
+   * 
+   * @return the expiration count
+   */
+  public long getExpirationCount() {
+    return responseCache.getExpirationCount();
+  }
+
+  /**
+   * Gets the number of cache hits.
+   * 
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return responseCache.getHitCount();
+  }
+
+  /**
+   * Gets the number of cache misses.
+   * 
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return responseCache.getMissCount();
   }
 
   /**
@@ -80,34 +234,277 @@ public class CacheManager {
     request.getLogger().debug("Request headers : {}", request.getHeaders());
 
     if ("GET".equals(request.getMethod()) && request.isCacheable()) {
-      synchronized (this) {
-        clearSoftReferences();
+      return responseCache.computeIfAbsent(newIdentity(request), identity -> {
+        final Response response = environment.autowireBean(new Response(request));
+        response.cacheIdentity = identity;
+        if (diskCache != null) {
+          final DiskCache.Record record = diskCache.get(identity);
+          if (record != null) {
+            response.restore(record);
+          }
+        }
+        return response;
+      });
+    } else {
+      // can not be cached
+      return environment.autowireBean(new Response(request));
+    }
+  }
 
-        final RequestIdentity identity = new RequestIdentity(request);
+  /**
+   * Gets the number of revalidations for which the stored content has been
+   * reused since the server answered that it has not been modified.
+   * 
+   * @return the not modified count
+   */
+  public long getNotModifiedCount() {
+    return notModifiedCount.get();
+  }
 
-        final SoftReference<Response> responseReference = requestToResponseCache.get(identity);
-        Response response;
-        if (responseReference != null) {
-          response = responseReference.get();
-        } else {
-          response = null;
-        }
+  /**
+   * Gets the response associated to the request and refresh it if needed.
+   * Concurrent refreshes of cacheable requests having the same identity are
+   * coalesced: the first request contacts the server while the other ones wait
+   * and share its stored content. As soon as the response headers show that
+   * the content will not be shared (direct, streamed or not storable response),
+   * the waiting requests are released. They then fall back to their own
+   * refresh, as they do when the refresh failed or has not completed within
+   * {@link CacheManagerPropertyHolder#coalescingTimeout}.
+   * 
+   * @param request the request
+   * @param httpServletResponse the http servlet response or null if the
+   *          content must be stored
+   * @return the response
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  Response getRefreshedResponse(final Request request, final HttpServletResponse httpServletResponse)
+      throws IOException {
+    if (!isCoalescable(request)) {
+      return refresh(request, httpServletResponse, null);
+    }
 
-        if (response != null && response.isDirect()) {
-          response = null;
-        }
+    final RequestIdentity identity = newForwardedIdentity(request);
 
-        if (response == null) {
-          response = environment.autowireBean(new Response(request));
-        }
+    final CompletableFuture<Response> refresh = new CompletableFuture<>();
+    final CompletableFuture<Response> inFlightRefresh = inFlightRefreshes.putIfAbsent(identity, refresh);
+    if (inFlightRefresh == null) {
+      Response refreshed = null;
+      try {
+        refreshed = refresh(request, httpServletResponse, () -> release(identity, refresh));
+        return refreshed;
+      } finally {
+        inFlightRefreshes.remove(identity, refresh);
+        refresh.complete(refreshed);
+      }
+    }
 
-        requestToResponseCache.put(identity, new SoftReference<Response>(response));
-        return response;
+    coalescedCount.incrementAndGet();
+    request.getLogger().debug("Waiting for the refresh in progress of an identical request");
+    Response response = null;
+    try {
+      response = inFlightRefresh.get(CacheManagerPropertyHolder.coalescingTimeout.get(), TimeUnit.MILLISECONDS);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (final ExecutionException e) {
+      // can not happen, the future is never completed exceptionally
+    } catch (final TimeoutException e) {
+      request.getLogger().debug("The refresh in progress of an identical request is too long");
+    }
+    if (isShareable(request, response)) {
+      return response;
+    }
+
+    coalescingFailureCount.incrementAndGet();
+    return refresh(request, httpServletResponse, null);
+  }
+
+  /**
+   * Gets asynchronously the response associated to the request and refresh it
+   * if needed. It behaves as
+   * {@link #getRefreshedResponse(Request, HttpServletResponse)} except that
+   * the requests waiting for the refresh in progress of an identical request
+   * do not use any thread until it completes.
+   * 
+   * @param request the request
+   * @param httpServletResponse the http servlet response or null if the
+   *          content must be stored
+   * @param executor the executor running the refreshes
+   * @return the future response
+   */
+  CompletableFuture<Response> getRefreshedResponseAsync(final Request request,
+      final HttpServletResponse httpServletResponse, final Executor executor) {
+    if (!isCoalescable(request)) {
+      return refreshAsync(request, httpServletResponse, executor, null);
+    }
+
+    final RequestIdentity identity = newForwardedIdentity(request);
+
+    final CompletableFuture<Response> refresh = new CompletableFuture<>();
+    final CompletableFuture<Response> inFlightRefresh = inFlightRefreshes.putIfAbsent(identity, refresh);
+    if (inFlightRefresh == null) {
+      final CompletableFuture<Response> result = refreshAsync(request, httpServletResponse, executor,
+          () -> release(identity, refresh));
+      result.whenComplete((refreshed, error) -> {
+        inFlightRefreshes.remove(identity, refresh);
+        refresh.complete(refreshed);
+      });
+      return result;
+    }
+
+    coalescedCount.incrementAndGet();
+    request.getLogger().debug("Waiting asynchronously for the refresh in progress of an identical request");
+    return inFlightRefresh.thenCompose(response -> {
+      if (isShareable(request, response)) {
+        return CompletableFuture.completedFuture(response);
+      }
+      coalescingFailureCount.incrementAndGet();
+      return refreshAsync(request, httpServletResponse, executor, null);
+    });
+  }
+
+  /**
+   * Checks if the refresh of a request can be coalesced with the refreshes of
+   * identical requests.
+   * 
+   * @param request the request
+   * @return true, if is coalescable
+   */
+  private static boolean isCoalescable(final Request request) {
+    return "GET".equals(request.getMethod()) && request.isCacheable()
+        && CacheManagerPropertyHolder.coalesceRequests.get();
+  }
+
+  /**
+   * Checks if the response refreshed for an identical request can be used for
+   * a request.
+   * 
+   * @param request the request
+   * @param response the refreshed response or null if the refresh failed
+   * @return true, if is shareable
+   */
+  private boolean isShareable(final Request request, final Response response) {
+    // the refreshed response may vary on headers which differ for this request
+    return response != null && !response.isDirect() && response.getContent() != null && response.isStorable()
+        && newForwardedIdentity(request).equals(response.cacheIdentity);
+  }
+
+  /**
+   * Release the requests waiting for a refresh which will not share its
+   * response.
+   * 
+   * @param identity the identity of the refreshed request
+   * @param refresh the refresh
+   */
+  private void release(final RequestIdentity identity, final CompletableFuture<Response> refresh) {
+    inFlightRefreshes.remove(identity, refresh);
+    refresh.complete(null);
+  }
+
+  /**
+   * Gets the response associated to the request and refresh it without
+   * coalescing.
+   * 
+   * @param request the request
+   * @param httpServletResponse the http servlet response or null if the
+   *          content must be stored
+   * @param unshareable the callback run as soon as it is known that the
+   *          content will not be stored for other requests (may be null)
+   * @return the response
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Response refresh(final Request request, final HttpServletResponse httpServletResponse,
+      final Runnable unshareable) throws IOException {
+    final Response response = getResponse(request);
+    request.setStreamed(response.refresh(httpServletResponse, unshareable));
+    return response;
+  }
+
+  /**
+   * Gets the response associated to the request and refresh it without
+   * coalescing using an executor.
+   * 
+   * @param request the request
+   * @param httpServletResponse the http servlet response or null if the
+   *          content must be stored
+   * @param executor the executor
+   * @param unshareable the callback run as soon as it is known that the
+   *          content will not be stored for other requests (may be null)
+   * @return the future response
+   */
+  private CompletableFuture<Response> refreshAsync(final Request request,
+      final HttpServletResponse httpServletResponse, final Executor executor, final Runnable unshareable) {
+    final CompletableFuture<Response> result = new CompletableFuture<>();
+    executor.execute(() -> {
+      try {
+        result.complete(refresh(request, httpServletResponse, unshareable));
+      } catch (final IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Gets the lower cased and sorted names of the request headers identifying a
+   * variant of a response: the headers named by its Vary header and the
+   * private headers of the configuration.
+   * 
+   * @param responseHeaders the headers of the response or null if it is not
+   *          known yet
+   * @return the names of the headers
+   */
+  private static List<String> getKeyHeaders(final Headers responseHeaders) {
+    final Set<String> names = new TreeSet<String>();
+    if (responseHeaders != null) {
+      for (final Header header : responseHeaders.getHeaders(ResponseHeaderConstants.VARY)) {
+        for (final String token : header.getValue().split(",")) {
+          final String name = token.trim().toLowerCase(Locale.ENGLISH);
+          // the content encoding is negotiated by the proxy itself
+          if (!name.isEmpty() && !RequestHeaderConstants.ACCEPT_ENCODING.equalsIgnoreCase(name)) {
+            names.add(name);
+          }
+        }
+      }
+    }
+    final StringTokenizer tokenizer = new StringTokenizer(CacheManagerPropertyHolder.privateHeaders.get(), ";");
+    while (tokenizer.hasMoreTokens()) {
+      final String name = tokenizer.nextToken().trim().toLowerCase(Locale.ENGLISH);
+      if (!name.isEmpty()) {
+        names.add(name);
       }
-    } else {
-      // can not be cached
-      return environment.autowireBean(new Response(request));
     }
+    return new ArrayList<String>(names);
+  }
+
+  /**
+   * Gets the names of the request headers of the identity of a request, from
+   * the variance of the last response received for the same resource.
+   * 
+   * @param request the request
+   * @return the names of the headers
+   */
+  private List<String> getIdentityKeyHeaders(final Request request) {
+    final List<String> names = keyHeaders.get(RequestIdentity.primaryKey(request.getMethod(), request.getURL()));
+    return names == null ? getKeyHeaders(null) : names;
+  }
+
+  /**
+   * Gets the number of conditional requests sent to revalidate stored
+   * responses.
+   * 
+   * @return the revalidation count
+   */
+  public long getRevalidationCount() {
+    return revalidationCount.get();
+  }
+
+  /**
+   * Gets the number of cached responses.
+   * 
+   * @return the size
+   */
+  public int getSize() {
+    return responseCache.getSize();
   }
 
   /**
@@ -115,17 +512,17 @@ public class CacheManager {
    * 
    * @return the snapshot
    */
-  public synchronized List<Response> getSnapshot() {
-    clearSoftReferences();
+  public List<Response> getSnapshot() {
+    return responseCache.snapshot();
+  }
 
-    final List<Response> snapshot = new ArrayList<Response>();
-    for (final SoftReference<Response> reference : requestToResponseCache.values()) {
-      final Response response = reference.get();
-      if (response != null) {
-        snapshot.add(response);
-      }
-    }
-    return snapshot;
+  /**
+   * Gets the accounted size (in bytes) of the cached responses.
+   * 
+   * @return the weight
+   */
+  public long getWeight() {
+    return responseCache.getWeight();
   }
 
   /**
@@ -134,16 +531,71 @@ public class CacheManager {
   @PostConstruct
   void init() {
     // Compute the set of handled mimes. Not handled mimes are direct access
+    final Set<String> modifiedMimes = new HashSet<String>();
+    boolean anyMimeModified = false;
     for (final Class<?> clazz : handlerManager.getHandlersByInterface(IndirectContent.class)) {
       final Mime mimeAnnotation = clazz.getAnnotation(Mime.class);
       if (mimeAnnotation != null) {
         for (final String mime : mimeAnnotation.mime()) {
           if (!"*".equals(mime)) {
             cachedMimes.add(mime);
+            if (!mimeAnnotation.readOnly()) {
+              modifiedMimes.add(mime);
+            }
+          } else if (!mimeAnnotation.readOnly()) {
+            anyMimeModified = true;
           }
         }
       }
     }
+
+    // Handled mimes whose handlers are all read-only can be streamed
+    if (!anyMimeModified) {
+      streamedMimes.addAll(cachedMimes);
+      streamedMimes.removeAll(modifiedMimes);
+    }
+
+    if (CacheManagerPropertyHolder.diskCacheEnabled.get()) {
+      openDiskCache();
+    }
+  }
+
+  /**
+   * Opens the disk cache and warms the in-memory cache with its most recently
+   * used responses.
+   */
+  private void openDiskCache() {
+    final DiskCache cache = new DiskCache(CacheManagerPropertyHolder.diskCacheDirectory.get(),
+        CacheManagerPropertyHolder.diskCacheMaxSize.get(), CacheManagerPropertyHolder.diskCacheSegmentSize.get());
+    try {
+      cache.open();
+    } catch (final IOException e) {
+      logger.error("Can not open the disk cache, it is disabled", e);
+      return;
+    }
+    diskCache = cache;
+
+    int warmed = 0;
+    for (final DiskCache.Record record : cache.getRecent(CacheManagerPropertyHolder.maxCacheSize.get())) {
+      final RequestIdentity storedIdentity = record.identity;
+      final Request request = new Request(storedIdentity.getURL());
+      request.setMethod(storedIdentity.getMethod());
+      request.getHeaders().copy(storedIdentity.getHeaders());
+      environment.autowireBean(request);
+
+      // the private headers may have changed since the response was stored
+      final List<String> names = getKeyHeaders(record.headers);
+      final RequestIdentity identity = new RequestIdentity(request, names);
+      if (identity.equals(storedIdentity)) {
+        keyHeaders.put(RequestIdentity.primaryKey(request.getMethod(), request.getURL()), names);
+        final Response response = environment.autowireBean(new Response(request));
+        response.cacheIdentity = identity;
+        response.restore(record);
+        responseCache.put(identity, response);
+        ++warmed;
+      }
+    }
+    logger.info("{} responses restored from the disk cache", warmed);
   }
 
   /**
@@ -156,6 +608,43 @@ public class CacheManager {
     return cachedMimes.contains(mime);
   }
 
+  /**
+   * Checks if the content of a handled mime can be forwarded to the client
+   * while it is being stored, i.e. if all its handlers are read-only.
+   * 
+   * @param mime the mime
+   * @return true, if the content of the mime can be streamed
+   */
+  public boolean isMimeStreamed(final String mime) {
+    return streamedMimes.contains(mime);
+  }
+
+  /**
+   * Computes the identity a request will have once its headers have been
+   * filtered by {@link #getResponse(Request)}. The headers of the request are
+   * left untouched.
+   * 
+   * @param request the request
+   * @return the identity
+   */
+  private RequestIdentity newForwardedIdentity(final Request request) {
+    final Headers headers = new Headers();
+    headers.copy(request.getHeaders());
+    headers.removeAll(RequestHeaderConstants.forwardRequestFilter);
+    return new RequestIdentity(request, headers, getIdentityKeyHeaders(request));
+  }
+
+  /**
+   * Computes the identity of a request from the variance of the last response
+   * received for the same resource.
+   * 
+   * @param request the request
+   * @return the identity
+   */
+  private RequestIdentity newIdentity(final Request request) {
+    return new RequestIdentity(request, getIdentityKeyHeaders(request));
+  }
+
   /**
    * Instantiates a new request based on another request. Among other,
    * authentification and cookies are added to the new request. Two call with
@@ -204,4 +693,93 @@ public class CacheManager {
     return environment.autowireBean(new Request(httpServletRequest));
   }
 
+  /**
+   * Notify the cache manager that the content of a cached response has been
+   * refreshed so that its variance and its size can be accounted and it can be
+   * stored on disk.
+   * 
+   * @param response the response
+   * @param contentReplaced true if a new content has been received, false if
+   *          the stored content has been kept or there is no content
+   */
+  void responseRefreshed(final Response response, final boolean contentReplaced) {
+    if (response.cacheIdentity != null) {
+      if (response.isStorable()) {
+        final Request request = response.getRequest();
+        final String primaryKey = RequestIdentity.primaryKey(request.getMethod(), request.getURL());
+        final List<String> names = getKeyHeaders(response.getHeaders());
+        if (!names.equals(keyHeaders.get(primaryKey))) {
+          if (keyHeaders.size() >= MAX_VARY_ENTRIES) {
+            keyHeaders.clear();
+          }
+          keyHeaders.put(primaryKey, names);
+        }
+
+        final RequestIdentity identity = new RequestIdentity(request, names);
+        boolean rekeyed = false;
+        if (identity.equals(response.cacheIdentity)) {
+          responseCache.reweigh(identity, response);
+        } else {
+          // the response varies on headers which were unknown when it was
+          // requested, store it under the identity of its variant
+          final RequestIdentity previousIdentity = response.cacheIdentity;
+          if (diskCache != null) {
+            diskCache.remove(previousIdentity);
+          }
+          response.cacheIdentity = identity;
+          responseCache.move(previousIdentity, identity, response);
+          rekeyed = true;
+        }
+        if (diskCache != null && (contentReplaced || rekeyed)) {
+          if (response.getStatusCode() == 200) {
+            diskCache.put(response.cacheIdentity, response, response.getRequestTime(), response.getDate());
+          } else {
+            diskCache.remove(response.cacheIdentity);
+          }
+        }
+      } else {
+        responseCache.remove(response.cacheIdentity, response);
+        if (diskCache != null) {
+          diskCache.remove(response.cacheIdentity);
+        }
+      }
+    }
+  }
+
+  /**
+   * Notify the listeners that a response has left the in-memory cache and give
+   * back the memory of its content.
+   * 
+   * @param response the response
+   */
+  private void responseRemoved(final Response response) {
+    response.releaseContentMemory();
+    for (final Consumer<Response> listener : removalListeners) {
+      listener.accept(response);
+    }
+  }
+
+  /**
+   * Notify the cache manager that a stored response has been revalidated with
+   * a conditional request.
+   * 
+   * @param notModified true if the server answered that the content has not
+   *          been modified
+   */
+  void responseRevalidated(final boolean notModified) {
+    revalidationCount.incrementAndGet();
+    if (notModified) {
+      notModifiedCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Flushes the disk cache.
+   */
+  @PreDestroy
+  void shutdown() {
+    if (diskCache != null) {
+      diskCache.close();
+    }
+  }
 }
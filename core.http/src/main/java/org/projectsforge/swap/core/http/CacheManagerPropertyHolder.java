@@ -1,14 +1,51 @@
 package org.projectsforge.swap.core.http;
 
+import java.io.File;
+import org.projectsforge.swap.core.environment.impl.EnvironmentPropertyHolder;
+import org.projectsforge.utils.propertyregistry.BooleanProperty;
+import org.projectsforge.utils.propertyregistry.FileProperty;
 import org.projectsforge.utils.propertyregistry.IntegerProperty;
 import org.projectsforge.utils.propertyregistry.PropertyHolder;
+import org.projectsforge.utils.propertyregistry.StringProperty;
 
 public class CacheManagerPropertyHolder implements PropertyHolder {
 
+  public static final BooleanProperty coalesceRequests = new BooleanProperty("httpCacheManager.coalesceRequests",
+      true);
+
+  public static final IntegerProperty coalescingTimeout = new IntegerProperty(
+      "httpCacheManager.coalescingTimeout", 30 * 1000);
+
+  public static final FileProperty diskCacheDirectory = new FileProperty("httpCacheManager.diskCache.directory",
+      null, true);
+
+  public static final BooleanProperty diskCacheEnabled = new BooleanProperty("httpCacheManager.diskCache.enabled",
+      false);
+
+  public static final IntegerProperty diskCacheMaxSize = new IntegerProperty("httpCacheManager.diskCache.maxSize",
+      512 * 1024 * 1024);
+
+  public static final IntegerProperty diskCacheSegmentSize = new IntegerProperty(
+      "httpCacheManager.diskCache.segmentSize", 16 * 1024 * 1024);
+
   public static final IntegerProperty maxAgeBeforeForcedRefresh = new IntegerProperty(
       "httpCacheManager.maxAgeBeforeForcedRefresh", 10 * 60 * 1000);
 
   public static final IntegerProperty maxAgeForForcedExpiration = new IntegerProperty(
       "httpCacheManager.maxAgeForForcedExpiration", 2 * 60 * 1000);
 
+  public static final IntegerProperty maxCacheSize = new IntegerProperty("httpCacheManager.maxCacheSize",
+      64 * 1024 * 1024);
+
+  public static final StringProperty privateHeaders = new StringProperty("httpCacheManager.privateHeaders",
+      "Authorization;Proxy-Authorization;Cookie");
+
+  public static final IntegerProperty timeToLive = new IntegerProperty("httpCacheManager.timeToLive",
+      60 * 60 * 1000);
+
+  static {
+    if (diskCacheDirectory.get() == null) {
+      diskCacheDirectory.set(new File(EnvironmentPropertyHolder.configurationDirectory.get(), "httpcache"));
+    }
+  }
 }
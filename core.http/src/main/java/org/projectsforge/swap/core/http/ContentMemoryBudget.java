@@ -0,0 +1,543 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.projectsforge.swap.core.environment.impl.TemporaryStreamPropertyHolder;
+import org.projectsforge.utils.temporarystreams.ContentHolder;
+import org.projectsforge.utils.temporarystreams.TemporaryContentHolder;
+import org.projectsforge.utils.temporarystreams.TemporaryStreamsFactory;
+import org.projectsforge.utils.temporarystreams.URLBasedContentHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * The process-wide budget of the memory used by the stored contents. A content
+ * is kept in memory while it is smaller than
+ * {@link TemporaryStreamPropertyHolder#inMemoryMaxSize} and all the contents
+ * held in memory fit in {@link TemporaryStreamPropertyHolder#inMemoryBudget}.
+ * Otherwise it is spilled to a temporary file. The memory of a content is given
+ * back by {@link #release(ContentHolder)} when its response leaves the cache or
+ * its content is replaced. The memory of the contents which are never released
+ * and the files are given back once the contents and their streams are no
+ * longer referenced.
+ *
+ * @author Sébastien Aupetit
+ */
+public class ContentMemoryBudget {
+
+  /**
+   * The stream storing a content. The content is available with
+   * {@link #getContent()} once the stream is closed.
+   */
+  public final class ContentOutputStream extends OutputStream {
+
+    /** The content held in memory (null once spilled). */
+    private TemporaryContentHolder holder;
+
+    /** The stream to the content held in memory (null once spilled). */
+    private OutputStream memory;
+
+    /** The file of the spilled content (null while in memory). */
+    private File file;
+
+    /** The stream to the file of the spilled content. */
+    private OutputStream disk;
+
+    /** The pooled buffer of the file. */
+    private byte[] buffer;
+
+    /** The number of bytes in the buffer. */
+    private int count;
+
+    /** The size of the content. */
+    private long size;
+
+    /** The memory and the file used by the stream. */
+    private Tracking tracking;
+
+    /** The content (null until the stream is closed). */
+    private ContentHolder content;
+
+    /** The buffer used to write a single byte. */
+    private final byte[] single = new byte[1];
+
+    /**
+     * Instantiates a new content output stream.
+     */
+    ContentOutputStream() {
+      holder = new TemporaryContentHolder(temporaryStreamsFactory);
+      memory = holder.getOutputStream();
+      tracking = track(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (content != null) {
+        return;
+      }
+      final Object owner;
+      if (file == null) {
+        memory.close();
+        content = holder;
+        owner = holder;
+      } else {
+        try {
+          flushBuffer();
+          disk.close();
+        } finally {
+          releaseBuffer(buffer);
+          buffer = null;
+        }
+        final SpilledFileHandler handler = new SpilledFileHandler(file);
+        content = new URLBasedContentHolder(new URL("swapspill", null, -1, "/" + file.getName(), handler));
+        owner = handler;
+      }
+      // the memory and the file are now owned by the content, the file being
+      // kept while a stream reads it
+      final Tracking streamTracking = tracking;
+      tracking = track(owner);
+      tracking.reserved = streamTracking.takeReserved();
+      tracking.spilled = streamTracking.spilled;
+      tracking.file = streamTracking.file;
+      untrack(streamTracking);
+      owners.put(content, tracking);
+    }
+
+    /**
+     * Ensure the stream is open.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void ensureOpen() throws IOException {
+      if (content != null) {
+        throw new IOException("Stream closed");
+      }
+    }
+
+    /**
+     * Write the buffer to the file.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void flushBuffer() throws IOException {
+      if (count > 0) {
+        disk.write(buffer, 0, count);
+        count = 0;
+      }
+    }
+
+    /**
+     * Gets the content.
+     *
+     * @return the content or null if the stream is not closed
+     */
+    public ContentHolder getContent() {
+      return content;
+    }
+
+    /**
+     * Checks if the content has been spilled to a file.
+     *
+     * @return true, if is spilled
+     */
+    public boolean isSpilled() {
+      return file != null;
+    }
+
+    /**
+     * Move the content held in memory to a file and give the memory back.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void spill() throws IOException {
+      memory.close();
+      final File directory = TemporaryStreamPropertyHolder.directory.get();
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Can not create the directory " + directory);
+      }
+      file = File.createTempFile(TemporaryStreamPropertyHolder.prefix.get(),
+          TemporaryStreamPropertyHolder.suffix.get(), directory);
+      tracking.file = file;
+      disk = new FileOutputStream(file);
+      buffer = acquireBuffer();
+      try (final InputStream in = holder.getInputStream()) {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          disk.write(buffer, 0, read);
+        }
+      }
+      holder.release();
+      holder = null;
+      memory = null;
+
+      release(tracking.takeReserved());
+      tracking.spilled = size;
+      spilledBytes.addAndGet(size);
+      spillCount.incrementAndGet();
+      logger.debug("Content spilled to {} after {} bytes", file, size);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      ensureOpen();
+      if (file == null) {
+        if (size + len <= TemporaryStreamPropertyHolder.inMemoryMaxSize.get() && reserve(len)) {
+          memory.write(b, off, len);
+          size += len;
+          tracking.reserved += len;
+          return;
+        }
+        spill();
+      }
+      if (len >= buffer.length) {
+        flushBuffer();
+        disk.write(b, off, len);
+      } else {
+        if (count + len > buffer.length) {
+          flushBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+      }
+      size += len;
+      tracking.spilled += len;
+      spilledBytes.addAndGet(len);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      single[0] = (byte) b;
+      write(single, 0, 1);
+    }
+  }
+
+  /**
+   * The stream to a spilled file. It keeps the handler of the file reachable so
+   * that the file is not deleted while it is read.
+   */
+  private static final class SpilledFileInputStream extends FileInputStream {
+
+    /** The handler of the file. */
+    @SuppressWarnings("unused")
+    private final SpilledFileHandler handler;
+
+    /**
+     * Instantiates a new spilled file input stream.
+     *
+     * @param handler the handler of the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    SpilledFileInputStream(final SpilledFileHandler handler) throws IOException {
+      super(handler.file);
+      this.handler = handler;
+    }
+  }
+
+  /**
+   * A stream handler giving access to a spilled file. The file is deleted once
+   * the handler is no longer referenced by the content or by its streams.
+   */
+  private static final class SpilledFileHandler extends URLStreamHandler {
+
+    /** The file. */
+    private final File file;
+
+    /**
+     * Instantiates a new spilled file handler.
+     *
+     * @param file the file
+     */
+    SpilledFileHandler(final File file) {
+      this.file = file;
+    }
+
+    @Override
+    protected URLConnection openConnection(final URL url) {
+      return new URLConnection(url) {
+        @Override
+        public void connect() {
+          connected = true;
+        }
+
+        @Override
+        public int getContentLength() {
+          return (int) Math.min(Integer.MAX_VALUE, file.length());
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+          return new SpilledFileInputStream(SpilledFileHandler.this);
+        }
+      };
+    }
+  }
+
+  /**
+   * The memory and the file used by a stream or a content. They are given back
+   * once the stream or the content is no longer referenced, unless the memory
+   * has been released before.
+   */
+  private static final class Tracking extends PhantomReference<Object> {
+
+    /** The bytes reserved in the budget. */
+    volatile long reserved;
+
+    /** The bytes written to the file. */
+    volatile long spilled;
+
+    /** The file (null if none). */
+    volatile File file;
+
+    /**
+     * Instantiates a new tracking.
+     *
+     * @param referent the stream or the content
+     * @param queue the queue
+     */
+    Tracking(final Object referent, final ReferenceQueue<Object> queue) {
+      super(referent, queue);
+    }
+
+    /**
+     * Takes the bytes reserved in the budget so that they are given back only
+     * once.
+     *
+     * @return the reserved bytes
+     */
+    synchronized long takeReserved() {
+      final long bytes = reserved;
+      reserved = 0;
+      return bytes;
+    }
+  }
+
+  /** The logger. */
+  private static final Logger logger = LoggerFactory.getLogger(ContentMemoryBudget.class);
+
+  /** The size of the pooled buffers. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The maximum number of pooled buffers. */
+  private static final int MAX_POOLED_BUFFERS = 32;
+
+  /** The temporary streams factory. */
+  @Autowired
+  private TemporaryStreamsFactory temporaryStreamsFactory;
+
+  /** The bytes of the contents held in memory. */
+  private final AtomicLong residentBytes = new AtomicLong();
+
+  /** The bytes of the contents spilled to files. */
+  private final AtomicLong spilledBytes = new AtomicLong();
+
+  /** The number of contents spilled to files. */
+  private final AtomicLong spillCount = new AtomicLong();
+
+  /** The queue of the streams and contents no longer referenced. */
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+  /** The trackings (kept reachable until they are reclaimed). */
+  private final Set<Tracking> trackings = ConcurrentHashMap.newKeySet();
+
+  /** The trackings of the contents which are still referenced. */
+  private final Map<ContentHolder, Tracking> owners = Collections
+      .synchronizedMap(new WeakHashMap<ContentHolder, Tracking>());
+
+  /** The pooled buffers. */
+  private final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+  /**
+   * Instantiates a new content memory budget whose factory is autowired.
+   */
+  public ContentMemoryBudget() {
+  }
+
+  /**
+   * Instantiates a new content memory budget.
+   *
+   * @param temporaryStreamsFactory the temporary streams factory
+   */
+  ContentMemoryBudget(final TemporaryStreamsFactory temporaryStreamsFactory) {
+    this.temporaryStreamsFactory = temporaryStreamsFactory;
+  }
+
+  /**
+   * Acquire a buffer from the pool.
+   *
+   * @return the buffer
+   */
+  private byte[] acquireBuffer() {
+    final byte[] buffer = buffers.poll();
+    return buffer == null ? new byte[BUFFER_SIZE] : buffer;
+  }
+
+  /**
+   * Give back the memory and the files of the streams and contents no longer
+   * referenced.
+   */
+  private void expunge() {
+    Reference<?> reference;
+    while ((reference = queue.poll()) != null) {
+      final Tracking tracking = (Tracking) reference;
+      if (trackings.remove(tracking)) {
+        release(tracking.takeReserved());
+        spilledBytes.addAndGet(-tracking.spilled);
+        if (tracking.file != null && !tracking.file.delete()) {
+          logger.warn("Can not delete the temporary file {}", tracking.file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the bytes of the contents held in memory.
+   *
+   * @return the resident bytes
+   */
+  public long getResidentBytes() {
+    expunge();
+    return residentBytes.get();
+  }
+
+  /**
+   * Gets the number of contents spilled to files since the start.
+   *
+   * @return the spill count
+   */
+  public long getSpillCount() {
+    return spillCount.get();
+  }
+
+  /**
+   * Gets the bytes of the contents spilled to files.
+   *
+   * @return the spilled bytes
+   */
+  public long getSpilledBytes() {
+    expunge();
+    return spilledBytes.get();
+  }
+
+  /**
+   * Create a stream storing a new content.
+   *
+   * @return the content output stream
+   */
+  public ContentOutputStream newContentOutputStream() {
+    expunge();
+    return new ContentOutputStream();
+  }
+
+  /**
+   * Give back the memory reserved by a content without waiting for the content
+   * to be no longer referenced. The content stays readable: the memory is
+   * reclaimed once the streams reading it are closed and the spilled file is
+   * deleted once they are no longer referenced. It has no effect on a content
+   * which has not been stored by the budget or has already been released.
+   *
+   * @param content the content
+   */
+  public void release(final ContentHolder content) {
+    final Tracking tracking = owners.remove(content);
+    if (tracking != null) {
+      release(tracking.takeReserved());
+    }
+  }
+
+  /**
+   * Give back bytes to the budget.
+   *
+   * @param bytes the bytes
+   */
+  private void release(final long bytes) {
+    if (bytes != 0) {
+      residentBytes.addAndGet(-bytes);
+    }
+  }
+
+  /**
+   * Give back a buffer to the pool.
+   *
+   * @param buffer the buffer
+   */
+  private void releaseBuffer(final byte[] buffer) {
+    if (buffer != null) {
+      buffers.offer(buffer);
+    }
+  }
+
+  /**
+   * Try to reserve bytes in the budget.
+   *
+   * @param bytes the bytes
+   * @return true, if the bytes are reserved
+   */
+  private boolean reserve(final long bytes) {
+    final long budget = TemporaryStreamPropertyHolder.inMemoryBudget.get();
+    long current = residentBytes.get();
+    if (current + bytes > budget) {
+      expunge();
+      current = residentBytes.get();
+    }
+    while (current + bytes <= budget) {
+      if (residentBytes.compareAndSet(current, current + bytes)) {
+        return true;
+      }
+      current = residentBytes.get();
+    }
+    return false;
+  }
+
+  /**
+   * Start tracking the memory and the file used by a stream or a content.
+   *
+   * @param referent the stream or the content
+   * @return the tracking
+   */
+  private Tracking track(final Object referent) {
+    final Tracking tracking = new Tracking(referent, queue);
+    trackings.add(tracking);
+    return tracking;
+  }
+
+  /**
+   * Stop tracking since the memory and the file are owned by another referent.
+   *
+   * @param tracking the tracking
+   */
+  private void untrack(final Tracking tracking) {
+    trackings.remove(tracking);
+    tracking.clear();
+  }
+}
@@ -0,0 +1,765 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.projectsforge.utils.temporarystreams.ContentHolder;
+import org.projectsforge.utils.temporarystreams.URLBasedContentHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent response store backed by memory mapped segment files. Responses
+ * are appended to the active segment; a record is only made visible by writing
+ * its magic number once it is complete, so that a crash leaves at most a
+ * truncated tail which is ignored when the segments are scanned at startup.
+ * The index is rebuilt by this scan, the newest record of an identity
+ * superseding the older ones; removals are recorded by appending a tombstone
+ * so that a removed response is not indexed again by the next scan. The index
+ * is kept in access order: when the
+ * segments exceed the size cap, the oldest segment is dropped and the
+ * recently used entries it contains are first copied to the active segment.
+ * Stored bodies are read directly from the mapped segments.
+ *
+ * @author Sébastien Aupetit
+ */
+class DiskCache {
+
+  /**
+   * The location of a stored response.
+   */
+  static final class Entry {
+
+    /** The identity of the request. */
+    final RequestIdentity identity;
+
+    /** The segment. */
+    final Segment segment;
+
+    /** The offset of the record in the segment. */
+    final int offset;
+
+    /** The length of the record. */
+    final int length;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param identity the identity
+     * @param segment the segment
+     * @param offset the offset
+     * @param length the length
+     */
+    Entry(final RequestIdentity identity, final Segment segment, final int offset, final int length) {
+      this.identity = identity;
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * A stored response.
+   */
+  static final class Record {
+
+    /** The identity of the request. */
+    RequestIdentity identity;
+
+    /** The date at which the request has been sent. */
+    long requestTime;
+
+    /** The date at which the response has been received. */
+    long date;
+
+    /** The status code. */
+    int statusCode;
+
+    /** The status reason. */
+    String statusReason;
+
+    /** The mime. */
+    String mime;
+
+    /** The response headers. */
+    final Headers headers = new Headers();
+
+    /** The length of the body. */
+    long contentLength;
+
+    /** The body. */
+    ContentHolder content;
+  }
+
+  /**
+   * A segment file.
+   */
+  static final class Segment {
+
+    /** The identifier of the segment. */
+    final long id;
+
+    /** The file. */
+    final File file;
+
+    /** The mapped content of the file. */
+    final MappedByteBuffer buffer;
+
+    /** The position at which the next record will be written. */
+    int position = 0;
+
+    /**
+     * Instantiates a new segment.
+     *
+     * @param id the id
+     * @param file the file
+     * @param size the size of the segment
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    Segment(final long id, final File file, final int size) throws IOException {
+      this.id = id;
+      this.file = file;
+      try (final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          final FileChannel channel = raf.getChannel()) {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    /**
+     * Gets a read-only view of a part of the segment.
+     *
+     * @param offset the offset
+     * @param length the length
+     * @return the view
+     */
+    ByteBuffer slice(final int offset, final int length) {
+      final ByteBuffer view = buffer.asReadOnlyBuffer();
+      view.position(offset);
+      view.limit(offset + length);
+      return view.slice();
+    }
+  }
+
+  /**
+   * An input stream reading a byte buffer.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+
+    /** The buffer. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Instantiates a new byte buffer input stream.
+     *
+     * @param buffer the buffer
+     */
+    ByteBufferInputStream(final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      final int count = Math.min(len, buffer.remaining());
+      buffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(final long n) {
+      final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + count);
+      return count;
+    }
+  }
+
+  /**
+   * A stream handler giving access to a stored body.
+   */
+  private static final class BodyStreamHandler extends URLStreamHandler {
+
+    /** The body. */
+    private final ByteBuffer body;
+
+    /**
+     * Instantiates a new body stream handler.
+     *
+     * @param body the body
+     */
+    BodyStreamHandler(final ByteBuffer body) {
+      this.body = body;
+    }
+
+    @Override
+    protected URLConnection openConnection(final URL url) {
+      return new URLConnection(url) {
+        @Override
+        public void connect() {
+          connected = true;
+        }
+
+        @Override
+        public int getContentLength() {
+          return body.capacity();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+          return new ByteBufferInputStream(body.duplicate());
+        }
+      };
+    }
+  }
+
+  /**
+   * The magic number marking a complete record. It is changed when the record
+   * format changes so that old records are ignored.
+   */
+  private static final int MAGIC = 0x53574151;
+
+  /**
+   * The magic number marking a complete tombstone, i.e. the removal of the
+   * responses stored before it for an identity.
+   */
+  private static final int TOMBSTONE_MAGIC = 0x53574154;
+
+  /** The size of the record prefix (magic number and length). */
+  private static final int PREFIX_SIZE = 8;
+
+  /** The suffix of the segment files. */
+  private static final String SUFFIX = ".segment";
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(DiskCache.class);
+
+  /** The directory. */
+  private final File directory;
+
+  /** The maximum size of all the segments. */
+  private final long maxSize;
+
+  /** The size of a segment. */
+  private final int segmentSize;
+
+  /** The segments from the oldest to the active one. */
+  private final List<Segment> segments = new ArrayList<>();
+
+  /** The index in access order. */
+  private final LinkedHashMap<RequestIdentity, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The hit counter. */
+  private long hitCount;
+
+  /** The write counter. */
+  private long writeCount;
+
+  /** The number of entries dropped by compactions. */
+  private long droppedCount;
+
+  /**
+   * Instantiates a new disk cache.
+   *
+   * @param directory the directory of the segment files
+   * @param maxSize the maximum size of all the segments
+   * @param segmentSize the size of a segment
+   */
+  DiskCache(final File directory, final long maxSize, final int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSize = Math.max(maxSize, 2L * segmentSize);
+  }
+
+  /**
+   * Appends a record to the active segment.
+   *
+   * @param magic the magic number of the record
+   * @param identity the identity
+   * @param meta the serialized metadata of the record
+   * @param body the body
+   * @param bodyLength the length of the body
+   * @return the entry or null if the record does not fit in a segment
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Entry append(final int magic, final RequestIdentity identity, final byte[] meta,
+      final InputStream body, final long bodyLength) throws IOException {
+    final long length = PREFIX_SIZE + meta.length + bodyLength;
+    if (length > segmentSize) {
+      return null;
+    }
+    Segment segment = activeSegment();
+    if (segment.position + length > segmentSize) {
+      segment = newSegment();
+      if (segment.position + length > segmentSize) {
+        // the compaction has filled the new segment with recently used entries
+        segment = newSegment();
+        if (segment.position + length > segmentSize) {
+          return null;
+        }
+      }
+    }
+
+    final int offset = segment.position;
+    final ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(offset + PREFIX_SIZE);
+    buffer.put(meta);
+    final byte[] chunk = new byte[8192];
+    long remaining = bodyLength;
+    while (remaining > 0) {
+      final int count = body.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+      if (count < 0) {
+        throw new IOException("Unexpected end of the content");
+      }
+      buffer.put(chunk, 0, count);
+      remaining -= count;
+    }
+    // make the record visible
+    buffer.putInt(offset + 4, (int) length);
+    buffer.putInt(offset, magic);
+    segment.position = offset + (int) length;
+
+    final Entry entry = new Entry(identity, segment, offset, (int) length);
+    if (magic == MAGIC) {
+      index.put(identity, entry);
+      ++writeCount;
+    }
+    return entry;
+  }
+
+  /**
+   * Gets the active segment, creating it if needed.
+   *
+   * @return the active segment
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Segment activeSegment() throws IOException {
+    if (segments.isEmpty()) {
+      return newSegment();
+    }
+    return segments.get(segments.size() - 1);
+  }
+
+  /**
+   * Closes the cache and flushes the segments to the disk.
+   */
+  synchronized void close() {
+    for (final Segment segment : segments) {
+      segment.buffer.force();
+    }
+  }
+
+  /**
+   * Drops the oldest segment. The entries of the segment which are in the most
+   * recently used half of the index are copied to the active segment.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void compact() throws IOException {
+    final Segment victim = segments.remove(0);
+
+    final List<Entry> kept = new ArrayList<>();
+    final List<RequestIdentity> dropped = new ArrayList<>();
+    final int recent = index.size() / 2;
+    int position = 0;
+    for (final Entry entry : index.values()) {
+      if (entry.segment == victim) {
+        if (position >= recent) {
+          kept.add(entry);
+        } else {
+          dropped.add(entry.identity);
+        }
+      }
+      ++position;
+    }
+    for (final RequestIdentity identity : dropped) {
+      index.remove(identity);
+    }
+    droppedCount += dropped.size();
+
+    for (final Entry entry : kept) {
+      final Segment segment = activeSegment();
+      if (segment.position + entry.length > segmentSize) {
+        // no room left in the active segment
+        index.remove(entry.identity);
+        ++droppedCount;
+        continue;
+      }
+      final ByteBuffer buffer = segment.buffer.duplicate();
+      buffer.position(segment.position);
+      buffer.put(victim.slice(entry.offset, entry.length));
+      // the relocated entry becomes the most recently used one
+      index.put(entry.identity, new Entry(entry.identity, segment, segment.position, entry.length));
+      segment.position += entry.length;
+    }
+
+    if (!victim.file.delete()) {
+      logger.warn("Can not delete the cache segment {}", victim.file);
+    }
+    logger.debug("Compacted cache segment {} ({} entries kept, {} dropped)", new Object[] { victim.file,
+        kept.size(), dropped.size() });
+  }
+
+  /**
+   * Gets a stored response.
+   *
+   * @param identity the identity of the request
+   * @return the record or null if there is no stored response
+   */
+  synchronized Record get(final RequestIdentity identity) {
+    final Entry entry = index.get(identity);
+    if (entry == null) {
+      return null;
+    }
+    try {
+      final Record record = read(entry);
+      ++hitCount;
+      return record;
+    } catch (final IOException e) {
+      logger.warn("Can not read the stored response of " + identity, e);
+      index.remove(identity);
+      return null;
+    }
+  }
+
+  /**
+   * Gets the number of entries dropped by compactions.
+   *
+   * @return the dropped count
+   */
+  synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Gets the number of hits.
+   *
+   * @return the hit count
+   */
+  synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Gets the number of stored responses.
+   *
+   * @return the size
+   */
+  synchronized int getSize() {
+    return index.size();
+  }
+
+  /**
+   * Gets the size (in bytes) of the segment files.
+   *
+   * @return the weight
+   */
+  synchronized long getWeight() {
+    return (long) segments.size() * segmentSize;
+  }
+
+  /**
+   * Gets the number of stored responses.
+   *
+   * @return the write count
+   */
+  synchronized long getWriteCount() {
+    return writeCount;
+  }
+
+  /**
+   * Gets the most recently used stored responses.
+   *
+   * @param maxWeight the maximum cumulated length of the bodies
+   * @return the records from the least recently used to the most recently used
+   */
+  synchronized List<Record> getRecent(final long maxWeight) {
+    final List<Entry> entries = new ArrayList<>(index.values());
+    final List<Record> result = new ArrayList<>();
+    long weight = 0;
+    for (int i = entries.size() - 1; i >= 0; --i) {
+      try {
+        final Record record = read(entries.get(i));
+        weight += ResponseCache.ENTRY_OVERHEAD + record.contentLength;
+        if (weight > maxWeight) {
+          break;
+        }
+        result.add(record);
+      } catch (final IOException e) {
+        logger.warn("Can not read the stored response of " + entries.get(i).identity, e);
+      }
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  /**
+   * Creates a new active segment and drops the oldest segments if the size cap
+   * is exceeded.
+   *
+   * @return the new active segment
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Segment newSegment() throws IOException {
+    final long id = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).id + 1;
+    final Segment segment = new Segment(id, new File(directory, String.format("%016d%s", id, SUFFIX)),
+        segmentSize);
+    segments.add(segment);
+    while (segments.size() > 1 && getWeight() > maxSize) {
+      compact();
+    }
+    return segment;
+  }
+
+  /**
+   * Opens the cache: the existing segments are scanned to rebuild the index.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  synchronized void open() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can not create directory " + directory);
+    }
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(final File o1, final File o2) {
+        return o1.getName().compareTo(o2.getName());
+      }
+    });
+
+    for (final File file : files) {
+      final long id;
+      try {
+        id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+      } catch (final NumberFormatException e) {
+        logger.warn("Ignoring unexpected file {}", file);
+        continue;
+      }
+      if (file.length() != segmentSize) {
+        // the segment size has changed, the segment can not be reused
+        logger.info("Dropping cache segment {} with a different size", file);
+        if (!file.delete()) {
+          logger.warn("Can not delete the cache segment {}", file);
+        }
+        continue;
+      }
+      scan(new Segment(id, file, segmentSize));
+    }
+
+    while (segments.size() > 1 && getWeight() > maxSize) {
+      compact();
+    }
+    logger.info("Disk cache opened in {} ({} responses in {} segments)", new Object[] { directory, index.size(),
+        segments.size() });
+  }
+
+  /**
+   * Stores a response. The previously stored response for the identity is
+   * superseded.
+   *
+   * @param identity the identity of the request
+   * @param response the response
+   * @param requestTime the date at which the request has been sent
+   * @param date the date at which the response has been received
+   */
+  synchronized void put(final RequestIdentity identity, final Response response, final long requestTime,
+      final long date) {
+    final ContentHolder content = response.getContent();
+    final long contentLength = response.getContentLength();
+    if (content == null || contentLength < 0) {
+      return;
+    }
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+      try (final DataOutputStream out = new DataOutputStream(bytes)) {
+        identity.writeTo(out);
+        out.writeLong(requestTime);
+        out.writeLong(date);
+        out.writeInt(response.getStatusCode());
+        out.writeUTF(response.getStatusReason() == null ? "" : response.getStatusReason());
+        out.writeUTF(response.getMime());
+        writeHeaders(out, response.getHeaders());
+        out.writeLong(contentLength);
+      }
+      try (final InputStream in = content.getInputStream()) {
+        if (append(MAGIC, identity, bytes.toByteArray(), in, contentLength) == null) {
+          logger.debug("Response too large to be stored on disk: {}", identity);
+        }
+      }
+    } catch (final IOException e) {
+      logger.warn("Can not store the response of " + identity, e);
+    }
+  }
+
+  /**
+   * Reads a record.
+   *
+   * @param entry the entry
+   * @return the record
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Record read(final Entry entry) throws IOException {
+    final ByteBuffer buffer = entry.segment.slice(entry.offset + PREFIX_SIZE, entry.length - PREFIX_SIZE);
+    final ByteBufferInputStream stream = new ByteBufferInputStream(buffer);
+    final DataInputStream in = new DataInputStream(stream);
+    final Record record = new Record();
+    record.identity = RequestIdentity.readFrom(in);
+    record.requestTime = in.readLong();
+    record.date = in.readLong();
+    record.statusCode = in.readInt();
+    record.statusReason = in.readUTF();
+    record.mime = in.readUTF();
+    readHeaders(in, record.headers);
+    record.contentLength = in.readLong();
+    if (record.contentLength != buffer.remaining()) {
+      throw new IOException("Corrupted record");
+    }
+    final ByteBuffer body = buffer.slice();
+    record.content = new URLBasedContentHolder(new URL("swapcache", null, -1, "/" + entry.segment.id + "/"
+        + entry.offset, new BodyStreamHandler(body)));
+    return record;
+  }
+
+  /**
+   * Reads headers.
+   *
+   * @param in the input
+   * @param headers the headers
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void readHeaders(final DataInputStream in, final Headers headers) throws IOException {
+    final int count = in.readInt();
+    for (int i = 0; i < count; ++i) {
+      headers.add(in.readUTF(), in.readUTF());
+    }
+  }
+
+  /**
+   * Scans a segment and indexes its records.
+   *
+   * @param segment the segment
+   */
+  private void scan(final Segment segment) {
+    final ByteBuffer buffer = segment.buffer.duplicate();
+    int position = 0;
+    while (position + PREFIX_SIZE <= segmentSize) {
+      final int magic = buffer.getInt(position);
+      if (magic != MAGIC && magic != TOMBSTONE_MAGIC) {
+        break;
+      }
+      final int length = buffer.getInt(position + 4);
+      if (length < PREFIX_SIZE || position + length > segmentSize) {
+        break;
+      }
+      try {
+        if (magic == MAGIC) {
+          final RequestIdentity identity = read(new Entry(null, segment, position, length)).identity;
+          // the segments are scanned in write order: the newest record wins
+          index.put(identity, new Entry(identity, segment, position, length));
+        } else {
+          index.remove(RequestIdentity.readFrom(new DataInputStream(new ByteBufferInputStream(
+              segment.slice(position + PREFIX_SIZE, length - PREFIX_SIZE)))));
+        }
+      } catch (final IOException e) {
+        logger.warn("Ignoring a corrupted record in {}", segment.file);
+        break;
+      }
+      position += length;
+    }
+    segment.position = position;
+    segments.add(segment);
+  }
+
+  /**
+   * Writes headers.
+   *
+   * @param out the output
+   * @param headers the headers
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void writeHeaders(final DataOutputStream out, final Headers headers) throws IOException {
+    final List<Header> list = headers.getHeaders();
+    out.writeInt(list.size());
+    for (final Header header : list) {
+      out.writeUTF(header.getName());
+      out.writeUTF(header.getValue());
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("DiskCache [directory=%s, size=%s, segments=%s]", directory, index.size(),
+        segments.size());
+  }
+
+  /**
+   * Removes the stored response of an identity. A tombstone is appended so
+   * that the response is not indexed again when the segments are scanned.
+   * Tombstones never need to be relocated by a compaction: the records they
+   * hide are in the same segment or in older ones, which are dropped first.
+   *
+   * @param identity the identity
+   */
+  synchronized void remove(final RequestIdentity identity) {
+    if (index.remove(identity) == null) {
+      return;
+    }
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      try (final DataOutputStream out = new DataOutputStream(bytes)) {
+        identity.writeTo(out);
+      }
+      append(TOMBSTONE_MAGIC, identity, bytes.toByteArray(), null, 0);
+    } catch (final IOException e) {
+      logger.warn("Can not store the removal of " + identity, e);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.util.Locale;
+
+/**
+ * The freshness information of a stored response computed as described by
+ * RFC 7234 (section 4.2) from the Cache-Control, Pragma, Age, Date, Expires and
+ * Last-Modified headers. The proxy is considered as a shared cache.
+ * 
+ * @author Sébastien Aupetit
+ */
+class Freshness {
+
+  /** The heuristic fraction of the time since last modification. */
+  private static final int HEURISTIC_FRACTION = 10;
+
+  /** Indicate if the response must not be stored. */
+  private final boolean noStore;
+
+  /** Indicate if the response must be revalidated before each use. */
+  private final boolean noCache;
+
+  /** The freshness lifetime (in ms). */
+  private final long lifetime;
+
+  /** The age (in ms) of the response when it has been received. */
+  private final long initialAge;
+
+  /** The date at which the response has been received. */
+  private final long responseTime;
+
+  /**
+   * Computes the freshness of a response.
+   * 
+   * @param headers the headers of the response
+   * @param requestTime the date at which the request has been sent
+   * @param responseTime the date at which the response has been received
+   */
+  Freshness(final Headers headers, final long requestTime, final long responseTime) {
+    this.responseTime = responseTime;
+
+    boolean noStore = false;
+    boolean noCache = false;
+    long maxAge = -1;
+    long sharedMaxAge = -1;
+    for (final Header header : headers.getHeaders(ResponseHeaderConstants.CACHE_CONTROL)) {
+      for (final String token : header.getValue().split(",")) {
+        final String directive = token.trim().toLowerCase(Locale.ENGLISH);
+        if ("no-store".equals(directive) || directive.startsWith("private")) {
+          // a shared cache must not store private responses
+          noStore = true;
+        } else if (directive.startsWith("no-cache")) {
+          noCache = true;
+        } else if (directive.startsWith("s-maxage=")) {
+          sharedMaxAge = parseSeconds(directive.substring("s-maxage=".length()));
+        } else if (directive.startsWith("max-age=")) {
+          maxAge = parseSeconds(directive.substring("max-age=".length()));
+        }
+      }
+    }
+    if (!headers.hasHeader(ResponseHeaderConstants.CACHE_CONTROL)) {
+      for (final Header header : headers.getHeaders(ResponseHeaderConstants.PRAGMA)) {
+        if (header.getValue().toLowerCase(Locale.ENGLISH).contains("no-cache")) {
+          noCache = true;
+        }
+      }
+    }
+    // responses setting cookies or varying on anything must not be shared
+    if (headers.hasHeader(ResponseHeaderConstants.SET_COOKIE) || headers.hasHeader(ResponseHeaderConstants.SET_COOKIE2)) {
+      noStore = true;
+    }
+    for (final Header header : headers.getHeaders(ResponseHeaderConstants.VARY)) {
+      if (header.getValue().trim().equals("*")) {
+        noStore = true;
+      }
+    }
+    this.noStore = noStore;
+    this.noCache = noCache;
+
+    // age of the response when received (RFC 7234 section 4.2.3)
+    final long date = getDate(headers, ResponseHeaderConstants.DATE, responseTime);
+    final long apparentAge = Math.max(0, responseTime - date);
+    final String ageValue = headers.getFirstValue(ResponseHeaderConstants.AGE);
+    final long age = ageValue == null ? 0 : Math.max(0, parseSeconds(ageValue.trim()));
+    initialAge = Math.max(apparentAge, age + (responseTime - requestTime));
+
+    // freshness lifetime (RFC 7234 section 4.2.1 and 4.2.2)
+    if (sharedMaxAge >= 0) {
+      lifetime = sharedMaxAge;
+    } else if (maxAge >= 0) {
+      lifetime = maxAge;
+    } else if (headers.hasHeader(ResponseHeaderConstants.EXPIRES)) {
+      // an invalid date means already expired
+      final long expires = getDate(headers, ResponseHeaderConstants.EXPIRES, date);
+      lifetime = Math.max(0, expires - date);
+    } else {
+      final long lastModified = getDate(headers, ResponseHeaderConstants.LAST_MODIFIED, -1);
+      if (lastModified != -1 && lastModified < date) {
+        lifetime = (date - lastModified) / HEURISTIC_FRACTION;
+      } else {
+        lifetime = CacheManagerPropertyHolder.maxAgeForForcedExpiration.get();
+      }
+    }
+  }
+
+  /**
+   * Gets a date header.
+   * 
+   * @param headers the headers
+   * @param name the name of the header
+   * @param defaultValue the value returned if the header is missing or invalid
+   * @return the date
+   */
+  private static long getDate(final Headers headers, final String name, final long defaultValue) {
+    final Header header = headers.getFirst(name);
+    if (header == null) {
+      return defaultValue;
+    }
+    final long date = header.getValueAsDateField();
+    return date == -1 ? defaultValue : date;
+  }
+
+  /**
+   * Parse a delta-seconds value.
+   * 
+   * @param value the value
+   * @return the delay in ms or 0 if the value is invalid
+   */
+  private static long parseSeconds(final String value) {
+    try {
+      return Math.max(0, Long.parseLong(value.replace("\"", ""))) * 1000;
+    } catch (final NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Gets the current age (in ms) of the response.
+   * 
+   * @param now the current date
+   * @return the current age
+   */
+  long getCurrentAge(final long now) {
+    return initialAge + Math.max(0, now - responseTime);
+  }
+
+  /**
+   * Gets the freshness lifetime (in ms) of the response.
+   * 
+   * @return the lifetime
+   */
+  long getLifetime() {
+    return lifetime;
+  }
+
+  /**
+   * Checks if the response is fresh, i.e. if it can be used without being
+   * revalidated.
+   * 
+   * @param now the current date
+   * @return true, if is fresh
+   */
+  boolean isFresh(final long now) {
+    return !noStore && !noCache && getCurrentAge(now) < lifetime;
+  }
+
+  /**
+   * Checks if the response can be stored.
+   * 
+   * @return true, if is storable
+   */
+  boolean isStorable() {
+    return !noStore;
+  }
+}
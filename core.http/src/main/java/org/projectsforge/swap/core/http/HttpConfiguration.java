@@ -34,6 +34,16 @@ public class HttpConfiguration {
   @Autowired
   Environment environment;
 
+  /**
+   * Content memory budget.
+   * 
+   * @return the content memory budget
+   */
+  @Bean
+  ContentMemoryBudget contentMemoryBudget() {
+    return new ContentMemoryBudget();
+  }
+
   /**
    * Servlet http client.
    * 
@@ -43,10 +53,11 @@ public class HttpConfiguration {
    * @throws NoSuchAlgorithmException the no such algorithm exception
    * @throws KeyStoreException the key store exception
    */
-  @Bean
+  @Bean(destroyMethod = "shutdown")
   ServletHttpClient servletHttpClient() throws KeyManagementException, UnrecoverableKeyException,
       NoSuchAlgorithmException, KeyStoreException {
-    // TODO do better confirguration
+    // the pool, the timeouts and the compression are configured from
+    // HttpPropertyHolder
     return new ServletHttpClient();
   }
 
@@ -1,6 +1,7 @@
 package org.projectsforge.swap.core.http;
 
 import org.projectsforge.utils.propertyregistry.BooleanProperty;
+import org.projectsforge.utils.propertyregistry.IntegerProperty;
 import org.projectsforge.utils.propertyregistry.PropertyHolder;
 import org.projectsforge.utils.propertyregistry.StringProperty;
 import org.projectsforge.utils.propertyregistry.SystemValueHolder;
@@ -16,4 +17,22 @@ public class HttpPropertyHolder implements PropertyHolder {
   public static final StringProperty agentName = new StringProperty("agent.name",
       "SmartWebAccessibilityProxy");
 
+  public static final BooleanProperty compression = new BooleanProperty("http.client.compression", true);
+
+  public static final IntegerProperty connectTimeout = new IntegerProperty("http.client.connectTimeout",
+      10 * 1000);
+
+  public static final IntegerProperty idleTimeout = new IntegerProperty("http.client.idleTimeout", 30 * 1000);
+
+  public static final BooleanProperty keepAlive = new BooleanProperty("http.client.keepAlive", true);
+
+  public static final IntegerProperty maxConnections = new IntegerProperty("http.client.maxConnections", 200);
+
+  public static final IntegerProperty maxConnectionsPerRoute = new IntegerProperty(
+      "http.client.maxConnectionsPerRoute", 20);
+
+  public static final IntegerProperty readTimeout = new IntegerProperty("http.client.readTimeout", 30 * 1000);
+
+  public static final BooleanProperty tcpNoDelay = new BooleanProperty("http.client.tcpNoDelay", true);
+
 }
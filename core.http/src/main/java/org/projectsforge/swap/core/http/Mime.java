@@ -40,4 +40,13 @@ public @interface Mime {
    * @return the string[]
    */
   String[] mime();
+
+  /**
+   * Indicate that the handler never modifies the response. When all the
+   * handlers of a MIME are read-only, the content is forwarded to the client
+   * while it is being stored instead of being sent once fully stored.
+   * 
+   * @return true, if the handler is read-only
+   */
+  boolean readOnly() default false;
 }
@@ -20,11 +20,14 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.projectsforge.swap.core.environment.Environment;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -63,8 +66,14 @@ public class Request {
   /** Indicate if a reload is required. */
   private boolean reloadRequested = true;
 
+  /**
+   * Indicate if the content of the response has been forwarded to the client
+   * of this request while it was stored.
+   */
+  private volatile boolean streamed = false;
+
   /** The logger. */
-  private final Logger logger;
+  private static final Logger logger = LoggerFactory.getLogger(Request.class);
 
   /**
    * The constructor.
@@ -79,8 +88,6 @@ public class Request {
     this.url = Util.getURL(request);
     this.protocolVersion = request.getProtocol();
 
-    logger = org.slf4j.LoggerFactory.getLogger(getClass().getName() + "." + getURL());
-
     // Copying headers
     final Enumeration<String> headerNames = request.getHeaderNames();
     while (headerNames.hasMoreElements()) {
@@ -106,8 +113,6 @@ public class Request {
    * @throws MalformedURLException the malformed url exception
    */
   Request(final Request context, final String url) throws MalformedURLException {
-    logger = org.slf4j.LoggerFactory.getLogger(getClass().getName() + "." + url);
-
     // copy headers
     getHeaders().copy(context.getHeaders());
 
@@ -122,7 +127,6 @@ public class Request {
    * @param url the url
    */
   Request(final URL url) {
-    logger = org.slf4j.LoggerFactory.getLogger(getClass().getName() + "." + url);
     this.url = url;
     getHeaders().set(RequestHeaderConstants.HOST, url.getHost());
   }
@@ -138,8 +142,7 @@ public class Request {
   public synchronized Response doRequest(final boolean allowRedirect) throws IOException, CircularRedirectionException {
     List<URL> redirects = null;
 
-    Response lastResponse = cacheManager.getResponse(this);
-    lastResponse.refresh(null);
+    Response lastResponse = cacheManager.getRefreshedResponse(this, null);
 
     while (lastResponse.isRedirected()) {
       if (redirects == null) {
@@ -155,8 +158,7 @@ public class Request {
       }
 
       logger.info("Redirecting from {} to {}", lastResponse.getRedirectedRequest(), redirectRequest);
-      lastResponse = cacheManager.getResponse(redirectRequest);
-      lastResponse.refresh(null);
+      lastResponse = cacheManager.getRefreshedResponse(redirectRequest, null);
     }
     return lastResponse;
   }
@@ -169,9 +171,21 @@ public class Request {
    * @throws IOException Signals that an I/O exception has occurred.
    */
   public synchronized Response doRequest(final HttpServletResponse httpServletResponse) throws IOException {
-    final Response response = cacheManager.getResponse(this);
-    response.refresh(httpServletResponse);
-    return response;
+    return cacheManager.getRefreshedResponse(this, httpServletResponse);
+  }
+
+  /**
+   * Do request asynchronously. The server is contacted by a task of the
+   * executor and the requests waiting for an identical request in progress do
+   * not use any thread.
+   * 
+   * @param httpServletResponse the http servlet response
+   * @param executor the executor contacting the server
+   * @return the future response
+   */
+  public CompletableFuture<Response> doRequestAsync(final HttpServletResponse httpServletResponse,
+      final Executor executor) {
+    return cacheManager.getRefreshedResponseAsync(this, httpServletResponse, executor);
   }
 
   /*
@@ -315,6 +329,18 @@ public class Request {
     return reloadRequested;
   }
 
+  /**
+   * Checks if the content of the response has been forwarded to the client of
+   * this request while it was stored. The response is shared by the cache, so
+   * the flag is kept by the request which refreshed it: the other clients must
+   * still be sent the stored content.
+   * 
+   * @return true, if is streamed
+   */
+  public boolean isStreamed() {
+    return streamed;
+  }
+
   /**
    * Sets the cacheable.
    * 
@@ -360,6 +386,16 @@ public class Request {
     this.reloadRequested = reloadRequested;
   }
 
+  /**
+   * Sets if the content of the response has been forwarded to the client of
+   * this request while it was stored.
+   * 
+   * @param streamed the new streamed
+   */
+  void setStreamed(final boolean streamed) {
+    this.streamed = streamed;
+  }
+
   /*
    * (non-Javadoc)
    * @see java.lang.Object#toString()
@@ -12,40 +12,172 @@
  */
 package org.projectsforge.swap.core.http;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Collection;
+import java.util.Locale;
 
 /**
- * The Class RequestIdentity.
+ * The identity of a cacheable request. Two requests have the same identity
+ * when they have the same method, the same normalized URL and the same values
+ * for the request headers the stored response varies on (its Vary header) and
+ * for the private headers (credentials) of the configuration. Other headers
+ * (cookies, user agent, client address, ...) do not split the cache. The
+ * identity is represented by a compact key whose hash is computed once.
  * 
  * @author Sébastien Aupetit
  */
-class RequestIdentity {
+public class RequestIdentity {
 
-  /** The headers. */
-  private final Headers headers = new Headers();
+  /**
+   * Normalize an URL: the scheme and the host are lower cased, the default
+   * port and the fragment are removed and an empty path is replaced by "/".
+   * 
+   * @param url the url
+   * @return the normalized url
+   */
+  static String normalize(final URL url) {
+    final StringBuilder sb = new StringBuilder(url.toExternalForm().length());
+    sb.append(url.getProtocol().toLowerCase(Locale.ENGLISH)).append("://");
+    if (url.getUserInfo() != null) {
+      sb.append(url.getUserInfo()).append('@');
+    }
+    sb.append(url.getHost().toLowerCase(Locale.ENGLISH));
+    if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+      sb.append(':').append(url.getPort());
+    }
+    sb.append(url.getPath().isEmpty() ? "/" : url.getPath());
+    if (url.getQuery() != null) {
+      sb.append('?').append(url.getQuery());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Gets the key shared by all the variants of a resource.
+   * 
+   * @param method the method
+   * @param url the url
+   * @return the primary key
+   */
+  static String primaryKey(final String method, final URL url) {
+    return method + ' ' + normalize(url);
+  }
+
+  /**
+   * Reads a request identity written by {@link #writeTo(DataOutputStream)}.
+   * 
+   * @param in the input
+   * @return the request identity
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  static RequestIdentity readFrom(final DataInputStream in) throws IOException {
+    final String method = in.readUTF();
+    final URL url = new URL(in.readUTF());
+    final String[] names = new String[in.readInt()];
+    final String[] values = new String[names.length];
+    for (int i = 0; i < names.length; ++i) {
+      names[i] = in.readUTF();
+      values[i] = in.readBoolean() ? in.readUTF() : null;
+    }
+    return new RequestIdentity(method, url, names, values);
+  }
 
   /** The method. */
   private final String method;
 
-  /** The protocol version. */
-  private final String protocolVersion;
-
   /** The url. */
   private final URL url;
 
+  /** The names of the request headers the response varies on. */
+  private final String[] names;
+
+  /** The values of these headers (null if absent from the request). */
+  private final String[] values;
+
+  /** The key. */
+  private final String key;
+
+  /** The hash of the key. */
+  private final int hash;
+
   /**
    * Instantiates a new request identity.
    * 
    * @param request the request
+   * @param keyHeaders the lower cased and sorted names of the request headers
+   *          the response varies on
    */
-  public RequestIdentity(final Request request) {
-    headers.copy(request.getHeaders());
-    // remove non differentiating headers
-    headers.removeAll(RequestHeaderConstants.REFERER);
+  RequestIdentity(final Request request, final Collection<String> keyHeaders) {
+    this(request, request.getHeaders(), keyHeaders);
+  }
 
+  /**
+   * Instantiates a new request identity from other headers than the ones of
+   * the request.
+   * 
+   * @param request the request
+   * @param headers the headers of the request
+   * @param keyHeaders the lower cased and sorted names of the request headers
+   *          the response varies on
+   */
+  RequestIdentity(final Request request, final Headers headers, final Collection<String> keyHeaders) {
     method = request.getMethod();
-    protocolVersion = request.getProtocolVersion();
     url = request.getURL();
+    names = keyHeaders.toArray(new String[keyHeaders.size()]);
+    values = new String[names.length];
+    for (int i = 0; i < names.length; ++i) {
+      StringBuilder value = null;
+      for (final Header header : headers.getHeaders(names[i])) {
+        if (value == null) {
+          value = new StringBuilder();
+        } else {
+          value.append(", ");
+        }
+        value.append(header.getValue().trim());
+      }
+      values[i] = value == null ? null : value.toString();
+    }
+    key = computeKey();
+    hash = key.hashCode();
+  }
+
+  /**
+   * Instantiates a new request identity.
+   * 
+   * @param method the method
+   * @param url the url
+   * @param names the names of the request headers the response varies on
+   * @param values the values of these headers
+   */
+  private RequestIdentity(final String method, final URL url, final String[] names, final String[] values) {
+    this.method = method;
+    this.url = url;
+    this.names = names;
+    this.values = values;
+    key = computeKey();
+    hash = key.hashCode();
+  }
+
+  /**
+   * Computes the key.
+   * 
+   * @return the key
+   */
+  private String computeKey() {
+    final StringBuilder sb = new StringBuilder(primaryKey(method, url));
+    for (int i = 0; i < names.length; ++i) {
+      sb.append('\n').append(names[i]);
+      if (values[i] == null) {
+        // an absent header differs from an empty one
+        sb.append('!');
+      } else {
+        sb.append(':').append(values[i]);
+      }
+    }
+    return sb.toString();
   }
 
   /*
@@ -57,42 +189,53 @@ class RequestIdentity {
     if (this == obj) {
       return true;
     }
-    if (obj == null) {
-      return false;
-    }
     if (!(obj instanceof RequestIdentity)) {
       return false;
     }
     final RequestIdentity other = (RequestIdentity) obj;
-    if (headers == null) {
-      if (other.headers != null) {
-        return false;
-      }
-    } else if (!headers.equals(other.headers)) {
-      return false;
-    }
-    if (method == null) {
-      if (other.method != null) {
-        return false;
-      }
-    } else if (!method.equals(other.method)) {
-      return false;
-    }
-    if (protocolVersion == null) {
-      if (other.protocolVersion != null) {
-        return false;
-      }
-    } else if (!protocolVersion.equals(other.protocolVersion)) {
-      return false;
-    }
-    if (url == null) {
-      if (other.url != null) {
-        return false;
+    return hash == other.hash && key.equals(other.key);
+  }
+
+  /**
+   * Gets the request headers the response varies on.
+   * 
+   * @return the headers
+   */
+  Headers getHeaders() {
+    final Headers headers = new Headers();
+    for (int i = 0; i < names.length; ++i) {
+      if (values[i] != null) {
+        headers.add(names[i], values[i]);
       }
-    } else if (!url.equals(other.url)) {
-      return false;
     }
-    return true;
+    return headers;
+  }
+
+  /**
+   * Gets the key.
+   * 
+   * @return the key
+   */
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * Gets the method.
+   * 
+   * @return the method
+   */
+  String getMethod() {
+    return method;
+  }
+
+  /**
+   * Gets the url.
+   * 
+   * @return the url
+   */
+  URL getURL() {
+    return url;
   }
 
   /*
@@ -101,13 +244,7 @@ class RequestIdentity {
    */
   @Override
   public int hashCode() {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ((headers == null) ? 0 : headers.hashCode());
-    result = prime * result + ((method == null) ? 0 : method.hashCode());
-    result = prime * result + ((protocolVersion == null) ? 0 : protocolVersion.hashCode());
-    result = prime * result + ((url == null) ? 0 : url.hashCode());
-    return result;
+    return hash;
   }
 
   /*
@@ -116,7 +253,25 @@ class RequestIdentity {
    */
   @Override
   public String toString() {
-    return "RequestIdentity [method=" + method + ", url=" + url + ", protocolVersion="
-        + protocolVersion + ", headers=" + headers + "]";
+    return "RequestIdentity [" + key.replace('\n', ' ') + "]";
+  }
+
+  /**
+   * Writes the request identity.
+   * 
+   * @param out the output
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  void writeTo(final DataOutputStream out) throws IOException {
+    out.writeUTF(method);
+    out.writeUTF(url.toExternalForm());
+    out.writeInt(names.length);
+    for (int i = 0; i < names.length; ++i) {
+      out.writeUTF(names[i]);
+      out.writeBoolean(values[i] != null);
+      if (values[i] != null) {
+        out.writeUTF(values[i]);
+      }
+    }
   }
 }
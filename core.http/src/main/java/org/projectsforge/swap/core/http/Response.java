@@ -19,6 +19,7 @@ import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -31,11 +32,13 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.projectsforge.swap.core.environment.Environment;
 import org.projectsforge.utils.temporarystreams.ContentHolder;
-import org.projectsforge.utils.temporarystreams.TemporaryContentHolder;
-import org.projectsforge.utils.temporarystreams.TemporaryStreamsFactory;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -68,13 +71,16 @@ public class Response {
   private boolean alreadyExecuted = false;
 
   /** The logger. */
-  private final Logger logger;
+  private static final Logger logger = LoggerFactory.getLogger(Response.class);
 
   /** The date at which the last response has be obtained. */
   private long date = 0;
 
-  /** The expiration date of the response. */
-  private long expires = -1;
+  /** The date at which the last request has been sent. */
+  private long requestTime = 0;
+
+  /** The freshness of the response (null if not yet executed). */
+  private Freshness freshness;
 
   /** The direct. */
   private boolean direct = false;
@@ -82,13 +88,25 @@ public class Response {
   /** The content. */
   private ContentHolder content;
 
+  /** The length of the content (-1 if unknown). */
+  private long contentLength = -1;
+
+  /** The last version given to a content, shared by all the responses. */
+  private static final AtomicLong versions = new AtomicLong();
+
+  /** The version of the content, renewed each time it is replaced. */
+  private volatile long version = 0;
+
+  /** The identity under which the response is cached (null if not cached). */
+  volatile RequestIdentity cacheIdentity;
+
   /** The cache manager. */
   @Autowired
   private CacheManager cacheManager;
 
-  /** The temporary streams factory. */
+  /** The budget of the memory used by the contents. */
   @Autowired
-  private TemporaryStreamsFactory temporaryStreamsFactory;
+  private ContentMemoryBudget contentMemoryBudget;
 
   /** The http client. */
   @Autowired
@@ -101,7 +119,6 @@ public class Response {
    */
   Response(final Request request) {
     this.request = request;
-    logger = org.slf4j.LoggerFactory.getLogger(getClass().getName() + "." + request.getURL());
   }
 
   /**
@@ -117,6 +134,19 @@ public class Response {
     statusReason = context.getStatusReason();
   }
 
+  /**
+   * Checks if the stored content can be revalidated with a conditional request
+   * instead of being fetched again.
+   * 
+   * @return true, if the content can be revalidated
+   */
+  private boolean canRevalidate() {
+    return alreadyExecuted && !direct && content != null && statusCode == HttpStatus.SC_OK
+        && "GET".equals(getRequest().getMethod())
+        && (headers.hasHeader(ResponseHeaderConstants.ETAG)
+            || headers.hasHeader(ResponseHeaderConstants.LAST_MODIFIED));
+  }
+
   /**
    * Gets the content.
    * 
@@ -126,6 +156,24 @@ public class Response {
     return content;
   }
 
+  /**
+   * Gets the length of the content.
+   * 
+   * @return the content length or -1 if it is unknown
+   */
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  /**
+   * Gets the date at which the last response has been obtained.
+   * 
+   * @return the date
+   */
+  long getDate() {
+    return date;
+  }
+
   /**
    * Gets the headers.
    * 
@@ -157,6 +205,15 @@ public class Response {
         .newContextualRequest(getRequest(), getHeaders().getFirstValue(ResponseHeaderConstants.LOCATION));
   }
 
+  /**
+   * Gets the date at which the last request has been sent.
+   * 
+   * @return the request time
+   */
+  long getRequestTime() {
+    return requestTime;
+  }
+
   /**
    * Gets the request.
    * 
@@ -184,6 +241,39 @@ public class Response {
     return statusReason;
   }
 
+  /**
+   * Gets the version of the content. The version changes each time the
+   * content is replaced, either by a refresh or by
+   * {@link #setContent(ContentHolder)}, and is kept when the stored content is
+   * revalidated. The versions are unique among all the responses, so a content
+   * derived from the response can be reused as long as the version is unchanged,
+   * even if another response has been cached since under the same identity.
+   * 
+   * @return the version
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the identity under which the response is cached.
+   * 
+   * @return the cache identity or null if the response is not cached
+   */
+  public RequestIdentity getCacheIdentity() {
+    return cacheIdentity;
+  }
+
+  /**
+   * Checks if the response is kept in the cache and shared by the requests
+   * having the same identity.
+   * 
+   * @return true, if is cached
+   */
+  public boolean isCached() {
+    return cacheIdentity != null;
+  }
+
   /**
    * Checks if is direct.
    * 
@@ -223,31 +313,25 @@ public class Response {
   private boolean needRefresh() {
 
     if (!alreadyExecuted) {
-      logger.trace("needRefresh because !alreadyExecuted");
+      logger.trace("needRefresh of {} because !alreadyExecuted", getRequest().getURL());
       return true;
     } else {
       final long now = System.currentTimeMillis();
       final long age = now - date;
 
       if (request.isReloadRequested()) {
-        logger.trace("needRefresh because reload requested");
+        logger.trace("needRefresh of {} because reload requested", getRequest().getURL());
         return true;
       }
 
       if (age > CacheManagerPropertyHolder.maxAgeBeforeForcedRefresh.get()) {
-        logger.trace("needRefresh because maxage before forced refresh");
+        logger.trace("needRefresh of {} because maxage before forced refresh", getRequest().getURL());
         return true;
       }
 
-      if (expires != -1) {
-        if (expires <= now) {
-          if (age >= CacheManagerPropertyHolder.maxAgeForForcedExpiration.get()) {
-            logger.trace("needRefresh because maxage for forced expiration");
-            return true;
-          }
-        } else {
-          return true;
-        }
+      if (freshness == null || !freshness.isFresh(now)) {
+        logger.trace("needRefresh of {} because stale", getRequest().getURL());
+        return true;
       }
       return false;
     }
@@ -257,10 +341,16 @@ public class Response {
    * Refresh.
    * 
    * @param httpServletResponse the http servlet response
+   * @param unshareable the callback run as soon as the response headers show
+   *          that the content will not be stored for other requests (may be
+   *          null)
+   * @return true, if the content has been forwarded to the client of the http
+   *         servlet response while it was stored
    * @throws IOException Signals that an I/O exception has occurred.
    */
   @SuppressWarnings({ "deprecation", "resource" })
-  void refresh(final HttpServletResponse httpServletResponse) throws IOException {
+  boolean refresh(final HttpServletResponse httpServletResponse, final Runnable unshareable) throws IOException {
+    boolean streamed = false;
     if (needRefresh()) {
       logger.debug("Refreshing {}", getRequest().getURL());
 
@@ -292,9 +382,10 @@ public class Response {
           httpRequest.setHeader(header.getName(), header.getValue());
         }
 
-        // 3. HTTP accepted encoding
-        // TODO test without changing encoding
-        httpRequest.setHeader(HttpHeaders.ACCEPT_ENCODING, "identity");
+        // 3. HTTP accepted encoding (compressed entities are decompressed by
+        // the http client before being stored)
+        httpRequest.setHeader(HttpHeaders.ACCEPT_ENCODING,
+            HttpPropertyHolder.compression.get() ? "gzip,deflate" : "identity");
 
         // 4. HTTP request entity
         final InputStream requestInputStream = getRequest().getRequestInputStream();
@@ -304,16 +395,48 @@ public class Response {
           }
         }
 
-        // 5. Do the connection
+        // 5. Revalidate the stored content if it has a validator
+        final boolean revalidation = canRevalidate();
+        if (revalidation) {
+          final String etag = headers.getFirstValue(ResponseHeaderConstants.ETAG);
+          if (etag != null) {
+            httpRequest.setHeader(RequestHeaderConstants.IF_NONE_MATCH, etag);
+          }
+          final String lastModified = headers.getFirstValue(ResponseHeaderConstants.LAST_MODIFIED);
+          if (lastModified != null) {
+            httpRequest.setHeader(RequestHeaderConstants.IF_MODIFIED_SINCE, lastModified);
+          }
+        }
+
+        // 6. Do the connection
+        requestTime = System.currentTimeMillis();
+        boolean contentReplaced = false;
         try {
-          final HttpResponse httpResponse = httpClient.execute(httpRequest);
+          final HttpContext httpContext = new BasicHttpContext();
+          final HttpResponse httpResponse = httpClient.execute(httpRequest, httpContext);
+
+          // 7. Keep the stored content if it has not been modified
+          final boolean notModified = revalidation
+              && httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+          if (revalidation) {
+            cacheManager.responseRevalidated(notModified);
+          }
+          if (notModified) {
+            EntityUtils.consume(httpResponse.getEntity());
+            updateHeaders(httpResponse);
+            logger.debug("Stored content of {} not modified", getRequest().getURL());
+            refreshed(false);
+            return false;
+          }
 
           // 8. Store status line and response header
           statusCode = httpResponse.getStatusLine().getStatusCode();
           statusReason = httpResponse.getStatusLine().getReasonPhrase();
           headers.clear();
           for (final org.apache.http.Header header : httpResponse.getAllHeaders()) {
-            getHeaders().add(header.getName(), header.getValue());
+            if (!ServletHttpClient.isCompressedEntityHeader(httpContext, header.getName())) {
+              getHeaders().add(header.getName(), header.getValue());
+            }
           }
 
           // 9. Compute MIME of the response entity if there is one
@@ -349,28 +472,57 @@ public class Response {
               direct = false;
             } else if (cacheManager.isMimeHandled(mime) && statusCode == 200) {
               direct = false;
+              streamed = cacheManager.isMimeStreamed(mime);
             } else {
               direct = true;
             }
           }
+          if (unshareable != null && (direct || streamed
+              || !new Freshness(headers, requestTime, System.currentTimeMillis()).isStorable())) {
+            unshareable.run();
+          }
 
-          // 11. Process response entity
+          // 11. Process response entity, the previous content may still be
+          // read by other requests so only its memory is given back
+          releaseContentMemory();
           OutputStream outputStream;
+          ContentMemoryBudget.ContentOutputStream storage = null;
           if (direct) {
             httpServletResponse.setStatus(statusCode, statusReason);
             Util.sendResponseHeaders(httpServletResponse, getHeaders());
             outputStream = httpServletResponse.getOutputStream();
             content = null;
+          } else if (streamed) {
+            // read-only handlers: the content is forwarded while being stored
+            httpServletResponse.setStatus(statusCode, statusReason);
+            Util.sendResponseHeaders(httpServletResponse, getHeaders());
+            httpServletResponse.flushBuffer();
+            content = null;
+            storage = contentMemoryBudget.newContentOutputStream();
+            outputStream = new TeeOutputStream(storage, httpServletResponse.getOutputStream());
           } else {
-            content = new TemporaryContentHolder(temporaryStreamsFactory);
-            outputStream = ((TemporaryContentHolder) content).getOutputStream();
+            content = null;
+            storage = contentMemoryBudget.newContentOutputStream();
+            outputStream = storage;
           }
 
           // conn.receiveResponseEntity(httpResponse);
+          contentLength = direct ? -1 : 0;
           final HttpEntity responseEntity = httpResponse.getEntity();
           if (responseEntity != null) {
             try (final InputStream in = responseEntity.getContent()) {
-              Util.dumpTo(in, outputStream);
+              final long length;
+              try {
+                length = Util.dumpTo(in, outputStream);
+              } catch (final EOFException e) {
+                // the client is gone: the rest of the content is not read
+                httpRequest.abort();
+                throw e;
+              }
+              if (!direct) {
+                contentLength = length;
+                contentReplaced = true;
+              }
             } catch (final EOFException e) {
               logger.debug("An exception occurred while sending response", e);
             }
@@ -378,37 +530,85 @@ public class Response {
           if (!direct || responseEntity == null) {
             outputStream.close();
           }
+          if (storage != null) {
+            content = storage.getContent();
+          }
+          if (responseEntity == null) {
+            contentReplaced = !direct;
+          }
         } catch (final RuntimeException e) {
           httpRequest.abort();
         }
 
-        logger.info("Refreshed with response status code: {} (MIME: {})", statusCode, mime);
+        logger.info("Refreshed {} with response status code: {} (MIME: {})", new Object[] { getRequest().getURL(),
+            statusCode, mime });
 
         // 12. Update some properties
-        alreadyExecuted = true;
-        final Header header = headers.getFirst(ResponseHeaderConstants.EXPIRES);
-        if (header != null) {
-          expires = header.getValueAsDateField();
-        } else {
-          expires = 0;
-        }
-        date = System.currentTimeMillis();
+        refreshed(contentReplaced);
 
       } catch (final UnresolvedAddressException | SocketTimeoutException | UnknownHostException e) {
         if (direct) {
           httpServletResponse.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
         }
         setStatusCode(HttpServletResponse.SC_GATEWAY_TIMEOUT);
-        logger.debug("refresh failed with timeout", e);
+        logger.debug("refresh of " + getRequest().getURL() + " failed with timeout", e);
       } catch (final IOException e) {
         if (direct) {
           httpServletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
         setStatusCode(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-        logger.error("refresh failed", e);
+        logger.error("refresh of " + getRequest().getURL() + " failed", e);
       }
     } else {
-      logger.info("Using cached version");
+      logger.info("Using cached version of {}", getRequest().getURL());
+    }
+    return streamed;
+  }
+
+  /**
+   * Update the properties of the response once it has been refreshed.
+   * 
+   * @param contentReplaced true if the content has been replaced
+   */
+  private void refreshed(final boolean contentReplaced) {
+    if (contentReplaced) {
+      version = versions.incrementAndGet();
+    }
+    alreadyExecuted = true;
+    date = System.currentTimeMillis();
+    freshness = new Freshness(headers, requestTime, date);
+    cacheManager.responseRefreshed(this, contentReplaced);
+  }
+
+  /**
+   * Restores the state of the response from a response stored on disk. The
+   * response is then handled as if it had been refreshed at the stored date.
+   * 
+   * @param record the stored response
+   */
+  void restore(final DiskCache.Record record) {
+    statusCode = record.statusCode;
+    statusReason = record.statusReason.isEmpty() ? null : record.statusReason;
+    mime = record.mime;
+    headers.copy(record.headers);
+    content = record.content;
+    contentLength = record.contentLength;
+    requestTime = record.requestTime;
+    date = record.date;
+    freshness = new Freshness(headers, requestTime, date);
+    direct = false;
+    alreadyExecuted = true;
+    version = versions.incrementAndGet();
+  }
+
+  /**
+   * Give back the memory reserved by the content to the budget, typically when
+   * the response leaves the cache. The content stays readable by the requests
+   * still using it.
+   */
+  void releaseContentMemory() {
+    if (content != null && contentMemoryBudget != null) {
+      contentMemoryBudget.release(content);
     }
   }
 
@@ -419,11 +619,25 @@ public class Response {
    */
   public void setContent(final ContentHolder content) {
     if (this.content != null && this.content != content) {
+      releaseContentMemory();
       this.content.release();
     }
+    if (this.content != content) {
+      contentLength = -1;
+      version = versions.incrementAndGet();
+    }
     this.content = content;
   }
 
+  /**
+   * Checks if the response can be kept in a cache.
+   * 
+   * @return true, if is storable
+   */
+  boolean isStorable() {
+    return freshness == null || freshness.isStorable();
+  }
+
   /**
    * Sets the headers.
    * 
@@ -460,6 +674,27 @@ public class Response {
     this.statusReason = statusReason;
   }
 
+  /**
+   * Update the stored headers with the headers of a 304 response (RFC 7234
+   * section 4.3.4).
+   * 
+   * @param notModifiedResponse the 304 response
+   */
+  private void updateHeaders(final HttpResponse notModifiedResponse) {
+    final Headers updatedHeaders = new Headers();
+    for (final org.apache.http.Header header : notModifiedResponse.getAllHeaders()) {
+      if (!ResponseHeaderConstants.CONTENT_LENGTH.equalsIgnoreCase(header.getName())) {
+        updatedHeaders.add(header.getName(), header.getValue());
+      }
+    }
+    for (final String name : updatedHeaders.getNames()) {
+      headers.removeAll(name);
+    }
+    for (final Header header : updatedHeaders) {
+      headers.add(header.getName(), header.getValue());
+    }
+  }
+
   /*
    * (non-Javadoc)
    * @see java.lang.Object#toString()
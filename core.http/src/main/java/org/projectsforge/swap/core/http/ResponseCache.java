@@ -0,0 +1,497 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A bounded, lock-striped response cache. The cache is split into segments,
+ * each one being an access ordered map protected by its own lock, so that
+ * concurrent requests for distinct resources do not contend. The byte budget
+ * is global: when it is exceeded, the least recently used entry of the whole
+ * cache, which is the oldest of the least recently used entries of the
+ * segments, is evicted until the weight fits. Entries also expire after a
+ * fixed time to live. A listener is notified of each response leaving the
+ * cache.
+ *
+ * @author Sébastien Aupetit
+ */
+class ResponseCache {
+
+  /**
+   * A cache entry.
+   */
+  private static final class Entry {
+
+    /** The cached response. */
+    final Response response;
+
+    /** The weight of the entry as accounted by the cache. */
+    long weight;
+
+    /** The date after which the entry is expired. */
+    final long expiresAt;
+
+    /** The sequence number of the last access to the entry. */
+    long lastAccess;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param response the response
+     * @param weight the weight
+     * @param expiresAt the expiration date
+     * @param lastAccess the sequence number of the creation
+     */
+    Entry(final Response response, final long weight, final long expiresAt, final long lastAccess) {
+      this.response = response;
+      this.weight = weight;
+      this.expiresAt = expiresAt;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  /**
+   * A segment of the cache.
+   */
+  private final class Segment {
+
+    /** The lock. */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** The entries in access order. */
+    final LinkedHashMap<RequestIdentity, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Adds an entry, replacing any previous one.
+     *
+     * @param identity the identity
+     * @param entry the entry
+     * @return the previous entry or null
+     */
+    Entry add(final RequestIdentity identity, final Entry entry) {
+      final Entry previous = entries.put(identity, entry);
+      if (previous != null) {
+        weight.addAndGet(entry.weight - previous.weight);
+      } else {
+        weight.addAndGet(entry.weight);
+        size.incrementAndGet();
+      }
+      return previous;
+    }
+
+    /**
+     * Gets the sequence number of the last access to the least recently used
+     * entry of the segment.
+     *
+     * @return the sequence number or Long.MAX_VALUE if the segment is empty
+     */
+    long oldestAccess() {
+      final Iterator<Entry> it = entries.values().iterator();
+      return it.hasNext() ? it.next().lastAccess : Long.MAX_VALUE;
+    }
+
+    /**
+     * Removes the given entry.
+     *
+     * @param identity the identity
+     * @param entry the entry
+     */
+    void remove(final RequestIdentity identity, final Entry entry) {
+      unlink(identity, entry);
+      removalListener.accept(entry.response);
+    }
+
+    /**
+     * Removes the given entry without notifying the listener.
+     *
+     * @param identity the identity
+     * @param entry the entry
+     */
+    void unlink(final RequestIdentity identity, final Entry entry) {
+      entries.remove(identity);
+      weight.addAndGet(-entry.weight);
+      size.decrementAndGet();
+    }
+  }
+
+  /** The fixed overhead accounted for each entry (headers, request, ...). */
+  static final long ENTRY_OVERHEAD = 1024;
+
+  /** The number of segments. */
+  private static final int SEGMENT_COUNT = 16;
+
+  /** The segments. */
+  private final Segment[] segments;
+
+  /** The weight of all the entries. */
+  private final AtomicLong weight = new AtomicLong();
+
+  /** The number of entries. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /** The sequence of the accesses, ordering the entries of all the segments. */
+  private final AtomicLong accesses = new AtomicLong();
+
+  /** The lock held by the thread evicting the entries. */
+  private final ReentrantLock evictionLock = new ReentrantLock();
+
+  /**
+   * The listener notified of the responses leaving the cache. It is called
+   * while the segment is locked.
+   */
+  private final Consumer<Response> removalListener;
+
+  /** The hit counter. */
+  private final AtomicLong hitCount = new AtomicLong();
+
+  /** The miss counter. */
+  private final AtomicLong missCount = new AtomicLong();
+
+  /** The eviction counter. */
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /** The expiration counter. */
+  private final AtomicLong expirationCount = new AtomicLong();
+
+  /**
+   * Instantiates a new response cache.
+   *
+   * @param removalListener the listener notified of the responses evicted,
+   *          expired, replaced or removed
+   */
+  ResponseCache(final Consumer<Response> removalListener) {
+    this.removalListener = removalListener;
+    segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < segments.length; ++i) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Computes the weight of a response.
+   *
+   * @param response the response
+   * @return the weight
+   */
+  private static long weigh(final Response response) {
+    return ENTRY_OVERHEAD + Math.max(0, response.getContentLength());
+  }
+
+  /**
+   * Gets the cached response associated to the identity or creates and stores
+   * a new one if there is no valid cached response. The lookup, the creation
+   * and the storage are done while the segment is locked so that concurrent
+   * requests having the same identity always share the same response. An
+   * expired or direct response is replaced.
+   *
+   * @param identity the identity
+   * @param factory the factory creating the new response
+   * @return the response
+   */
+  Response computeIfAbsent(final RequestIdentity identity, final Function<RequestIdentity, Response> factory) {
+    final Segment segment = segmentFor(identity);
+    final Response response;
+    segment.lock.lock();
+    try {
+      final Entry entry = segment.entries.get(identity);
+      if (entry != null) {
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+          segment.remove(identity, entry);
+          expirationCount.incrementAndGet();
+        } else if (!entry.response.isDirect()) {
+          hitCount.incrementAndGet();
+          entry.lastAccess = accesses.incrementAndGet();
+          return entry.response;
+        }
+      }
+      missCount.incrementAndGet();
+      response = factory.apply(identity);
+      store(segment, identity, response);
+    } finally {
+      segment.lock.unlock();
+    }
+    evict();
+    return response;
+  }
+
+  /**
+   * Evicts the least recently used entries of the cache until its weight fits
+   * in the budget. The most recently used entry is always kept. It is called
+   * without holding any segment lock; when several threads exceed the budget
+   * at the same time, one of them evicts the entries.
+   */
+  private void evict() {
+    final long maxWeight = CacheManagerPropertyHolder.maxCacheSize.get();
+    while (isOverweight(maxWeight) && evictionLock.tryLock()) {
+      try {
+        while (isOverweight(maxWeight)) {
+          if (!evictOldest()) {
+            return;
+          }
+        }
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used entry of the cache.
+   *
+   * @return true, if an entry has been evicted
+   */
+  private boolean evictOldest() {
+    Segment oldest = null;
+    long oldestAccess = Long.MAX_VALUE;
+    for (final Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        final long access = segment.oldestAccess();
+        if (access < oldestAccess) {
+          oldest = segment;
+          oldestAccess = access;
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    if (oldest == null) {
+      return false;
+    }
+
+    oldest.lock.lock();
+    try {
+      final Iterator<Map.Entry<RequestIdentity, Entry>> it = oldest.entries.entrySet().iterator();
+      if (it.hasNext()) {
+        // the entry may have been used since the scan, it is evicted anyway
+        // since it was the oldest a moment ago
+        final Map.Entry<RequestIdentity, Entry> entry = it.next();
+        oldest.remove(entry.getKey(), entry.getValue());
+        evictionCount.incrementAndGet();
+      }
+    } finally {
+      oldest.lock.unlock();
+    }
+    return true;
+  }
+
+  /**
+   * Gets the number of evicted entries.
+   *
+   * @return the eviction count
+   */
+  long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Gets the number of expired entries.
+   *
+   * @return the expiration count
+   */
+  long getExpirationCount() {
+    return expirationCount.get();
+  }
+
+  /**
+   * Gets the number of hits.
+   *
+   * @return the hit count
+   */
+  long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Gets the number of misses.
+   *
+   * @return the miss count
+   */
+  long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Gets the number of entries.
+   *
+   * @return the size
+   */
+  int getSize() {
+    return size.get();
+  }
+
+  /**
+   * Gets the accounted weight (in bytes) of all the entries.
+   *
+   * @return the weight
+   */
+  long getWeight() {
+    return weight.get();
+  }
+
+  /**
+   * Checks if the cache exceeds its budget and can evict an entry.
+   *
+   * @param maxWeight the budget
+   * @return true, if an entry must be evicted
+   */
+  private boolean isOverweight(final long maxWeight) {
+    return weight.get() > maxWeight && size.get() > 1;
+  }
+
+  /**
+   * Moves a response to another identity. The listener is not notified since
+   * the response stays in the cache.
+   *
+   * @param from the previous identity
+   * @param to the new identity
+   * @param response the response
+   */
+  void move(final RequestIdentity from, final RequestIdentity to, final Response response) {
+    final Segment segment = segmentFor(from);
+    segment.lock.lock();
+    try {
+      final Entry entry = segment.entries.get(from);
+      if (entry != null && entry.response == response) {
+        segment.unlink(from, entry);
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+    put(to, response);
+  }
+
+  /**
+   * Stores a response in the cache, replacing any previous one.
+   *
+   * @param identity the identity
+   * @param response the response
+   */
+  void put(final RequestIdentity identity, final Response response) {
+    final Segment segment = segmentFor(identity);
+    segment.lock.lock();
+    try {
+      store(segment, identity, response);
+    } finally {
+      segment.lock.unlock();
+    }
+    evict();
+  }
+
+  /**
+   * Removes a response from the cache if it is still associated to the
+   * identity.
+   *
+   * @param identity the identity
+   * @param response the response
+   */
+  void remove(final RequestIdentity identity, final Response response) {
+    final Segment segment = segmentFor(identity);
+    segment.lock.lock();
+    try {
+      final Entry entry = segment.entries.get(identity);
+      if (entry != null && entry.response == response) {
+        segment.remove(identity, entry);
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /**
+   * Updates the weight of a cached response, typically after its content has
+   * been refreshed, and evicts entries if needed.
+   *
+   * @param identity the identity
+   * @param response the response
+   */
+  void reweigh(final RequestIdentity identity, final Response response) {
+    final Segment segment = segmentFor(identity);
+    segment.lock.lock();
+    try {
+      final Entry entry = segment.entries.get(identity);
+      if (entry != null && entry.response == response) {
+        final long newWeight = weigh(response);
+        weight.addAndGet(newWeight - entry.weight);
+        entry.weight = newWeight;
+        entry.lastAccess = accesses.incrementAndGet();
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+    evict();
+  }
+
+  /**
+   * Stores a response in a locked segment, replacing any previous one. The
+   * caller evicts the entries exceeding the budget once the segment is
+   * unlocked.
+   *
+   * @param segment the segment
+   * @param identity the identity
+   * @param response the response
+   */
+  private void store(final Segment segment, final RequestIdentity identity, final Response response) {
+    final Entry entry = new Entry(response, weigh(response), System.currentTimeMillis()
+        + CacheManagerPropertyHolder.timeToLive.get(), accesses.incrementAndGet());
+    final Entry previous = segment.add(identity, entry);
+    if (previous != null && previous.response != response) {
+      removalListener.accept(previous.response);
+    }
+  }
+
+  /**
+   * Gets the segment associated to an identity.
+   *
+   * @param identity the identity
+   * @return the segment
+   */
+  private Segment segmentFor(final RequestIdentity identity) {
+    int hash = identity.hashCode();
+    hash ^= (hash >>> 16);
+    return segments[hash & (segments.length - 1)];
+  }
+
+  /**
+   * Gets a snapshot of the non expired cached responses.
+   *
+   * @return the snapshot
+   */
+  List<Response> snapshot() {
+    final long now = System.currentTimeMillis();
+    final List<Response> snapshot = new ArrayList<>();
+    for (final Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        for (final Map.Entry<RequestIdentity, Entry> entry : segment.entries.entrySet()) {
+          if (entry.getValue().expiresAt > now) {
+            snapshot.add(entry.getValue().response);
+          }
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return snapshot;
+  }
+}
@@ -18,28 +18,128 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.ProtocolException;
 import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.protocol.RequestClientConnControl;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.BasicHttpProcessor;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.RequestTargetHost;
 import org.apache.http.protocol.RequestUserAgent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * The Class ServletHttpClient.
+ * The Class ServletHttpClient. Upstream connections are kept alive in a pool
+ * bounded globally and per route (see {@link HttpPropertyHolder}); idle
+ * connections are closed by a background thread. Compressed response entities
+ * are transparently decompressed before being stored.
  * 
  * @author Sébastien Aupetit
  */
 public class ServletHttpClient extends SystemDefaultHttpClient {
 
+  /**
+   * A pooled connection manager measuring the time spent waiting for a
+   * connection.
+   */
+  private final class MeasuredConnectionManager extends PoolingClientConnectionManager {
+
+    /**
+     * Instantiates a new measured connection manager.
+     * 
+     * @param schemeRegistry the scheme registry
+     */
+    MeasuredConnectionManager(final SchemeRegistry schemeRegistry) {
+      super(schemeRegistry);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * org.apache.http.impl.conn.PoolingClientConnectionManager#requestConnection
+     * (org.apache.http.conn.routing.HttpRoute, java.lang.Object)
+     */
+    @Override
+    public ClientConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+      final ClientConnectionRequest request = super.requestConnection(route, state);
+      return new ClientConnectionRequest() {
+        @Override
+        public void abortRequest() {
+          request.abortRequest();
+        }
+
+        @Override
+        public ManagedClientConnection getConnection(final long timeout, final TimeUnit tunit)
+            throws InterruptedException, ConnectionPoolTimeoutException {
+          final long start = System.nanoTime();
+          try {
+            return request.getConnection(timeout, tunit);
+          } finally {
+            recordLeaseTime(System.nanoTime() - start);
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * The attribute set in the http context when the response entity has been
+   * decompressed.
+   */
+  private static final String DECOMPRESSED_ATTRIBUTE = ServletHttpClient.class.getName() + ".decompressed";
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(ServletHttpClient.class);
+
+  /** The number of leased connections. */
+  private final AtomicLong leaseCount = new AtomicLong();
+
+  /** The cumulated time (in ns) spent waiting for a connection. */
+  private final AtomicLong totalLeaseTime = new AtomicLong();
+
+  /** The maximum time (in ns) spent waiting for a connection. */
+  private final AtomicLong maxLeaseTime = new AtomicLong();
+
+  /** The number of decompressed response entities. */
+  private final AtomicLong decompressedCount = new AtomicLong();
+
+  /** The executor closing the idle connections. */
+  private final ScheduledExecutorService idleConnectionEvictor;
+
   /**
    * Instantiates a new servlet http client.
    * 
@@ -74,6 +174,75 @@ public class ServletHttpClient extends SystemDefaultHttpClient {
     }, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
     final Scheme sch = new Scheme("https", 443, socketFactory);
     getConnectionManager().getSchemeRegistry().register(sch);
+
+    idleConnectionEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "http-idle-connection-evictor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final long period = Math.max(1000, HttpPropertyHolder.idleTimeout.get() / 2);
+    idleConnectionEvictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final ClientConnectionManager connectionManager = getConnectionManager();
+          connectionManager.closeExpiredConnections();
+          connectionManager.closeIdleConnections(HttpPropertyHolder.idleTimeout.get(), TimeUnit.MILLISECONDS);
+        } catch (final RuntimeException e) {
+          logger.warn("An error occurred while closing idle connections", e);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.apache.http.impl.client.SystemDefaultHttpClient#createClientConnectionManager
+   * ()
+   */
+  @Override
+  protected ClientConnectionManager createClientConnectionManager() {
+    final PoolingClientConnectionManager connectionManager = new MeasuredConnectionManager(
+        SchemeRegistryFactory.createSystemDefault());
+    final int maxTotal = Math.max(1, HttpPropertyHolder.maxConnections.get());
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(Math.max(1,
+        Math.min(maxTotal, HttpPropertyHolder.maxConnectionsPerRoute.get())));
+    return connectionManager;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.apache.http.impl.client.SystemDefaultHttpClient#createConnectionReuseStrategy
+   * ()
+   */
+  @Override
+  protected ConnectionReuseStrategy createConnectionReuseStrategy() {
+    // the system default only keeps connections alive if http.keepAlive is set
+    if (HttpPropertyHolder.keepAlive.get()) {
+      return new DefaultConnectionReuseStrategy();
+    }
+    return new NoConnectionReuseStrategy();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.apache.http.impl.client.DefaultHttpClient#createHttpParams()
+   */
+  @Override
+  protected HttpParams createHttpParams() {
+    final HttpParams params = super.createHttpParams();
+    HttpConnectionParams.setConnectionTimeout(params, HttpPropertyHolder.connectTimeout.get());
+    HttpConnectionParams.setSoTimeout(params, HttpPropertyHolder.readTimeout.get());
+    HttpConnectionParams.setTcpNoDelay(params, HttpPropertyHolder.tcpNoDelay.get());
+    // do not wait forever for a connection of a saturated pool
+    params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, HttpPropertyHolder.connectTimeout.get());
+    return params;
   }
 
   /*
@@ -86,6 +255,165 @@ public class ServletHttpClient extends SystemDefaultHttpClient {
     httpproc.addInterceptor(new RequestTargetHost());
     httpproc.addInterceptor(new RequestClientConnControl());
     httpproc.addInterceptor(new RequestUserAgent());
+    httpproc.addInterceptor(new HttpResponseInterceptor() {
+      @Override
+      public void process(final HttpResponse response, final HttpContext context) {
+        if (decompress(response)) {
+          context.setAttribute(DECOMPRESSED_ATTRIBUTE, Boolean.TRUE);
+        }
+      }
+    });
     return httpproc;
   }
+
+  /**
+   * Checks if a header describes the compressed entity of a response and must
+   * not be forwarded with the decompressed content.
+   * 
+   * @param context the context of the execution of the request
+   * @param name the name of the header
+   * @return true, if the header must be dropped
+   */
+  public static boolean isCompressedEntityHeader(final HttpContext context, final String name) {
+    return Boolean.TRUE.equals(context.getAttribute(DECOMPRESSED_ATTRIBUTE))
+        && (HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)
+            || HttpHeaders.CONTENT_MD5.equalsIgnoreCase(name));
+  }
+
+  /**
+   * Replace a compressed response entity by its decompressed content. The
+   * headers are kept since they are needed to decide whether the connection
+   * can be reused; the ones describing the compressed entity must be dropped
+   * by the caller (see {@link #isCompressedEntityHeader(HttpContext, String)}).
+   * 
+   * @param response the response
+   * @return true, if the entity has been replaced
+   */
+  private boolean decompress(final HttpResponse response) {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null || entity.getContentEncoding() == null) {
+      return false;
+    }
+    final HeaderElement[] codecs = entity.getContentEncoding().getElements();
+    if (codecs.length != 1) {
+      return false;
+    }
+    final String codec = codecs[0].getName().toLowerCase(Locale.US);
+    if ("gzip".equals(codec) || "x-gzip".equals(codec)) {
+      response.setEntity(new GzipDecompressingEntity(entity));
+    } else if ("deflate".equals(codec)) {
+      response.setEntity(new DeflateDecompressingEntity(entity));
+    } else {
+      return false;
+    }
+    decompressedCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Gets the number of idle connections kept in the pool.
+   * 
+   * @return the available connection count
+   */
+  public int getAvailableConnections() {
+    return getPoolStats().getAvailable();
+  }
+
+  /**
+   * Gets the average time (in ms) spent waiting for a connection.
+   * 
+   * @return the average lease time
+   */
+  public double getAverageLeaseTime() {
+    final long count = leaseCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    return totalLeaseTime.get() / (count * 1000000.0);
+  }
+
+  /**
+   * Gets the number of decompressed response entities.
+   * 
+   * @return the decompressed count
+   */
+  public long getDecompressedCount() {
+    return decompressedCount.get();
+  }
+
+  /**
+   * Gets the number of connection leases.
+   * 
+   * @return the lease count
+   */
+  public long getLeaseCount() {
+    return leaseCount.get();
+  }
+
+  /**
+   * Gets the number of connections currently used by a request.
+   * 
+   * @return the leased connection count
+   */
+  public int getLeasedConnections() {
+    return getPoolStats().getLeased();
+  }
+
+  /**
+   * Gets the maximum number of connections.
+   * 
+   * @return the max connections
+   */
+  public int getMaxConnections() {
+    return getPoolStats().getMax();
+  }
+
+  /**
+   * Gets the maximum time (in ms) spent waiting for a connection.
+   * 
+   * @return the max lease time
+   */
+  public double getMaxLeaseTime() {
+    return maxLeaseTime.get() / 1000000.0;
+  }
+
+  /**
+   * Gets the number of requests waiting for a connection.
+   * 
+   * @return the pending connection count
+   */
+  public int getPendingConnections() {
+    return getPoolStats().getPending();
+  }
+
+  /**
+   * Gets the statistics of the pool.
+   * 
+   * @return the pool statistics
+   */
+  private PoolStats getPoolStats() {
+    return ((PoolingClientConnectionManager) getConnectionManager()).getTotalStats();
+  }
+
+  /**
+   * Record the time spent waiting for a connection.
+   * 
+   * @param time the time in ns
+   */
+  private void recordLeaseTime(final long time) {
+    leaseCount.incrementAndGet();
+    totalLeaseTime.addAndGet(time);
+    long max = maxLeaseTime.get();
+    while (time > max && !maxLeaseTime.compareAndSet(max, time)) {
+      max = maxLeaseTime.get();
+    }
+  }
+
+  /**
+   * Close the connections and stop the eviction of idle connections.
+   */
+  public void shutdown() {
+    idleConnectionEvictor.shutdown();
+    getConnectionManager().shutdown();
+  }
 }
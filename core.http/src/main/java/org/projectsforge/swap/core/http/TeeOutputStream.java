@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An output stream which stores the content while forwarding it to the client.
+ * The client stream is flushed after each write so that the client receives
+ * the bytes as soon as they arrive. A failure of the client (typically an
+ * aborted connection) does not interrupt the storage of the content.
+ * 
+ * @author Sébastien Aupetit
+ */
+class TeeOutputStream extends OutputStream {
+
+  /** The logger. */
+  private static final Logger logger = LoggerFactory.getLogger(TeeOutputStream.class);
+
+  /** The stream storing the content. */
+  private final OutputStream storage;
+
+  /** The stream to the client (null once it has failed). */
+  private OutputStream client;
+
+  /**
+   * Instantiates a new tee output stream.
+   * 
+   * @param storage the stream storing the content
+   * @param client the stream to the client
+   */
+  TeeOutputStream(final OutputStream storage, final OutputStream client) {
+    this.storage = storage;
+    this.client = client;
+  }
+
+  /**
+   * Handle a failure of the client stream.
+   * 
+   * @param e the exception
+   */
+  private void clientFailed(final IOException e) {
+    logger.debug("Client stream failed, the content is only stored", e);
+    client = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (client != null) {
+        client.close();
+      }
+    } catch (final IOException e) {
+      clientFailed(e);
+    } finally {
+      storage.close();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    storage.flush();
+    if (client != null) {
+      try {
+        client.flush();
+      } catch (final IOException e) {
+        clientFailed(e);
+      }
+    }
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    storage.write(b, off, len);
+    if (client != null) {
+      try {
+        client.write(b, off, len);
+        client.flush();
+      } catch (final IOException e) {
+        clientFailed(e);
+      }
+    }
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    storage.write(b);
+    if (client != null) {
+      try {
+        client.write(b);
+      } catch (final IOException e) {
+        clientFailed(e);
+      }
+    }
+  }
+}
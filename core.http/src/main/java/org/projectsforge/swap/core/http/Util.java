@@ -37,18 +37,22 @@ public class Util {
    * 
    * @param in the in
    * @param out the out
+   * @return the number of copied bytes
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  public static void dumpTo(final InputStream in, final OutputStream out) throws IOException {
+  public static long dumpTo(final InputStream in, final OutputStream out) throws IOException {
     final byte[] buffer = new byte[2048];
+    long count = 0;
     int len;
     do {
       len = in.read(buffer);
       if (len > 0) {
         out.write(buffer, 0, len);
+        count += len;
       }
     } while (len > 0);
     out.flush();
+    return count;
   }
 
   /**
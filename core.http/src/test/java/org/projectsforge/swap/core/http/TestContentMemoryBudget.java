@@ -0,0 +1,235 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.swap.core.environment.impl.TemporaryStreamPropertyHolder;
+import org.projectsforge.utils.temporarystreams.ContentHolder;
+import org.projectsforge.utils.temporarystreams.TemporaryStreamsFactory;
+
+/**
+ * Test that the contents held in memory are bounded by the global budget, that
+ * the other ones are spilled to disk and that the memory of a released content
+ * is given back at once.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestContentMemoryBudget {
+
+  /** The budget used by the test. */
+  private static final int BUDGET = 1024 * 1024;
+
+  /** The per content limit used by the test. */
+  private static final int MAX_SIZE = 256 * 1024;
+
+  /** The random generator of the contents. */
+  private final Random random = new Random(42);
+
+  /** The budget. */
+  private ContentMemoryBudget budget;
+
+  /** The directory of the spilled contents. */
+  private File directory;
+
+  /** The previous budget. */
+  private int previousBudget;
+
+  /** The previous per content limit. */
+  private int previousMaxSize;
+
+  /** The previous directory of the spilled contents. */
+  private File previousDirectory;
+
+  /**
+   * Read a content.
+   *
+   * @param in the stream of the content
+   * @return the bytes
+   * @throws Exception the exception
+   */
+  private static byte[] read(final InputStream in) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      Util.dumpTo(in, out);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Generate random bytes.
+   *
+   * @param size the size
+   * @return the bytes
+   */
+  private byte[] bytes(final int size) {
+    final byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Store bytes with the budget.
+   *
+   * @param bytes the bytes
+   * @return the stream once closed
+   * @throws Exception the exception
+   */
+  private ContentMemoryBudget.ContentOutputStream store(final byte[] bytes) throws Exception {
+    final ContentMemoryBudget.ContentOutputStream out = budget.newContentOutputStream();
+    // written by chunks like the responses of the servers
+    for (int offset = 0; offset < bytes.length; offset += 8192) {
+      out.write(bytes, offset, Math.min(8192, bytes.length - offset));
+    }
+    out.close();
+    return out;
+  }
+
+  /**
+   * Creates the budget.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("budget").toFile();
+    previousBudget = TemporaryStreamPropertyHolder.inMemoryBudget.get();
+    previousMaxSize = TemporaryStreamPropertyHolder.inMemoryMaxSize.get();
+    previousDirectory = TemporaryStreamPropertyHolder.directory.get();
+    TemporaryStreamPropertyHolder.inMemoryBudget.set(BUDGET);
+    TemporaryStreamPropertyHolder.inMemoryMaxSize.set(MAX_SIZE);
+    TemporaryStreamPropertyHolder.directory.set(directory);
+    budget = new ContentMemoryBudget(new TemporaryStreamsFactory());
+  }
+
+  /**
+   * Restores the properties.
+   */
+  @After
+  public void tearDown() {
+    TemporaryStreamPropertyHolder.inMemoryBudget.set(previousBudget);
+    TemporaryStreamPropertyHolder.inMemoryMaxSize.set(previousMaxSize);
+    TemporaryStreamPropertyHolder.directory.set(previousDirectory);
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  /**
+   * Test that the contents held in memory do not exceed the budget.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testBudget() throws Exception {
+    // a small content stays in memory
+    final byte[] small = bytes(10 * 1024);
+    final ContentMemoryBudget.ContentOutputStream smallContent = store(small);
+    Assert.assertFalse(smallContent.isSpilled());
+    Assert.assertEquals(small.length, budget.getResidentBytes());
+    Assert.assertTrue(Arrays.equals(small, read(smallContent.getContent().getInputStream())));
+
+    // a content larger than the per content limit is spilled
+    final byte[] large = bytes(MAX_SIZE * 2);
+    final ContentMemoryBudget.ContentOutputStream largeContent = store(large);
+    Assert.assertTrue(largeContent.isSpilled());
+    Assert.assertEquals(small.length, budget.getResidentBytes());
+    Assert.assertEquals(large.length, budget.getSpilledBytes());
+    Assert.assertEquals(1, budget.getSpillCount());
+    Assert.assertTrue(Arrays.equals(large, read(largeContent.getContent().getInputStream())));
+
+    // a burst of contents does not exceed the budget
+    final byte[] medium = bytes(MAX_SIZE - 1);
+    final List<ContentHolder> contents = new ArrayList<>();
+    int spilled = 0;
+    for (int i = 0; i < 8; ++i) {
+      final ContentMemoryBudget.ContentOutputStream content = store(medium);
+      contents.add(content.getContent());
+      if (content.isSpilled()) {
+        spilled++;
+      }
+      Assert.assertTrue(budget.getResidentBytes() <= BUDGET);
+    }
+    Assert.assertEquals(8 - (BUDGET - small.length) / medium.length, spilled);
+    for (final ContentHolder content : contents) {
+      Assert.assertTrue(Arrays.equals(medium, read(content.getInputStream())));
+    }
+  }
+
+  /**
+   * Test that the memory of a released content is given back at once and that
+   * the content stays readable.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testRelease() throws Exception {
+    final byte[] medium = bytes(MAX_SIZE);
+    final List<ContentHolder> contents = new ArrayList<>();
+    for (int i = 0; i < BUDGET / MAX_SIZE; ++i) {
+      final ContentMemoryBudget.ContentOutputStream content = store(medium);
+      Assert.assertFalse(content.isSpilled());
+      contents.add(content.getContent());
+    }
+    Assert.assertEquals(BUDGET, budget.getResidentBytes());
+    Assert.assertTrue(store(medium).isSpilled());
+
+    final ContentHolder released = contents.get(0);
+    final InputStream in = released.getInputStream();
+    budget.release(released);
+    Assert.assertEquals(BUDGET - MAX_SIZE, budget.getResidentBytes());
+    // a content is released only once
+    budget.release(released);
+    Assert.assertEquals(BUDGET - MAX_SIZE, budget.getResidentBytes());
+    Assert.assertTrue(Arrays.equals(medium, read(in)));
+
+    // the memory can be used by another content
+    Assert.assertFalse(store(medium).isSpilled());
+    Assert.assertEquals(BUDGET, budget.getResidentBytes());
+  }
+
+  /**
+   * Test that a spilled content stays readable once released.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testReleaseSpilled() throws Exception {
+    final byte[] large = bytes(MAX_SIZE * 2);
+    final ContentMemoryBudget.ContentOutputStream stored = store(large);
+    Assert.assertTrue(stored.isSpilled());
+    final ContentHolder content = stored.getContent();
+    final InputStream in = content.getInputStream();
+    budget.release(content);
+    Assert.assertEquals(0, budget.getResidentBytes());
+    Assert.assertEquals(1, directory.list().length);
+    Assert.assertTrue(Arrays.equals(large, read(in)));
+    Assert.assertTrue(Arrays.equals(large, read(content.getInputStream())));
+  }
+}
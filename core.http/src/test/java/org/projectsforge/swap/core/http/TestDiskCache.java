@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.utils.temporarystreams.URLBasedContentHolder;
+
+/**
+ * Test that the disk tier of the cache keeps only the live responses across a
+ * restart.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestDiskCache {
+
+  /** The size of a segment. */
+  private static final int SEGMENT_SIZE = 64 * 1024;
+
+  /** The directory of the segments. */
+  private File directory;
+
+  /**
+   * Gets the identity of the GET request of a path.
+   *
+   * @param path the path
+   * @return the identity
+   * @throws Exception the exception
+   */
+  private static RequestIdentity identity(final String path) throws Exception {
+    return new RequestIdentity(new Request(new URL("http://example.com" + path)),
+        Collections.<String> emptyList());
+  }
+
+  /**
+   * Read the body of a stored response.
+   *
+   * @param record the record
+   * @return the body
+   * @throws Exception the exception
+   */
+  private static String read(final DiskCache.Record record) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final InputStream in = record.content.getInputStream()) {
+      Util.dumpTo(in, out);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Deletes a directory.
+   *
+   * @param file the directory
+   */
+  private static void delete(final File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Opens the disk cache.
+   *
+   * @return the disk cache
+   * @throws Exception the exception
+   */
+  private DiskCache open() throws Exception {
+    final DiskCache cache = new DiskCache(directory, 8 * SEGMENT_SIZE, SEGMENT_SIZE);
+    cache.open();
+    return cache;
+  }
+
+  /**
+   * Creates a response with a body.
+   *
+   * @param path the path of the request
+   * @param body the body
+   * @return the response
+   * @throws Exception the exception
+   */
+  private Response response(final String path, final String body) throws Exception {
+    final File file = File.createTempFile("body", ".bin", directory.getParentFile());
+    file.deleteOnExit();
+    final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    try (final OutputStream out = new FileOutputStream(file)) {
+      out.write(bytes);
+    }
+    final DiskCache.Record record = new DiskCache.Record();
+    record.statusCode = 200;
+    record.statusReason = "";
+    record.mime = "text/plain";
+    record.contentLength = bytes.length;
+    record.content = new URLBasedContentHolder(file.toURI().toURL());
+    final Response response = new Response(new Request(new URL("http://example.com" + path)));
+    response.restore(record);
+    return response;
+  }
+
+  /**
+   * Creates the directory of the segments.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    directory = new File(Files.createTempDirectory("diskcache").toFile(), "segments");
+  }
+
+  /**
+   * Deletes the directory of the segments.
+   */
+  @After
+  public void tearDown() {
+    delete(directory.getParentFile());
+  }
+
+  /**
+   * Test that the superseded and removed responses are not indexed again after
+   * a restart.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testRemovedAfterRestart() throws Exception {
+    DiskCache cache = open();
+    cache.put(identity("/a"), response("/a", "first a"), 1, 2);
+    cache.put(identity("/a"), response("/a", "second a"), 3, 4);
+    cache.put(identity("/b"), response("/b", "b"), 1, 2);
+    cache.put(identity("/c"), response("/c", "first c"), 1, 2);
+    cache.remove(identity("/b"));
+    cache.remove(identity("/c"));
+    cache.put(identity("/c"), response("/c", "second c"), 3, 4);
+    Assert.assertNull(cache.get(identity("/b")));
+    Assert.assertEquals(2, cache.getSize());
+    cache.close();
+
+    cache = open();
+    Assert.assertEquals(2, cache.getSize());
+    Assert.assertNull(cache.get(identity("/b")));
+    final DiskCache.Record a = cache.get(identity("/a"));
+    Assert.assertEquals("second a", read(a));
+    Assert.assertEquals(3, a.requestTime);
+    Assert.assertEquals("second c", read(cache.get(identity("/c"))));
+
+    // a removal after the restart is also persistent
+    cache.remove(identity("/a"));
+    cache.close();
+    cache = open();
+    Assert.assertNull(cache.get(identity("/a")));
+    Assert.assertEquals(1, cache.getSize());
+    cache.close();
+  }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.http;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the response cache bounds the weight of all its entries, evicts
+ * the least recently used ones first and notifies the responses leaving it.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestResponseCache {
+
+  /**
+   * The number of entries fitting in the budget used by the test. It exceeds
+   * the number of segments so that at least two entries share a segment.
+   */
+  private static final int CAPACITY = 17;
+
+  /** The responses which left the cache, in order. */
+  private final List<Response> removed = new ArrayList<>();
+
+  /** The cache. */
+  private ResponseCache cache;
+
+  /** The previous budget. */
+  private int previousMaxCacheSize;
+
+  /**
+   * Gets the identity of the GET request of a path.
+   *
+   * @param path the path
+   * @return the identity
+   * @throws Exception the exception
+   */
+  private static RequestIdentity identity(final String path) throws Exception {
+    return new RequestIdentity(new Request(new URL("http://example.com" + path)),
+        Collections.<String> emptyList());
+  }
+
+  /**
+   * Gets the identity of the i-th entry.
+   *
+   * @param i the index
+   * @return the identity
+   * @throws Exception the exception
+   */
+  private static RequestIdentity identity(final int i) throws Exception {
+    return identity("/style-" + i + ".css");
+  }
+
+  /**
+   * Stores a new response without content, weighing the entry overhead.
+   *
+   * @param identity the identity
+   * @return the response
+   */
+  private Response put(final RequestIdentity identity) {
+    final Response response = new Response(new Request(identity.getURL()));
+    cache.put(identity, response);
+    return response;
+  }
+
+  /**
+   * Creates the cache.
+   */
+  @Before
+  public void setUp() {
+    previousMaxCacheSize = CacheManagerPropertyHolder.maxCacheSize.get();
+    CacheManagerPropertyHolder.maxCacheSize.set((int) (CAPACITY * ResponseCache.ENTRY_OVERHEAD));
+    cache = new ResponseCache(new Consumer<Response>() {
+      @Override
+      public void accept(final Response response) {
+        removed.add(response);
+      }
+    });
+  }
+
+  /**
+   * Restores the budget.
+   */
+  @After
+  public void tearDown() {
+    CacheManagerPropertyHolder.maxCacheSize.set(previousMaxCacheSize);
+  }
+
+  /**
+   * Test that the budget is shared by all the segments: the entries are kept
+   * as long as their total weight fits, whatever their segment.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testWeightBound() throws Exception {
+    for (int i = 0; i < CAPACITY; ++i) {
+      put(identity(i));
+    }
+    Assert.assertEquals(CAPACITY, cache.getSize());
+    Assert.assertEquals(CAPACITY * ResponseCache.ENTRY_OVERHEAD, cache.getWeight());
+    Assert.assertEquals(0, cache.getEvictionCount());
+    Assert.assertTrue(removed.isEmpty());
+
+    for (int i = CAPACITY; i < 3 * CAPACITY; ++i) {
+      put(identity(i));
+      Assert.assertTrue(cache.getWeight() <= CacheManagerPropertyHolder.maxCacheSize.get());
+    }
+    Assert.assertEquals(CAPACITY, cache.getSize());
+    Assert.assertEquals(2 * CAPACITY, cache.getEvictionCount());
+
+    // an entry larger than the budget is kept alone
+    CacheManagerPropertyHolder.maxCacheSize.set(1);
+    final Response last = put(identity("/large.css"));
+    Assert.assertEquals(1, cache.getSize());
+    Assert.assertEquals(Arrays.asList(last), cache.snapshot());
+  }
+
+  /**
+   * Test that the least recently used entries of the whole cache are evicted
+   * first.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testLruOrder() throws Exception {
+    final List<Response> responses = new ArrayList<>();
+    for (int i = 0; i < CAPACITY; ++i) {
+      responses.add(put(identity(i)));
+    }
+
+    // the first entry is used again
+    final Response hit = cache.computeIfAbsent(identity(0), new Function<RequestIdentity, Response>() {
+      @Override
+      public Response apply(final RequestIdentity identity) {
+        throw new AssertionError("The cached response should have been used");
+      }
+    });
+    Assert.assertSame(responses.get(0), hit);
+    Assert.assertEquals(1, cache.getHitCount());
+
+    put(identity(CAPACITY));
+    put(identity(CAPACITY + 1));
+    Assert.assertEquals(Arrays.asList(responses.get(1), responses.get(2)), removed);
+
+    // the entries are then evicted in the order of their last use
+    for (int i = 0; i < CAPACITY - 3; ++i) {
+      put(identity(CAPACITY + 2 + i));
+    }
+    Assert.assertEquals(responses.subList(1, CAPACITY), removed);
+    Assert.assertTrue(cache.snapshot().contains(responses.get(0)));
+  }
+
+  /**
+   * Test that the listener is notified of the replaced and removed responses
+   * but not of the moved ones.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testRemovalListener() throws Exception {
+    final RequestIdentity identity = identity(0);
+    final Response first = put(identity);
+    cache.put(identity, first);
+    Assert.assertTrue(removed.isEmpty());
+
+    final Response second = put(identity);
+    Assert.assertEquals(Arrays.asList(first), removed);
+    Assert.assertEquals(1, cache.getSize());
+    Assert.assertEquals(ResponseCache.ENTRY_OVERHEAD, cache.getWeight());
+
+    final RequestIdentity other = identity(1);
+    cache.move(identity, other, second);
+    Assert.assertEquals(Arrays.asList(first), removed);
+    Assert.assertEquals(1, cache.getSize());
+    Assert.assertEquals(ResponseCache.ENTRY_OVERHEAD, cache.getWeight());
+
+    // a response is only removed under its current identity
+    cache.remove(identity, second);
+    Assert.assertEquals(1, cache.getSize());
+    cache.remove(other, second);
+    Assert.assertEquals(Arrays.asList(first, second), removed);
+    Assert.assertEquals(0, cache.getSize());
+    Assert.assertEquals(0, cache.getWeight());
+  }
+}
@@ -55,6 +55,9 @@ import com.phloc.css.writer.CSSWriterSettings;
  */
 public class CssParser {
 
+  /** The logger. */
+  private static final Logger logger = LoggerFactory.getLogger(CssParser.class);
+
   /** The conditionFactory. */
   private final static CssConditionFactory conditionFactory = new CssConditionFactory();
 
@@ -75,11 +78,9 @@ public class CssParser {
     if (value != null) {
       // TODO : URL pas parsé correctement
 
-      final Logger logger = LoggerFactory.getLogger(CssParser.class.getCanonicalName() + "." + "property://" + value);
-
       try {
         final Parser propertyValueParser = new Parser();
-        propertyValueParser.setErrorHandler(new CssErrorHandler(logger));
+        propertyValueParser.setErrorHandler(new CssErrorHandler(logger, "property value", value));
         return propertyValueParser.parsePropertyValue(value);
       } catch (CSSException | ParseException | IOException e) {
         throw new CSSParsingException(e);
@@ -97,9 +98,6 @@ public class CssParser {
    * @throws CSSParsingException the cSS parsing exception
    */
   public static List<Rule> parseStyleAttribute(final String value) throws CSSParsingException {
-
-    final Logger logger = LoggerFactory.getLogger(CssParser.class.getCanonicalName() + "." + "styletag://" + value);
-
     try {
       final StyleTagCssDocumentHandler documentHandler = new StyleTagCssDocumentHandler();
 
@@ -109,7 +107,7 @@ public class CssParser {
       final Parser p = new Parser();
       p.setConditionFactory(CssParser.conditionFactory);
       p.setSelectorFactory(CssParser.selectorFacory);
-      p.setErrorHandler(new CssErrorHandler(logger));
+      p.setErrorHandler(new CssErrorHandler(logger, "style attribute", value));
       p.setDocumentHandler(documentHandler);
       p.parseStyleDeclaration(source);
 
@@ -120,7 +118,7 @@ public class CssParser {
   }
 
   private static Stylesheet parseStylesheet(final ContentHolder contentHolder, final CSSEncoding encoding,
-      final Logger logger) throws IOException {
+      final String uri) throws IOException {
 
     InputSource input;
     try {
@@ -159,7 +157,7 @@ public class CssParser {
     final Parser p = new Parser();
     p.setConditionFactory(CssParser.conditionFactory);
     p.setSelectorFactory(CssParser.selectorFacory);
-    p.setErrorHandler(new CssErrorHandler(logger));
+    p.setErrorHandler(new CssErrorHandler(logger, uri));
     p.setDocumentHandler(documentHandler);
     p.parseStyleSheet(input);
     return documentHandler.getCSSStyleSheet();
@@ -176,10 +174,6 @@ public class CssParser {
    */
   public static Stylesheet parseStylesheet(final CSSEncoding encoding, final String stylesheet)
       throws CSSParsingException {
-
-    final Logger logger = LoggerFactory.getLogger(CssParser.class.getCanonicalName() + "." + "stylesheet://"
-        + stylesheet.substring(0, Math.min(stylesheet.length(), 40)) + (stylesheet.length() > 40 ? "..." : ""));
-
     try {
       String formattedCss;
       try {
@@ -203,7 +197,7 @@ public class CssParser {
       final Parser p = new Parser();
       p.setConditionFactory(CssParser.conditionFactory);
       p.setSelectorFactory(CssParser.selectorFacory);
-      p.setErrorHandler(new CssErrorHandler(logger));
+      p.setErrorHandler(new CssErrorHandler(logger, "stylesheet", stylesheet));
       p.setDocumentHandler(documentHandler);
       p.parseStyleSheet(source);
       return documentHandler.getCSSStyleSheet();
@@ -227,16 +221,15 @@ public class CssParser {
       final ContentHolder contentHolder, final String uri) throws CSSParsingException {
 
     try {
-      final Logger logger = LoggerFactory.getLogger(CssParser.class.getCanonicalName() + "." + uri);
-
       try {
-        return CssParser.parseStylesheet(contentHolder, encodingDetector, logger);
+        return CssParser.parseStylesheet(contentHolder, encodingDetector, uri);
       } catch (final MissingResourceException e) {
         if (logger.isWarnEnabled()) {
-          logger.warn("Invalid encoding detected ({}). Fallbacking to ISO8859_1.", encodingDetector.getEncoding());
+          logger.warn("Invalid encoding detected ({}) for {}. Fallbacking to ISO8859_1.", encodingDetector.getEncoding(),
+              uri);
         }
 
-        return CssParser.parseStylesheet(contentHolder, CSSEncoding.iso88591, logger);
+        return CssParser.parseStylesheet(contentHolder, CSSEncoding.iso88591, uri);
       }
     } catch (CSSException | ParseException | IOException e) {
       throw new CSSParsingException(e);
@@ -25,16 +25,55 @@ import org.w3c.css.sac.ErrorHandler;
  */
 public class CssErrorHandler implements ErrorHandler {
 
+  /** The maximum number of characters of the parsed value in the messages. */
+  private static final int MAX_VALUE_LENGTH = 40;
+
   /** The logger. */
   private final Logger logger;
 
+  /** The kind of the parsed source. */
+  private final String kind;
+
+  /** The parsed value or null if the source is described by its kind only. */
+  private final String value;
+
   /**
    * Instantiates a new css error handler.
    * 
-   * @param logger the uri
+   * @param logger the logger
+   * @param source the description of the parsed source
    */
-  public CssErrorHandler(final Logger logger) {
+  public CssErrorHandler(final Logger logger, final String source) {
+    this(logger, source, null);
+  }
+
+  /**
+   * Instantiates a new css error handler. The description of the source is
+   * only built when an error is reported.
+   * 
+   * @param logger the logger
+   * @param kind the kind of the parsed source
+   * @param value the parsed value
+   */
+  public CssErrorHandler(final Logger logger, final String kind, final String value) {
     this.logger = logger;
+    this.kind = kind;
+    this.value = value;
+  }
+
+  /**
+   * Gets the description of the parsed source.
+   * 
+   * @return the description
+   */
+  private String getSource() {
+    if (value == null) {
+      return kind;
+    }
+    if (value.length() > MAX_VALUE_LENGTH) {
+      return kind + " '" + value.substring(0, MAX_VALUE_LENGTH) + "...'";
+    }
+    return kind + " '" + value + "'";
   }
 
   /*
@@ -43,10 +82,12 @@ public class CssErrorHandler implements ErrorHandler {
    */
   @Override
   public void error(final CSSParseException exception) throws CSSException {
-    logger.info(
-        "Parse error at {}:{} ({})",
-        new Object[] { exception.getLineNumber(), exception.getColumnNumber(),
-            exception.getMessage() });
+    if (logger.isInfoEnabled()) {
+      logger.info(
+          "Parse error in {} at {}:{} ({})",
+          new Object[] { getSource(), exception.getLineNumber(), exception.getColumnNumber(),
+              exception.getMessage() });
+    }
   }
 
   /*
@@ -56,10 +97,12 @@ public class CssErrorHandler implements ErrorHandler {
    */
   @Override
   public void fatalError(final CSSParseException exception) throws CSSException {
-    logger.error(
-        "Parse error at {}:{} ({})",
-        new Object[] { exception.getLineNumber(), exception.getColumnNumber(),
-            exception.getMessage() });
+    if (logger.isErrorEnabled()) {
+      logger.error(
+          "Parse error in {} at {}:{} ({})",
+          new Object[] { getSource(), exception.getLineNumber(), exception.getColumnNumber(),
+              exception.getMessage() });
+    }
   }
 
   /**
@@ -78,9 +121,11 @@ public class CssErrorHandler implements ErrorHandler {
    */
   @Override
   public void warning(final CSSParseException exception) throws CSSException {
-    logger.debug(
-        "Parse error at {}:{} ({})",
-        new Object[] { exception.getLineNumber(), exception.getColumnNumber(),
-            exception.getMessage() });
+    if (logger.isDebugEnabled()) {
+      logger.debug(
+          "Parse error in {} at {}:{} ({})",
+          new Object[] { getSource(), exception.getLineNumber(), exception.getColumnNumber(),
+              exception.getMessage() });
+    }
   }
 }
@@ -93,10 +93,10 @@ public class ColorDOMUpdater {
       final STYLEElement styleElement = elementFactory.newElement(STYLEElement.class);
       styleElement.addChildAtEnd(new Text(stylesheet.toString()));
       styleElement.setAttribute(Attributes.TYPE, "text/css");
-      HEADElement head = document.getFirstChildrenToLeaves(HEADElement.class);
+      HEADElement head = document.getFirstElement(HEADElement.class);
       if (head == null) {
         head = elementFactory.newElement(HEADElement.class);
-        HTMLElement html = document.getFirstChildrenToLeaves(HTMLElement.class);
+        HTMLElement html = document.getFirstElement(HTMLElement.class);
         if (html == null) {
           html = elementFactory.newElement(HTMLElement.class);
           document.addChildAtEnd(html);
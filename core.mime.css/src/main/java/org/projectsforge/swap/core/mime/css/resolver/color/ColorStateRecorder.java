@@ -79,9 +79,9 @@ public class ColorStateRecorder<TColor extends SRGBColor> implements StateRecord
       return;
     }
 
-    final String content = text.getCleanedContent();
+    final int length = text.getCleanedContentLength();
 
-    if (content.isEmpty()) {
+    if (length == 0) {
       return;
     }
 
@@ -102,7 +102,7 @@ public class ColorStateRecorder<TColor extends SRGBColor> implements StateRecord
     // thread safety
     try {
       fgBgRegistry.register(colorDictionary.getForeground(foregroundCar.color, foregroundCar.rule),
-          colorDictionary.getBackground(backgroundCar.color, backgroundCar.rule), content.length());
+          colorDictionary.getBackground(backgroundCar.color, backgroundCar.rule), length);
     } catch (final IllegalArgumentException e) {
       if (logger.isDebugEnabled())
         logger.debug("text: " + text + ", parentResolverState: " + parentResolverState, e);
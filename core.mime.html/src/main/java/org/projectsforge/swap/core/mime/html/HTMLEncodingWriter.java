@@ -0,0 +1,226 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.mime.html;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A writer encoding the characters of a HTML document into a stream. The
+ * characters which can not be represented in the charset are written as
+ * numeric character references. The encoders are reused by the threads from
+ * one document to the next one.
+ *
+ * @author Sébastien Aupetit
+ */
+public class HTMLEncodingWriter extends Writer {
+
+  /** The size of the buffers. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The encoders not in use by the current thread. */
+  private static final ThreadLocal<Map<Charset, CharsetEncoder>> encoders =
+      new ThreadLocal<Map<Charset, CharsetEncoder>>() {
+    @Override
+    protected Map<Charset, CharsetEncoder> initialValue() {
+      return new HashMap<>();
+    }
+  };
+
+  /**
+   * Gets the charset of an encoding.
+   *
+   * @param encoding the encoding
+   * @return the charset or UTF-8 if the encoding is null or unsupported
+   */
+  public static Charset toCharset(final String encoding) {
+    if (encoding != null) {
+      try {
+        return Charset.forName(encoding);
+      } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+        // fall back to UTF-8
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  /** The stream. */
+  private final OutputStream out;
+
+  /** The charset. */
+  private final Charset charset;
+
+  /** The encoder (null once closed). */
+  private CharsetEncoder encoder;
+
+  /** The characters waiting to be encoded. */
+  private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+  /** The encoded bytes waiting to be written. */
+  private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+  /**
+   * Instantiates a new HTML encoding writer.
+   *
+   * @param out the stream
+   * @param charset the charset
+   */
+  public HTMLEncodingWriter(final OutputStream out, final Charset charset) {
+    this.out = out;
+    this.charset = charset;
+    encoder = encoders.get().remove(charset);
+    if (encoder == null) {
+      encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPORT);
+    } else {
+      encoder.reset();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (encoder == null) {
+      return;
+    }
+    try {
+      encode(true);
+      while (encoder.flush(bytes).isOverflow()) {
+        drain();
+      }
+      drain();
+      out.close();
+    } finally {
+      encoders.get().put(charset, encoder);
+      encoder = null;
+    }
+  }
+
+  /**
+   * Write the encoded bytes to the stream.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void drain() throws IOException {
+    if (bytes.position() > 0) {
+      out.write(bytes.array(), 0, bytes.position());
+      bytes.clear();
+    }
+  }
+
+  /**
+   * Encode the waiting characters.
+   *
+   * @param endOfInput true if no more character will be written
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void encode(final boolean endOfInput) throws IOException {
+    chars.flip();
+    while (true) {
+      final CoderResult result = encoder.encode(chars, bytes, endOfInput);
+      if (result.isOverflow()) {
+        drain();
+      } else if (result.isUnmappable()) {
+        for (int i = 0; i < result.length();) {
+          final int codePoint = Character.codePointAt(chars, 0);
+          final int count = Character.charCount(codePoint);
+          chars.position(chars.position() + count);
+          i += count;
+          final CharBuffer reference = CharBuffer.wrap("&#" + codePoint + ';');
+          while (encoder.encode(reference, bytes, endOfInput).isOverflow()) {
+            drain();
+          }
+        }
+      } else {
+        break;
+      }
+    }
+    chars.compact();
+  }
+
+  /**
+   * Ensure the writer is open.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void ensureOpen() throws IOException {
+    if (encoder == null) {
+      throw new IOException("Writer closed");
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    encode(false);
+    drain();
+    out.flush();
+  }
+
+  /**
+   * Gets the charset.
+   *
+   * @return the charset
+   */
+  public Charset getCharset() {
+    return charset;
+  }
+
+  @Override
+  public void write(final char[] cbuf, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      if (!chars.hasRemaining()) {
+        encode(false);
+      }
+      final int count = Math.min(len, chars.remaining());
+      chars.put(cbuf, off, count);
+      off += count;
+      len -= count;
+    }
+  }
+
+  @Override
+  public void write(final int c) throws IOException {
+    ensureOpen();
+    if (!chars.hasRemaining()) {
+      encode(false);
+    }
+    chars.put((char) c);
+  }
+
+  @Override
+  public void write(final String str, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      if (!chars.hasRemaining()) {
+        encode(false);
+      }
+      final int count = Math.min(len, chars.remaining());
+      chars.put(str, off, off + count);
+      off += count;
+      len -= count;
+    }
+  }
+}
@@ -83,7 +83,7 @@ import org.projectsforge.utils.visitor.Visitor;
 public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
 
   /** The out. */
-  private final StringBuilder out;
+  private final Writer out;
 
   /** The in script. */
   private boolean inScript = false;
@@ -118,6 +118,7 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
   /** The xhtml. */
   private boolean xhtml = false;
 
+  /** The encoding of the document used to encode the URL attributes. */
   private String encoding;
 
   /**
@@ -125,7 +126,7 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
    * 
    * @param out the out
    */
-  public HTMLSerializerVisitor(final StringBuilder out) {
+  public HTMLSerializerVisitor(final Writer out) {
     super(VisitingMode.SEQUENTIAL);
     this.out = out;
   }
@@ -134,8 +135,9 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
    * Close tag.
    * 
    * @param element the element
+   * @throws IOException Signals that an I/O exception has occurred.
    */
-  private void closeTag(final AbstractElement element) {
+  private void closeTag(final AbstractElement element) throws IOException {
     if (!HTMLSerializerVisitor.forbidenEndTags.contains(element.getTagName())) {
       // if (!element.getChildren().isEmpty()
       // &&
@@ -147,10 +149,12 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
       if (element.hasChildren()
           && HTMLSerializerVisitor.newLineBeforeClosingTags.contains(element.getTagName())) {
         if (!(element.getLastChild(AbstractElement.class) instanceof Text)) {
-          out.append('\n');
+          out.write('\n');
         }
       }
-      out.append("</").append(element.getTagName()).append('>');
+      out.write("</");
+      out.write(element.getTagName().toString());
+      out.write('>');
     }
   }
 
@@ -158,20 +162,22 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
    * Open tag.
    * 
    * @param element the element
+   * @throws IOException Signals that an I/O exception has occurred.
    */
-  private void openTag(final AbstractElement element) {
+  private void openTag(final AbstractElement element) throws IOException {
     if (HTMLSerializerVisitor.newLineBeforeOpeningTags.contains(element.getTagName())) {
-      out.append('\n');
+      out.write('\n');
     }
 
-    out.append('<').append(element.getTagName());
+    out.write('<');
+    out.write(element.getTagName().toString());
     if (element.hasAttributes()) {
-      out.append(' ').append(element.getAttributesAsString(encoding));
+      writeAttributes(element);
     }
     if (HTMLSerializerVisitor.forbidenEndTags.contains(element.getTagName()) && xhtml) {
-      out.append('/');
+      out.write('/');
     }
-    out.append('>');
+    out.write('>');
 
     // if (!element.getChildren().isEmpty()
     // &&
@@ -205,8 +211,9 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
    * @throws IOException the IO exception
    */
   public void visit(final Comment comment) throws IOException {
-    out.append("<!--\n")// .append(StringEscapeUtils.escapeHtml(comment.getComment()))
-        .append(comment.getComment()).append("\n-->\n");
+    out.write("<!--\n");// StringEscapeUtils.escapeHtml(out, comment.getComment())
+    out.write(comment.getComment());
+    out.write("\n-->\n");
   }
 
   /**
@@ -225,16 +232,21 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
     }
 
     if (document.getRootElement() != null) {
-      out.append("<!DOCTYPE ").append(document.getRootElement());
+      out.write("<!DOCTYPE ");
+      out.write(document.getRootElement());
       if (document.getPublicId() != null && !document.getPublicId().isEmpty()) {
-        out.append(" PUBLIC \"").append(document.getPublicId()).append("\"");
+        out.write(" PUBLIC \"");
+        out.write(document.getPublicId());
+        out.write('"');
       }
       if (document.getSystemId() != null && !document.getSystemId().isEmpty()) {
-        out.append(" \"").append(document.getSystemId()).append("\"");
+        out.write(" \"");
+        out.write(document.getSystemId());
+        out.write('"');
       }
-      out.append(">\n");
+      out.write(">\n");
     }
-    
+
     encoding = document.getEncoding();
 
     for (final Node child : document.getChildrenCollection()) {
@@ -290,9 +302,35 @@ public class HTMLSerializerVisitor extends Visitor<Node, Void, Void> {
    */
   public void visit(final Text text) throws IOException {
     if (inScript) {
-      out.append(text.getContent());
+      out.write(text.getContent());
     } else {
-      out.append(StringEscapeUtils.escapeHtml(text.getContent()));// .append('\n');
+      StringEscapeUtils.escapeHtml(out, text.getContent());
+    }
+  }
+
+  /**
+   * Write the attributes of an element.
+   * 
+   * @param element the element
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private void writeAttributes(final AbstractElement element) throws IOException {
+    for (int index = 0; index < element.getAttributesCount(); ++index) {
+      final ICaseString name = element.getAttributeName(index);
+      out.write(' ');
+      out.write(name.getLowerCasedValue());
+      out.write("=\"");
+      final String value = element.getEncodedAttribute(name, encoding);
+      int start = 0;
+      for (int i = 0; i < value.length(); ++i) {
+        if (value.charAt(i) == '"') {
+          out.write(value, start, i - start);
+          out.write("&quot;");
+          start = i + 1;
+        }
+      }
+      out.write(value, start, value.length() - start);
+      out.write('"');
     }
   }
 }
@@ -13,8 +13,16 @@
  */
 package org.projectsforge.swap.core.mime.html.nodes;
 
+import java.util.List;
+import org.projectsforge.swap.core.mime.html.nodes.elements.AbstractElement;
+
 /**
- * The Document node.
+ * The Document node. The document indexes its elements by class, id and class
+ * name as they are attached to it or detached from it so that the lookups do
+ * not walk the tree. The lookups by class match the exact class of the
+ * elements: unlike {@link #getChildrenToLeaves(Class)} and
+ * {@link #getFirstChildrenToLeaves(Class)}, they do not return the instances
+ * of the subclasses.
  * 
  * @author Sébastien Aupetit
  */
@@ -31,6 +39,9 @@ public class Document extends Node {
   /** The encoding. */
   private String encoding = null;
 
+  /** The indexes of the elements. */
+  private final ElementIndex index = new ElementIndex(this);
+
   /**
    * Instantiates a new document.
    * 
@@ -40,6 +51,49 @@ public class Document extends Node {
     this.encoding = encoding;
   }
 
+  /**
+   * Gets the first element with an id.
+   * 
+   * @param id the id
+   * @return the first element in document order or null
+   */
+  public AbstractElement getElementById(final String id) {
+    final List<AbstractElement> elements = index.getById(id);
+    return elements.isEmpty() ? null : elements.get(0);
+  }
+
+  /**
+   * Gets the elements whose class is exactly the given class.
+   * 
+   * @param <T> the generic type
+   * @param type the class of the elements
+   * @return the elements in document order
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends AbstractElement> List<T> getElements(final Class<T> type) {
+    return (List<T>) index.getByTypes(type);
+  }
+
+  /**
+   * Gets the elements whose class is exactly one of the given classes.
+   * 
+   * @param types the classes of the elements
+   * @return the elements in document order
+   */
+  public List<AbstractElement> getElements(final Class<?>... types) {
+    return index.getByTypes(types);
+  }
+
+  /**
+   * Gets the elements having a class name.
+   * 
+   * @param className the class name
+   * @return the elements in document order
+   */
+  public List<AbstractElement> getElementsByClassName(final String className) {
+    return index.getByClassName(className);
+  }
+
   /**
    * Gets the encoding.
    * 
@@ -49,6 +103,26 @@ public class Document extends Node {
     return encoding;
   }
 
+  /**
+   * Gets the first element whose class is exactly the given class.
+   * 
+   * @param <T> the generic type
+   * @param type the class of the element
+   * @return the first element in document order or null
+   */
+  public <T extends AbstractElement> T getFirstElement(final Class<T> type) {
+    return type.cast(index.getFirstByType(type));
+  }
+
+  /**
+   * Gets the indexes of the elements.
+   * 
+   * @return the indexes
+   */
+  ElementIndex getIndex() {
+    return index;
+  }
+
   /**
    * Gets the public id.
    * 
@@ -0,0 +1,546 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.core.mime.html.nodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.projectsforge.swap.core.mime.html.nodes.elements.AbstractElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.Attributes;
+
+/**
+ * The indexes of the elements of a document by class, id and class name. The
+ * elements of each entry are kept in document order by their stamps: the
+ * stamps increase in document order and leave gaps between consecutive
+ * elements so that the elements inserted elsewhere than at the end of the
+ * document receive stamps between those of their neighbours. When a gap is
+ * exhausted, the whole document is stamped again. The order is thus restored
+ * by the mutations and the lookups only read the indexes: like the rest of the
+ * tree, the lookups can be done concurrently while the mutations need an
+ * exclusive access to the document.
+ *
+ * @author Sébastien Aupetit
+ */
+final class ElementIndex {
+
+  /**
+   * The elements of an index entry with their stamps.
+   */
+  private static final class Entry {
+
+    /** The elements. */
+    private AbstractElement[] elements = new AbstractElement[2];
+
+    /** The stamps of the elements. */
+    private long[] stamps = new long[2];
+
+    /** The number of elements. */
+    private int size;
+
+    /**
+     * Adds an element at its position in document order. An element already
+     * in the entry is not added again.
+     *
+     * @param element the element
+     */
+    void add(final AbstractElement element) {
+      final long stamp = stampOf(element);
+      int position = size;
+      // the elements are mostly indexed at the end of the document
+      if (size > 0 && stamps[size - 1] >= stamp) {
+        position = Arrays.binarySearch(stamps, 0, size, stamp);
+        if (position >= 0) {
+          return;
+        }
+        position = -position - 1;
+      }
+      if (size == elements.length) {
+        elements = Arrays.copyOf(elements, 2 * size);
+        stamps = Arrays.copyOf(stamps, 2 * size);
+      }
+      System.arraycopy(elements, position, elements, position + 1, size - position);
+      System.arraycopy(stamps, position, stamps, position + 1, size - position);
+      elements[position] = element;
+      stamps[position] = stamp;
+      size++;
+    }
+
+    /**
+     * Removes an element.
+     *
+     * @param element the element
+     */
+    void remove(final AbstractElement element) {
+      final int position = Arrays.binarySearch(stamps, 0, size, stampOf(element));
+      if (position >= 0) {
+        System.arraycopy(elements, position + 1, elements, position, size - position - 1);
+        System.arraycopy(stamps, position + 1, stamps, position, size - position - 1);
+        elements[--size] = null;
+      }
+    }
+
+    /**
+     * Removes the elements of a set.
+     *
+     * @param removed the removed elements
+     */
+    void removeAll(final Set<AbstractElement> removed) {
+      int count = 0;
+      for (int i = 0; i < size; ++i) {
+        if (!removed.contains(elements[i])) {
+          elements[count] = elements[i];
+          stamps[count] = stamps[i];
+          count++;
+        }
+      }
+      Arrays.fill(elements, count, size, null);
+      size = count;
+    }
+  }
+
+  /**
+   * The gap between the stamps of the elements indexed at the end of the
+   * document.
+   */
+  private static final long GAP = 1L << 32;
+
+  /**
+   * The largest gap between the stamps of the elements inserted elsewhere, so
+   * that the following insertions at the same place still find room.
+   */
+  private static final long INSERTION_GAP = 1L << 16;
+
+  /**
+   * Checks if a character separates the class names.
+   *
+   * @param c the character
+   * @return true, if it is a HTML space character
+   */
+  private static boolean isSpace(final char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Gets the next node after a subtree in document order.
+   *
+   * @param node the root of the subtree
+   * @param root the root of the enclosing subtree or null for the document
+   * @return the next node or null at the end of the enclosing subtree
+   */
+  private static Node nextAfter(final Node node, final Node root) {
+    for (Node current = node; current != root; current = current.getParent()) {
+      if (current.getNext() != null) {
+        return current.getNext();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the first element following a subtree in document order.
+   *
+   * @param root the root of the subtree
+   * @return the element or null
+   */
+  private static AbstractElement nextElement(final Node root) {
+    Node current = nextAfter(root, null);
+    while (current != null && !(current instanceof AbstractElement)) {
+      current = nextInSubtree(current, null);
+    }
+    return (AbstractElement) current;
+  }
+
+  /**
+   * Gets the next node of a subtree in document order.
+   *
+   * @param node the current node
+   * @param root the root of the subtree or null for the document
+   * @return the next node or null at the end of the subtree
+   */
+  private static Node nextInSubtree(final Node node, final Node root) {
+    if (node.hasChildren()) {
+      return node.getFirstChild();
+    }
+    return nextAfter(node, root);
+  }
+
+  /**
+   * Gets the last element preceding a node in document order.
+   *
+   * @param node the node
+   * @return the element or null
+   */
+  private static AbstractElement previousElement(final Node node) {
+    Node current = node;
+    do {
+      if (current.getPrevious() == null) {
+        current = current.getParent();
+      } else {
+        current = current.getPrevious();
+        while (current.hasChildren()) {
+          current = current.getLastChild();
+        }
+      }
+    } while (current != null && !(current instanceof AbstractElement));
+    return (AbstractElement) current;
+  }
+
+  /**
+   * Gets the stamp of an element.
+   *
+   * @param element the element
+   * @return the stamp
+   */
+  private static long stampOf(final Node element) {
+    return element.indexStamp;
+  }
+
+  /** The document. */
+  private final Document document;
+
+  /** The elements by class. */
+  private final Map<Class<?>, Entry> byType = new HashMap<>();
+
+  /** The elements by id. */
+  private final Map<String, Entry> byId = new HashMap<>();
+
+  /** The elements by class name. */
+  private final Map<String, Entry> byClassName = new HashMap<>();
+
+  /** The largest stamp given to an element. */
+  private long stamp;
+
+  /**
+   * Instantiates a new element index.
+   *
+   * @param document the document
+   */
+  ElementIndex(final Document document) {
+    this.document = document;
+  }
+
+  /**
+   * Index the id and class names of an element.
+   *
+   * @param element the element
+   */
+  private void addAttributes(final AbstractElement element) {
+    final String id = element.getAttribute(Attributes.ID);
+    if (id != null) {
+      getOrCreate(byId, id).add(element);
+    }
+    final String classNames = element.getAttribute(Attributes.CLASS);
+    if (classNames != null) {
+      final int length = classNames.length();
+      int start = 0;
+      while (start < length) {
+        while (start < length && isSpace(classNames.charAt(start))) {
+          start++;
+        }
+        int end = start;
+        while (end < length && !isSpace(classNames.charAt(end))) {
+          end++;
+        }
+        if (end > start) {
+          // a class name repeated in the attribute is indexed once
+          getOrCreate(byClassName, classNames.substring(start, end)).add(element);
+        }
+        start = end;
+      }
+    }
+  }
+
+  /**
+   * Index the id and class names of an element whose attributes changed.
+   *
+   * @param node the element
+   */
+  void addAttributes(final Node node) {
+    // the element keeps its stamp
+    addAttributes((AbstractElement) node);
+  }
+
+  /**
+   * Index the elements of a subtree which has just been attached to the
+   * document.
+   *
+   * @param root the root of the subtree
+   * @param inOrder true if the subtree is the last one in document order
+   */
+  void addSubtree(final Node root, final boolean inOrder) {
+    if (inOrder) {
+      addSubtree(root, stamp, GAP);
+      return;
+    }
+    final AbstractElement previous = previousElement(root);
+    final AbstractElement next = nextElement(root);
+    final long low = previous == null ? 0 : stampOf(previous);
+    if (next == null) {
+      addSubtree(root, low, GAP);
+      return;
+    }
+    int count = 0;
+    for (Node current = root; current != null; current = nextInSubtree(current, root)) {
+      if (current instanceof AbstractElement) {
+        count++;
+      }
+    }
+    final long step = Math.min((stampOf(next) - low) / (count + 1), INSERTION_GAP);
+    if (step == 0) {
+      // no room left between the neighbours
+      restamp();
+    } else {
+      addSubtree(root, low, step);
+    }
+  }
+
+  /**
+   * Stamp and index the elements of a subtree.
+   *
+   * @param root the root of the subtree
+   * @param low the stamp preceding those of the subtree
+   * @param step the gap between the stamps of the subtree
+   */
+  private void addSubtree(final Node root, final long low, final long step) {
+    long elementStamp = low;
+    for (Node current = root; current != null; current = nextInSubtree(current, root)) {
+      if (current instanceof AbstractElement) {
+        final AbstractElement element = (AbstractElement) current;
+        elementStamp += step;
+        current.indexStamp = elementStamp;
+        getOrCreate(byType, element.getClass()).add(element);
+        if (element.hasAttributes()) {
+          addAttributes(element);
+        }
+      }
+    }
+    stamp = Math.max(stamp, elementStamp);
+  }
+
+  /**
+   * Gets the elements of an entry in document order.
+   *
+   * @param <K> the type of the key
+   * @param map the map
+   * @param key the key
+   * @return the elements
+   */
+  private <K> List<AbstractElement> get(final Map<K, Entry> map, final K key) {
+    final Entry entry = map.get(key);
+    if (entry == null) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(Arrays.copyOf(entry.elements, entry.size));
+  }
+
+  /**
+   * Gets the elements with a class name.
+   *
+   * @param className the class name
+   * @return the elements in document order
+   */
+  List<AbstractElement> getByClassName(final String className) {
+    return get(byClassName, className);
+  }
+
+  /**
+   * Gets the elements with an id.
+   *
+   * @param id the id
+   * @return the elements in document order
+   */
+  List<AbstractElement> getById(final String id) {
+    return get(byId, id);
+  }
+
+  /**
+   * Gets the elements of some classes.
+   *
+   * @param types the classes of the elements
+   * @return the elements in document order
+   */
+  List<AbstractElement> getByTypes(final Class<?>... types) {
+    if (types.length == 1) {
+      return get(byType, types[0]);
+    }
+    final List<Entry> entries = new ArrayList<>(types.length);
+    int size = 0;
+    for (final Class<?> type : types) {
+      final Entry entry = byType.get(type);
+      if (entry != null && !entries.contains(entry)) {
+        entries.add(entry);
+        size += entry.size;
+      }
+    }
+    // merge the entries by stamp
+    final List<AbstractElement> result = new ArrayList<>(size);
+    final int[] positions = new int[entries.size()];
+    while (result.size() < size) {
+      int next = -1;
+      for (int i = 0; i < positions.length; ++i) {
+        final Entry entry = entries.get(i);
+        if (positions[i] < entry.size
+            && (next < 0 || entry.stamps[positions[i]] < entries.get(next).stamps[positions[next]])) {
+          next = i;
+        }
+      }
+      result.add(entries.get(next).elements[positions[next]++]);
+    }
+    return result;
+  }
+
+  /**
+   * Gets the first element of a class.
+   *
+   * @param type the class of the element
+   * @return the first element in document order or null
+   */
+  AbstractElement getFirstByType(final Class<?> type) {
+    final Entry entry = byType.get(type);
+    return entry == null ? null : entry.elements[0];
+  }
+
+  /**
+   * Gets or create the entry of a key.
+   *
+   * @param <K> the type of the key
+   * @param map the map
+   * @param key the key
+   * @return the entry
+   */
+  private <K> Entry getOrCreate(final Map<K, Entry> map, final K key) {
+    Entry entry = map.get(key);
+    if (entry == null) {
+      entry = new Entry();
+      map.put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Stamp again all the elements of the document and rebuild the indexes.
+   */
+  private void restamp() {
+    byType.clear();
+    byId.clear();
+    byClassName.clear();
+    stamp = 0;
+    addSubtree(document, 0, GAP);
+  }
+
+  /**
+   * Remove the id and class names of an element from the indexes before its
+   * attributes change.
+   *
+   * @param node the element
+   */
+  void removeAttributes(final Node node) {
+    final AbstractElement element = (AbstractElement) node;
+    if (element.hasAttribute(Attributes.ID) || element.hasAttribute(Attributes.CLASS)) {
+      removeAttributes(element, null, null);
+    }
+  }
+
+  /**
+   * Remove the id and class names of an element from the indexes.
+   *
+   * @param element the element
+   * @param removed the removed elements if several elements are removed
+   *          together or null
+   * @param filtered the entries already filtered from the removed elements
+   */
+  private void removeAttributes(final AbstractElement element, final Set<AbstractElement> removed,
+      final Set<Entry> filtered) {
+    final String id = element.getAttribute(Attributes.ID);
+    if (id != null) {
+      remove(byId, id, element, removed, filtered);
+    }
+    final String classNames = element.getAttribute(Attributes.CLASS);
+    if (classNames != null) {
+      final int length = classNames.length();
+      int start = 0;
+      while (start < length) {
+        while (start < length && isSpace(classNames.charAt(start))) {
+          start++;
+        }
+        int end = start;
+        while (end < length && !isSpace(classNames.charAt(end))) {
+          end++;
+        }
+        if (end > start) {
+          remove(byClassName, classNames.substring(start, end), element, removed, filtered);
+        }
+        start = end;
+      }
+    }
+  }
+
+  /**
+   * Remove an element from an entry.
+   *
+   * @param <K> the type of the key
+   * @param map the map
+   * @param key the key
+   * @param element the element
+   * @param removed the removed elements if several elements are removed
+   *          together or null
+   * @param filtered the entries already filtered from the removed elements
+   */
+  private <K> void remove(final Map<K, Entry> map, final K key, final AbstractElement element,
+      final Set<AbstractElement> removed, final Set<Entry> filtered) {
+    final Entry entry = map.get(key);
+    if (entry != null) {
+      if (removed == null) {
+        entry.remove(element);
+      } else if (filtered.add(entry)) {
+        // each entry is filtered once whatever the number of removed elements
+        entry.removeAll(removed);
+      }
+      if (entry.size == 0) {
+        map.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Remove the elements of a subtree which is going to be detached from the
+   * document.
+   *
+   * @param root the root of the subtree
+   */
+  void removeSubtree(final Node root) {
+    final Set<AbstractElement> removed = Collections.newSetFromMap(new IdentityHashMap<AbstractElement, Boolean>());
+    Node current = root;
+    while (current != null) {
+      if (current instanceof AbstractElement) {
+        removed.add((AbstractElement) current);
+      }
+      current = nextInSubtree(current, root);
+    }
+    if (removed.isEmpty()) {
+      return;
+    }
+    final Set<Entry> filtered = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+    for (final AbstractElement element : removed) {
+      remove(byType, element.getClass(), element, removed, filtered);
+      if (element.hasAttributes()) {
+        removeAttributes(element, removed, filtered);
+      }
+    }
+  }
+}
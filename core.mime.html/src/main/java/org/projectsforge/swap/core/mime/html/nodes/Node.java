@@ -15,13 +15,12 @@ package org.projectsforge.swap.core.mime.html.nodes;
 
 import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import org.projectsforge.swap.core.mime.html.nodes.elements.AbstractElement;
 import org.projectsforge.utils.icasestring.ICaseString;
-import org.projectsforge.utils.icasestring.ICaseStringKeyCollections;
 
 /**
  * The base class of each node of the HTML tree.
@@ -45,9 +44,17 @@ public abstract class Node {
   /** The next. */
   private Node next;
 
-  /** The annotations. */
-  private final Map<ICaseString, Object> annotations = ICaseStringKeyCollections
-      .caseInsensitiveMap(new TreeMap<ICaseString, Object>());
+  /**
+   * The annotations stored as key/value pairs (null until the first annotation
+   * is set since almost no node is annotated).
+   */
+  private Object[] annotations;
+
+  /**
+   * The position of the element in the document order, used by the indexes of
+   * its document.
+   */
+  long indexStamp;
 
   /**
    * Adds the child at end.
@@ -78,6 +85,7 @@ public abstract class Node {
       child.parent = this;
       lastChild = child;
     }
+    child.indexSubtree();
   }
 
   /**
@@ -108,6 +116,7 @@ public abstract class Node {
       child.parent = this;
       firstChild = child;
     }
+    child.indexSubtree();
   }
 
   /**
@@ -137,6 +146,7 @@ public abstract class Node {
     if (node.next == null) {
       parent.lastChild = node;
     }
+    node.indexSubtree();
   }
 
   /**
@@ -174,12 +184,14 @@ public abstract class Node {
       node.parent = parent;
       parent.firstChild = node;
     }
+    node.indexSubtree();
   }
 
   /**
    * Detach from parent.
    */
   public void detachFromParent() {
+    unindexSubtree();
     // remove from parent children list
     if (parent != null) {
       if (parent.firstChild == this) {
@@ -202,6 +214,24 @@ public abstract class Node {
     parent = null;
   }
 
+  /**
+   * Find the index of the key of an annotation.
+   * 
+   * @param key the key or null to find a removed annotation
+   * @return the index or -1 if not found
+   */
+  private int findAnnotation(final ICaseString key) {
+    if (annotations != null) {
+      for (int i = 0; i < annotations.length; i += 2) {
+        final Object current = annotations[i];
+        if (current == key || (key != null && key.equals(current))) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
   /**
    * Gets the annotation.
    * 
@@ -211,7 +241,8 @@ public abstract class Node {
    * @return the annotation
    */
   public <T> T getAnnotation(final ICaseString key, final Class<T> contentClass) {
-    return contentClass.cast(annotations.get(key));
+    final int index = findAnnotation(key);
+    return index < 0 ? null : contentClass.cast(annotations[index + 1]);
   }
 
   /**
@@ -225,9 +256,9 @@ public abstract class Node {
   public <T> T getAnnotationRecursively(final ICaseString key, final Class<T> contentClass) {
     Node current = this;
     while (current != null) {
-      final Object result = annotations.get(key);
+      final T result = current.getAnnotation(key, contentClass);
       if (result != null) {
-        return contentClass.cast(result);
+        return result;
       } else {
         current = current.parent;
       }
@@ -248,12 +279,11 @@ public abstract class Node {
     final List<T> result = new ArrayList<>();
     Node current = this;
     while (current != null) {
-      final Object value = annotations.get(key);
+      final T value = current.getAnnotation(key, contentClass);
       if (value != null) {
-        result.add(contentClass.cast(result));
-      } else {
-        current = current.parent;
+        result.add(value);
       }
+      current = current.parent;
     }
     return result;
   }
@@ -607,6 +637,16 @@ public abstract class Node {
     return null;
   }
 
+  /**
+   * Gets the document owning the node.
+   * 
+   * @return the document or null if the node is not attached to a document
+   */
+  public Document getDocument() {
+    final Node root = getRootNode();
+    return root instanceof Document ? (Document) root : null;
+  }
+
   /**
    * Gets the root node.
    * 
@@ -629,13 +669,76 @@ public abstract class Node {
     return firstChild != null;
   }
 
+  /**
+   * Index the elements of the subtree of this node in the document it has just
+   * been attached to.
+   */
+  private void indexSubtree() {
+    if (firstChild == null && !(this instanceof AbstractElement)) {
+      return;
+    }
+    boolean last = true;
+    Node current = this;
+    while (current.parent != null) {
+      last &= current.next == null;
+      current = current.parent;
+    }
+    if (current instanceof Document) {
+      ((Document) current).getIndex().addSubtree(this, last);
+    }
+  }
+
+  /**
+   * Index the id and class names of this element once they changed.
+   * 
+   * @param document the document returned by {@link #unindexAttributes()}
+   */
+  protected final void indexAttributes(final Document document) {
+    if (document != null) {
+      document.getIndex().addAttributes(this);
+    }
+  }
+
+  /**
+   * Remove this element from the indexes of its document before its id or its
+   * class names change.
+   * 
+   * @return the document whose indexes must be updated with
+   *         {@link #indexAttributes(Document)} or null
+   */
+  protected final Document unindexAttributes() {
+    final Document document = parent == null ? null : getDocument();
+    if (document != null) {
+      document.getIndex().removeAttributes(this);
+    }
+    return document;
+  }
+
+  /**
+   * Remove the elements of the subtree of this node from the indexes of the
+   * document it is going to be detached from.
+   */
+  private void unindexSubtree() {
+    if (parent == null || (firstChild == null && !(this instanceof AbstractElement))) {
+      return;
+    }
+    final Document document = getDocument();
+    if (document != null) {
+      document.getIndex().removeSubtree(this);
+    }
+  }
+
   /**
    * Removes the annotation.
    * 
    * @param key the key
    */
   public void removeAnnotation(final ICaseString key) {
-    annotations.remove(key);
+    final int index = findAnnotation(key);
+    if (index >= 0) {
+      annotations[index] = null;
+      annotations[index + 1] = null;
+    }
   }
 
   /**
@@ -645,6 +748,21 @@ public abstract class Node {
    * @param value the value
    */
   public void setAnnotation(final ICaseString key, final Object value) {
-    annotations.put(key, value);
+    int index = findAnnotation(key);
+    if (index < 0) {
+      // reuse a removed pair or grow the array
+      index = findAnnotation(null);
+      if (index < 0) {
+        if (annotations == null) {
+          annotations = new Object[2];
+          index = 0;
+        } else {
+          index = annotations.length;
+          annotations = Arrays.copyOf(annotations, index + 2);
+        }
+      }
+      annotations[index] = key;
+    }
+    annotations[index + 1] = value;
   }
 }
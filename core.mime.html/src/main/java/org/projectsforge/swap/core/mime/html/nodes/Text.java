@@ -20,27 +20,111 @@
  */
 package org.projectsforge.swap.core.mime.html.nodes;
 
-import java.util.regex.Pattern;
-
 /**
- * The text node.
+ * The text node. The text can be read concurrently by several threads without
+ * locking once it has been built; {@link #addContent(String)} must not be
+ * called concurrently with the readers.
  * 
  * @author Sébastien Aupetit
  */
 public class Text extends Node {
 
-  /** The content. */
-  private final StringBuilder content = new StringBuilder();
+  /**
+   * Checks if a character is removed when it follows another one of the same
+   * kind in the cleaned content.
+   * 
+   * @param c the character
+   * @return true, if it is a space, a tab or a newline
+   */
+  private static boolean isCollapsible(final char c) {
+    return c == ' ' || c == '\t' || c == '\n';
+  }
+
+  /**
+   * Removes extraneous spaces, tab and newline from the string: each sequence
+   * of them is replaced by a single space in one pass.
+   * 
+   * @param content
+   *          the content to clean
+   * @return the cleaned string (the same string if it is already clean)
+   */
+  private static String cleanString(final String content) {
+    final int length = content.length();
+    // skip the beginning which is kept as is
+    int index = 0;
+    while (index < length) {
+      final char c = content.charAt(index);
+      if (c == '\t' || c == '\n' || (c == ' ' && index + 1 < length && isCollapsible(content.charAt(index + 1)))) {
+        break;
+      }
+      ++index;
+    }
+    if (index == length) {
+      return content;
+    }
 
-  /** The cached content. */
-  private String cachedContent = null;
+    final char[] chars = new char[length];
+    content.getChars(0, index, chars, 0);
+    int count = index;
+    boolean collapsing = false;
+    for (; index < length; ++index) {
+      final char c = content.charAt(index);
+      if (!isCollapsible(c)) {
+        chars[count++] = c;
+        collapsing = false;
+      } else if (!collapsing) {
+        chars[count++] = ' ';
+        collapsing = true;
+      }
+    }
+    return new String(chars, 0, count);
+  }
 
-  /** The clean pattern. */
-  private final Pattern cleanPattern = Pattern.compile(" +|\t+|\n+");
+  /**
+   * Computes the length of the cleaned string without building it.
+   * 
+   * @param content the content
+   * @return the length of the cleaned string
+   */
+  private static int cleanedLength(final String content) {
+    int count = 0;
+    boolean collapsing = false;
+    for (int index = 0; index < content.length(); ++index) {
+      if (!isCollapsible(content.charAt(index))) {
+        ++count;
+        collapsing = false;
+      } else if (!collapsing) {
+        ++count;
+        collapsing = true;
+      }
+    }
+    return count;
+  }
 
-  /** The cached cleaned content. */
+  /**
+   * The content. While {@link #pendingContent} is not null, it only holds a
+   * prefix of the content: a reader must check {@link #pendingContent} first
+   * and reads this field only when there is no builder.
+   */
+  private volatile String content = "";
+
+  /**
+   * The content being built when several strings are added (null otherwise).
+   * The reader which converts it stores the result in {@link #content} before
+   * forgetting the builder, so that a reader seeing no builder sees the whole
+   * content.
+   */
+  private volatile StringBuilder pendingContent;
+
+  /**
+   * The cached cleaned content (computed at most a few times by racing readers
+   * since a string is immutable).
+   */
   private String cachedCleanedContent;
 
+  /** The cached length of the cleaned content (-1 if not computed). */
+  private int cachedCleanedLength = -1;
+
   /**
    * Instantiates a new text.
    */
@@ -64,39 +148,51 @@ public class Text extends Node {
    *          the content
    */
   public void addContent(final String content) {
-    this.content.append(content);
-    cachedContent = null;
+    final StringBuilder pending = pendingContent;
+    if (pending != null) {
+      pending.append(content);
+    } else {
+      final String current = this.content;
+      if (current.isEmpty()) {
+        this.content = content;
+      } else {
+        final StringBuilder builder = new StringBuilder(current.length() + content.length());
+        builder.append(current).append(content);
+        pendingContent = builder;
+      }
+    }
     cachedCleanedContent = null;
+    cachedCleanedLength = -1;
   }
 
   /**
-   * Removes extraneous spaces, tab and newline from the string.
+   * Get a cleaned content where extraneous spaces, tab and newline have been
+   * removed.
    * 
-   * @param content
-   *          the content to clean
-   * @return the cleaned string
+   * @return the cleaned content
    */
-  private String cleanString(String content) {
-    boolean again;
-    do {
-      final String newContent = cleanPattern.matcher(content).replaceAll(" ");
-      again = !content.equals(newContent);
-      content = newContent;
-    } while (again);
-    return content;
+  public String getCleanedContent() {
+    String result = cachedCleanedContent;
+    if (result == null) {
+      result = cleanString(getContent());
+      cachedCleanedContent = result;
+    }
+    return result;
   }
 
   /**
-   * Get a cleaned content where extraneous spaces, tab and newline have been
-   * removed.
+   * Gets the length of the cleaned content without building it.
    * 
-   * @return the cleaned content
+   * @return the length of the cleaned content
    */
-  public synchronized String getCleanedContent() {
-    if (cachedCleanedContent == null) {
-      cachedCleanedContent = cleanString(getContent());
+  public int getCleanedContentLength() {
+    int result = cachedCleanedLength;
+    if (result < 0) {
+      final String cleaned = cachedCleanedContent;
+      result = cleaned != null ? cleaned.length() : cleanedLength(getContent());
+      cachedCleanedLength = result;
     }
-    return cachedCleanedContent;
+    return result;
   }
 
   /**
@@ -104,11 +200,17 @@ public class Text extends Node {
    * 
    * @return the content
    */
-  public synchronized String getContent() {
-    if (cachedContent == null) {
-      cachedContent = content.toString();
+  public String getContent() {
+    final StringBuilder pending = pendingContent;
+    if (pending == null) {
+      return content;
     }
-    return cachedContent;
+    // the content is published before the builder is forgotten so that a
+    // reader seeing no builder sees the content
+    final String result = pending.toString();
+    content = result;
+    pendingContent = null;
+    return result;
   }
 
   /*
@@ -13,11 +13,12 @@
  */
 package org.projectsforge.swap.core.mime.html.nodes.elements;
 
-import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import org.projectsforge.swap.core.encoding.html.HTMLEncoder;
+import org.projectsforge.swap.core.mime.html.nodes.Document;
 import org.projectsforge.swap.core.mime.html.nodes.Node;
 import org.projectsforge.utils.icasestring.ICaseString;
 
@@ -29,11 +30,37 @@ import org.projectsforge.utils.icasestring.ICaseString;
  */
 public abstract class AbstractElement extends Node {
 
-  /** The attributes. */
-  private final Map<ICaseString, String> attributes = new LinkedHashMap<ICaseString, String>();
+  /** The tag names by class (introspected once per class). */
+  private static final ClassValue<ICaseString> tagNames = new ClassValue<ICaseString>() {
+    @Override
+    protected ICaseString computeValue(final Class<?> type) {
+      try {
+        return ICaseString.class.cast(type.getField("TAGNAME").get(null));
+      } catch (NoSuchFieldException | SecurityException | IllegalArgumentException
+          | IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  };
+
+  /**
+   * The attributes stored as name/value pairs in insertion order (null until
+   * the first attribute is set).
+   */
+  private Object[] attributes;
 
-  /** Cached tag name to reduce CPU usage from introspection of the attribute. */
-  private ICaseString cachedTagName = null;
+  /** The number of attributes. */
+  private int attributesCount;
+
+  /**
+   * Checks if an attribute is indexed by the document.
+   * 
+   * @param key the key
+   * @return true, if the attribute is the id or the class names
+   */
+  private static boolean isIndexedAttribute(final ICaseString key) {
+    return Attributes.ID.equals(key) || Attributes.CLASS.equals(key);
+  }
 
   /**
    * The Constructor.
@@ -45,7 +72,27 @@ public abstract class AbstractElement extends Node {
    * Clear attributes.
    */
   public void clearAttributes() {
-    attributes.clear();
+    final Document document = hasAttribute(Attributes.ID) || hasAttribute(Attributes.CLASS)
+        ? unindexAttributes() : null;
+    attributes = null;
+    attributesCount = 0;
+    indexAttributes(document);
+  }
+
+  /**
+   * Find the index of an attribute.
+   * 
+   * @param key the key
+   * @return the index or -1 if not found
+   */
+  private int findAttribute(final ICaseString key) {
+    for (int i = 0; i < attributesCount; ++i) {
+      final Object current = attributes[2 * i];
+      if (current == key || (key != null && key.equals(current))) {
+        return i;
+      }
+    }
+    return -1;
   }
 
   /**
@@ -55,7 +102,78 @@ public abstract class AbstractElement extends Node {
    * @return the string
    */
   public String getAttribute(final ICaseString key) {
-    return attributes.get(key);
+    final int index = findAttribute(key);
+    return index < 0 ? null : (String) attributes[2 * index + 1];
+  }
+
+  /**
+   * Gets the name of an attribute.
+   * 
+   * @param index the index of the attribute (between 0 and
+   *          {@link #getAttributesCount()} excluded)
+   * @return the name
+   */
+  public ICaseString getAttributeName(final int index) {
+    if (index < 0 || index >= attributesCount) {
+      throw new IndexOutOfBoundsException("Attribute index: " + index);
+    }
+    return (ICaseString) attributes[2 * index];
+  }
+
+  /**
+   * Gets the value of an attribute.
+   * 
+   * @param index the index of the attribute (between 0 and
+   *          {@link #getAttributesCount()} excluded)
+   * @return the value
+   */
+  public String getAttributeValue(final int index) {
+    if (index < 0 || index >= attributesCount) {
+      throw new IndexOutOfBoundsException("Attribute index: " + index);
+    }
+    return (String) attributes[2 * index + 1];
+  }
+
+  /**
+   * Put the value of an attribute.
+   * 
+   * @param key the key
+   * @param value the value
+   * @return the previous value of the attribute
+   */
+  private String putAttribute(final ICaseString key, final String value) {
+    if (!isIndexedAttribute(key)) {
+      return storeAttribute(key, value);
+    }
+    final Document document = unindexAttributes();
+    final String previous = storeAttribute(key, value);
+    indexAttributes(document);
+    return previous;
+  }
+
+  /**
+   * Store the value of an attribute.
+   * 
+   * @param key the key
+   * @param value the value
+   * @return the previous value of the attribute
+   */
+  private String storeAttribute(final ICaseString key, final String value) {
+    final int index = findAttribute(key);
+    if (index >= 0) {
+      final String previous = (String) attributes[2 * index + 1];
+      attributes[2 * index + 1] = value;
+      return previous;
+    }
+    if (attributes == null) {
+      attributes = new Object[4];
+    } else if (attributes.length == 2 * attributesCount) {
+      attributes = Arrays.copyOf(attributes, 2 * attributes.length);
+    }
+    attributes[2 * attributesCount] = key;
+    attributes[2 * attributesCount + 1] = value;
+    attributesCount++;
+    return null;
   }
 
   /**
@@ -67,20 +185,20 @@ public abstract class AbstractElement extends Node {
    */
   public String setAttribute(final ICaseString key, final String value) {
     if (value == null) {
-      return attributes.remove(key);
+      return removeAttribute(key);
     } else {
-        return attributes.put(key, value);
+      return putAttribute(key, value);
     }
   }
   
   public String setAttributeAndDecodeUrl(final ICaseString key, final String value, String charset) {
     if (value == null) {
-      return attributes.remove(key);
+      return removeAttribute(key);
     } else {
       if (getAttributeType(key) == AttributeType.URL) {
-        return attributes.put(key, HTMLEncoder.urlDecode(value,charset));
+        return putAttribute(key, HTMLEncoder.urlDecode(value,charset));
       } else
-        return attributes.put(key, value);
+        return putAttribute(key, value);
     }
   }
 
@@ -94,9 +212,9 @@ public abstract class AbstractElement extends Node {
 
   public String getEncodedAttribute(ICaseString key, String encoding) {
     if (getAttributeType(key) == AttributeType.HTML)
-      return HTMLEncoder.htmlAttributeEncode(attributes.get(key), encoding);
+      return HTMLEncoder.htmlAttributeEncode(getAttribute(key), encoding);
     else
-      return HTMLEncoder.urlEncode(attributes.get(key), encoding);
+      return HTMLEncoder.urlEncode(getAttribute(key), encoding);
   }
 
   /**
@@ -110,7 +228,8 @@ public abstract class AbstractElement extends Node {
     boolean first = true;
     final StringBuilder sb = new StringBuilder();
 
-    for (final ICaseString key : attributes.keySet()) {
+    for (int i = 0; i < attributesCount; ++i) {
+      final ICaseString key = getAttributeName(i);
       if (first) {
         first = false;
       } else {
@@ -130,25 +249,38 @@ public abstract class AbstractElement extends Node {
    * @return the attributes count
    */
   public int getAttributesCount() {
-    return attributes.size();
+    return attributesCount;
   }
 
   /**
-   * Gets the attributes entry set.
+   * Gets a copy of the attributes.
+   * 
+   * @return the attributes in insertion order
+   */
+  private Map<ICaseString, String> getAttributesMap() {
+    final Map<ICaseString, String> result = new LinkedHashMap<>();
+    for (int i = 0; i < attributesCount; ++i) {
+      result.put(getAttributeName(i), getAttributeValue(i));
+    }
+    return result;
+  }
+
+  /**
+   * Gets a copy of the attributes entry set.
    * 
    * @return the attributes entry set
    */
   public Set<Map.Entry<ICaseString, String>> getAttributesEntrySet() {
-    return attributes.entrySet();
+    return getAttributesMap().entrySet();
   }
 
   /**
-   * Gets the attributes key set.
+   * Gets a copy of the attributes key set.
    * 
    * @return the attributes key set
    */
   public Set<ICaseString> getAttributesKeySet() {
-    return attributes.keySet();
+    return getAttributesMap().keySet();
   }
 
   /**
@@ -157,17 +289,7 @@ public abstract class AbstractElement extends Node {
    * @return the name
    */
   public ICaseString getTagName() {
-    if (cachedTagName == null) {
-      Field nameField;
-      try {
-        nameField = getClass().getField("TAGNAME");
-        cachedTagName = ICaseString.class.cast(nameField.get(this));
-      } catch (NoSuchFieldException | SecurityException | IllegalArgumentException
-          | IllegalAccessException e) {
-        throw new IllegalStateException(e);
-      }
-    }
-    return cachedTagName;
+    return tagNames.get(getClass());
   }
 
   /**
@@ -177,7 +299,7 @@ public abstract class AbstractElement extends Node {
    * @return true, if present
    */
   public boolean hasAttribute(final ICaseString key) {
-    return attributes.containsKey(key);
+    return findAttribute(key) >= 0;
   }
 
   /**
@@ -186,7 +308,7 @@ public abstract class AbstractElement extends Node {
    * @return true, if successful
    */
   public boolean hasAttributes() {
-    return !attributes.isEmpty();
+    return attributesCount != 0;
   }
 
   /**
@@ -196,7 +318,18 @@ public abstract class AbstractElement extends Node {
    * @return the string
    */
   public String removeAttribute(final ICaseString key) {
-    return attributes.remove(key);
+    final int index = findAttribute(key);
+    if (index < 0) {
+      return null;
+    }
+    final Document document = isIndexedAttribute(key) ? unindexAttributes() : null;
+    final String previous = (String) attributes[2 * index + 1];
+    System.arraycopy(attributes, 2 * index + 2, attributes, 2 * index, 2 * (attributesCount - index - 1));
+    attributesCount--;
+    attributes[2 * attributesCount] = null;
+    attributes[2 * attributesCount + 1] = null;
+    indexAttributes(document);
+    return previous;
   }
 
   /*
@@ -13,12 +13,23 @@
  */
 package org.projectsforge.swap.core.mime.html.nodes.elements;
 
+import java.lang.annotation.Annotation;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import javax.annotation.PostConstruct;
 import org.projectsforge.swap.core.environment.Environment;
 import org.projectsforge.utils.annotations.AnnotationScanner;
@@ -28,7 +39,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 /**
- * The HTML tag factory.
+ * The HTML tag factory. The constructors of the tag classes are resolved once
+ * when the factory is initialized. The elements are only autowired when their
+ * class uses injection annotations since the autowiring of a bean costs much
+ * more than the creation of an element.
  */
 @Component
 public class ElementFactory {
@@ -37,9 +51,78 @@ public class ElementFactory {
   private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory
       .getLogger(ElementFactory.class);
 
-  /** The Constant registry. */
-  private final Map<ICaseString, Class<? extends AbstractElement>> registry = ICaseStringKeyCollections
-      .caseInsensitiveMap(new HashMap<ICaseString, Class<? extends AbstractElement>>());
+  /** The packages of the annotations requiring the autowiring of an element. */
+  private static final List<String> INJECTION_PACKAGES = Arrays.asList(
+      "org.springframework.beans.factory.annotation", "javax.annotation", "javax.inject");
+
+  /**
+   * Checks if the instances of a class must be autowired.
+   * 
+   * @param clazz the clazz
+   * @return true, if the class or one of its super classes uses injection
+   *         annotations
+   */
+  private static boolean needsAutowiring(final Class<?> clazz) {
+    for (Class<?> current = clazz; current != null && current != Object.class; current = current
+        .getSuperclass()) {
+      final List<AccessibleObject> members = new ArrayList<>();
+      members.addAll(Arrays.asList(current.getDeclaredFields()));
+      members.addAll(Arrays.asList(current.getDeclaredMethods()));
+      members.addAll(Arrays.asList(current.getDeclaredConstructors()));
+      for (final AccessibleObject member : members) {
+        for (final Annotation annotation : member.getAnnotations()) {
+          if (INJECTION_PACKAGES.contains(annotation.annotationType().getPackage().getName())) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Create a supplier calling directly the constructor without parameter of a
+   * class. Reflection is only used if the constructor is not accessible from
+   * the factory.
+   * 
+   * @param <T> the generic type
+   * @param clazz the clazz
+   * @return the supplier
+   * @throws ReflectiveOperationException the reflective operation exception
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> Supplier<T> newConstructorSupplier(final Class<T> clazz)
+      throws ReflectiveOperationException {
+    final Constructor<T> constructor = clazz.getDeclaredConstructor();
+    try {
+      final MethodHandles.Lookup lookup = MethodHandles.lookup();
+      final CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+          MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+          lookup.findConstructor(clazz, MethodType.methodType(void.class)),
+          MethodType.methodType(clazz));
+      final Supplier<T> supplier = (Supplier<T>) site.getTarget().invoke();
+      // access errors are only detected on the first call
+      supplier.get();
+      return supplier;
+    } catch (final Throwable e) {
+      logger.debug("Using reflection to instantiate {}", clazz, e);
+      constructor.setAccessible(true);
+      return () -> {
+        try {
+          return constructor.newInstance();
+        } catch (final ReflectiveOperationException e1) {
+          throw new IllegalStateException("Can not instantiate element of class " + clazz, e1);
+        }
+      };
+    }
+  }
+
+  /** The suppliers of the elements by tag name. */
+  private final Map<ICaseString, Supplier<? extends AbstractElement>> registry = ICaseStringKeyCollections
+      .caseInsensitiveMap(new HashMap<ICaseString, Supplier<? extends AbstractElement>>());
+
+  /** The suppliers of the elements by class. */
+  private final Map<Class<?>, Supplier<? extends AbstractElement>> suppliers = new ConcurrentHashMap<>();
 
   /** The environment. */
   @Autowired
@@ -70,7 +153,7 @@ public class ElementFactory {
           }
         }
 
-        if (registry.put(tagName, tagClass) != null) {
+        if (registry.put(tagName, getSupplier(tagClass)) != null) {
           logger.warn("Duplicate class for HTML tag {}", tagName);
           throw new IllegalStateException("Duplicate class for HTML tag " + tagName);
         }
@@ -84,6 +167,30 @@ public class ElementFactory {
     }
   }
 
+  /**
+   * Gets the supplier of the elements of a class.
+   * 
+   * @param <T> the generic type
+   * @param clazz the clazz
+   * @return the supplier
+   * @throws ReflectiveOperationException the reflective operation exception
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends AbstractElement> Supplier<T> getSupplier(final Class<T> clazz)
+      throws ReflectiveOperationException {
+    Supplier<T> supplier = (Supplier<T>) suppliers.get(clazz);
+    if (supplier == null) {
+      final Supplier<T> constructorSupplier = newConstructorSupplier(clazz);
+      if (needsAutowiring(clazz)) {
+        supplier = () -> environment.autowireBean(constructorSupplier.get());
+      } else {
+        supplier = constructorSupplier;
+      }
+      suppliers.put(clazz, supplier);
+    }
+    return supplier;
+  }
+
   /**
    * New element.
    * 
@@ -92,12 +199,9 @@ public class ElementFactory {
    * @return the t
    */
   public <T extends AbstractElement> T newElement(final Class<T> clazz) {
-    for (final Constructor<?> c : clazz.getConstructors()) {
-      c.setAccessible(true);
-    }
     try {
-      return environment.autowireBean(clazz.newInstance());
-    } catch (InstantiationException | IllegalAccessException e) {
+      return getSupplier(clazz).get();
+    } catch (final ReflectiveOperationException e) {
       throw new IllegalArgumentException(e);
     }
   }
@@ -109,20 +213,11 @@ public class ElementFactory {
    * @return the abstract element
    */
   public AbstractElement newElement(final ICaseString name) {
-    final Class<? extends AbstractElement> theClass = registry.get(name);
-    try {
-      if (theClass == null) {
-        logger.warn("Unknown tag found ({}). Using default element class", name);
-        return environment.autowireBean(new DefaultElement(name));
-      } else {
-        for (final Constructor<?> c : theClass.getConstructors()) {
-          c.setAccessible(true);
-        }
-        return environment.autowireBean(theClass.newInstance());
-      }
-    } catch (final Exception e) {
-      logger.error("ElementFactory fails to instantiate HTML element", e);
-      throw new IllegalStateException("Can not instantiate element of class " + name, e);
+    final Supplier<? extends AbstractElement> supplier = registry.get(name);
+    if (supplier == null) {
+      logger.warn("Unknown tag found ({}). Using default element class", name);
+      return new DefaultElement(name);
     }
+    return supplier.get();
   }
 }
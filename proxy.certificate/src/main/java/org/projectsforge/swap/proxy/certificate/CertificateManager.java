@@ -13,10 +13,12 @@
  */
 package org.projectsforge.swap.proxy.certificate;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -26,10 +28,24 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -37,6 +53,7 @@ import org.apache.http.client.methods.HttpHead;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.util.EntityUtils;
 import org.projectsforge.swap.core.environment.Environment;
 import org.projectsforge.swap.core.environment.impl.EnvironmentPropertyHolder;
@@ -52,6 +69,12 @@ import org.springframework.beans.factory.annotation.Autowired;
  */
 public class CertificateManager {
 
+  /** The alias of the proxied certificate in the key stores. */
+  private static final String ALIAS = "proxiedhost";
+
+  /** The period (in minutes) of the purge of the expired certificates. */
+  private static final long PURGE_PERIOD = 60;
+
   /** The shared secure random. */
   @Autowired
   private SharedSecureRandom sharedSecureRandom;
@@ -72,42 +95,98 @@ public class CertificateManager {
   private UntrustedCertificationAgencyManager untrustedCAM;
 
   /** The cached key store. */
-  private final Map<CertificateTarget, KeyStore> cachedKeyStore = new HashMap<CertificateTarget, KeyStore>();
+  private final ConcurrentMap<CertificateTarget, KeyStore> cachedKeyStore = new ConcurrentHashMap<>();
+
+  /** The key stores being loaded or issued, by target. */
+  private final ConcurrentMap<CertificateTarget, CompletableFuture<KeyStore>> pendingKeyStores =
+      new ConcurrentHashMap<>();
+
+  /** The issued certificates. */
+  @Autowired
+  private IssuedCertificateRepository issuedCertificates;
+
+  /** The executor loading and issuing the key stores. */
+  private ExecutorService certificateIssuerExecutor;
+
+  /** The executor storing the key stores and purging the expired ones. */
+  private ScheduledExecutorService certificateStoreExecutor;
 
   /** The keystore. */
   private KeyStore trustKeystore;
 
+  /** The directory of the key stores saved by the previous versions. */
   private File pemDirectory;
 
   /**
-   * Gets the key store associated with this common name (host name).
+   * Gets the key store associated with this common name (host name). The
+   * certificates of distinct targets are loaded or issued concurrently while
+   * the concurrent requests for the same target wait for the first one, at most
+   * {@link CertificatePropertyHolder#issuingTimeout} milliseconds.
    * 
    * @param certificateTarget the certificate target
    * @return the key store
    * @throws CertificateManagerException the certificate manager exception
    */
-  public synchronized KeyStore getKeyStoreForTarget(final CertificateTarget certificateTarget)
+  public KeyStore getKeyStoreForTarget(final CertificateTarget certificateTarget)
       throws CertificateManagerException {
-    KeyStore keyStore = cachedKeyStore.get(certificateTarget);
-    if (keyStore == null) { // not in cache => try loading
-      keyStore = loadKeyStore(certificateTarget);
-      if (keyStore != null) { // loaded => check validity
-        try {
-          final X509Certificate cert = (X509Certificate) keyStore.getCertificate("proxiedhost");
-          cert.checkValidity();
-        } catch (final CertificateExpiredException | CertificateNotYetValidException
-            | KeyStoreException e) {
-          keyStore = null;
-        }
+    try {
+      return prepareKeyStoreForTarget(certificateTarget).get(CertificatePropertyHolder.issuingTimeout.get(),
+          TimeUnit.MILLISECONDS);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CertificateManagerException("Interrupted while waiting for the certificate of "
+          + certificateTarget, e);
+    } catch (final TimeoutException e) {
+      throw new CertificateManagerException("Timed out while waiting for the certificate of "
+          + certificateTarget, e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof CertificateManagerException) {
+        throw (CertificateManagerException) e.getCause();
       }
+      throw new CertificateManagerException(e.getCause());
+    }
+  }
 
-      if (keyStore == null) {
-        keyStore = registerHost(certificateTarget);
-        saveKeyStore(certificateTarget, keyStore);
-      }
+  /**
+   * Starts loading or issuing the key store of a target without waiting for
+   * it. The host is contacted and the certificate issued in background, so
+   * that this can be done while the browser is still setting up its
+   * connection. The concurrent requests for the same target share the same
+   * future.
+   * 
+   * @param certificateTarget the certificate target
+   * @return the future key store
+   */
+  public CompletableFuture<KeyStore> prepareKeyStoreForTarget(final CertificateTarget certificateTarget) {
+    final KeyStore cached = cachedKeyStore.get(certificateTarget);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
     }
-    return keyStore;
 
+    final CompletableFuture<KeyStore> future = new CompletableFuture<>();
+    final CompletableFuture<KeyStore> pending = pendingKeyStores.putIfAbsent(certificateTarget, future);
+    if (pending != null) {
+      return pending;
+    }
+
+    try {
+      certificateIssuerExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.complete(loadOrRegisterKeyStore(certificateTarget));
+          } catch (final CertificateManagerException | RuntimeException e) {
+            future.completeExceptionally(e);
+          } finally {
+            pendingKeyStores.remove(certificateTarget, future);
+          }
+        }
+      });
+    } catch (final RejectedExecutionException e) {
+      pendingKeyStores.remove(certificateTarget, future);
+      future.completeExceptionally(new CertificateManagerException("The certificate manager is stopped", e));
+    }
+    return future;
   }
 
   /**
@@ -150,7 +229,32 @@ public class CertificateManager {
 
     pemDirectory = new File(EnvironmentPropertyHolder.configurationDirectory.get(),
         CertificatePropertyHolder.pemDirectory.get());
-    pemDirectory.mkdirs();
+
+    certificateStoreExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "certificate-store");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    certificateStoreExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        purgeExpiredCertificates();
+      }
+    }, 1, PURGE_PERIOD, TimeUnit.MINUTES);
+
+    // the issuings of distinct targets wait in the queue of a bounded pool
+    final int issuerThreadCount = Math.max(1, CertificatePropertyHolder.issuerThreadCount.get());
+    certificateIssuerExecutor = Executors.newFixedThreadPool(issuerThreadCount, new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "certificate-issuer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
   }
 
   /**
@@ -202,7 +306,36 @@ public class CertificateManager {
   }
 
   /**
-   * Load key store.
+   * Loads the key store of a target or issues a new certificate if there is
+   * no valid one.
+   * 
+   * @param certificateTarget the certificate target
+   * @return the key store
+   * @throws CertificateManagerException the certificate manager exception
+   */
+  private KeyStore loadOrRegisterKeyStore(final CertificateTarget certificateTarget)
+      throws CertificateManagerException {
+    KeyStore keyStore = loadKeyStore(certificateTarget);
+    if (keyStore != null) { // loaded => check validity
+      try {
+        final X509Certificate cert = (X509Certificate) keyStore.getCertificate(ALIAS);
+        cert.checkValidity();
+      } catch (final CertificateExpiredException | CertificateNotYetValidException | KeyStoreException e) {
+        cachedKeyStore.remove(certificateTarget, keyStore);
+        keyStore = null;
+      }
+    }
+
+    if (keyStore == null) {
+      keyStore = registerHost(certificateTarget);
+    }
+    return keyStore;
+  }
+
+  /**
+   * Load key store. The key store is looked up in the certificate store, then
+   * in the directory used by the previous versions, in which case it is moved
+   * to the certificate store.
    * 
    * @param certificateTarget the certificate target
    * @return the key store
@@ -211,13 +344,25 @@ public class CertificateManager {
     KeyStore keyStore = cachedKeyStore.get(certificateTarget);
     if (keyStore == null) {
       try {
-        try (final FileInputStream fis = new FileInputStream(new File(pemDirectory,
-            certificateTarget.toString() + ".keystore"))) {
-          keyStore = KeyStore.getInstance("JKS");
-          keyStore.load(fis, CertificatePropertyHolder.pemPassword.get().toCharArray());
+        final IssuedCertificate issuedCertificate = issuedCertificates.findOne(certificateTarget.toString());
+        if (issuedCertificate != null) {
+          keyStore = readKeyStore(new ByteArrayInputStream(issuedCertificate.getKeyStore()));
+        } else {
+          final File legacyFile = new File(pemDirectory, certificateTarget.toString() + ".keystore");
+          if (!legacyFile.isFile()) {
+            return null;
+          }
+          try (final FileInputStream fis = new FileInputStream(legacyFile)) {
+            keyStore = readKeyStore(fis);
+          }
+          saveKeyStore(certificateTarget, keyStore);
+          if (!legacyFile.delete()) {
+            logger.debug("Can not delete {}", legacyFile);
+          }
         }
         cachedKeyStore.put(certificateTarget, keyStore);
       } catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException e) {
+        logger.debug("Can not load the certificate of " + certificateTarget, e);
         return null;
       }
     }
@@ -225,22 +370,78 @@ public class CertificateManager {
   }
 
   /**
-   * Save key store.
+   * Deletes the expired certificates from the certificate store and from the
+   * memory.
+   */
+  private void purgeExpiredCertificates() {
+    try {
+      final int deleted = issuedCertificates.deleteExpired(new Date());
+      if (deleted > 0) {
+        logger.info("{} expired certificates deleted", deleted);
+      }
+    } catch (final RuntimeException e) {
+      logger.warn("Can not purge the expired certificates", e);
+    }
+
+    for (final Iterator<KeyStore> it = cachedKeyStore.values().iterator(); it.hasNext();) {
+      try {
+        ((X509Certificate) it.next().getCertificate(ALIAS)).checkValidity();
+      } catch (final CertificateExpiredException | CertificateNotYetValidException | KeyStoreException e) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Reads a serialized key store.
+   * 
+   * @param in the input stream
+   * @return the key store
+   * @throws IOException Signals that an I/O exception has occurred.
+   * @throws KeyStoreException the key store exception
+   * @throws NoSuchAlgorithmException the no such algorithm exception
+   * @throws CertificateException the certificate exception
+   */
+  private KeyStore readKeyStore(final InputStream in) throws IOException, KeyStoreException,
+      NoSuchAlgorithmException, CertificateException {
+    final KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(in, CertificatePropertyHolder.pemPassword.get().toCharArray());
+    return keyStore;
+  }
+
+  /**
+   * Save key store. The key store is available immediately while it is
+   * written in the certificate store in background.
    * 
    * @param certificateTarget the certificate target
    * @param keyStore the key store
    */
   private void saveKeyStore(final CertificateTarget certificateTarget, final KeyStore keyStore) {
-    try {
-      try (final FileOutputStream fos = new FileOutputStream(new File(pemDirectory,
-          certificateTarget.toString() + ".keystore"))) {
-        keyStore.store(fos, CertificatePropertyHolder.pemPassword.get().toCharArray());
-      }
-    } catch (IOException | CertificateException | NoSuchAlgorithmException | KeyStoreException e) {
-      logger.debug("Keystore not saved on disk", e);
-    }
     cachedKeyStore.put(certificateTarget, keyStore);
+    certificateStoreExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          keyStore.store(baos, CertificatePropertyHolder.pemPassword.get().toCharArray());
+          final Date notAfter = ((X509Certificate) keyStore.getCertificate(ALIAS)).getNotAfter();
+          issuedCertificates.save(new IssuedCertificate(certificateTarget.toString(), baos.toByteArray(), notAfter));
+        } catch (IOException | CertificateException | NoSuchAlgorithmException | KeyStoreException
+            | RuntimeException e) {
+          logger.debug("Keystore not saved", e);
+        }
+      }
+    });
+  }
 
+  /**
+   * Stops the issuing of the key stores and the store executor once the
+   * pending key stores have been saved.
+   */
+  @PreDestroy
+  public void shutdown() {
+    certificateIssuerExecutor.shutdownNow();
+    certificateStoreExecutor.shutdown();
   }
 
   /**
@@ -269,7 +470,9 @@ public class CertificateManager {
   };
 
   /**
-   * Register the certificate of a host. A new proxied certificate is issued.
+   * Register the certificate of a host. The host is contacted to get its
+   * certificate chain and a new proxied certificate is issued. It runs on the
+   * issuer executor.
    * 
    * @param certificateTarget the certificate target
    * @return the key store containing the new certificate
@@ -288,10 +491,16 @@ public class CertificateManager {
           + certificateTarget.getPort());
 
       final HttpClient httpClient = new DefaultHttpClient();
-      httpClient.getConnectionManager().getSchemeRegistry().register(sch);
-      final HttpResponse response = httpClient.execute(request);
-      final HttpEntity entity = response.getEntity();
-      EntityUtils.consume(entity);
+      HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), CertificatePropertyHolder.probeTimeout.get());
+      HttpConnectionParams.setSoTimeout(httpClient.getParams(), CertificatePropertyHolder.probeTimeout.get());
+      try {
+        httpClient.getConnectionManager().getSchemeRegistry().register(sch);
+        final HttpResponse response = httpClient.execute(request);
+        final HttpEntity entity = response.getEntity();
+        EntityUtils.consume(entity);
+      } finally {
+        httpClient.getConnectionManager().shutdown();
+      }
     } catch (IOException | KeyManagementException | UnrecoverableKeyException
         | NoSuchAlgorithmException | KeyStoreException e) {
       throw new CertificateManagerException("Can not connect to a valid SSL host "
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 
 /**
  * The Class CertificateManagerConfiguration.
@@ -45,6 +46,7 @@ import org.springframework.context.annotation.Configuration;
  * @author Sébastien Aupetit
  */
 @Configuration
+@EnableJpaRepositories
 class CertificateManagerConfiguration {
 
 	private static Logger logger = LoggerFactory
@@ -1,5 +1,6 @@
 package org.projectsforge.swap.proxy.certificate;
 
+import org.projectsforge.utils.propertyregistry.IntegerProperty;
 import org.projectsforge.utils.propertyregistry.PropertyHolder;
 import org.projectsforge.utils.propertyregistry.StringProperty;
 
@@ -10,6 +11,21 @@ public class CertificatePropertyHolder implements PropertyHolder {
   public static final StringProperty trustKeystorePassword = new StringProperty(
       "org.projectsforge.swap.certificate.trustKeystorePassword", "dummy password");
 
+  public static final IntegerProperty issuerThreadCount = new IntegerProperty(
+      "org.projectsforge.swap.certificate.issuerThreadCount", 8);
+
+  public static final IntegerProperty issuingTimeout = new IntegerProperty(
+      "org.projectsforge.swap.certificate.issuingTimeout", 60 * 1000);
+
+  public static final IntegerProperty keyPairPoolSize = new IntegerProperty(
+      "org.projectsforge.swap.certificate.keyPairPoolSize", 8);
+
+  public static final IntegerProperty keySize = new IntegerProperty("org.projectsforge.swap.certificate.keySize",
+      2048);
+
+  public static final IntegerProperty probeTimeout = new IntegerProperty(
+      "org.projectsforge.swap.certificate.probeTimeout", 10 * 1000);
+
   public static final StringProperty pemPassword = new StringProperty(
       "org.projectsforge.swap.certificate.pemPassword", "dummy key password");
   
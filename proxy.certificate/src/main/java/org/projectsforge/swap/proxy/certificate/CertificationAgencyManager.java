@@ -72,6 +72,9 @@ public class CertificationAgencyManager {
     }
   }
 
+  /** The number of serial numbers reserved each time the CA is saved. */
+  private static final int SERIAL_NUMBER_BLOCK_SIZE = 1024;
+
   /** The logger. */
   private final Logger logger = LoggerFactory.getLogger(CertificationAgencyManager.class);
 
@@ -108,6 +111,12 @@ public class CertificationAgencyManager {
   /** The issued serial number. */
   private BigInteger issuedSerialNumber = null;
 
+  /** The last serial number of the reserved block (null if none). */
+  private BigInteger reservedSerialNumber = null;
+
+  /** Indicate if the PEM file must be written with the CA certificate. */
+  private boolean pemOutdated = true;
+
   /** The environment. */
   @Autowired
   private Environment environment;
@@ -116,6 +125,10 @@ public class CertificationAgencyManager {
   @Autowired
   private SharedSecureRandom sharedSecureRandom;
 
+  /** The pool of pre-generated key pairs. */
+  @Autowired
+  private KeyPairPool keyPairPool;
+
   /**
    * Check certificate validity.
    * 
@@ -148,9 +161,7 @@ public class CertificationAgencyManager {
 
       store.load(null, null);
 
-      final KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-      keyGen.initialize(1024, sharedSecureRandom.getSecureRandom());
-      final KeyPair keypair = keyGen.generateKeyPair();
+      final KeyPair keypair = keyPairPool.take();
 
       final X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
       final X500Principal subjectName = new X500Principal("CN=" + certificateTarget.getHostname()
@@ -244,12 +255,15 @@ public class CertificationAgencyManager {
     certGen.setSignatureAlgorithm(signatureAlgorithm);
 
     certificate = certGen.generate(keypair.getPrivate(), "BC");
+    pemOutdated = true;
 
     logger.debug("Creation of a certificate for the CA done");
   }
 
   /**
-   * Gets the next serial number to issue a new signed certificate.
+   * Gets the next serial number to issue a new signed certificate. The serial
+   * numbers are reserved by blocks so that the CA is only saved once per
+   * block. The unused numbers of a block are skipped after a restart.
    * 
    * @return the next serial number
    * @throws KeyStoreException the key store exception
@@ -257,14 +271,17 @@ public class CertificationAgencyManager {
    * @throws CertificateException the certificate exception
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  public BigInteger getNextSerialNumber() throws KeyStoreException, NoSuchAlgorithmException,
+  public synchronized BigInteger getNextSerialNumber() throws KeyStoreException, NoSuchAlgorithmException,
       CertificateException, IOException {
     if (issuedSerialNumber == null) {
       issuedSerialNumber = BigInteger.ZERO;
     }
     issuedSerialNumber = issuedSerialNumber.add(BigInteger.ONE);
 
-    saveCA();
+    if (reservedSerialNumber == null || issuedSerialNumber.compareTo(reservedSerialNumber) > 0) {
+      reservedSerialNumber = issuedSerialNumber.add(BigInteger.valueOf(SERIAL_NUMBER_BLOCK_SIZE - 1));
+      saveCA();
+    }
 
     return issuedSerialNumber;
   }
@@ -296,7 +313,9 @@ public class CertificationAgencyManager {
       try (ObjectInputStream ois = new ObjectInputStream(fis)) {
 
         serialNumber = (BigInteger) ois.readObject();
+        // the numbers up to the saved one may have been issued
         issuedSerialNumber = (BigInteger) ois.readObject();
+        reservedSerialNumber = null;
         final byte[] keystorebyte = (byte[]) ois.readObject();
         ois.close();
 
@@ -306,6 +325,8 @@ public class CertificationAgencyManager {
         store.load(bais, password.toCharArray());
         privateKey = (PrivateKey) store.getKey(alias, password.toCharArray());
         certificate = (X509Certificate) store.getCertificate(alias);
+        pemOutdated = pemFileName != null
+            && !new File(EnvironmentPropertyHolder.configurationDirectory.get(), pemFileName).isFile();
       }
     }
   }
@@ -334,15 +355,16 @@ public class CertificationAgencyManager {
         store.store(baos, password.toCharArray());
 
         oos.writeObject(serialNumber);
-        oos.writeObject(issuedSerialNumber);
+        oos.writeObject(reservedSerialNumber == null ? issuedSerialNumber : reservedSerialNumber);
         oos.writeObject(baos.toByteArray());
         oos.close();
 
-        if (pemFileName != null) {
+        if (pemFileName != null && pemOutdated) {
           try (final PEMWriter pemWrt = new PEMWriter(new OutputStreamWriter(new FileOutputStream(
               new File(EnvironmentPropertyHolder.configurationDirectory.get(), pemFileName))))) {
             pemWrt.writeObject(certificate);
           }
+          pemOutdated = false;
         }
       }
     } catch (final IOException e) {
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.certificate;
+
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A proxied certificate issued for a target, stored with its private key as a
+ * serialized key store.
+ * 
+ * @author Sébastien Aupetit
+ */
+@Entity(name = "org.projectsforge.swap.proxy.certificate.IssuedCertificate")
+@Table(indexes = { @Index(columnList = "notAfter") })
+public class IssuedCertificate {
+
+  /** The target (host:port). */
+  @Id
+  private String target;
+
+  /** The serialized key store. */
+  @Lob
+  @Column(nullable = false)
+  private byte[] keyStore;
+
+  /** The date after which the certificate is expired. */
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(nullable = false)
+  private Date notAfter;
+
+  /**
+   * Instantiates a new issued certificate.
+   */
+  public IssuedCertificate() {
+    // for JPA
+  }
+
+  /**
+   * Instantiates a new issued certificate.
+   * 
+   * @param target the target
+   * @param keyStore the serialized key store
+   * @param notAfter the date after which the certificate is expired
+   */
+  public IssuedCertificate(final String target, final byte[] keyStore, final Date notAfter) {
+    this.target = target;
+    this.keyStore = keyStore;
+    this.notAfter = notAfter;
+  }
+
+  /**
+   * Gets the serialized key store.
+   * 
+   * @return the key store
+   */
+  public byte[] getKeyStore() {
+    return keyStore;
+  }
+
+  /**
+   * Gets the date after which the certificate is expired.
+   * 
+   * @return the expiration date
+   */
+  public Date getNotAfter() {
+    return notAfter;
+  }
+
+  /**
+   * Gets the target.
+   * 
+   * @return the target
+   */
+  public String getTarget() {
+    return target;
+  }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.certificate;
+
+import java.util.Date;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * The repository of the issued certificates.
+ * 
+ * @author Sébastien Aupetit
+ */
+public interface IssuedCertificateRepository extends JpaRepository<IssuedCertificate, String> {
+
+  /**
+   * Deletes the certificates expired at a date.
+   * 
+   * @param date the date
+   * @return the number of deleted certificates
+   */
+  @Modifying
+  @Transactional
+  @Query("delete from org.projectsforge.swap.proxy.certificate.IssuedCertificate c where c.notAfter < :date")
+  int deleteExpired(@Param("date") Date date);
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.certificate;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * A pool of RSA key pairs generated in background for the issued certificates,
+ * so that the generation of a key pair, which is the most expensive part of
+ * the issuing of a certificate, is not done while a browser waits for the
+ * connection.
+ * 
+ * @author Sébastien Aupetit
+ */
+@Component
+public final class KeyPairPool {
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(KeyPairPool.class);
+
+  /** The shared secure random. */
+  @Autowired
+  private SharedSecureRandom sharedSecureRandom;
+
+  /** The pre-generated key pairs. */
+  private BlockingQueue<KeyPair> keyPairs;
+
+  /** The executor generating the key pairs. */
+  private ExecutorService executor;
+
+  /** Indicate if the pool is being refilled. */
+  private final AtomicBoolean refilling = new AtomicBoolean();
+
+  /** The number of key pairs taken from the pool. */
+  private final AtomicLong hitCount = new AtomicLong();
+
+  /** The number of key pairs generated on demand because the pool was empty. */
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Generates a key pair.
+   * 
+   * @return the key pair
+   * @throws NoSuchAlgorithmException the no such algorithm exception
+   */
+  private KeyPair generate() throws NoSuchAlgorithmException {
+    final KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+    keyGen.initialize(CertificatePropertyHolder.keySize.get(), sharedSecureRandom.getSecureRandom());
+    return keyGen.generateKeyPair();
+  }
+
+  /**
+   * Gets the number of key pairs taken from the pool.
+   * 
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Gets the number of key pairs generated on demand because the pool was
+   * empty.
+   * 
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Gets the number of available key pairs.
+   * 
+   * @return the size
+   */
+  public int getSize() {
+    return keyPairs.size();
+  }
+
+  /**
+   * Initializes the pool and starts its filling.
+   */
+  @PostConstruct
+  public void init() {
+    keyPairs = new ArrayBlockingQueue<>(Math.max(1, CertificatePropertyHolder.keyPairPoolSize.get()));
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "certificate-key-pair-generator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    refill();
+  }
+
+  /**
+   * Refills the pool in background if it is not already being refilled.
+   */
+  private void refill() {
+    if (refilling.compareAndSet(false, true)) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (keyPairs.remainingCapacity() > 0 && !Thread.currentThread().isInterrupted()) {
+              keyPairs.offer(generate());
+            }
+          } catch (final NoSuchAlgorithmException e) {
+            logger.error("Can not generate key pairs", e);
+          } finally {
+            refilling.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Stops the generation of the key pairs.
+   */
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Takes a key pair from the pool. It is generated on demand if the pool is
+   * empty.
+   * 
+   * @return the key pair
+   * @throws NoSuchAlgorithmException the no such algorithm exception
+   */
+  public KeyPair take() throws NoSuchAlgorithmException {
+    KeyPair keyPair = keyPairs.poll();
+    if (keyPair == null) {
+      missCount.incrementAndGet();
+      keyPair = generate();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    refill();
+    return keyPair;
+  }
+}
@@ -24,6 +24,7 @@ import org.projectsforge.swap.core.mime.html.nodes.elements.HEADElement;
 import org.projectsforge.swap.core.mime.html.nodes.elements.SCRIPTElement;
 import org.projectsforge.swap.handlers.html.HtmlDomTransformation;
 import org.projectsforge.swap.handlers.html.HtmlTransformation;
+import org.projectsforge.swap.handlers.mime.CacheKeyProvider;
 import org.projectsforge.swap.handlers.mime.StatisticsCollector;
 import org.projectsforge.swap.proxy.webui.WebUIPropertyHolder;
 import org.slf4j.Logger;
@@ -35,8 +36,8 @@ import org.springframework.beans.factory.annotation.Autowired;
  * 
  * @author Vincent Rouillé
  */
-@Handler(singleton = true)
-public class HtmlTransformationLoaderInjection extends HtmlDomTransformation {
+@Handler(singleton = true, consumes = HtmlDomTransformation.HTML_DOM)
+public class HtmlTransformationLoaderInjection extends HtmlDomTransformation implements CacheKeyProvider {
 
   private static final String TEXT_JAVASCRIPT = "text/javascript";
 
@@ -52,6 +53,12 @@ public class HtmlTransformationLoaderInjection extends HtmlDomTransformation {
   @Autowired
   private ElementFactory elementFactory;
 
+  @Override
+  public String getCacheKey(Response response) {
+    // the injected script is loaded from the web UI host
+    return WebUIPropertyHolder.hostname.get();
+  }
+
   @Override
   public boolean transform(HandlerContext<HtmlTransformation> context,
       StatisticsCollector statisticsCollector, Response response,
@@ -60,7 +67,7 @@ public class HtmlTransformationLoaderInjection extends HtmlDomTransformation {
 
     // Insert communication script
     {
-      HEADElement domHead = dom.getFirstChildrenToLeaves(HEADElement.class);
+      HEADElement domHead = dom.getFirstElement(HEADElement.class);
       if (domHead != null) {
         // Create script element
         {
@@ -23,7 +23,7 @@ import org.projectsforge.swap.handlers.mime.StatisticsCollector;
  * The CSS Mimehandler.
  */
 @Handler(singleton = true)
-@Mime(mime = "text/css")
+@Mime(mime = "text/css", readOnly = true)
 public class CssMimehandler implements org.projectsforge.swap.handlers.mime.MimeHandler {
 
   /*
@@ -34,7 +34,8 @@ import org.springframework.beans.factory.annotation.Autowired;
  * 
  * @author Sébastien Aupetit
  */
-@Handler(singleton = true)
+@Handler(singleton = true, consumes = HtmlEncodingDetectorTransformation.HTML_ENCODING,
+    produces = HtmlDomTransformation.HTML_DOM)
 class HtmlDomBuilderTransformation implements HtmlTransformation {
 
   /** The environment. */
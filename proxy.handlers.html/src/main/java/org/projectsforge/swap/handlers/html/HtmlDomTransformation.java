@@ -17,9 +17,13 @@ import org.projectsforge.swap.core.handlers.Resource;
 import org.projectsforge.swap.core.http.Response;
 import org.projectsforge.swap.core.mime.html.nodes.Document;
 import org.projectsforge.swap.handlers.mime.StatisticsCollector;
+import org.projectsforge.swap.handlers.mime.metrics.Histogram;
 
 /**
- * The base class of HTML DOM based transformation.
+ * The base class of HTML DOM based transformation. Concrete transformations
+ * should declare that they consume {@link #HTML_DOM} in their
+ * {@link org.projectsforge.swap.core.handlers.Handler} annotation so that they
+ * are only started once the DOM has been built.
  * 
  * @author Sébastien Aupetit
  */
@@ -39,13 +43,13 @@ public abstract class HtmlDomTransformation implements HtmlTransformation {
   public boolean transform(final HandlerContext<HtmlTransformation> context,
       final StatisticsCollector statisticsCollector, final Response response) throws Exception {
     final Resource<Document> document = context.waitForResource(HtmlDomTransformation.HTML_DOM);
-    statisticsCollector.startTimer(StatisticsCollector.PROXY_HANDLER_HTML_AFTERDOM_TIMER_KEY
-        + getClass().getCanonicalName());
+    final Histogram timer = statisticsCollector.getTimer(StatisticsCollector.PROXY_HANDLER_HTML_AFTERDOM_TIMER_KEY,
+        getClass());
+    statisticsCollector.startTimer(timer);
     try {
       return transform(context, statisticsCollector, response, document);
     } finally {
-      statisticsCollector.stopTimer(StatisticsCollector.PROXY_HANDLER_HTML_AFTERDOM_TIMER_KEY
-          + getClass().getCanonicalName());
+      statisticsCollector.stopTimer(timer);
     }
   }
 
@@ -28,7 +28,7 @@ import org.springframework.beans.factory.annotation.Autowired;
  * 
  * @author Sébastien Aupetit
  */
-@Handler(singleton = true)
+@Handler(singleton = true, produces = HtmlEncodingDetectorTransformation.HTML_ENCODING)
 public class HtmlEncodingDetectorTransformation implements HtmlTransformation {
 
   /** The resource name of the detected encoding. */
@@ -62,7 +62,7 @@ public class HtmlEncodingDetectorTransformation implements HtmlTransformation {
     } else {
       HtmlEncodingDetectorTransformation.logger.info("Can not detect response encoding");
     }
-    context.addResource(new Resource<String>(HtmlEncodingDetectorTransformation.HTML_ENCODING, encoding));
+    context.addResource(Resource.writeOnce(HtmlEncodingDetectorTransformation.HTML_ENCODING, encoding));
     return true;
   }
 }
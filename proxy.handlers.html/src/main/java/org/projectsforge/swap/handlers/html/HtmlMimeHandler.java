@@ -12,9 +12,10 @@
  */
 package org.projectsforge.swap.handlers.html;
 
-import java.io.OutputStream;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.PreDestroy;
 import org.projectsforge.swap.core.environment.Environment;
@@ -22,14 +23,16 @@ import org.projectsforge.swap.core.handlers.Handler;
 import org.projectsforge.swap.core.handlers.HandlerContext;
 import org.projectsforge.swap.core.handlers.HandlerExecutor;
 import org.projectsforge.swap.core.handlers.Resource;
+import org.projectsforge.swap.core.http.ContentMemoryBudget;
 import org.projectsforge.swap.core.http.Mime;
 import org.projectsforge.swap.core.http.Response;
+import org.projectsforge.swap.core.http.ResponseHeaderConstants;
+import org.projectsforge.swap.core.mime.html.HTMLEncodingWriter;
 import org.projectsforge.swap.core.mime.html.HTMLSerializerVisitor;
 import org.projectsforge.swap.core.mime.html.nodes.Document;
 import org.projectsforge.swap.handlers.mime.MimeHandler;
 import org.projectsforge.swap.handlers.mime.StatisticsCollector;
-import org.projectsforge.utils.temporarystreams.TemporaryContentHolder;
-import org.projectsforge.utils.temporarystreams.TemporaryStreamsFactory;
+import org.projectsforge.swap.handlers.mime.metrics.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -50,9 +53,9 @@ class HtmlMimeHandler implements MimeHandler {
   @Autowired
   private Environment environment;
 
-  /** The temporary streams factory. */
+  /** The budget of the memory used by the contents. */
   @Autowired
-  private TemporaryStreamsFactory temporaryStreamsFactory;
+  private ContentMemoryBudget contentMemoryBudget;
 
   /*
    * (non-Javadoc)
@@ -74,16 +77,16 @@ class HtmlMimeHandler implements MimeHandler {
                 @Override
                 public void execute(final HandlerContext<HtmlTransformation> context, final Class<?> handlerClass,
                     final HtmlTransformation handler) throws Exception {
-                  statisticsCollector.startTimer(StatisticsCollector.PROXY_HANDLER_HTML_DO_TIMER_KEY
-                      + handler.getClass().getCanonicalName());
+                  final Histogram timer = statisticsCollector.getTimer(
+                      StatisticsCollector.PROXY_HANDLER_HTML_DO_TIMER_KEY, handler.getClass());
+                  statisticsCollector.startTimer(timer);
                   try {
                     if (!handler.transform(context, statisticsCollector, response)) {
                       cancelTransformation.set(true);
                       logger.debug("Cancelling transformation for {}", response.getRequest().getURL());
                     }
                   } finally {
-                    statisticsCollector.stopTimer(StatisticsCollector.PROXY_HANDLER_HTML_DO_TIMER_KEY
-                        + handler.getClass().getCanonicalName());
+                    statisticsCollector.stopTimer(timer);
                   }
                 }
 
@@ -115,22 +118,25 @@ class HtmlMimeHandler implements MimeHandler {
         document = context.getResource(HtmlDomTransformation.HTML_DOM, Document.class);
       }
 
-      statisticsCollector.setValue(StatisticsCollector.PROXY_HANDLER_HTML_CANCELEDTRANSFORMATION_VALUE_KEY,
+      statisticsCollector.setFlag(StatisticsCollector.PROXY_HANDLER_HTML_CANCELEDTRANSFORMATION_VALUE_KEY,
           cancelTransformation.get());
 
       if (document != null) {
         statisticsCollector.setValue(StatisticsCollector.PROXY_HANDLER_HTML_TRANSFORMEDDOM_VALUE_KEY, document.get());
         statisticsCollector.startTimer(StatisticsCollector.PROXY_HANDLER_HTML_SERIALIZERESPONSE_TIMER_KEY);
         try {
-          final StringBuilder sb = new StringBuilder();
-          environment.autowireBean(new HTMLSerializerVisitor(sb)).recurse(document.get(), null);
+          // the document is encoded while it is serialized in the charset it
+          // was decoded with
+          final Charset charset = HTMLEncodingWriter.toCharset(document.get().getEncoding());
+          final ContentMemoryBudget.ContentOutputStream storage = contentMemoryBudget.newContentOutputStream();
+          try (final Writer out = new HTMLEncodingWriter(storage, charset)) {
+            environment.autowireBean(new HTMLSerializerVisitor(out)).recurse(document.get(), null);
+          }
 
           final Response transformedResponse = environment.autowireBean(new Response(response));
-          final TemporaryContentHolder content = new TemporaryContentHolder(temporaryStreamsFactory);
-          try (final OutputStream out = content.getOutputStream()) {
-            out.write(sb.toString().getBytes());
-          }
-          transformedResponse.setContent(content);
+          transformedResponse.getHeaders().set(ResponseHeaderConstants.CONTENT_TYPE,
+              response.getMime() + "; charset=" + charset.name());
+          transformedResponse.setContent(storage.getContent());
           final Resource<Response> outputResponse = context.getResource(MimeHandler.OUTPUT_RESPONSE, Response.class);
           outputResponse.lockWrite();
           try {
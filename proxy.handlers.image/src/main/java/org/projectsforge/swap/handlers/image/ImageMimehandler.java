@@ -23,7 +23,7 @@ import org.projectsforge.swap.handlers.mime.StatisticsCollector;
  * The image Mimehandler.
  */
 @Handler(singleton = true)
-@Mime(mime = { "image/gif", "image/jpeg", "image/png" })
+@Mime(mime = { "image/gif", "image/jpeg", "image/png" }, readOnly = true)
 public class ImageMimehandler implements MimeHandler {
 
   /*
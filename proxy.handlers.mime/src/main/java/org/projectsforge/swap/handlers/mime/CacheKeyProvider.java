@@ -0,0 +1,38 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.handlers.mime;
+
+import org.projectsforge.swap.core.http.Response;
+
+/**
+ * The Interface CacheKeyProvider. It is implemented by handlers whose output
+ * depends on something else than the transformed response (configuration,
+ * request headers, ...). The transformed response is only reused when all the
+ * handlers return the same keys. Handlers which can never be cached must
+ * declare {@code cacheable = false} in their
+ * {@link org.projectsforge.swap.core.handlers.Handler} annotation instead.
+ *
+ * @author Sébastien Aupetit
+ */
+public interface CacheKeyProvider {
+
+  /**
+   * Gets the key identifying the parameters the output of the handler depends
+   * on.
+   *
+   * @param response the response to transform
+   * @return the key or null if the transformation of this response must not be
+   *         cached
+   */
+  String getCacheKey(Response response);
+}
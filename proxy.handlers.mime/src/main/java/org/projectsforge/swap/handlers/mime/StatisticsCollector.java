@@ -12,15 +12,26 @@
  */
 package org.projectsforge.swap.handlers.mime;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import org.projectsforge.swap.core.environment.trace.Span;
+import org.projectsforge.swap.core.environment.trace.Tracer;
+import org.projectsforge.swap.handlers.mime.metrics.Histogram;
+import org.projectsforge.swap.handlers.mime.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The Class StatisticsCollector used to store various statistics like execution
  * time. This class is thread safe but is mainly used to store things not to
  * retrieve it. Retrieval is done by {@link StatisticsCollectorInterceptor}
- * components.
+ * components. The timers and the flags are also aggregated across the requests
+ * by the {@link MetricsRegistry}. When the {@link Tracer} is enabled, each timer
+ * is also recorded as a span of the request. The keys which are not those of
+ * the collector are aggregated as well and are reported once in the log.
  * 
  * @author Sébastien Aupetit
  */
@@ -66,6 +77,35 @@ public class StatisticsCollector {
 
   public static final String PROXY_EFFECTIVEREQUEST_VALUE_KEY = "org.projectsforge.swap.proxy.effectiverequest";
 
+  public static final String PROXY_RESOURCECONTENTION_VALUE_KEY = "org.projectsforge.swap.proxy.resourcecontention#";
+
+  public static final String PROXY_TRANSFORMCACHEHIT_VALUE_KEY = "org.projectsforge.swap.proxy.transformcachehit";
+
+  /** The names of the timers which can be started by name. */
+  private static final Set<String> TIMER_KEYS = new HashSet<>(Arrays.asList(PROXY_ALL_TIMER_KEY,
+      PROXY_GETRESPONSE_TIMER_KEY, PROXY_MIMEHANDLER_ALL_TIMER_KEY, PROXY_RESPONSEFILTERING_ALL_TIMER_KEY,
+      PROXY_REQUESTFILTERING_ALL_TIMER_KEY, PROXY_HANDLER_HTML_ALL_TIMER_KEY,
+      PROXY_HANDLER_HTML_SERIALIZERESPONSE_TIMER_KEY));
+
+  /** The prefixes of the families of timers, one timer per class. */
+  private static final Set<String> TIMER_FAMILY_KEYS = new HashSet<>(Arrays.asList(PROXY_MIMEHANDLER_DO_TIMER_KEY,
+      PROXY_RESPONSEFILTERING_DO_TIMER_KEY, PROXY_REQUESTFILTERING_DO_TIMER_KEY, PROXY_HANDLER_HTML_DO_TIMER_KEY,
+      PROXY_HANDLER_HTML_AFTERDOM_TIMER_KEY));
+
+  /** The names of the flags whose true values are counted. */
+  private static final Set<String> FLAG_KEYS = new HashSet<>(Arrays.asList(PROXY_REQUESTFILTERED_VALUE_KEY,
+      PROXY_RESPONSEFILTERED_VALUE_KEY, PROXY_TRANSFORMCACHEHIT_VALUE_KEY,
+      PROXY_HANDLER_HTML_CANCELEDTRANSFORMATION_VALUE_KEY));
+
+  /** The timer and flag keys which are not keys of the collector and have been reported. */
+  private static final Set<String> UNKNOWN_KEYS = ConcurrentHashMap.newKeySet();
+
+  /** The logger. */
+  private static final Logger logger = LoggerFactory.getLogger(StatisticsCollector.class);
+
+  /** The registry aggregating the statistics of all the requests. */
+  private final MetricsRegistry registry;
+
   /** The start marks. */
   private final Map<String, Long> starts = new ConcurrentHashMap<>();
 
@@ -75,6 +115,19 @@ public class StatisticsCollector {
   /** The values. */
   private final Map<String, Object> values = new ConcurrentHashMap<>();
 
+  /** The spans of the running timers when the request is traced. */
+  private final Map<String, Span> spans = new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates a new statistics collector.
+   * 
+   * @param registry the registry aggregating the statistics of all the
+   *          requests
+   */
+  public StatisticsCollector(final MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
   /**
    * Get elapsed timer value.
    * 
@@ -90,6 +143,35 @@ public class StatisticsCollector {
     return (end - begin) / 1000000;
   }
 
+  /**
+   * Gets the timer of a class in a family of timers.
+   * 
+   * @param familyKey the prefix of the family, normally one of the families of
+   *          the collector
+   * @param key the class
+   * @return the timer
+   */
+  public Histogram getTimer(final String familyKey, final Class<?> key) {
+    if (!TIMER_FAMILY_KEYS.contains(familyKey)) {
+      reportUnknownKey("timer family", familyKey);
+    }
+    return registry.histogramFamily(familyKey).get(key);
+  }
+
+  /**
+   * Gets a timer by name.
+   * 
+   * @param key the key of the timer, normally one of the timers of the
+   *          collector
+   * @return the timer
+   */
+  private Histogram getTimer(final String key) {
+    if (!TIMER_KEYS.contains(key)) {
+      reportUnknownKey("timer", key);
+    }
+    return registry.histogram(key);
+  }
+
   /**
    * Gets the timer key set.
    * 
@@ -120,6 +202,52 @@ public class StatisticsCollector {
     return values.keySet();
   }
 
+  /**
+   * Record the time spent by handlers waiting to lock a resource. The time is
+   * stored in ms as a value whose key is prefixed by
+   * {@link #PROXY_RESOURCECONTENTION_VALUE_KEY}. Successive records for the
+   * same resource are summed. Each record is also aggregated in the registry.
+   * 
+   * @param resource the name of the resource
+   * @param contentionTime the contention time in ns
+   */
+  public void recordResourceContention(final String resource, final long contentionTime) {
+    final Histogram timer = registry.histogramFamily(PROXY_RESOURCECONTENTION_VALUE_KEY).get(resource);
+    timer.record(contentionTime);
+    // the handlers of a request may record a contention concurrently
+    values.merge(timer.getName(), contentionTime / 1000000.0,
+        (previous, time) -> (Double) previous + (Double) time);
+  }
+
+  /**
+   * Report the first use of a timer or flag key which is not a key of the
+   * collector.
+   * 
+   * @param kind the kind of the key
+   * @param key the key
+   */
+  private static void reportUnknownKey(final String kind, final String key) {
+    if (UNKNOWN_KEYS.add(key)) {
+      logger.warn("Unknown {} {} used, it is aggregated as the other ones", kind, key);
+    }
+  }
+
+  /**
+   * Sets a boolean value and counts the requests for which it is true.
+   * 
+   * @param key the key, normally one of the flags of the collector
+   * @param value the value
+   */
+  public void setFlag(final String key, final boolean value) {
+    if (!FLAG_KEYS.contains(key)) {
+      reportUnknownKey("flag", key);
+    }
+    values.put(key, value);
+    if (value) {
+      registry.counter(key).increment();
+    }
+  }
+
   /**
    * Sets the value.
    * 
@@ -133,23 +261,56 @@ public class StatisticsCollector {
   /**
    * Start timer.
    * 
-   * @param key the key
+   * @param timer the timer
    */
-  public void startTimer(final String key) {
-    if (starts.put(key, System.nanoTime()) != null) {
+  public void startTimer(final Histogram timer) {
+    if (starts.put(timer.getName(), System.nanoTime()) != null) {
       throw new IllegalStateException("Timer already started");
     }
+    final Span span = Tracer.start(timer.getName());
+    if (span != Span.NOOP) {
+      spans.put(timer.getName(), span);
+    }
   }
 
   /**
-   * Stop timer.
+   * Start timer.
    * 
-   * @param key the key
+   * @param key the key of the timer, normally one of the timers of the
+   *          collector
    */
-  public void stopTimer(final String key) {
-    if (stops.put(key, System.nanoTime()) != null) {
+  public void startTimer(final String key) {
+    startTimer(getTimer(key));
+  }
+
+  /**
+   * Stop timer and record the elapsed time in the timer.
+   * 
+   * @param timer the timer
+   */
+  public void stopTimer(final Histogram timer) {
+    final long end = System.nanoTime();
+    if (stops.put(timer.getName(), end) != null) {
       throw new IllegalStateException("Timer already stopped");
     }
+    final Long begin = starts.get(timer.getName());
+    if (begin != null) {
+      timer.record(end - begin);
+    }
+    final Span span = spans.remove(timer.getName());
+    if (span != null) {
+      span.close();
+    }
+  }
+
+  /**
+   * Stop timer.
+   * 
+   * @param key the key of the timer, normally one of the timers of the
+   *          collector
+   */
+  public void stopTimer(final String key) {
+    stopTimer(getTimer(key));
   }
 
 }
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.handlers.mime.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free counter.
+ *
+ * @author Sébastien Aupetit
+ */
+public class Counter {
+
+  /** The name. */
+  private final String name;
+
+  /** The count. */
+  private final LongAdder count = new LongAdder();
+
+  /**
+   * Instantiates a new counter.
+   *
+   * @param name the name
+   */
+  Counter(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the count.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Gets the name.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Increment the counter.
+   */
+  public void increment() {
+    count.increment();
+  }
+
+  @Override
+  public String toString() {
+    return "Counter [" + name + "=" + getCount() + "]";
+  }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.handlers.mime.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations (in ns). The buckets are log-linear: each
+ * power of two is split in {@value #SUB_BUCKET_COUNT} buckets so that the
+ * relative error of the percentiles is below 1/{@value #SUB_BUCKET_COUNT}
+ * whatever the magnitude of the durations.
+ *
+ * @author Sébastien Aupetit
+ */
+public class Histogram {
+
+  /**
+   * A snapshot of the histogram. The durations are given in ms.
+   */
+  public static class Snapshot {
+
+    /** The name. */
+    private final String name;
+
+    /** The count. */
+    private final long count;
+
+    /** The mean. */
+    private final double mean;
+
+    /** The median. */
+    private final double p50;
+
+    /** The 90th percentile. */
+    private final double p90;
+
+    /** The 99th percentile. */
+    private final double p99;
+
+    /** The max. */
+    private final double max;
+
+    /**
+     * Instantiates a new snapshot.
+     *
+     * @param histogram the histogram
+     */
+    Snapshot(final Histogram histogram) {
+      final long[] counts = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; ++i) {
+        counts[i] = histogram.buckets.get(i);
+        total += counts[i];
+      }
+      this.name = histogram.name;
+      this.count = total;
+      this.mean = total == 0 ? 0 : toMillis(histogram.sum.sum() / (double) total);
+      this.max = toMillis(histogram.max.get());
+      this.p50 = Math.min(max, percentile(counts, total, 50));
+      this.p90 = Math.min(max, percentile(counts, total, 90));
+      this.p99 = Math.min(max, percentile(counts, total, 99));
+    }
+
+    /**
+     * Gets the number of recorded durations.
+     *
+     * @return the count
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Gets the maximum duration.
+     *
+     * @return the max
+     */
+    public double getMax() {
+      return max;
+    }
+
+    /**
+     * Gets the mean duration.
+     *
+     * @return the mean
+     */
+    public double getMean() {
+      return mean;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the median duration.
+     *
+     * @return the median
+     */
+    public double getP50() {
+      return p50;
+    }
+
+    /**
+     * Gets the 90th percentile of the durations.
+     *
+     * @return the 90th percentile
+     */
+    public double getP90() {
+      return p90;
+    }
+
+    /**
+     * Gets the 99th percentile of the durations.
+     *
+     * @return the 99th percentile
+     */
+    public double getP99() {
+      return p99;
+    }
+  }
+
+  /** The number of bits distinguishing the buckets of a power of two. */
+  private static final int SUB_BUCKET_BITS = 4;
+
+  /** The number of buckets per power of two. */
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  /** The number of buckets. */
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  /**
+   * Computes the index of the bucket of a value.
+   *
+   * @param value the value
+   * @return the index
+   */
+  static int bucketIndex(final long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) Math.max(0, value);
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /**
+   * Computes the highest value of a bucket.
+   *
+   * @param index the index
+   * @return the value
+   */
+  static long bucketHighestValue(final int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    final int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+    final long subBucket = SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT;
+    return ((subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  /**
+   * Computes a percentile.
+   *
+   * @param counts the counts of the buckets
+   * @param total the total count
+   * @param percentile the percentile
+   * @return the value in ms
+   */
+  private static double percentile(final long[] counts, final long total, final double percentile) {
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+    long cumulated = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      cumulated += counts[i];
+      if (cumulated >= rank) {
+        return toMillis(bucketHighestValue(i));
+      }
+    }
+    return toMillis(bucketHighestValue(counts.length - 1));
+  }
+
+  /**
+   * Converts a duration in ns to ms rounded to the µs.
+   *
+   * @param duration the duration in ns
+   * @return the duration in ms
+   */
+  private static double toMillis(final double duration) {
+    return Math.round(duration / 1000.0) / 1000.0;
+  }
+
+  /** The name. */
+  private final String name;
+
+  /** The buckets. */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+  /** The sum of the values. */
+  private final LongAdder sum = new LongAdder();
+
+  /** The max value. */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Instantiates a new histogram.
+   *
+   * @param name the name
+   */
+  Histogram(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * Gets the name.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Record a duration.
+   *
+   * @param duration the duration in ns
+   */
+  public void record(final long duration) {
+    final long value = Math.max(0, duration);
+    buckets.incrementAndGet(bucketIndex(value));
+    sum.add(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Take a snapshot of the histogram. The histogram is not locked: durations
+   * recorded during the snapshot may be partially taken into account.
+   *
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  @Override
+  public String toString() {
+    return "Histogram [" + name + "]";
+  }
+}
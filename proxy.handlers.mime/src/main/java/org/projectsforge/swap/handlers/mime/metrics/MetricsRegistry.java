@@ -0,0 +1,304 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.handlers.mime.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.springframework.stereotype.Component;
+
+/**
+ * The registry of the metrics of the environment. Recording a value in a
+ * registered metric does not involve any lock.
+ *
+ * @author Sébastien Aupetit
+ */
+@Component
+public final class MetricsRegistry {
+
+  /**
+   * A family of histograms sharing a name prefix, one per handler class or per
+   * resource. The histogram of a key is created on first use; the following
+   * lookups do not build any string.
+   */
+  public static final class HistogramFamily {
+
+    /** The registry. */
+    private final MetricsRegistry registry;
+
+    /** The prefix of the names. */
+    private final String prefix;
+
+    /** The histograms by key. */
+    private final ConcurrentMap<Object, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new histogram family.
+     *
+     * @param registry the registry
+     * @param prefix the prefix
+     */
+    HistogramFamily(final MetricsRegistry registry, final String prefix) {
+      this.registry = registry;
+      this.prefix = prefix;
+    }
+
+    /**
+     * Gets the histogram of a class.
+     *
+     * @param key the class
+     * @return the histogram
+     */
+    public Histogram get(final Class<?> key) {
+      Histogram histogram = histograms.get(key);
+      if (histogram == null) {
+        histogram = registry.histogram(prefix + key.getCanonicalName());
+        histograms.putIfAbsent(key, histogram);
+      }
+      return histogram;
+    }
+
+    /**
+     * Gets the histogram of a name.
+     *
+     * @param key the name
+     * @return the histogram
+     */
+    public Histogram get(final String key) {
+      Histogram histogram = histograms.get(key);
+      if (histogram == null) {
+        histogram = registry.histogram(prefix + key);
+        histograms.putIfAbsent(key, histogram);
+      }
+      return histogram;
+    }
+
+    /**
+     * Gets the prefix of the names.
+     *
+     * @return the prefix
+     */
+    public String getPrefix() {
+      return prefix;
+    }
+  }
+
+  /**
+   * Append a JSON string.
+   *
+   * @param sb the string builder
+   * @param value the value
+   */
+  private static void appendJsonString(final StringBuilder sb, final String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * Format a duration in ms.
+   *
+   * @param value the value
+   * @return the formatted value
+   */
+  private static String formatMillis(final double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+  /** The histograms. */
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  /** The counters. */
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+  /** The histogram families by prefix. */
+  private final ConcurrentMap<String, HistogramFamily> histogramFamilies = new ConcurrentHashMap<>();
+
+  /** The gauges. */
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+  /**
+   * Gets or registers a counter.
+   *
+   * @param name the name
+   * @return the counter
+   */
+  public Counter counter(final String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      final Counter created = new Counter(name);
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Gets the counters sorted by name.
+   *
+   * @return the counters
+   */
+  public List<Counter> getCounters() {
+    return new ArrayList<>(new TreeMap<>(counters).values());
+  }
+
+  /**
+   * Gets the values of the gauges sorted by name.
+   *
+   * @return the values of the gauges
+   */
+  public Map<String, Number> getGaugeValues() {
+    final Map<String, Number> values = new TreeMap<>();
+    for (final Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().getValue());
+    }
+    return values;
+  }
+
+  /**
+   * Take a snapshot of the histograms sorted by name.
+   *
+   * @return the snapshots
+   */
+  public List<Histogram.Snapshot> getHistogramSnapshots() {
+    final List<Histogram.Snapshot> snapshots = new ArrayList<>();
+    for (final Histogram histogram : new TreeMap<>(histograms).values()) {
+      snapshots.add(histogram.snapshot());
+    }
+    return snapshots;
+  }
+
+  /**
+   * Gets or registers a histogram.
+   *
+   * @param name the name
+   * @return the histogram
+   */
+  public Histogram histogram(final String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      final Histogram created = new Histogram(name);
+      histogram = histograms.putIfAbsent(name, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Gets or creates a family of histograms.
+   *
+   * @param prefix the prefix of the names of the histograms
+   * @return the histogram family
+   */
+  public HistogramFamily histogramFamily(final String prefix) {
+    HistogramFamily family = histogramFamilies.get(prefix);
+    if (family == null) {
+      final HistogramFamily created = new HistogramFamily(this, prefix);
+      family = histogramFamilies.putIfAbsent(prefix, created);
+      if (family == null) {
+        family = created;
+      }
+    }
+    return family;
+  }
+
+  /**
+   * Register a gauge. A gauge registered under the same name is replaced.
+   *
+   * @param name the name
+   * @param gauge the gauge
+   */
+  public void registerGauge(final String name, final Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Unregister a gauge.
+   *
+   * @param name the name
+   */
+  public void unregisterGauge(final String name) {
+    gauges.remove(name);
+  }
+
+  /**
+   * Export the metrics in JSON. The durations are given in ms.
+   *
+   * @return the JSON text
+   */
+  public String toJson() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("{\"timers\":{");
+    boolean first = true;
+    for (final Histogram.Snapshot snapshot : getHistogramSnapshots()) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      appendJsonString(sb, snapshot.getName());
+      sb.append(":{\"count\":").append(snapshot.getCount());
+      sb.append(",\"mean\":").append(formatMillis(snapshot.getMean()));
+      sb.append(",\"p50\":").append(formatMillis(snapshot.getP50()));
+      sb.append(",\"p90\":").append(formatMillis(snapshot.getP90()));
+      sb.append(",\"p99\":").append(formatMillis(snapshot.getP99()));
+      sb.append(",\"max\":").append(formatMillis(snapshot.getMax()));
+      sb.append('}');
+    }
+    sb.append("},\"counters\":{");
+    first = true;
+    for (final Counter counter : getCounters()) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      appendJsonString(sb, counter.getName());
+      sb.append(':').append(counter.getCount());
+    }
+    sb.append("},\"gauges\":{");
+    first = true;
+    for (final Map.Entry<String, Number> entry : getGaugeValues().entrySet()) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      appendJsonString(sb, entry.getKey());
+      final Number value = entry.getValue();
+      if (value == null || (value instanceof Double && !Double.isFinite(value.doubleValue()))) {
+        sb.append(":null");
+      } else if (value instanceof Double || value instanceof Float) {
+        sb.append(':').append(String.format(Locale.ROOT, "%.3f", value.doubleValue()));
+      } else {
+        sb.append(':').append(value);
+      }
+    }
+    sb.append("}}");
+    return sb.toString();
+  }
+}
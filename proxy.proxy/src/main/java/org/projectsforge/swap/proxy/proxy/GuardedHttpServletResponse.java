@@ -0,0 +1,279 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.proxy;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.eclipse.jetty.io.EofException;
+
+/**
+ * The response given to the asynchronous proxying while it writes to the
+ * client. Once it is closed, the writes are ignored and the output stream
+ * fails as if the client had gone away, so that the response can be completed
+ * and recycled by the server while the server request is still running.
+ * Closing waits for the write in progress, if any.
+ *
+ * @author Sébastien Aupetit
+ */
+final class GuardedHttpServletResponse extends HttpServletResponseWrapper {
+
+  /**
+   * An operation on the wrapped response.
+   */
+  private interface Operation {
+
+    /**
+     * Run the operation.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void run() throws IOException;
+  }
+
+  /**
+   * The output stream of the wrapped response, closed with it.
+   */
+  private final class GuardedOutputStream extends ServletOutputStream {
+
+    /** The output stream of the wrapped response. */
+    private final ServletOutputStream out;
+
+    /**
+     * Instantiates a new guarded output stream.
+     *
+     * @param out the output stream of the wrapped response
+     */
+    GuardedOutputStream(final ServletOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void close() throws IOException {
+      write(() -> out.close());
+    }
+
+    @Override
+    public void flush() throws IOException {
+      write(() -> out.flush());
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      write(() -> out.write(b, off, len));
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      write(() -> out.write(b));
+    }
+
+    /**
+     * Run a write on the output stream of the wrapped response.
+     *
+     * @param operation the operation
+     * @throws IOException Signals that an I/O exception has occurred or that
+     *           the response is closed.
+     */
+    private void write(final Operation operation) throws IOException {
+      if (!run(operation)) {
+        throw new EofException("The response has been completed");
+      }
+    }
+  }
+
+  /** The number of operations in progress on the wrapped response. */
+  private int writers;
+
+  /** Indicate if the response is closed. */
+  private boolean closed;
+
+  /** The guarded output stream (null until requested). */
+  private GuardedOutputStream outputStream;
+
+  /**
+   * Instantiates a new guarded http servlet response.
+   *
+   * @param response the response
+   */
+  GuardedHttpServletResponse(final HttpServletResponse response) {
+    super(response);
+  }
+
+  @Override
+  public void addCookie(final Cookie cookie) {
+    runQuietly(() -> super.addCookie(cookie));
+  }
+
+  @Override
+  public void addDateHeader(final String name, final long date) {
+    runQuietly(() -> super.addDateHeader(name, date));
+  }
+
+  @Override
+  public void addHeader(final String name, final String value) {
+    runQuietly(() -> super.addHeader(name, value));
+  }
+
+  @Override
+  public void addIntHeader(final String name, final int value) {
+    runQuietly(() -> super.addIntHeader(name, value));
+  }
+
+  /**
+   * Close the response: the following operations do nothing. It waits for the
+   * operation in progress, if any.
+   */
+  synchronized void close() {
+    closed = true;
+    boolean interrupted = false;
+    while (writers > 0) {
+      try {
+        wait();
+      } catch (final InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    run(() -> super.flushBuffer());
+  }
+
+  @Override
+  public synchronized ServletOutputStream getOutputStream() throws IOException {
+    if (outputStream == null) {
+      outputStream = new GuardedOutputStream(super.getOutputStream());
+    }
+    return outputStream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    return new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+  }
+
+  @Override
+  public void reset() {
+    runQuietly(() -> super.reset());
+  }
+
+  @Override
+  public void resetBuffer() {
+    runQuietly(() -> super.resetBuffer());
+  }
+
+  /**
+   * Run an operation on the wrapped response unless it is closed.
+   *
+   * @param operation the operation
+   * @return true, if the operation has been run
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private boolean run(final Operation operation) throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      writers++;
+    }
+    try {
+      operation.run();
+      return true;
+    } finally {
+      synchronized (this) {
+        if (--writers == 0) {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Run an operation which can not fail on the wrapped response unless it is
+   * closed.
+   *
+   * @param operation the operation
+   */
+  private void runQuietly(final Operation operation) {
+    try {
+      run(operation);
+    } catch (final IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void sendError(final int sc) throws IOException {
+    run(() -> super.sendError(sc));
+  }
+
+  @Override
+  public void sendError(final int sc, final String msg) throws IOException {
+    run(() -> super.sendError(sc, msg));
+  }
+
+  @Override
+  public void sendRedirect(final String location) throws IOException {
+    run(() -> super.sendRedirect(location));
+  }
+
+  @Override
+  public void setCharacterEncoding(final String charset) {
+    runQuietly(() -> super.setCharacterEncoding(charset));
+  }
+
+  @Override
+  public void setContentLength(final int len) {
+    runQuietly(() -> super.setContentLength(len));
+  }
+
+  @Override
+  public void setContentType(final String type) {
+    runQuietly(() -> super.setContentType(type));
+  }
+
+  @Override
+  public void setDateHeader(final String name, final long date) {
+    runQuietly(() -> super.setDateHeader(name, date));
+  }
+
+  @Override
+  public void setHeader(final String name, final String value) {
+    runQuietly(() -> super.setHeader(name, value));
+  }
+
+  @Override
+  public void setIntHeader(final String name, final int value) {
+    runQuietly(() -> super.setIntHeader(name, value));
+  }
+
+  @Override
+  public void setStatus(final int sc) {
+    runQuietly(() -> super.setStatus(sc));
+  }
+
+  @SuppressWarnings("deprecation")
+  @Override
+  public void setStatus(final int sc, final String sm) {
+    runQuietly(() -> super.setStatus(sc, sm));
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.proxy;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * A handler giving the CONNECT requests to the proxy servlet. The target of a
+ * CONNECT request is an authority (host:port) and not a path, so such requests
+ * are never mapped to a servlet by the servlet contexts.
+ *
+ * @author Sébastien Aupetit
+ */
+public class ProxyConnectHandler extends HandlerWrapper {
+
+  /** The proxy servlet. */
+  private final ProxyServlet proxyServlet;
+
+  /**
+   * Instantiates a new proxy connect handler.
+   *
+   * @param proxyServlet the proxy servlet
+   */
+  public ProxyConnectHandler(final ProxyServlet proxyServlet) {
+    this.proxyServlet = proxyServlet;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.eclipse.jetty.server.handler.HandlerWrapper#handle(java.lang.String,
+   * org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest,
+   * javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(final String target, final Request baseRequest, final HttpServletRequest request,
+      final HttpServletResponse response) throws IOException, ServletException {
+    if ("CONNECT".equalsIgnoreCase(request.getMethod())) {
+      baseRequest.setHandled(true);
+      proxyServlet.service(request, response);
+    } else {
+      super.handle(target, baseRequest, request, response);
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package org.projectsforge.swap.proxy.proxy;
 
+import org.projectsforge.utils.propertyregistry.BooleanProperty;
 import org.projectsforge.utils.propertyregistry.IntegerProperty;
 import org.projectsforge.utils.propertyregistry.PropertyHolder;
 import org.projectsforge.utils.propertyregistry.StringProperty;
@@ -19,4 +20,48 @@ public class ProxyPropertyHolder implements PropertyHolder {
 
   public static final StringProperty httpHost = new StringProperty("proxy.http.host", "localhost");
 
+  public static final BooleanProperty asyncEnabled = new BooleanProperty("proxy.async.enabled", true);
+
+  public static final IntegerProperty asyncWorkerThreads = new IntegerProperty("proxy.async.workerThreads", 64);
+
+  public static final IntegerProperty asyncQueueSize = new IntegerProperty("proxy.async.queueSize", 1024);
+
+  public static final IntegerProperty asyncTimeout = new IntegerProperty("proxy.async.timeout", 2 * 60);
+
+  public static final IntegerProperty sslContextCacheMaxEntries = new IntegerProperty(
+      "proxy.ssl.contextCache.maxEntries", 256);
+
+  public static final IntegerProperty sslSessionCacheSize = new IntegerProperty("proxy.ssl.sessionCacheSize",
+      1024);
+
+  public static final IntegerProperty sslSessionTimeout = new IntegerProperty("proxy.ssl.sessionTimeout",
+      60 * 60);
+
+  public static final BooleanProperty tracingEnabled = new BooleanProperty("proxy.tracing.enabled", false);
+
+  public static final IntegerProperty tracingThreshold = new IntegerProperty("proxy.tracing.threshold", 1000);
+
+  public static final IntegerProperty tracingBufferSize = new IntegerProperty("proxy.tracing.bufferSize", 64);
+
+  public static final BooleanProperty transformedCacheEnabled = new BooleanProperty(
+      "proxy.transformedCache.enabled", true);
+
+  public static final IntegerProperty transformedCacheMaxEntries = new IntegerProperty(
+      "proxy.transformedCache.maxEntries", 256);
+
+  public static final IntegerProperty tunnelBufferSize = new IntegerProperty("proxy.tunnel.bufferSize",
+      16 * 1024);
+
+  public static final IntegerProperty tunnelConnectTimeout = new IntegerProperty("proxy.tunnel.connectTimeout",
+      30);
+
+  public static final IntegerProperty tunnelIdleTimeout = new IntegerProperty("proxy.tunnel.idleTimeout", 5 * 60);
+
+  public static final IntegerProperty tunnelMaxLifetime = new IntegerProperty("proxy.tunnel.maxLifetime",
+      24 * 60 * 60);
+
+  public static final IntegerProperty tunnelMaxThreads = new IntegerProperty("proxy.tunnel.maxThreads", 8);
+
+  public static final IntegerProperty tunnelResolverThreads = new IntegerProperty("proxy.tunnel.resolverThreads", 4);
+
 }
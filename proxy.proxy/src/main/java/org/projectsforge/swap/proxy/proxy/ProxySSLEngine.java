@@ -14,13 +14,9 @@ package org.projectsforge.swap.proxy.proxy;
 
 import java.nio.ByteBuffer;
 import java.security.AccessController;
-import java.security.KeyStore;
 import java.security.Principal;
 import java.security.PrivilegedAction;
 import java.security.cert.Certificate;
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
@@ -28,11 +24,7 @@ import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSessionContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 import javax.security.cert.X509Certificate;
-import org.projectsforge.swap.proxy.certificate.CertificateManager;
-import org.projectsforge.swap.proxy.certificate.CertificatePropertyHolder;
 import org.projectsforge.swap.proxy.certificate.CertificateTarget;
 
 /**
@@ -371,8 +363,8 @@ public class ProxySSLEngine extends SSLEngine {
   /** The engine. */
   private SSLEngine engine;
 
-  /** The certificate manager. */
-  private final CertificateManager certificateManager;
+  /** The cache of the SSL contexts. */
+  private final SSLContextCache sslContextCache;
 
   /** The enabled cipher suites. */
   private String[] enabledCipherSuites;
@@ -401,10 +393,10 @@ public class ProxySSLEngine extends SSLEngine {
   /**
    * Instantiates a new proxy SSL engine.
    * 
-   * @param certificateManager the certificate manager
+   * @param sslContextCache the cache of the SSL contexts
    */
-  public ProxySSLEngine(final CertificateManager certificateManager) {
-    this.certificateManager = certificateManager;
+  public ProxySSLEngine(final SSLContextCache sslContextCache) {
+    this.sslContextCache = sslContextCache;
   }
 
   /*
@@ -444,21 +436,6 @@ public class ProxySSLEngine extends SSLEngine {
     }
   }
 
-  /* ------------------------------------------------------------ */
-  /**
-   * Creates the ssl context.
-   * 
-   * @return the sSL context
-   * @throws Exception the exception
-   */
-  private SSLContext createSSLContext() throws Exception {
-    final KeyManager[] keyManagers = getKeyManagers();
-    final TrustManager[] trustManagers = getTrustManagers();
-    final SSLContext context = SSLContext.getInstance("TLS");
-    context.init(keyManagers, trustManagers, null);
-    return context;
-  }
-
   /* ------------------------------------------------------------ */
   /**
    * Creates the ssl engine.
@@ -467,7 +444,7 @@ public class ProxySSLEngine extends SSLEngine {
    * @throws Exception the exception
    */
   private synchronized SSLEngine createSSLEngine() throws Exception {
-    final SSLEngine engine = createSSLContext().createSSLEngine();
+    final SSLEngine engine = sslContextCache.getContext(certificateTarget).createSSLEngine();
     engine.setUseClientMode(false);
     if (enabledCipherSuites != null) {
       engine.setEnabledCipherSuites(enabledCipherSuites);
@@ -548,20 +525,6 @@ public class ProxySSLEngine extends SSLEngine {
     }
   }
 
-  /* ------------------------------------------------------------ */
-  /**
-   * Gets the key managers.
-   * 
-   * @return the key managers
-   * @throws Exception the exception
-   */
-  private KeyManager[] getKeyManagers() throws Exception {
-    final KeyStore keyStore = certificateManager.getKeyStoreForTarget(certificateTarget);
-    final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-    keyManagerFactory.init(keyStore, CertificatePropertyHolder.pemPassword.get().toCharArray());
-    return keyManagerFactory.getKeyManagers();
-  }
-
   /*
    * (non-Javadoc)
    * @see javax.net.ssl.SSLEngine#getNeedClientAuth()
@@ -610,19 +573,6 @@ public class ProxySSLEngine extends SSLEngine {
     }
   }
 
-  /**
-   * Gets the trust managers.
-   * 
-   * @return the trust managers
-   * @throws Exception the exception
-   */
-  private TrustManager[] getTrustManagers() throws Exception {
-    final KeyStore trustStore = certificateManager.getKeyStoreForTarget(certificateTarget);
-    final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
-    trustManagerFactory.init(trustStore);
-    return trustManagerFactory.getTrustManagers();
-  }
-
   /*
    * (non-Javadoc)
    * @see javax.net.ssl.SSLEngine#getUseClientMode()
@@ -649,6 +599,19 @@ public class ProxySSLEngine extends SSLEngine {
     }
   }
 
+  /**
+   * Notify the SSL context cache when the result ends a handshake.
+   * 
+   * @param result the result of a wrap or unwrap operation
+   * @return the result
+   */
+  private SSLEngineResult handshakeCompleted(final SSLEngineResult result) {
+    if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+      sslContextCache.handshakeCompleted(engine.getSession());
+    }
+    return result;
+  }
+
   /**
    * Checks if is connected.
    * 
@@ -684,6 +647,15 @@ public class ProxySSLEngine extends SSLEngine {
     }
   }
 
+  /**
+   * Starts the preparation of the certificate of a host in background.
+   * 
+   * @param certificateTarget the host
+   */
+  public void prepareHost(final CertificateTarget certificateTarget) {
+    sslContextCache.prepare(certificateTarget);
+  }
+
   /*
    * (non-Javadoc)
    * @see javax.net.ssl.SSLEngine#setEnabledCipherSuites(java.lang.String[])
@@ -757,10 +729,7 @@ public class ProxySSLEngine extends SSLEngine {
   @Override
   public synchronized SSLEngineResult unwrap(final ByteBuffer src, final ByteBuffer[] dests,
       final int offset, final int length) throws SSLException {
-    if (engine == null) {
-      System.err.println(src);
-    }
-    return engine.unwrap(src, dests, offset, length);
+    return handshakeCompleted(engine.unwrap(src, dests, offset, length));
   }
 
   /**
@@ -778,7 +747,7 @@ public class ProxySSLEngine extends SSLEngine {
   @Override
   public synchronized SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset,
       final int length, final ByteBuffer dst) throws SSLException {
-    return engine.wrap(srcs, offset, length, dst);
+    return handshakeCompleted(engine.wrap(srcs, offset, length, dst));
 
   }
 }
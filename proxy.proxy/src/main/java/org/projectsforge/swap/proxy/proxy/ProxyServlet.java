@@ -15,12 +15,29 @@ package org.projectsforge.swap.proxy.proxy;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.GenericServlet;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -29,24 +46,33 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.http.HttpURI;
 import org.eclipse.jetty.io.EofException;
-import org.eclipse.jetty.util.IO;
 import org.projectsforge.swap.core.environment.Environment;
+import org.projectsforge.swap.core.environment.LoggingContext;
+import org.projectsforge.swap.core.environment.trace.Span;
+import org.projectsforge.swap.core.environment.trace.Tracer;
+import org.projectsforge.swap.core.handlers.Handler;
 import org.projectsforge.swap.core.handlers.HandlerContext;
 import org.projectsforge.swap.core.handlers.HandlerExecutor;
 import org.projectsforge.swap.core.handlers.HandlerFilter;
+import org.projectsforge.swap.core.handlers.HandlerWorkerPool;
+import org.projectsforge.swap.core.handlers.HandlersManager;
 import org.projectsforge.swap.core.handlers.Resource;
 import org.projectsforge.swap.core.http.CacheManager;
+import org.projectsforge.swap.core.http.ContentMemoryBudget;
 import org.projectsforge.swap.core.http.Mime;
 import org.projectsforge.swap.core.http.Request;
 import org.projectsforge.swap.core.http.Response;
+import org.projectsforge.swap.core.http.ServletHttpClient;
 import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.handlers.mime.CacheKeyProvider;
 import org.projectsforge.swap.handlers.mime.MimeHandler;
 import org.projectsforge.swap.handlers.mime.RequestFilter;
 import org.projectsforge.swap.handlers.mime.ResponseFilter;
 import org.projectsforge.swap.handlers.mime.StatisticsCollector;
+import org.projectsforge.swap.handlers.mime.metrics.Histogram;
+import org.projectsforge.swap.handlers.mime.metrics.MetricsRegistry;
 import org.projectsforge.swap.handlers.mime.StatisticsCollectorInterceptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,12 +86,200 @@ import org.springframework.beans.factory.annotation.Qualifier;
  */
 public class ProxyServlet extends GenericServlet {
 
+  /**
+   * The asynchronous proxying of a request. The client is answered with a 503
+   * (service unavailable) if the proxy executor is saturated and with a 504
+   * (gateway timeout) if the proxying is not completed in time.
+   */
+  private final class ProxyingTask implements Runnable, AsyncListener {
+
+    /** The http servlet request. */
+    private final HttpServletRequest httpServletRequest;
+
+    /** The http servlet response. */
+    private final HttpServletResponse httpServletResponse;
+
+    /**
+     * The http servlet response given to the proxying, closed before the
+     * response is completed.
+     */
+    private final GuardedHttpServletResponse guardedResponse;
+
+    /** The async context. */
+    private final AsyncContext asyncContext;
+
+    /** Indicate if the response is completed, by the proxying or by an error. */
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /**
+     * Instantiates a new proxying task and starts the asynchronous processing
+     * of the request.
+     * 
+     * @param httpServletRequest the http servlet request
+     * @param httpServletResponse the http servlet response
+     */
+    ProxyingTask(final HttpServletRequest httpServletRequest, final HttpServletResponse httpServletResponse) {
+      this.httpServletRequest = httpServletRequest;
+      this.httpServletResponse = httpServletResponse;
+      guardedResponse = new GuardedHttpServletResponse(httpServletResponse);
+      asyncContext = httpServletRequest.startAsync();
+      asyncContext.setTimeout(ProxyPropertyHolder.asyncTimeout.get() * 1000L);
+      asyncContext.addListener(this);
+    }
+
+    /**
+     * Answer with an error and complete the response unless it is already
+     * completed. The proxying may still be running: it can no longer write to
+     * the response once the write in progress, if any, is done.
+     * 
+     * @param statusCode the status code
+     */
+    private void abort(final int statusCode) {
+      if (completed.compareAndSet(false, true)) {
+        guardedResponse.close();
+        try {
+          if (!httpServletResponse.isCommitted()) {
+            httpServletResponse.sendError(statusCode);
+          }
+        } catch (final IOException | RuntimeException e) {
+          logger.debug("An exception occurred", e);
+        } finally {
+          asyncContext.complete();
+        }
+      }
+    }
+
+    /**
+     * Send the response of the proxying and complete it.
+     * 
+     * @param statisticsCollector the statistics collector
+     * @param trace the root span of the request
+     * @param url the url
+     * @param request the filtered request or null if the request has been
+     *          blocked or has failed
+     * @param response the response of the server or null if the request has
+     *          been blocked or has failed
+     * @param error the error or null if none occurred
+     */
+    private void complete(final StatisticsCollector statisticsCollector, final Span trace, final String url,
+        final Request request, final Response response, final Throwable error) {
+      if (!completed.compareAndSet(false, true)) {
+        // the client has already been answered with an error
+        statisticsCollector.stopTimer(StatisticsCollector.PROXY_ALL_TIMER_KEY);
+        trace.close();
+        return;
+      }
+      guardedResponse.close();
+      boolean done = false;
+      try {
+        if (error != null) {
+          throw error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        }
+        if (response != null) {
+          doProxyingSendResponse(statisticsCollector, request, response, httpServletResponse);
+        }
+        httpServletResponse.flushBuffer();
+        done = true;
+      } catch (final EofException e) {
+        logger.debug("EOF exception", e);
+      } catch (final Throwable e) {
+        logger.warn("An exception occurred", e);
+        if (!httpServletResponse.isCommitted()) {
+          try {
+            httpServletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          } catch (final IOException e1) {
+            logger.debug("An exception occurred", e1);
+          }
+        }
+      } finally {
+        statisticsCollector.stopTimer(StatisticsCollector.PROXY_ALL_TIMER_KEY);
+        trace.close();
+        asyncContext.complete();
+      }
+      if (done) {
+        doProxyingDone(statisticsCollector, url);
+      }
+    }
+
+    @Override
+    public void onComplete(final AsyncEvent event) {
+      // nothing to do
+    }
+
+    @Override
+    public void onError(final AsyncEvent event) {
+      // nothing to do
+    }
+
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+      // nothing to do
+    }
+
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+      logger.warn("Proxying of {} timed out", httpServletRequest.getRequestURL());
+      abort(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+    }
+
+    /**
+     * Answer to the client that the proxy is saturated.
+     */
+    void reject() {
+      rejectedCount.incrementAndGet();
+      logger.warn("Proxying of {} rejected, the proxy is saturated", httpServletRequest.getRequestURL());
+      abort(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    @Override
+    public void run() {
+      final StatisticsCollector statisticsCollector = new StatisticsCollector(metricsRegistry);
+      statisticsCollector.startTimer(StatisticsCollector.PROXY_ALL_TIMER_KEY);
+      String url = httpServletRequest.getRequestURL().toString();
+      LoggingContext.startRequest(url);
+      final Span trace = Tracer.startTrace(url);
+      try {
+        Request request = cacheManager.newServletRequest(httpServletRequest);
+        statisticsCollector.setValue(StatisticsCollector.PROXY_ORIGINALREQUEST_VALUE_KEY, request);
+        url = request.toString();
+        LoggingContext.setUrl(url);
+        request = doProxyingRequestFiltering(statisticsCollector, request, guardedResponse);
+        if (request == null) {
+          complete(statisticsCollector, trace, url, null, null, null);
+          return;
+        }
+        statisticsCollector.startTimer(StatisticsCollector.PROXY_GETRESPONSE_TIMER_KEY);
+        final String finalUrl = url;
+        final Request finalRequest = request;
+        // the continuations run with the logging context and the span of the
+        // request
+        final Executor contextExecutor = LoggingContext.wrap(Tracer.wrap(proxyExecutor));
+        request.doRequestAsync(guardedResponse, contextExecutor).whenCompleteAsync((response, error) -> {
+          statisticsCollector.stopTimer(StatisticsCollector.PROXY_GETRESPONSE_TIMER_KEY);
+          complete(statisticsCollector, trace, finalUrl, finalRequest, response, error);
+        }, contextExecutor);
+      } catch (final IOException | RuntimeException e) {
+        complete(statisticsCollector, trace, url, null, null, e);
+      } finally {
+        // the request is continued by another thread
+        Tracer.detach();
+        LoggingContext.endRequest();
+      }
+    }
+  }
+
   /** The Constant serialVersionUID. */
   private static final long serialVersionUID = 0L;
 
   /** The logger. */
   private final Logger logger = LoggerFactory.getLogger(ProxyServlet.class);
 
+  /**
+   * The logger given to the handler contexts. The request is identified by the
+   * {@link LoggingContext}.
+   */
+  private static final Logger contextLogger = LoggerFactory.getLogger(HandlerContext.class);
+
   /**
    * The default port to connect to if it is unspecified in the connect request.
    */
@@ -80,6 +294,44 @@ public class ProxyServlet extends GenericServlet {
   @Autowired
   private Environment environment;
 
+  /** The handlers manager. */
+  @Autowired
+  private HandlersManager handlersManager;
+
+  /** The budget of the memory used by the contents. */
+  @Autowired
+  private ContentMemoryBudget contentMemoryBudget;
+
+  /** The worker threads of the handlers. */
+  @Autowired
+  private HandlerWorkerPool handlerWorkerPool;
+
+  /** The http client. */
+  @Autowired
+  private ServletHttpClient httpClient;
+
+  /** The registry aggregating the statistics of all the requests. */
+  @Autowired
+  private MetricsRegistry metricsRegistry;
+
+  /** The cache of the responses produced by the MIME handlers. */
+  private final TransformedResponseCache transformedResponseCache = new TransformedResponseCache();
+
+  /** The prefix of the names of the gauges registered by the proxy. */
+  private static final String GAUGE_PREFIX = "org.projectsforge.swap.proxy.";
+
+  /** The relay of the CONNECT tunnels. */
+  private final TunnelRelay tunnelRelay = new TunnelRelay();
+
+  /**
+   * The executor handling the proxied requests asynchronously (null if the
+   * requests are handled by the threads of the server).
+   */
+  private ThreadPoolExecutor proxyExecutor;
+
+  /** The number of requests rejected because the proxy executor is saturated. */
+  private final AtomicLong rejectedCount = new AtomicLong();
+
   @Autowired(required = false)
   private StatisticsCollectorInterceptor[] statisticsCollectorInterceptors;
 
@@ -89,7 +341,19 @@ public class ProxyServlet extends GenericServlet {
    */
   @Override
   public void destroy() {
-
+    for (final String name : metricsRegistry.getGaugeValues().keySet()) {
+      if (name.startsWith(GAUGE_PREFIX)) {
+        metricsRegistry.unregisterGauge(name);
+      }
+    }
+    if (proxyExecutor != null) {
+      proxyExecutor.shutdown();
+    }
+    try {
+      tunnelRelay.stop();
+    } catch (final Exception e) {
+      logger.warn("An exception occurred while stopping the tunnel relay", e);
+    }
   }
 
   /**
@@ -101,19 +365,12 @@ public class ProxyServlet extends GenericServlet {
    */
   private void doConnect(final HttpServletRequest httpServletRequest, final HttpServletResponse httpServletResponse)
       throws IOException {
-    final HttpURI uri = new HttpURI(httpServletRequest.getRequestURI());
-
-    final InputStream in = httpServletRequest.getInputStream();
-    final OutputStream out = httpServletResponse.getOutputStream();
-
-    try (final Socket socket = new Socket(uri.getHost(), uri.getPort() == -1 ? defaultPort : uri.getPort())) {
-      httpServletResponse.setStatus(HttpServletResponse.SC_OK);
-      httpServletResponse.setHeader(HttpHeaders.CONNECTION, "close");
-      httpServletResponse.flushBuffer();
-
-      IO.copyThread(socket.getInputStream(), out);
-      IO.copy(in, socket.getOutputStream());
-    }
+    // the target of a CONNECT request is an authority (host:port)
+    final byte[] authority = httpServletRequest.getRequestURI().getBytes(StandardCharsets.ISO_8859_1);
+    final HttpURI uri = new HttpURI();
+    uri.parseConnect(authority, 0, authority.length);
+    tunnelRelay.open(httpServletRequest, httpServletResponse, uri.getHost(), uri.getPort() == -1 ? defaultPort
+        : uri.getPort());
   }
 
   /**
@@ -123,65 +380,65 @@ public class ProxyServlet extends GenericServlet {
    * @param httpServletResponse the http servlet response
    * @throws IOException Signals that an I/O exception has occurred.
    */
-  @SuppressWarnings("deprecation")
   private void doProxying(final HttpServletRequest httpServletRequest, final HttpServletResponse httpServletResponse)
       throws IOException {
-    final StatisticsCollector statisticsCollector = new StatisticsCollector();
+    if (proxyExecutor != null && httpServletRequest.isAsyncSupported()) {
+      doProxyingAsync(httpServletRequest, httpServletResponse);
+      return;
+    }
+
+    final StatisticsCollector statisticsCollector = new StatisticsCollector(metricsRegistry);
     statisticsCollector.startTimer(StatisticsCollector.PROXY_ALL_TIMER_KEY);
 
     Request request = cacheManager.newServletRequest(httpServletRequest);
     statisticsCollector.setValue(StatisticsCollector.PROXY_ORIGINALREQUEST_VALUE_KEY, request);
     final String url = request.toString();
-    final Logger contextLogger = LoggerFactory.getLogger(HandlerContext.class.getSimpleName() + "." + url);
+    LoggingContext.startRequest(url);
+    final Span trace = Tracer.startTrace(url);
     try {
-      // Filter request
-      request = doRequestFiltering(statisticsCollector, contextLogger, request);
-      if (request == null) {
-        statisticsCollector.setValue(StatisticsCollector.PROXY_REQUESTFILTERED_VALUE_KEY, Boolean.TRUE);
-        httpServletResponse.sendError(404, "Blocked request");
-      } else {
-        statisticsCollector.setValue(StatisticsCollector.PROXY_REQUESTFILTERED_VALUE_KEY, Boolean.FALSE);
-        logger.info("Serving {}", request);
-
-        statisticsCollector.startTimer(StatisticsCollector.PROXY_GETRESPONSE_TIMER_KEY);
-        final Response response = request.doRequest(httpServletResponse);
-        statisticsCollector.stopTimer(StatisticsCollector.PROXY_GETRESPONSE_TIMER_KEY);
-        statisticsCollector.setValue(StatisticsCollector.PROXY_ORIGINALRESPONSE_VALUE_KEY, response);
-        final String responseMime = response.getMime();
-
-        Response result = response;
-
-        // filter response
-        if (doProxyingResponseFiltering(statisticsCollector, contextLogger, response, responseMime)) {
-          statisticsCollector.setValue(StatisticsCollector.PROXY_RESPONSEFILTERED_VALUE_KEY, Boolean.FALSE);
-          if (!response.isDirect() && response.getContent() != null) {
-            // something to do, response is stored and status code is 200
-            result = doProxyingMimeHandle(statisticsCollector, contextLogger, response, responseMime);
-          }
-        } else {
-          statisticsCollector.setValue(StatisticsCollector.PROXY_RESPONSEFILTERED_VALUE_KEY, Boolean.TRUE);
-        }
-
-        if (!response.isDirect()) {
-          // send result
-          httpServletResponse.setStatus(result.getStatusCode(), result.getStatusReason());
-          // send headers
-          Util.sendResponseHeaders(httpServletResponse, result.getHeaders());
-          if (result.getContent() != null) {
-            try (final InputStream in = result.getContent().getInputStream()) {
-              try (final ServletOutputStream out = httpServletResponse.getOutputStream()) {
-                Util.dumpTo(in, out);
-              }
-            } catch (final IOException e) {
-              logger.debug("An exception occurred", e);
-            }
-          }
+      try {
+        request = doProxyingRequestFiltering(statisticsCollector, request, httpServletResponse);
+        if (request != null) {
+          statisticsCollector.startTimer(StatisticsCollector.PROXY_GETRESPONSE_TIMER_KEY);
+          final Response response = request.doRequest(httpServletResponse);
+          statisticsCollector.stopTimer(StatisticsCollector.PROXY_GETRESPONSE_TIMER_KEY);
+          doProxyingSendResponse(statisticsCollector, request, response, httpServletResponse);
         }
+        httpServletResponse.flushBuffer();
+      } finally {
+        statisticsCollector.stopTimer(StatisticsCollector.PROXY_ALL_TIMER_KEY);
       }
-      httpServletResponse.flushBuffer();
+      doProxyingDone(statisticsCollector, url);
     } finally {
-      statisticsCollector.stopTimer(StatisticsCollector.PROXY_ALL_TIMER_KEY);
+      trace.close();
+      LoggingContext.endRequest();
     }
+  }
+
+  /**
+   * Do proxying asynchronously. The thread of the server is released
+   * immediately: the request is handled by the proxy executor and the
+   * response is sent once the server has answered. The requests waiting for
+   * an identical request in progress do not use any thread, but a fetch from
+   * the server is blocking: it holds a worker until the content is received,
+   * so that at most {@link ProxyPropertyHolder#asyncWorkerThreads} fetches are
+   * in progress and the following requests wait in the queue.
+   * 
+   * @param httpServletRequest the http servlet request
+   * @param httpServletResponse the http servlet response
+   */
+  private void doProxyingAsync(final HttpServletRequest httpServletRequest,
+      final HttpServletResponse httpServletResponse) {
+    proxyExecutor.execute(new ProxyingTask(httpServletRequest, httpServletResponse));
+  }
+
+  /**
+   * Log the end of the proxying and give the statistics to the interceptors.
+   * 
+   * @param statisticsCollector the statistics collector
+   * @param url the url
+   */
+  private void doProxyingDone(final StatisticsCollector statisticsCollector, final String url) {
     logger.info("Service done in {}ms for {}",
         statisticsCollector.getElapsedTimer(StatisticsCollector.PROXY_ALL_TIMER_KEY), url);
     if (statisticsCollectorInterceptors != null) {
@@ -191,11 +448,25 @@ public class ProxyServlet extends GenericServlet {
     }
   }
 
-  private Response doProxyingMimeHandle(final StatisticsCollector statisticsCollector, final Logger contextLogger,
-      final Response response, final String responseMime) {
+  private Response doProxyingMimeHandle(final StatisticsCollector statisticsCollector, final Response response,
+      final String responseMime) {
     statisticsCollector.startTimer(StatisticsCollector.PROXY_MIMEHANDLER_ALL_TIMER_KEY);
 
     try {
+      // reuse the result of a previous transformation of the same content
+      final HandlerFilter mimeHandlerFilter = newMimeHandlerFilter(responseMime);
+      final TransformedResponseCache.Key cacheKey = newTransformedCacheKey(response, mimeHandlerFilter);
+      if (cacheKey != null) {
+        final Response cached = transformedResponseCache.get(response, cacheKey);
+        if (cached != null) {
+          contextLogger.debug("Using cached transformed response");
+          statisticsCollector.setFlag(StatisticsCollector.PROXY_TRANSFORMCACHEHIT_VALUE_KEY, true);
+          statisticsCollector.setValue(StatisticsCollector.PROXY_EFFECTIVERESPONSE_VALUE_KEY, cached);
+          return cached;
+        }
+      }
+      statisticsCollector.setFlag(StatisticsCollector.PROXY_TRANSFORMCACHEHIT_VALUE_KEY, false);
+
       final Resource<Response> responseResource = new Resource<Response>(MimeHandler.OUTPUT_RESPONSE);
 
       try (final HandlerContext<MimeHandler> mimeHandlerContext = environment
@@ -204,14 +475,14 @@ public class ProxyServlet extends GenericServlet {
                 @Override
                 public void execute(final HandlerContext<MimeHandler> context, final Class<?> handlerClass,
                     final MimeHandler handler) throws Exception {
-                  statisticsCollector.startTimer(StatisticsCollector.PROXY_MIMEHANDLER_DO_TIMER_KEY
-                      + handler.getClass().getCanonicalName());
+                  final Histogram timer = statisticsCollector.getTimer(
+                      StatisticsCollector.PROXY_MIMEHANDLER_DO_TIMER_KEY, handler.getClass());
+                  statisticsCollector.startTimer(timer);
                   try {
                     contextLogger.debug("Handling response with {}", handlerClass.getName());
                     handler.handle(context, statisticsCollector, response);
                   } finally {
-                    statisticsCollector.stopTimer(StatisticsCollector.PROXY_MIMEHANDLER_DO_TIMER_KEY
-                        + handler.getClass().getCanonicalName());
+                    statisticsCollector.stopTimer(timer);
                   }
                 }
 
@@ -228,27 +499,16 @@ public class ProxyServlet extends GenericServlet {
                     }
                   }
                 }
-              }, new HandlerFilter() {
-                @Override
-                public boolean accept(final Class<?> handlerClass) {
-                  final Mime mime = handlerClass.getAnnotation(Mime.class);
-                  if (mime != null) {
-                    for (final String m : mime.mime()) {
-                      if ("*".equals(m) || responseMime.equalsIgnoreCase(m)) {
-                        return true;
-                      }
-                    }
-                  } else {
-                    contextLogger.error("@Mime annotation is missing for handler class {}", handlerClass.getName());
-                  }
-                  return false;
-                }
-
-              }))) {
+              }, mimeHandlerFilter))) {
         mimeHandlerContext.addResource(responseResource);
 
         try {
-          if (mimeHandlerContext.execute() && responseResource.get() != null) {
+          final boolean success = mimeHandlerContext.execute();
+          recordResourcesContention(statisticsCollector, mimeHandlerContext);
+          if (success && responseResource.get() != null) {
+            if (cacheKey != null) {
+              transformedResponseCache.put(response, cacheKey, responseResource.get());
+            }
             // send modified response
             statisticsCollector.setValue(StatisticsCollector.PROXY_EFFECTIVERESPONSE_VALUE_KEY, responseResource.get());
             return responseResource.get();
@@ -267,8 +527,81 @@ public class ProxyServlet extends GenericServlet {
     }
   }
 
-  private boolean doProxyingResponseFiltering(final StatisticsCollector statisticsCollector,
-      final Logger contextLogger, final Response response, final String responseMime) {
+  /**
+   * Filter the request and answer to the client if it is blocked.
+   * 
+   * @param statisticsCollector the statistics collector
+   * @param request the request
+   * @param httpServletResponse the http servlet response
+   * @return the filtered request or null if the request is blocked
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private Request doProxyingRequestFiltering(final StatisticsCollector statisticsCollector, final Request request,
+      final HttpServletResponse httpServletResponse) throws IOException {
+    final Request filtered = doRequestFiltering(statisticsCollector, request);
+    if (filtered == null) {
+      statisticsCollector.setFlag(StatisticsCollector.PROXY_REQUESTFILTERED_VALUE_KEY, true);
+      httpServletResponse.sendError(404, "Blocked request");
+    } else {
+      statisticsCollector.setFlag(StatisticsCollector.PROXY_REQUESTFILTERED_VALUE_KEY, false);
+      logger.info("Serving {}", filtered);
+    }
+    return filtered;
+  }
+
+  /**
+   * Filter and transform the response of the server and send the result to
+   * the client.
+   * 
+   * @param statisticsCollector the statistics collector
+   * @param request the filtered request
+   * @param response the response of the server
+   * @param httpServletResponse the http servlet response
+   */
+  @SuppressWarnings("deprecation")
+  private void doProxyingSendResponse(final StatisticsCollector statisticsCollector, final Request request,
+      final Response response, final HttpServletResponse httpServletResponse) {
+    statisticsCollector.setValue(StatisticsCollector.PROXY_ORIGINALRESPONSE_VALUE_KEY, response);
+    final String responseMime = response.getMime();
+
+    Response result = response;
+    // the content has been forwarded to the client only if this request
+    // refreshed the response, not if it waited for an identical request
+    final boolean streamed = request.isStreamed();
+
+    // filter response
+    if (doProxyingResponseFiltering(statisticsCollector, response, responseMime)) {
+      statisticsCollector.setFlag(StatisticsCollector.PROXY_RESPONSEFILTERED_VALUE_KEY, false);
+      if (streamed) {
+        // read-only handlers, the content has already been forwarded
+        statisticsCollector.setValue(StatisticsCollector.PROXY_EFFECTIVERESPONSE_VALUE_KEY, response);
+      } else if (!response.isDirect() && response.getContent() != null) {
+        // something to do, response is stored and status code is 200
+        result = doProxyingMimeHandle(statisticsCollector, response, responseMime);
+      }
+    } else {
+      statisticsCollector.setFlag(StatisticsCollector.PROXY_RESPONSEFILTERED_VALUE_KEY, true);
+    }
+
+    if (!response.isDirect() && !streamed) {
+      // send result
+      httpServletResponse.setStatus(result.getStatusCode(), result.getStatusReason());
+      // send headers
+      Util.sendResponseHeaders(httpServletResponse, result.getHeaders());
+      if (result.getContent() != null) {
+        try (final InputStream in = result.getContent().getInputStream()) {
+          try (final ServletOutputStream out = httpServletResponse.getOutputStream()) {
+            Util.dumpTo(in, out);
+          }
+        } catch (final IOException e) {
+          logger.debug("An exception occurred", e);
+        }
+      }
+    }
+  }
+
+  private boolean doProxyingResponseFiltering(final StatisticsCollector statisticsCollector, final Response response,
+      final String responseMime) {
     statisticsCollector.startTimer(StatisticsCollector.PROXY_RESPONSEFILTERING_ALL_TIMER_KEY);
     try {
       final AtomicBoolean continueHandling = new AtomicBoolean(true);
@@ -279,16 +612,16 @@ public class ProxyServlet extends GenericServlet {
                 @Override
                 public void execute(final HandlerContext<ResponseFilter> context, final Class<?> handlerClass,
                     final ResponseFilter handler) throws Exception {
-                  statisticsCollector.startTimer(StatisticsCollector.PROXY_RESPONSEFILTERING_DO_TIMER_KEY
-                      + handler.getClass().getCanonicalName());
+                  final Histogram timer = statisticsCollector.getTimer(
+                      StatisticsCollector.PROXY_RESPONSEFILTERING_DO_TIMER_KEY, handler.getClass());
+                  statisticsCollector.startTimer(timer);
                   try {
                     contextLogger.debug("Filtering response with {}", handlerClass.getName());
                     if (!handler.filter(context, statisticsCollector, response)) {
                       continueHandling.set(false);
                     }
                   } finally {
-                    statisticsCollector.stopTimer(StatisticsCollector.PROXY_RESPONSEFILTERING_DO_TIMER_KEY
-                        + handler.getClass().getCanonicalName());
+                    statisticsCollector.stopTimer(timer);
                   }
                 }
 
@@ -305,32 +638,17 @@ public class ProxyServlet extends GenericServlet {
                     }
                   }
                 }
-              }, new HandlerFilter() {
-                @Override
-                public boolean accept(final Class<?> handlerClass) {
-                  final Mime mime = handlerClass.getAnnotation(Mime.class);
-                  if (mime != null) {
-                    for (final String m : mime.mime()) {
-                      if ("*".equals(m) || responseMime.equalsIgnoreCase(m)) {
-                        return true;
-                      }
-                    }
-                  } else {
-                    contextLogger.error("@Mime annotation is missing for handler class {}", handlerClass.getName());
-                  }
-                  return false;
-                }
-
-              }))) {
-        return preHandlerContext.execute() && continueHandling.get();
+              }, newMimeHandlerFilter(responseMime)))) {
+        final boolean success = preHandlerContext.execute();
+        recordResourcesContention(statisticsCollector, preHandlerContext);
+        return success && continueHandling.get();
       }
     } finally {
       statisticsCollector.stopTimer(StatisticsCollector.PROXY_RESPONSEFILTERING_ALL_TIMER_KEY);
     }
   }
 
-  private Request doRequestFiltering(final StatisticsCollector statisticsCollector, final Logger contextLogger,
-      final Request request) {
+  private Request doRequestFiltering(final StatisticsCollector statisticsCollector, final Request request) {
     statisticsCollector.startTimer(StatisticsCollector.PROXY_REQUESTFILTERING_ALL_TIMER_KEY);
 
     try {
@@ -343,16 +661,16 @@ public class ProxyServlet extends GenericServlet {
                 @Override
                 public void execute(final HandlerContext<RequestFilter> context, final Class<?> handlerClass,
                     final RequestFilter handler) throws Exception {
-                  statisticsCollector.startTimer(StatisticsCollector.PROXY_REQUESTFILTERING_DO_TIMER_KEY
-                      + handler.getClass().getCanonicalName());
+                  final Histogram timer = statisticsCollector.getTimer(
+                      StatisticsCollector.PROXY_REQUESTFILTERING_DO_TIMER_KEY, handler.getClass());
+                  statisticsCollector.startTimer(timer);
                   try {
                     contextLogger.debug("Filtering request with {}", handlerClass.getName());
                     if (!handler.filter(context, statisticsCollector, request)) {
                       continueHandling.set(false);
                     }
                   } finally {
-                    statisticsCollector.stopTimer(StatisticsCollector.PROXY_REQUESTFILTERING_DO_TIMER_KEY
-                        + handler.getClass().getCanonicalName());
+                    statisticsCollector.stopTimer(timer);
                   }
                 }
 
@@ -380,7 +698,9 @@ public class ProxyServlet extends GenericServlet {
 
         Request result = request;
 
-        if (handlerContext.execute()) {
+        final boolean success = handlerContext.execute();
+        recordResourcesContention(statisticsCollector, handlerContext);
+        if (success) {
           if (continueHandling.get()) {
             try {
               if (requestResource.get() != null) {
@@ -404,6 +724,81 @@ public class ProxyServlet extends GenericServlet {
     }
   }
 
+  /**
+   * Creates the filter selecting the handlers of a response MIME.
+   * 
+   * @param responseMime the response mime
+   * @return the handler filter
+   */
+  private static HandlerFilter newMimeHandlerFilter(final String responseMime) {
+    return new HandlerFilter() {
+      @Override
+      public boolean accept(final Class<?> handlerClass) {
+        final Mime mime = handlerClass.getAnnotation(Mime.class);
+        if (mime != null) {
+          for (final String m : mime.mime()) {
+            if ("*".equals(m) || responseMime.equalsIgnoreCase(m)) {
+              return true;
+            }
+          }
+        } else {
+          contextLogger.error("@Mime annotation is missing for handler class {}", handlerClass.getName());
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Computes the parameters of the transformation of a response by the MIME
+   * handlers selected for its MIME.
+   * 
+   * @param response the origin response
+   * @param mimeHandlerFilter the filter selecting the MIME handlers
+   * @return the key or null if the transformation must not be cached
+   */
+  private TransformedResponseCache.Key newTransformedCacheKey(final Response response,
+      final HandlerFilter mimeHandlerFilter) {
+    if (!ProxyPropertyHolder.transformedCacheEnabled.get() || !response.isCached()) {
+      return null;
+    }
+    final long version = response.getVersion();
+    final Set<Class<?>> handlers = new HashSet<>();
+    for (final Class<?> handler : handlersManager.getHandlersByInterface(MimeHandler.class)) {
+      if (mimeHandlerFilter.accept(handler)) {
+        handlers.add(handler);
+      }
+    }
+    final List<String> handlerKeys = new ArrayList<>();
+    for (final Class<?> handler : handlers) {
+      if (!handler.getAnnotation(Handler.class).cacheable()) {
+        return null;
+      }
+      if (CacheKeyProvider.class.isAssignableFrom(handler)) {
+        final String key = ((CacheKeyProvider) handlersManager.getInstance(handler)).getCacheKey(response);
+        if (key == null) {
+          return null;
+        }
+        handlerKeys.add(handler.getName() + '=' + key);
+      }
+    }
+    Collections.sort(handlerKeys);
+    return new TransformedResponseCache.Key(version, handlers, handlerKeys);
+  }
+
+  /**
+   * Record the time spent waiting for the resources of a handler context.
+   * 
+   * @param statisticsCollector the statistics collector
+   * @param context the context
+   */
+  private static void recordResourcesContention(final StatisticsCollector statisticsCollector,
+      final HandlerContext<?> context) {
+    for (final Map.Entry<String, Long> entry : context.getResourcesContentionTime().entrySet()) {
+      statisticsCollector.recordResourceContention(entry.getKey(), entry.getValue());
+    }
+  }
+
   /**
    * Gets the default port.
    * 
@@ -422,6 +817,93 @@ public class ProxyServlet extends GenericServlet {
     return "Smart Web Accessibility Proxy Servlet";
   }
 
+  /**
+   * Gets the relay of the CONNECT tunnels.
+   *
+   * @return the tunnel relay
+   */
+  public TunnelRelay getTunnelRelay() {
+    return tunnelRelay;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see javax.servlet.GenericServlet#init()
+   */
+  @Override
+  public void init() throws ServletException {
+    if (ProxyPropertyHolder.asyncEnabled.get()) {
+      final int threads = ProxyPropertyHolder.asyncWorkerThreads.get();
+      proxyExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(ProxyPropertyHolder.asyncQueueSize.get()), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+              final Thread thread = new Thread(runnable, "proxy-worker-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+              if (runnable instanceof ProxyingTask) {
+                ((ProxyingTask) runnable).reject();
+              } else if (!executor.isShutdown()) {
+                // the continuation of a request already accepted is not dropped
+                runnable.run();
+              }
+            }
+          });
+      proxyExecutor.allowCoreThreadTimeOut(true);
+    }
+    try {
+      tunnelRelay.start();
+    } catch (final Exception e) {
+      throw new ServletException("Can not start the tunnel relay", e);
+    }
+    Tracer.configure(ProxyPropertyHolder.tracingEnabled.get(), ProxyPropertyHolder.tracingThreshold.get(),
+        ProxyPropertyHolder.tracingBufferSize.get());
+    cacheManager.addRemovalListener(response -> transformedResponseCache.remove(response));
+    registerGauges();
+  }
+
+  /**
+   * Register the gauges of the components used by the proxy in the
+   * {@link MetricsRegistry}.
+   */
+  private void registerGauges() {
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "cache.hits", () -> cacheManager.getHitCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "cache.misses", () -> cacheManager.getMissCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "cache.size", () -> cacheManager.getSize());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "cache.weight", () -> cacheManager.getWeight());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "cache.coalesced", () -> cacheManager.getCoalescedCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "transformedcache.hits", () -> transformedResponseCache.getHitCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "transformedcache.misses",
+        () -> transformedResponseCache.getMissCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "transformedcache.size", () -> transformedResponseCache.getSize());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "httpclient.leased", () -> httpClient.getLeasedConnections());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "httpclient.pending", () -> httpClient.getPendingConnections());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "httpclient.leasetime.max", () -> httpClient.getMaxLeaseTime());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "handlers.pool.size", () -> handlerWorkerPool.getPoolSize());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "handlers.pool.active", () -> handlerWorkerPool.getActiveCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "handlers.overflow", () -> handlerWorkerPool.getOverflowTaskCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "handlers.callerruns",
+        () -> handlerWorkerPool.getCallerRunsTaskCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "handlers.queueingdelay.max",
+        () -> handlerWorkerPool.getMaxQueueingDelay());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "tunnels.active", () -> tunnelRelay.getActiveTunnelCount());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "tunnels.bytes", () -> tunnelRelay.getBytesRelayed());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "content.resident", () -> contentMemoryBudget.getResidentBytes());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "content.spilled", () -> contentMemoryBudget.getSpilledBytes());
+    metricsRegistry.registerGauge(GAUGE_PREFIX + "content.spills", () -> contentMemoryBudget.getSpillCount());
+    if (proxyExecutor != null) {
+      metricsRegistry.registerGauge(GAUGE_PREFIX + "workers.active", () -> proxyExecutor.getActiveCount());
+      metricsRegistry.registerGauge(GAUGE_PREFIX + "workers.queued", () -> proxyExecutor.getQueue().size());
+      metricsRegistry.registerGauge(GAUGE_PREFIX + "workers.rejected", () -> rejectedCount.get());
+    }
+  }
+
   /*
    * (non-Javadoc)
    * @see javax.servlet.http.HttpServlet#service(javax.servlet.ServletRequest,
@@ -87,6 +87,7 @@ public class ProxySslConnection extends SslConnection {
             sb.append((char) bbuf.get());
           }
           final String content = sb.toString();
+          final CertificateTarget certificateTarget;
           if (content.startsWith("CONNECT ")) {
             final String target = content.substring("CONNECT ".length());
             final int index = target.indexOf(":");
@@ -100,12 +101,10 @@ public class ProxySslConnection extends SslConnection {
               port = Integer.parseInt(target.substring(index + 1, spaceIndex));
             }
 
-            final CertificateTarget certificateTarget = new CertificateTarget(hostname, port);
-            try {
-              sslEngine.setHost(certificateTarget);
-            } catch (final Exception e) {
-              return -1;
-            }
+            certificateTarget = new CertificateTarget(hostname, port);
+            // the certificate is prepared while the browser receives the reply
+            // and starts its handshake
+            sslEngine.prepareHost(certificateTarget);
             logger.debug("Proxy CONNECT to {}", certificateTarget);
           } else {
             logger.error("SSL connection needed but no CONNECT received");
@@ -141,6 +140,12 @@ public class ProxySslConnection extends SslConnection {
           out_buffer.position(0);
           out_buffer.limit(out_buffer.capacity());
 
+          try {
+            sslEngine.setHost(certificateTarget);
+          } catch (final Exception e) {
+            return -1;
+          }
+
           upgraded = true;
           return super.fill(buffer);
         }
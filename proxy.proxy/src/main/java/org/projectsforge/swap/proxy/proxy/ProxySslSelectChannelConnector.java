@@ -53,6 +53,9 @@ public class ProxySslSelectChannelConnector extends SelectChannelConnector {
   /** The certificate manager. */
   private CertificateManager certificateManager;
 
+  /** The cache of the SSL contexts. */
+  private SSLContextCache sslContextCache;
+
   /** The agent name. */
   private String agentName;
 
@@ -94,6 +97,15 @@ public class ProxySslSelectChannelConnector extends SelectChannelConnector {
     return certificateManager;
   }
 
+  /**
+   * Gets the cache of the SSL contexts.
+   * 
+   * @return the SSL context cache
+   */
+  public SSLContextCache getSSLContextCache() {
+    return sslContextCache;
+  }
+
   /*
    * (non-Javadoc)
    * @see
@@ -102,7 +114,7 @@ public class ProxySslSelectChannelConnector extends SelectChannelConnector {
    */
   @Override
   protected AsyncConnection newConnection(final SocketChannel channel, final AsyncEndPoint endpoint) {
-    final ProxySSLEngine engine = new ProxySSLEngine(certificateManager);
+    final ProxySSLEngine engine = new ProxySSLEngine(sslContextCache);
     engine.setUseClientMode(false);
     final SslConnection connection = newSslConnection(endpoint, engine);
     final AsyncConnection delegate = newPlainConnection(channel, connection.getSslEndPoint());
@@ -150,6 +162,7 @@ public class ProxySslSelectChannelConnector extends SelectChannelConnector {
    */
   public void setCertificateManager(final CertificateManager certificateManager) {
     this.certificateManager = certificateManager;
+    this.sslContextCache = new SSLContextCache(certificateManager);
   }
 
 }
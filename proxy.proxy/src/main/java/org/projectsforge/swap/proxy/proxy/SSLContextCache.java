@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.proxy;
+
+import java.security.KeyStore;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.projectsforge.swap.proxy.certificate.CertificateManager;
+import org.projectsforge.swap.proxy.certificate.CertificatePropertyHolder;
+import org.projectsforge.swap.proxy.certificate.CertificateTarget;
+
+/**
+ * A bounded cache of the SSL contexts used to intercept the HTTPS connections,
+ * one per certificate target. Reusing the context of a target keeps its
+ * session cache alive so that the browsers can resume their TLS sessions
+ * (abbreviated handshake) instead of performing a full handshake for each
+ * connection.
+ *
+ * @author Sébastien Aupetit
+ */
+public class SSLContextCache {
+
+  /** The name of the session value marking an already established session. */
+  private static final String ESTABLISHED_MARKER = SSLContextCache.class.getName() + ".established";
+
+  /** The certificate manager. */
+  private final CertificateManager certificateManager;
+
+  /** The contexts by target in access order. */
+  private final LinkedHashMap<CertificateTarget, SSLContext> contexts = new LinkedHashMap<CertificateTarget, SSLContext>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 0L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<CertificateTarget, SSLContext> eldest) {
+      return size() > ProxyPropertyHolder.sslContextCacheMaxEntries.get();
+    }
+  };
+
+  /** The contexts being created by target. */
+  private final ConcurrentMap<CertificateTarget, CompletableFuture<SSLContext>> pendingContexts =
+      new ConcurrentHashMap<>();
+
+  /** The hit counter. */
+  private final AtomicLong hitCount = new AtomicLong();
+
+  /** The miss counter. */
+  private final AtomicLong missCount = new AtomicLong();
+
+  /** The number of full handshakes. */
+  private final AtomicLong fullHandshakeCount = new AtomicLong();
+
+  /** The number of abbreviated handshakes (resumed sessions). */
+  private final AtomicLong abbreviatedHandshakeCount = new AtomicLong();
+
+  /**
+   * Instantiates a new SSL context cache.
+   *
+   * @param certificateManager the certificate manager
+   */
+  public SSLContextCache(final CertificateManager certificateManager) {
+    this.certificateManager = certificateManager;
+  }
+
+  /**
+   * Creates the SSL context of a target.
+   *
+   * @param certificateTarget the certificate target
+   * @return the SSL context
+   * @throws Exception the exception
+   */
+  private SSLContext createSSLContext(final CertificateTarget certificateTarget) throws Exception {
+    final KeyStore keyStore = certificateManager.getKeyStoreForTarget(certificateTarget);
+
+    final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+    keyManagerFactory.init(keyStore, CertificatePropertyHolder.pemPassword.get().toCharArray());
+
+    final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+    trustManagerFactory.init(keyStore);
+
+    final SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+
+    final SSLSessionContext sessionContext = context.getServerSessionContext();
+    sessionContext.setSessionCacheSize(ProxyPropertyHolder.sslSessionCacheSize.get());
+    sessionContext.setSessionTimeout(ProxyPropertyHolder.sslSessionTimeout.get());
+    return context;
+  }
+
+  /**
+   * Gets the number of abbreviated handshakes, i.e. of resumed sessions.
+   *
+   * @return the abbreviated handshake count
+   */
+  public long getAbbreviatedHandshakeCount() {
+    return abbreviatedHandshakeCount.get();
+  }
+
+  /**
+   * Gets the SSL context of a target. It is created if needed.
+   *
+   * @param certificateTarget the certificate target
+   * @return the SSL context
+   * @throws Exception the exception
+   */
+  public SSLContext getContext(final CertificateTarget certificateTarget) throws Exception {
+    synchronized (contexts) {
+      final SSLContext context = contexts.get(certificateTarget);
+      if (context != null) {
+        hitCount.incrementAndGet();
+        return context;
+      }
+    }
+
+    // the concurrent connections to the same target wait for the first one
+    final CompletableFuture<SSLContext> future = new CompletableFuture<>();
+    final CompletableFuture<SSLContext> pending = pendingContexts.putIfAbsent(certificateTarget, future);
+    if (pending != null) {
+      hitCount.incrementAndGet();
+      try {
+        return pending.get();
+      } catch (final ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    try {
+      synchronized (contexts) {
+        // the context may have been stored between the lookup and the
+        // registration of the future
+        final SSLContext context = contexts.get(certificateTarget);
+        if (context != null) {
+          hitCount.incrementAndGet();
+          future.complete(context);
+          return context;
+        }
+      }
+      missCount.incrementAndGet();
+
+      // the creation can contact the target, it is done without holding the lock
+      final SSLContext context = createSSLContext(certificateTarget);
+      synchronized (contexts) {
+        contexts.put(certificateTarget, context);
+      }
+      future.complete(context);
+      return context;
+    } catch (final Exception | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      pendingContexts.remove(certificateTarget, future);
+    }
+  }
+
+  /**
+   * Gets the number of full handshakes.
+   *
+   * @return the full handshake count
+   */
+  public long getFullHandshakeCount() {
+    return fullHandshakeCount.get();
+  }
+
+  /**
+   * Gets the number of connections which reused a cached context.
+   *
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Gets the number of connections for which a context has been created.
+   *
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Gets the number of cached contexts.
+   *
+   * @return the size
+   */
+  public int getSize() {
+    synchronized (contexts) {
+      return contexts.size();
+    }
+  }
+
+  /**
+   * Notify the cache that a handshake has been completed. The handshake is
+   * abbreviated if the negotiated session has already been established by a
+   * previous handshake.
+   *
+   * @param session the negotiated session
+   */
+  void handshakeCompleted(final SSLSession session) {
+    if (session.getValue(ESTABLISHED_MARKER) == null) {
+      session.putValue(ESTABLISHED_MARKER, Boolean.TRUE);
+      fullHandshakeCount.incrementAndGet();
+    } else {
+      abbreviatedHandshakeCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Starts the preparation of the key store of a target in background unless
+   * its context is already cached, so that the certificate is ready when the
+   * browser starts its handshake.
+   *
+   * @param certificateTarget the certificate target
+   */
+  public void prepare(final CertificateTarget certificateTarget) {
+    synchronized (contexts) {
+      if (contexts.containsKey(certificateTarget)) {
+        return;
+      }
+    }
+    certificateManager.prepareKeyStoreForTarget(certificateTarget);
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return String.format("SSLContextCache [hits=%s, misses=%s, fullHandshakes=%s, abbreviatedHandshakes=%s]",
+        getHitCount(), getMissCount(), getFullHandshakeCount(), getAbbreviatedHandshakeCount());
+  }
+}
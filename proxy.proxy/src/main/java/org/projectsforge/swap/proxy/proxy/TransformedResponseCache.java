@@ -0,0 +1,221 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.proxy;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.projectsforge.swap.core.http.RequestIdentity;
+import org.projectsforge.swap.core.http.Response;
+
+/**
+ * A bounded cache of the responses produced by the MIME handlers. An entry is
+ * associated to the cache identity of the origin response it has been computed
+ * from and is only reused while the origin content version, the set of enabled
+ * MIME handlers selected for its MIME and the keys declared by these handlers
+ * are unchanged. The versions being unique among all the responses, an entry
+ * is never reused for another content, and it is dropped as soon as the origin
+ * response is refreshed or leaves the response cache so that the transformed
+ * contents are not kept longer than the origin ones.
+ *
+ * @author Sébastien Aupetit
+ */
+class TransformedResponseCache {
+
+  /**
+   * The parameters a transformed response has been computed with.
+   */
+  static final class Key {
+
+    /** The version of the origin content. */
+    private final long version;
+
+    /** The MIME handlers selected for the response. */
+    private final Set<Class<?>> handlers;
+
+    /** The keys declared by the handlers. */
+    private final List<String> handlerKeys;
+
+    /**
+     * Instantiates a new key.
+     *
+     * @param version the version of the origin content
+     * @param handlers the MIME handlers selected for the response
+     * @param handlerKeys the keys declared by the handlers
+     */
+    Key(final long version, final Set<Class<?>> handlers, final List<String> handlerKeys) {
+      this.version = version;
+      this.handlers = handlers;
+      this.handlerKeys = handlerKeys;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) obj;
+      return version == other.version && handlers.equals(other.handlers) && handlerKeys.equals(other.handlerKeys);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + (int) (version ^ (version >>> 32));
+      result = prime * result + handlers.hashCode();
+      result = prime * result + handlerKeys.hashCode();
+      return result;
+    }
+  }
+
+  /**
+   * A cache entry.
+   */
+  private static final class Entry {
+
+    /** The key. */
+    final Key key;
+
+    /** The transformed response. */
+    final Response transformed;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param key the key
+     * @param transformed the transformed response
+     */
+    Entry(final Key key, final Response transformed) {
+      this.key = key;
+      this.transformed = transformed;
+    }
+  }
+
+  /** The entries by identity of the origin response in access order. */
+  private final LinkedHashMap<RequestIdentity, Entry> entries = new LinkedHashMap<RequestIdentity, Entry>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 0L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<RequestIdentity, Entry> eldest) {
+      return size() > ProxyPropertyHolder.transformedCacheMaxEntries.get();
+    }
+  };
+
+  /** The hit counter. */
+  private final AtomicLong hitCount = new AtomicLong();
+
+  /** The miss counter. */
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Gets the transformed response computed from an origin response.
+   *
+   * @param origin the origin response
+   * @param key the parameters of the transformation
+   * @return the transformed response or null if there is none for these
+   *         parameters
+   */
+  synchronized Response get(final Response origin, final Key key) {
+    final RequestIdentity identity = origin.getCacheIdentity();
+    final Entry entry = identity == null ? null : entries.get(identity);
+    if (entry == null || !entry.key.equals(key)) {
+      if (entry != null && entry.key.version != key.version) {
+        // computed from a content which has been replaced since
+        entries.remove(identity);
+      }
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return entry.transformed;
+  }
+
+  /**
+   * Gets the number of hits.
+   *
+   * @return the hit count
+   */
+  long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Gets the number of misses.
+   *
+   * @return the miss count
+   */
+  long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Stores the transformed response computed from an origin response. It
+   * replaces any response computed from a previous version.
+   *
+   * @param origin the origin response
+   * @param key the parameters of the transformation
+   * @param transformed the transformed response
+   */
+  synchronized void put(final Response origin, final Key key, final Response transformed) {
+    final RequestIdentity identity = origin.getCacheIdentity();
+    if (identity != null && origin.getVersion() == key.version) {
+      entries.put(identity, new Entry(key, transformed));
+    }
+  }
+
+  /**
+   * Drops the transformed response computed from an origin response which
+   * left the response cache.
+   *
+   * @param origin the origin response
+   */
+  synchronized void remove(final Response origin) {
+    final RequestIdentity identity = origin.getCacheIdentity();
+    if (identity != null) {
+      entries.remove(identity);
+    }
+  }
+
+  /**
+   * Gets the number of entries.
+   *
+   * @return the size
+   */
+  synchronized int getSize() {
+    return entries.size();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return String.format("TransformedResponseCache [hits=%s, misses=%s]", getHitCount(), getMissCount());
+  }
+}
@@ -0,0 +1,773 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.http.HttpParser;
+import org.eclipse.jetty.io.AsyncEndPoint;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ConnectedEndPoint;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.nio.AsyncConnection;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.io.nio.SelectChannelEndPoint;
+import org.eclipse.jetty.io.nio.SelectorManager;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The relay of the tunnels opened by the CONNECT requests. The host is
+ * resolved by the resolver threads and the server is connected by the selector
+ * of the relay while the CONNECT request is suspended. Once the tunnel is established, the connection of the client is
+ * upgraded and both sides are handled by selectors: a thread is only used
+ * while some data is available, so that the number of threads does not depend
+ * on the number of open tunnels.
+ * The data are relayed through direct buffers, a side which can not accept
+ * more data suspends the reading of the other side, the end of the input of a
+ * side is forwarded as a shutdown of the output of the other side and the
+ * tunnels are closed when they are idle or too old.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TunnelRelay {
+
+  /**
+   * The task answering a CONNECT request with an error when the server is not
+   * connected in time.
+   */
+  private final class ConnectTimeoutTask extends Timeout.Task implements Runnable {
+
+    /** The tunnel. */
+    private final Tunnel tunnel;
+
+    /**
+     * Instantiates a new connect timeout task.
+     *
+     * @param tunnel the tunnel
+     */
+    ConnectTimeoutTask(final Tunnel tunnel) {
+      this.tunnel = tunnel;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+      tunnel.connectFailed(HttpServletResponse.SC_GATEWAY_TIMEOUT, "connect timeout");
+    }
+  }
+
+  /**
+   * The task closing a tunnel when its maximum lifetime is reached. The
+   * expired tasks are dispatched by the selector so they must be runnable.
+   */
+  private final class LifetimeTask extends Timeout.Task implements Runnable {
+
+    /** The tunnel. */
+    private final Tunnel tunnel;
+
+    /**
+     * Instantiates a new lifetime task.
+     *
+     * @param tunnel the tunnel
+     */
+    LifetimeTask(final Tunnel tunnel) {
+      this.tunnel = tunnel;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+      logger.debug("Maximum lifetime reached for {}", tunnel);
+      tunnel.close();
+    }
+  }
+
+  /**
+   * A tunnel between a client and a server. It answers the CONNECT request
+   * once the server is connected.
+   */
+  private final class Tunnel implements AsyncListener {
+
+    /** The side connected to the client. */
+    private final Side client;
+
+    /** The side connected to the server. */
+    private final Side server;
+
+    /** The task closing the tunnel when its maximum lifetime is reached. */
+    private final LifetimeTask lifetimeTask = new LifetimeTask(this);
+
+    /** Indicate if the tunnel has been closed. */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** The target of the tunnel. */
+    private final String target;
+
+    /** The date of the last activity. */
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    /** The connection of the client. */
+    private final AbstractHttpConnection connection;
+
+    /** The channel connected to the server. */
+    private final SocketChannel channel;
+
+    /** The CONNECT request, suspended until the server is connected. */
+    private final AsyncContext asyncContext;
+
+    /** The task answering the CONNECT request if the server is not connected in time. */
+    private final ConnectTimeoutTask connectTimeoutTask = new ConnectTimeoutTask(this);
+
+    /** Indicate if the CONNECT request has been answered. */
+    private final AtomicBoolean answered = new AtomicBoolean();
+
+    /**
+     * Instantiates a new tunnel.
+     *
+     * @param target the target of the tunnel
+     * @param connection the connection of the client
+     * @param channel the channel connected to the server
+     * @param asyncContext the context of the suspended CONNECT request
+     */
+    Tunnel(final String target, final AbstractHttpConnection connection, final SocketChannel channel,
+        final AsyncContext asyncContext) {
+      this.target = target;
+      this.connection = connection;
+      this.channel = channel;
+      this.asyncContext = asyncContext;
+      client = new Side(this);
+      server = new Side(this);
+      client.peer = server;
+      server.peer = client;
+    }
+
+    /**
+     * Close the tunnel.
+     */
+    void close() {
+      if (closed.compareAndSet(false, true)) {
+        lifetimeTask.cancel();
+        connectTimeoutTask.cancel();
+        client.close();
+        server.close();
+        activeTunnelCount.decrementAndGet();
+        logger.debug("Tunnel {} closed", this);
+      }
+    }
+
+    /**
+     * Called by the selector when the server is connected. The CONNECT request
+     * is answered by a thread of the relay.
+     */
+    void connected() {
+      connectTimeoutTask.cancel();
+      if (!answered.compareAndSet(false, true)) {
+        // the CONNECT request has already been answered with an error
+        server.close();
+        return;
+      }
+      threadPool.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          upgrade();
+        }
+      });
+    }
+
+    /**
+     * Answer the CONNECT request with an error unless it has already been
+     * answered and close the tunnel.
+     *
+     * @param statusCode the status code
+     * @param reason the reason of the failure
+     */
+    void connectFailed(final int statusCode, final String reason) {
+      if (!answered.compareAndSet(false, true)) {
+        return;
+      }
+      logger.debug("Can not connect to {}: {}", target, reason);
+      close();
+      try {
+        channel.close();
+      } catch (final IOException e) {
+        logger.debug("An exception occurred", e);
+      }
+      try {
+        ((HttpServletResponse) asyncContext.getResponse()).sendError(statusCode);
+      } catch (final IOException | RuntimeException e) {
+        logger.debug("An exception occurred", e);
+      } finally {
+        asyncContext.complete();
+      }
+    }
+
+    /**
+     * Record some activity.
+     */
+    void notIdle() {
+      lastActivity = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onComplete(final AsyncEvent event) {
+      // nothing to do
+    }
+
+    @Override
+    public void onError(final AsyncEvent event) {
+      // nothing to do
+    }
+
+    /**
+     * Called when an endpoint of the tunnel has been idle for too long. The
+     * tunnel is only closed if there was no activity in both directions.
+     */
+    void onIdleExpired() {
+      if (System.currentTimeMillis() - lastActivity >= ProxyPropertyHolder.tunnelIdleTimeout.get() * 1000L) {
+        logger.debug("Idle timeout for {}", this);
+        close();
+      }
+    }
+
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+      // nothing to do
+    }
+
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+      // the request must be completed before the listener returns or jetty
+      // dispatches it again
+      connectFailed(HttpServletResponse.SC_GATEWAY_TIMEOUT, "request timeout");
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return "Tunnel [" + target + "]";
+    }
+
+    /**
+     * Answer the CONNECT request and upgrade the connection of the client to
+     * the client side of the tunnel.
+     */
+    private void upgrade() {
+      final HttpServletRequest httpServletRequest = (HttpServletRequest) asyncContext.getRequest();
+      final HttpServletResponse httpServletResponse = (HttpServletResponse) asyncContext.getResponse();
+      try {
+        // jetty 8 only switches to another connection once the response is
+        // complete and its status is 101: the 200 is committed first, so that
+        // it is the response actually sent, then the status is changed to 101
+        // to mark the connection as upgraded
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        // keep the connection open once the response is sent
+        connection.getGenerator().setPersistent(true);
+        httpServletResponse.getOutputStream().close();
+
+        client.setEndPoint((AsyncEndPoint) connection.getEndPoint());
+        client.endPoint.scheduleTimeout(lifetimeTask, ProxyPropertyHolder.tunnelMaxLifetime.get() * 1000L);
+        httpServletRequest.setAttribute("org.eclipse.jetty.io.Connection", client);
+        httpServletResponse.setStatus(HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+        logger.debug("Tunnel {} opened", this);
+      } catch (final IOException | RuntimeException e) {
+        logger.debug("Tunnel {} failed: {}", this, e.toString());
+        close();
+      } finally {
+        asyncContext.complete();
+      }
+    }
+  }
+
+  /**
+   * A side of a tunnel. It reads the data from its endpoint and writes them to
+   * the endpoint of its peer.
+   */
+  private final class Side implements AsyncConnection {
+
+    /** The tunnel. */
+    private final Tunnel tunnel;
+
+    /** The peer. */
+    private Side peer;
+
+    /** The endpoint (null until the channel is registered). */
+    private volatile AsyncEndPoint endPoint;
+
+    /** The data read from the endpoint and not yet written to the peer. */
+    private final Buffer buffer = new DirectNIOBuffer(ProxyPropertyHolder.tunnelBufferSize.get());
+
+    /** Indicate if the end of the input has been reached. */
+    private boolean inputShutdown;
+
+    /**
+     * Indicate if the reading is suspended until the pending data are written
+     * to the peer.
+     */
+    private volatile boolean suspended = true;
+
+    /** The creation date. */
+    private final long timeStamp = System.currentTimeMillis();
+
+    /**
+     * Instantiates a new side.
+     *
+     * @param tunnel the tunnel
+     */
+    Side(final Tunnel tunnel) {
+      this.tunnel = tunnel;
+    }
+
+    /**
+     * Close the endpoint.
+     */
+    void close() {
+      final EndPoint current = endPoint;
+      if (current != null) {
+        try {
+          current.close();
+        } catch (final IOException e) {
+          logger.debug("An exception occurred", e);
+        }
+      }
+    }
+
+    /**
+     * Write the pending data to the peer. It must be called with the lock of
+     * this side held.
+     *
+     * @return true, if all the pending data have been written
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private boolean flushToPeer() throws IOException {
+      while (buffer.hasContent()) {
+        final int flushed = peer.endPoint.flush(buffer);
+        if (flushed <= 0) {
+          return false;
+        }
+        bytesRelayed.addAndGet(flushed);
+        tunnel.notIdle();
+      }
+      buffer.clear();
+      if (inputShutdown && !peer.endPoint.isOutputShutdown()) {
+        // half-close: forward the end of the input
+        peer.endPoint.shutdownOutput();
+      }
+      return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.jetty.io.Connection#getTimeStamp()
+     */
+    @Override
+    public long getTimeStamp() {
+      return timeStamp;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.jetty.io.Connection#handle()
+     */
+    @Override
+    public Connection handle() throws IOException {
+      try {
+        // the endpoint may have become writable: resume the peer
+        peer.resume();
+        relay();
+        if (inputShutdown && peer.inputShutdown && !buffer.hasContent() && !peer.buffer.hasContent()) {
+          tunnel.close();
+        }
+      } catch (final IOException e) {
+        logger.debug("Tunnel {} failed: {}", tunnel, e.toString());
+        tunnel.close();
+      }
+      return this;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.jetty.io.Connection#isIdle()
+     */
+    @Override
+    public boolean isIdle() {
+      return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.jetty.io.Connection#isSuspended()
+     */
+    @Override
+    public boolean isSuspended() {
+      return suspended;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.jetty.io.Connection#onClose()
+     */
+    @Override
+    public void onClose() {
+      tunnel.close();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.jetty.io.Connection#onIdleExpired(long)
+     */
+    @Override
+    public void onIdleExpired(final long idleForMs) {
+      tunnel.onIdleExpired();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.eclipse.jetty.io.nio.AsyncConnection#onInputShutdown()
+     */
+    @Override
+    public void onInputShutdown() throws IOException {
+      // handled when the end of the input is read
+    }
+
+    /**
+     * Read the available data and write them to the peer until the input is
+     * exhausted or the peer can not accept more data.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private synchronized void relay() throws IOException {
+      if (peer.endPoint == null) {
+        // wait for the registration of the peer
+        suspended = true;
+        return;
+      }
+      while (flushToPeer()) {
+        if (inputShutdown) {
+          suspended = false;
+          return;
+        }
+        final int filled = endPoint.fill(buffer);
+        if (filled < 0) {
+          inputShutdown = true;
+        } else if (filled == 0) {
+          suspended = false;
+          return;
+        } else {
+          tunnel.notIdle();
+        }
+      }
+      // the peer is full: stop reading until it becomes writable
+      suspended = true;
+      peer.endPoint.scheduleWrite();
+    }
+
+    /**
+     * Write the pending data to the peer and resume the reading if it was
+     * suspended.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void resume() throws IOException {
+      final AsyncEndPoint current = endPoint;
+      if (suspended && current != null && peer.endPoint != null) {
+        final boolean flushed;
+        synchronized (this) {
+          flushed = flushToPeer();
+          if (flushed) {
+            suspended = false;
+          }
+        }
+        if (flushed) {
+          current.asyncDispatch();
+        }
+      }
+    }
+
+    /**
+     * Sets the endpoint.
+     *
+     * @param endPoint the new endpoint
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void setEndPoint(final AsyncEndPoint endPoint) throws IOException {
+      endPoint.setMaxIdleTime(ProxyPropertyHolder.tunnelIdleTimeout.get() * 1000);
+      endPoint.setCheckForIdle(true);
+      this.endPoint = endPoint;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return tunnel + (this == tunnel.client ? " client side" : " server side");
+    }
+  }
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TunnelRelay.class);
+
+  /** The threads handling the server sides. */
+  private final QueuedThreadPool threadPool = new QueuedThreadPool();
+
+  /** The threads resolving the hosts of the CONNECT requests. */
+  private final QueuedThreadPool resolverThreadPool = new QueuedThreadPool();
+
+  /** The selector of the server sides. */
+  private final SelectorManager selectorManager = new SelectorManager() {
+
+    @Override
+    public boolean dispatch(final Runnable task) {
+      return threadPool.dispatch(task);
+    }
+
+    @Override
+    protected void endPointClosed(final SelectChannelEndPoint endpoint) {
+      endpoint.getConnection().onClose();
+    }
+
+    @Override
+    protected void connectionFailed(final SocketChannel channel, final Throwable ex, final Object attachment) {
+      final Tunnel tunnel = (Tunnel) attachment;
+      threadPool.dispatch(new Runnable() {
+        @Override
+        public void run() {
+          tunnel.connectFailed(HttpServletResponse.SC_BAD_GATEWAY, ex.toString());
+        }
+      });
+    }
+
+    @Override
+    protected void endPointOpened(final SelectChannelEndPoint endpoint) {
+      // the server side is ready: the CONNECT request can be answered
+      ((Side) endpoint.getConnection()).tunnel.connected();
+    }
+
+    @Override
+    protected void endPointUpgraded(final ConnectedEndPoint endpoint, final Connection oldConnection) {
+      // never upgraded
+    }
+
+    @Override
+    public AsyncConnection newConnection(final SocketChannel channel, final AsyncEndPoint endpoint,
+        final Object attachment) {
+      final Side side = ((Tunnel) attachment).server;
+      try {
+        side.setEndPoint(endpoint);
+      } catch (final IOException e) {
+        logger.debug("An exception occurred", e);
+      }
+      return side;
+    }
+
+    @Override
+    protected SelectChannelEndPoint newEndPoint(final SocketChannel channel, final SelectSet selectSet,
+        final SelectionKey key) throws IOException {
+      final SelectChannelEndPoint endPoint = new SelectChannelEndPoint(channel, selectSet, key,
+          ProxyPropertyHolder.tunnelIdleTimeout.get() * 1000);
+      endPoint.setConnection(selectSet.getManager().newConnection(channel, endPoint, key.attachment()));
+      return endPoint;
+    }
+  };
+
+  /** The number of open tunnels. */
+  private final AtomicInteger activeTunnelCount = new AtomicInteger();
+
+  /** The number of tunnels opened since the start. */
+  private final AtomicLong tunnelCount = new AtomicLong();
+
+  /** The number of bytes relayed in both directions. */
+  private final AtomicLong bytesRelayed = new AtomicLong();
+
+  /**
+   * Instantiates a new tunnel relay.
+   */
+  public TunnelRelay() {
+    threadPool.setName("CONNECT tunnels");
+    threadPool.setDaemon(true);
+    threadPool.setMinThreads(2);
+    threadPool.setMaxThreads(ProxyPropertyHolder.tunnelMaxThreads.get());
+    resolverThreadPool.setName("CONNECT resolver");
+    resolverThreadPool.setDaemon(true);
+    resolverThreadPool.setMinThreads(1);
+    resolverThreadPool.setMaxThreads(Math.max(1, ProxyPropertyHolder.tunnelResolverThreads.get()));
+  }
+
+  /**
+   * Resolve the host of a tunnel and start the connection of its server side.
+   * It runs on a resolver thread since the resolution may block.
+   *
+   * @param tunnel the tunnel
+   * @param host the host to connect to
+   * @param port the port to connect to
+   */
+  private void connect(final Tunnel tunnel, final String host, final int port) {
+    try {
+      tunnel.channel.connect(new InetSocketAddress(InetAddress.getByName(host), port));
+      // the selector waits for the connection of the channel
+      selectorManager.register(tunnel.channel, tunnel);
+    } catch (final IOException | RuntimeException e) {
+      tunnel.connectFailed(HttpServletResponse.SC_BAD_GATEWAY, e.toString());
+    }
+  }
+
+  /**
+   * Gets the number of open tunnels.
+   *
+   * @return the active tunnel count
+   */
+  public int getActiveTunnelCount() {
+    return activeTunnelCount.get();
+  }
+
+  /**
+   * Gets the number of bytes relayed in both directions.
+   *
+   * @return the bytes relayed
+   */
+  public long getBytesRelayed() {
+    return bytesRelayed.get();
+  }
+
+  /**
+   * Gets the number of tunnels opened since the start.
+   *
+   * @return the tunnel count
+   */
+  public long getTunnelCount() {
+    return tunnelCount.get();
+  }
+
+  /**
+   * Open a tunnel for a CONNECT request. The request is suspended while the
+   * host is resolved and the server is connected by the selector of the relay,
+   * then the connection of the client is upgraded so that it is relayed by the
+   * tunnel.
+   *
+   * @param httpServletRequest the http servlet request
+   * @param httpServletResponse the http servlet response
+   * @param host the host to connect to
+   * @param port the port to connect to
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public void open(final HttpServletRequest httpServletRequest, final HttpServletResponse httpServletResponse,
+      final String host, final int port) throws IOException {
+    final AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+    if (connection == null || !(connection.getEndPoint() instanceof AsyncEndPoint)
+        || !httpServletRequest.isAsyncSupported()) {
+      logger.warn("CONNECT to {}:{} refused: the connection can not be upgraded", host, port);
+      httpServletResponse.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+      return;
+    }
+
+    final SocketChannel channel = SocketChannel.open();
+    try {
+      channel.socket().setTcpNoDelay(true);
+      channel.configureBlocking(false);
+    } catch (final IOException e) {
+      logger.debug("Can not connect to {}:{}: {}", new Object[] { host, port, e.toString() });
+      channel.close();
+      httpServletResponse.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+      return;
+    }
+
+    final AsyncContext asyncContext = httpServletRequest.startAsync();
+    // the connect timeout of the tunnel normally answers first
+    asyncContext.setTimeout(2 * ProxyPropertyHolder.tunnelConnectTimeout.get() * 1000L);
+    final Tunnel tunnel = new Tunnel(host + ":" + port, connection, channel, asyncContext);
+    asyncContext.addListener(tunnel);
+    // the data sent by the client after the request are relayed first
+    final HttpParser parser = (HttpParser) connection.getParser();
+    final Buffer headerBuffer = parser.getHeaderBuffer();
+    if (headerBuffer != null && headerBuffer.hasContent()) {
+      tunnel.client.buffer.put(headerBuffer);
+    }
+    final Buffer bodyBuffer = parser.getBodyBuffer();
+    if (bodyBuffer != null && bodyBuffer.hasContent()) {
+      tunnel.client.buffer.put(bodyBuffer);
+    }
+    activeTunnelCount.incrementAndGet();
+    tunnelCount.incrementAndGet();
+
+    ((AsyncEndPoint) connection.getEndPoint()).scheduleTimeout(tunnel.connectTimeoutTask,
+        ProxyPropertyHolder.tunnelConnectTimeout.get() * 1000L);
+    // the servlet thread does not wait for the resolution of the host
+    final boolean dispatched = resolverThreadPool.dispatch(new Runnable() {
+      @Override
+      public void run() {
+        connect(tunnel, host, port);
+      }
+    });
+    if (!dispatched) {
+      tunnel.connectFailed(HttpServletResponse.SC_BAD_GATEWAY, "the relay is stopped");
+    }
+  }
+
+  /**
+   * Start the relay.
+   *
+   * @throws Exception the exception
+   */
+  public void start() throws Exception {
+    threadPool.start();
+    resolverThreadPool.start();
+    selectorManager.start();
+  }
+
+  /**
+   * Stop the relay and close the open tunnels.
+   *
+   * @throws Exception the exception
+   */
+  public void stop() throws Exception {
+    selectorManager.stop();
+    resolverThreadPool.stop();
+    threadPool.stop();
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return String.format("TunnelRelay [active=%s, opened=%s, bytes=%s]", getActiveTunnelCount(), getTunnelCount(),
+        getBytesRelayed());
+  }
+}
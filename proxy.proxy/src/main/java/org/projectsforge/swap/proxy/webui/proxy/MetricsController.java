@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.webui.proxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletResponse;
+import org.projectsforge.swap.handlers.mime.metrics.MetricsRegistry;
+import org.projectsforge.swap.proxy.webui.information.InformationComponent;
+import org.projectsforge.swap.proxy.webui.information.InformationController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * The web controller showing the metrics aggregated over all the proxied
+ * requests.
+ *
+ * @author Sébastien Aupetit
+ */
+@Component
+@Controller
+public class MetricsController extends InformationComponent {
+
+  /** The Constant URL. */
+  public static final String URL = InformationController.URL + "/org.projectsforge.swap.proxy.metrics";
+
+  /** The registry of the metrics. */
+  @Autowired
+  private MetricsRegistry metricsRegistry;
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getDescription
+   * ()
+   */
+  @Override
+  public String getDescription() {
+    return "View the latency percentiles of the proxying stages and handlers";
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getName()
+   */
+  @Override
+  public String getName() {
+    return "Proxy metrics";
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getPriority()
+   */
+  @Override
+  public int getPriority() {
+    return Integer.MAX_VALUE - 1;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getUrl()
+   */
+  @Override
+  public String getUrl() {
+    return MetricsController.URL;
+  }
+
+  /**
+   * The GET handler.
+   *
+   * @return the model and view
+   */
+  @RequestMapping(value = MetricsController.URL, method = RequestMethod.GET)
+  public ModelAndView handleDefault() {
+    if (!isActive()) {
+      return getInactiveMAV();
+    }
+
+    final ModelAndView mav = new ModelAndView("org.projectsforge.swap.proxy.metrics/view");
+    mav.addObject("url", MetricsController.URL);
+    mav.addObject("timers", metricsRegistry.getHistogramSnapshots());
+    mav.addObject("counters", metricsRegistry.getCounters());
+    mav.addObject("gauges", metricsRegistry.getGaugeValues());
+    mav.addObject("rootline", getRootline());
+    return mav;
+  }
+
+  /**
+   * The GET handler of the machine-readable export of the metrics.
+   *
+   * @param response the response
+   * @return the model and view
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @RequestMapping(value = MetricsController.URL + "/json", method = RequestMethod.GET)
+  public ModelAndView handleJson(final HttpServletResponse response) throws IOException {
+    if (!isActive()) {
+      response.sendError(HttpStatus.NOT_FOUND.value());
+      return null;
+    }
+
+    final byte[] content = metricsRegistry.toJson().getBytes(StandardCharsets.UTF_8);
+    response.setContentType("application/json;charset=UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.setContentLength(content.length);
+    response.getOutputStream().write(content);
+    response.flushBuffer();
+    return null;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.projectsforge.swap.core.webui.AbstractMVCComponent#isActive()
+   */
+  @Override
+  public boolean isActive() {
+    return true;
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.webui.proxy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletResponse;
+import org.projectsforge.swap.core.environment.trace.Tracer;
+import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
+import org.projectsforge.swap.proxy.webui.information.InformationComponent;
+import org.projectsforge.swap.proxy.webui.information.InformationController;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * The web controller showing the span trees of the slow requests recorded by
+ * the {@link Tracer}.
+ *
+ * @author Sébastien Aupetit
+ */
+@Component
+@Controller
+public class TracesController extends InformationComponent {
+
+  /** The Constant URL. */
+  public static final String URL = InformationController.URL + "/org.projectsforge.swap.proxy.traces";
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getDescription
+   * ()
+   */
+  @Override
+  public String getDescription() {
+    return "View where the time of the slow requests went";
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getName()
+   */
+  @Override
+  public String getName() {
+    return "Slow requests";
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see
+   * org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getPriority()
+   */
+  @Override
+  public int getPriority() {
+    return Integer.MAX_VALUE - 1;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.projectsforge.swap.core.web.config.ConfigurableDescriptor#getUrl()
+   */
+  @Override
+  public String getUrl() {
+    return TracesController.URL;
+  }
+
+  /**
+   * Handle clear.
+   *
+   * @return the model and view
+   */
+  @RequestMapping(value = TracesController.URL + "/clear", method = RequestMethod.GET)
+  public ModelAndView handleClear() {
+    if (!isActive()) {
+      return getInactiveMAV();
+    }
+
+    Tracer.clear();
+    return handleDefault();
+  }
+
+  /**
+   * The GET handler.
+   *
+   * @return the model and view
+   */
+  @RequestMapping(value = TracesController.URL, method = RequestMethod.GET)
+  public ModelAndView handleDefault() {
+    if (!isActive()) {
+      return getInactiveMAV();
+    }
+
+    final ModelAndView mav = new ModelAndView("org.projectsforge.swap.proxy.traces/view");
+    mav.addObject("url", TracesController.URL);
+    mav.addObject("enabled", Tracer.isEnabled());
+    mav.addObject("threshold", Tracer.getThreshold());
+    mav.addObject("traces", Tracer.getTraces());
+    mav.addObject("rootline", getRootline());
+    return mav;
+  }
+
+  /**
+   * Handle disable.
+   *
+   * @return the model and view
+   */
+  @RequestMapping(value = TracesController.URL + "/disable", method = RequestMethod.GET)
+  public ModelAndView handleDisable() {
+    if (!isActive()) {
+      return getInactiveMAV();
+    }
+
+    Tracer.configure(false, ProxyPropertyHolder.tracingThreshold.get(), ProxyPropertyHolder.tracingBufferSize.get());
+    return handleDefault();
+  }
+
+  /**
+   * Handle enable.
+   *
+   * @return the model and view
+   */
+  @RequestMapping(value = TracesController.URL + "/enable", method = RequestMethod.GET)
+  public ModelAndView handleEnable() {
+    if (!isActive()) {
+      return getInactiveMAV();
+    }
+
+    Tracer.configure(true, ProxyPropertyHolder.tracingThreshold.get(), ProxyPropertyHolder.tracingBufferSize.get());
+    return handleDefault();
+  }
+
+  /**
+   * The GET handler of the machine-readable export of the traces.
+   *
+   * @param response the response
+   * @return the model and view
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @RequestMapping(value = TracesController.URL + "/json", method = RequestMethod.GET)
+  public ModelAndView handleJson(final HttpServletResponse response) throws IOException {
+    if (!isActive()) {
+      response.sendError(HttpStatus.NOT_FOUND.value());
+      return null;
+    }
+
+    final byte[] content = Tracer.toJson().getBytes(StandardCharsets.UTF_8);
+    response.setContentType("application/json;charset=UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.setContentLength(content.length);
+    response.getOutputStream().write(content);
+    response.flushBuffer();
+    return null;
+  }
+
+  /*
+   * (non-Javadoc)
+   * @see org.projectsforge.swap.core.webui.AbstractMVCComponent#isActive()
+   */
+  @Override
+  public boolean isActive() {
+    return true;
+  }
+}
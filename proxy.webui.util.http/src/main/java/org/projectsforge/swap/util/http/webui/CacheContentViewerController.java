@@ -20,6 +20,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.projectsforge.swap.core.http.CacheManager;
 import org.projectsforge.swap.core.http.Response;
+import org.projectsforge.swap.core.http.ServletHttpClient;
 import org.projectsforge.swap.core.http.Util;
 import org.projectsforge.swap.proxy.webui.information.InformationComponent;
 import org.projectsforge.swap.proxy.webui.information.InformationController;
@@ -48,6 +49,10 @@ public class CacheContentViewerController extends InformationComponent {
   @Autowired
   private CacheManager cacheManager;
 
+  /** The http client. */
+  @Autowired
+  private ServletHttpClient httpClient;
+
   /** The snapshot. */
   private List<Response> snapshot = Collections.emptyList();
 
@@ -120,6 +125,8 @@ public class CacheContentViewerController extends InformationComponent {
     final ModelAndView mav = new ModelAndView("org.projectsforge.swap.core.http.cache/view");
 
     mav.addObject("url", CacheContentViewerController.URL);
+    mav.addObject("cacheManager", cacheManager);
+    mav.addObject("httpClient", httpClient);
     mav.addObject("rootline", getRootline());
     return mav;
   }
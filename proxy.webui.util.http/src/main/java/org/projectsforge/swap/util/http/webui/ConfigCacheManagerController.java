@@ -94,10 +94,16 @@ public class ConfigCacheManagerController extends ConfigurationComponent {
     final ModelAndView mav = new ModelAndView("org.projectsforge.swap.core.http.cache/config");
     mav.addObject("maxSizeOfInMemoryStoredContent",
         TemporaryStreamPropertyHolder.inMemoryMaxSize.get());
+    mav.addObject("inMemoryBudget", TemporaryStreamPropertyHolder.inMemoryBudget.get());
     mav.addObject("maxAgeBeforeForcedRefresh",
         CacheManagerPropertyHolder.maxAgeBeforeForcedRefresh.get());
     mav.addObject("maxAgeForForcedExpiration",
         CacheManagerPropertyHolder.maxAgeForForcedExpiration.get());
+    mav.addObject("maxCacheSize", CacheManagerPropertyHolder.maxCacheSize.get());
+    mav.addObject("timeToLive", CacheManagerPropertyHolder.timeToLive.get());
+    mav.addObject("diskCacheEnabled", CacheManagerPropertyHolder.diskCacheEnabled.get());
+    mav.addObject("diskCacheMaxSize", CacheManagerPropertyHolder.diskCacheMaxSize.get());
+    mav.addObject("diskCacheSegmentSize", CacheManagerPropertyHolder.diskCacheSegmentSize.get());
     mav.addObject("rootline", getRootline());
     return mav;
   }
@@ -107,28 +113,49 @@ public class ConfigCacheManagerController extends ConfigurationComponent {
    * 
    * @param maxSizeOfInMemoryStoredContent the max size of in memory stored
    *          content
+   * @param inMemoryBudget the maximum size of all the contents stored in memory
    * @param maxAgeBeforeForcedRefresh the max age before forced refresh
    * @param maxAgeForForcedExpiration the max age for forced expiration
-   * @param cleanerThreadSleepTime the cleaner thread sleep time
+   * @param maxCacheSize the maximum size of the cached contents
+   * @param timeToLive the time to live of a cached response
+   * @param diskCacheEnabled true if the responses are also stored on disk
+   * @param diskCacheMaxSize the maximum size of the disk cache
+   * @param diskCacheSegmentSize the size of a disk cache file
    * @return the model and view
    */
   @RequestMapping(value = "/", method = RequestMethod.POST)
   public ModelAndView handlePost(@RequestParam final int maxSizeOfInMemoryStoredContent,
+      @RequestParam final int inMemoryBudget,
       @RequestParam final int maxAgeBeforeForcedRefresh,
-      @RequestParam final int maxAgeForForcedExpiration) {
+      @RequestParam final int maxAgeForForcedExpiration, @RequestParam final int maxCacheSize,
+      @RequestParam final int timeToLive,
+      @RequestParam(defaultValue = "false") final boolean diskCacheEnabled,
+      @RequestParam final int diskCacheMaxSize, @RequestParam final int diskCacheSegmentSize) {
     final ModelAndView mav = new ModelAndView("org.projectsforge.swap.core.http.cache/config");
 
     TemporaryStreamPropertyHolder.inMemoryMaxSize.set(maxSizeOfInMemoryStoredContent);
+    TemporaryStreamPropertyHolder.inMemoryBudget.set(inMemoryBudget);
     CacheManagerPropertyHolder.maxAgeBeforeForcedRefresh.set(maxAgeBeforeForcedRefresh);
     CacheManagerPropertyHolder.maxAgeForForcedExpiration.set(maxAgeForForcedExpiration);
+    CacheManagerPropertyHolder.maxCacheSize.set(maxCacheSize);
+    CacheManagerPropertyHolder.timeToLive.set(timeToLive);
+    CacheManagerPropertyHolder.diskCacheEnabled.set(diskCacheEnabled);
+    CacheManagerPropertyHolder.diskCacheMaxSize.set(diskCacheMaxSize);
+    CacheManagerPropertyHolder.diskCacheSegmentSize.set(diskCacheSegmentSize);
     environment.saveConfigurationProperties();
 
     mav.addObject("maxSizeOfInMemoryStoredContent",
         TemporaryStreamPropertyHolder.inMemoryMaxSize.get());
+    mav.addObject("inMemoryBudget", TemporaryStreamPropertyHolder.inMemoryBudget.get());
     mav.addObject("maxAgeBeforeForcedRefresh",
         CacheManagerPropertyHolder.maxAgeBeforeForcedRefresh.get());
     mav.addObject("maxAgeForForcedExpiration",
         CacheManagerPropertyHolder.maxAgeForForcedExpiration.get());
+    mav.addObject("maxCacheSize", CacheManagerPropertyHolder.maxCacheSize.get());
+    mav.addObject("timeToLive", CacheManagerPropertyHolder.timeToLive.get());
+    mav.addObject("diskCacheEnabled", CacheManagerPropertyHolder.diskCacheEnabled.get());
+    mav.addObject("diskCacheMaxSize", CacheManagerPropertyHolder.diskCacheMaxSize.get());
+    mav.addObject("diskCacheSegmentSize", CacheManagerPropertyHolder.diskCacheSegmentSize.get());
     mav.addObject("rootline", getRootline());
     mav.addObject("changed", true);
 
@@ -19,8 +19,8 @@ import java.util.List;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
 import org.eclipse.jetty.server.handler.StatisticsHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -31,6 +31,7 @@ import org.projectsforge.swap.core.http.HttpPropertyHolder;
 import org.projectsforge.swap.core.persistence.H2ConsolePropertyHolder;
 import org.projectsforge.swap.core.webui.WebUIInitializer;
 import org.projectsforge.swap.proxy.certificate.CertificateManager;
+import org.projectsforge.swap.proxy.proxy.ProxyConnectHandler;
 import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
 import org.projectsforge.swap.proxy.proxy.ProxyServlet;
 import org.projectsforge.swap.proxy.proxy.ProxySslSelectChannelConnector;
@@ -65,8 +66,8 @@ public class ProxyServerConfiguration {
    * 
    * @return the http connection
    */
-  private SocketConnector getHttpConnection() {
-    final SocketConnector connector = new SocketConnector();
+  private SelectChannelConnector getHttpConnection() {
+    final SelectChannelConnector connector = new SelectChannelConnector();
     connector.setHost(ProxyPropertyHolder.httpHost.get());
     connector.setPort(ProxyPropertyHolder.httpPort.get());
     return connector;
@@ -155,7 +156,9 @@ public class ProxyServerConfiguration {
    */
   StatisticsHandler proxyServletContextHandler() {
     final ServletContextHandler proxyServletContextHandler = new ServletContextHandler();
-    proxyServletContextHandler.addServlet(new ServletHolder("proxy servlet", proxyServlet()), "/*");
+    final ServletHolder proxyServletHolder = new ServletHolder("proxy servlet", proxyServlet());
+    proxyServletHolder.setAsyncSupported(true);
+    proxyServletContextHandler.addServlet(proxyServletHolder, "/*");
     final StatisticsHandler statisticsHandler = new StatisticsHandler();
     statisticsHandler.setHandler(proxyServletContextHandler);
     return statisticsHandler;
@@ -185,6 +188,10 @@ public class ProxyServerConfiguration {
     handlers.add(proxyServletContextHandler());
 
     final Server server = embeddedServlet3JettyFactory.newServer(handlers.toArray(new Handler[0]));
+    // the CONNECT requests are not mapped to the proxy servlet by its context
+    final ProxyConnectHandler connectHandler = new ProxyConnectHandler(proxyServlet());
+    connectHandler.setHandler(server.getHandler());
+    server.setHandler(connectHandler);
     server.setStopAtShutdown(true);
     server.setSendServerVersion(true);
     server.setSendDateHeader(false);
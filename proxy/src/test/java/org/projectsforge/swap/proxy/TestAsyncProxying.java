@@ -0,0 +1,280 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.projectsforge.swap.core.http.CacheManager;
+import org.projectsforge.swap.core.http.HttpPropertyHolder;
+import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.handlers.mime.metrics.MetricsRegistry;
+import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.swap.proxy.test.StubOrigin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test of the asynchronous proxying with a slow server: the number of
+ * concurrent requests must not be limited by the threads of the HTTP server.
+ * The fetches from the server are still blocking: each one in progress holds
+ * a worker of the proxy executor.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestAsyncProxying extends ProxyEnvironmentTestBase {
+
+  /** The maximum time the stub server waits for the other requests (in s). */
+  private static final int WAIT_TIMEOUT = 30;
+
+  /**
+   * The maximum time (in ms) the fetches are held, shorter than the wait for a
+   * pooled connection.
+   */
+  private static final long HOLD_TIMEOUT = 5000;
+
+  /** The number of requests exceeding the workers of the proxy executor. */
+  private static final int EXTRA_CLIENTS = 8;
+
+  /** The previous maximum number of connections per route. */
+  private static int previousMaxConnectionsPerRoute;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestAsyncProxying.class);
+
+  /**
+   * Allows as many connections to the stub server as to all the servers, so
+   * that the pool of connections is not the limit.
+   */
+  @BeforeClass
+  public static void raiseConnectionLimit() {
+    previousMaxConnectionsPerRoute = HttpPropertyHolder.maxConnectionsPerRoute.get();
+    HttpPropertyHolder.maxConnectionsPerRoute.set(HttpPropertyHolder.maxConnections.get());
+  }
+
+  /**
+   * Restores the connection limit.
+   */
+  @AfterClass
+  public static void restoreConnectionLimit() {
+    HttpPropertyHolder.maxConnectionsPerRoute.set(previousMaxConnectionsPerRoute);
+  }
+
+  /**
+   * Send concurrently GET requests through the proxy and check the content.
+   *
+   * @param executor the executor
+   * @param urls the urls
+   * @throws Exception the exception
+   */
+  private static void fetchConcurrently(final ExecutorService executor, final List<URL> urls) throws Exception {
+    final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(ProxyPropertyHolder.httpHost.get(),
+        ProxyPropertyHolder.httpPort.get()));
+    final List<Future<String>> contents = new ArrayList<>();
+    for (final URL url : urls) {
+      contents.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          final HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+          connection.setReadTimeout(2 * WAIT_TIMEOUT * 1000);
+          Assert.assertEquals(200, connection.getResponseCode());
+          final ByteArrayOutputStream content = new ByteArrayOutputStream();
+          try (final InputStream in = connection.getInputStream()) {
+            Util.dumpTo(in, content);
+          }
+          return new String(content.toByteArray(), StandardCharsets.UTF_8);
+        }
+      }));
+    }
+    for (final Future<String> content : contents) {
+      Assert.assertEquals(StubOrigin.CONTENT, content.get());
+    }
+  }
+
+  /**
+   * Gets the value of a gauge of the proxy.
+   *
+   * @param name the name of the gauge without the prefix
+   * @return the value
+   */
+  private long gauge(final String name) {
+    return environment.getContext().getBean(MetricsRegistry.class).getGaugeValues()
+        .get("org.projectsforge.swap.proxy." + name).longValue();
+  }
+
+  /**
+   * Test that more requests than the threads of the HTTP server are served
+   * concurrently and that the requests waiting for an identical request do not
+   * use any thread.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testSlowServer() throws Exception {
+    final int httpThreads = ProxyPropertyHolder.httpMaxThread.get();
+    final int clients = Math.min(2 * httpThreads, ProxyPropertyHolder.asyncWorkerThreads.get());
+    // each distinct request is answered once all of them have reached the
+    // server: a blocking proxy would never let them all through
+    final CountDownLatch distinctArrived = new CountDownLatch(clients);
+    final AtomicBoolean distinctConcurrent = new AtomicBoolean(true);
+    // the identical request is answered once the other ones wait for it
+    final AtomicLong coalescedBefore = new AtomicLong();
+    final AtomicLong activeWorkers = new AtomicLong(-1);
+
+    final StubOrigin server = new StubOrigin().handle("/distinct", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        distinctArrived.countDown();
+        if (!distinctArrived.await(WAIT_TIMEOUT, TimeUnit.SECONDS)) {
+          distinctConcurrent.set(false);
+        }
+        StubOrigin.send(exchange, StubOrigin.CONTENT, "max-age=60");
+      }
+    }).handle("/identical.css", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        final CacheManager cacheManager = environment.getContext().getBean(CacheManager.class);
+        final long deadline = System.currentTimeMillis() + WAIT_TIMEOUT * 1000;
+        while (cacheManager.getCoalescedCount() - coalescedBefore.get() < clients - 1
+            && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        activeWorkers.set(gauge("workers.active"));
+        StubOrigin.send(exchange, StubOrigin.CONTENT, "max-age=60");
+      }
+    }).setExecutor(Executors.newCachedThreadPool()).start();
+
+    ExecutorService executor = null;
+    try {
+      Assert.assertTrue(ProxyPropertyHolder.asyncEnabled.get());
+      Assert.assertTrue(clients > httpThreads);
+      executor = Executors.newFixedThreadPool(clients);
+
+      // distinct slow requests
+      final List<URL> distinct = new ArrayList<>();
+      for (int i = 0; i < clients; ++i) {
+        distinct.add(server.url("/distinct-" + i + ".css"));
+      }
+      fetchConcurrently(executor, distinct);
+      Assert.assertEquals(clients, server.getHits());
+      Assert.assertTrue("Requests have been serialized", distinctConcurrent.get());
+
+      // identical slow requests: a single worker waits for the server
+      final int hitsBefore = server.getHits();
+      coalescedBefore.set(environment.getContext().getBean(CacheManager.class).getCoalescedCount());
+      final List<URL> identical = new ArrayList<>();
+      for (int i = 0; i < clients; ++i) {
+        identical.add(server.url("/identical.css"));
+      }
+      fetchConcurrently(executor, identical);
+      logger.info("{} active workers while {} identical requests were waiting", activeWorkers.get(), clients);
+      Assert.assertEquals(1, server.getHits() - hitsBefore);
+      Assert.assertTrue(activeWorkers.get() >= 0);
+      Assert.assertTrue(activeWorkers.get() < clients - 1);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      server.stop();
+    }
+  }
+
+  /**
+   * Test the limit of the asynchronous proxying: each fetch in progress holds a
+   * worker of the proxy executor, so that at most
+   * {@link ProxyPropertyHolder#asyncWorkerThreads} distinct requests reach the
+   * server at the same time while the following ones wait in the queue.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testWorkerLimit() throws Exception {
+    final int workers = ProxyPropertyHolder.asyncWorkerThreads.get();
+    final int clients = workers + EXTRA_CLIENTS;
+    final CountDownLatch released = new CountDownLatch(1);
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+
+    final StubOrigin server = new StubOrigin().handle("/held", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        final int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+          released.await(WAIT_TIMEOUT, TimeUnit.SECONDS);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+        StubOrigin.send(exchange, StubOrigin.CONTENT, "max-age=60");
+      }
+    }).setExecutor(Executors.newCachedThreadPool()).start();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(clients + 1);
+    try {
+      Assert.assertTrue(clients <= ProxyPropertyHolder.asyncQueueSize.get());
+      final List<URL> urls = new ArrayList<>();
+      for (int i = 0; i < clients; ++i) {
+        urls.add(server.url("/held-" + i + ".css"));
+      }
+      final Future<Void> fetch = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          fetchConcurrently(executor, urls);
+          return null;
+        }
+      });
+
+      final long deadline = System.currentTimeMillis() + HOLD_TIMEOUT;
+      while ((maxInFlight.get() < workers || gauge("workers.queued") < EXTRA_CLIENTS)
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      final long active = gauge("workers.active");
+      final long queued = gauge("workers.queued");
+      logger.info("{} fetches in progress with {} workers, {} requests queued", new Object[] { maxInFlight.get(),
+          active, queued });
+      released.countDown();
+      fetch.get();
+
+      Assert.assertEquals(workers, maxInFlight.get());
+      Assert.assertEquals(workers, active);
+      Assert.assertEquals(EXTRA_CLIENTS, queued);
+      Assert.assertEquals(clients, server.getHits());
+    } finally {
+      released.countDown();
+      executor.shutdownNow();
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.swap.core.http.CacheManager;
+import org.projectsforge.swap.core.http.Request;
+import org.projectsforge.swap.core.http.Response;
+import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.swap.proxy.test.StubOrigin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unit test the sharing of cached responses between clients.
+ * 
+ * @author Sébastien Aupetit
+ */
+public class TestCacheKeys extends ProxyEnvironmentTestBase {
+
+  /** The number of simulated clients. */
+  private static final int CLIENT_COUNT = 4;
+
+  /** The number of requests of each client. */
+  private static final int REQUEST_COUNT = 3;
+
+  /** The user agents of the simulated clients. */
+  private static final String[] USER_AGENTS = { "Mozilla/5.0 (X11; Linux x86_64)", "Mozilla/5.0 (Windows NT 6.1)",
+      "Opera/9.80", "Lynx/2.8.8" };
+
+  /** The languages of the simulated clients. */
+  private static final String[] LANGUAGES = { "fr", "en", "fr", "en" };
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestCacheKeys.class);
+
+  /** The stub server. */
+  private StubOrigin server;
+
+  /** The cache manager. */
+  private CacheManager cacheManager;
+
+  /**
+   * Creates a stub server context serving a cacheable stylesheet.
+   * 
+   * @param path the path
+   * @param vary the value of the Vary header or null
+   */
+  private void createContext(final String path, final String vary) {
+    server.handle(path, new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        final String language = exchange.getRequestHeaders().getFirst("Accept-Language");
+        if (vary != null) {
+          exchange.getResponseHeaders().set("Vary", vary);
+        }
+        StubOrigin.send(exchange, "/* " + language + " */", "max-age=3600");
+      }
+    });
+  }
+
+  /**
+   * Requests a resource as a simulated client.
+   * 
+   * @param url the url
+   * @param client the index of the client
+   * @param cookie true to send the session cookie of the client
+   * @return the content of the response
+   * @throws Exception the exception
+   */
+  private String request(final URL url, final int client, final boolean cookie) throws Exception {
+    final Request request = cacheManager.newRequest(url);
+    request.getHeaders().set("User-Agent", USER_AGENTS[client]);
+    request.getHeaders().set("Accept-Language", LANGUAGES[client]);
+    if (cookie) {
+      request.getHeaders().set("Cookie", "session=" + client);
+    }
+    request.getHeaders().set("X-Forwarded-For", "192.168.0." + (client + 1));
+    final Response response = request.doRequest(false);
+    Assert.assertEquals(200, response.getStatusCode());
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    try (final InputStream in = response.getContent().getInputStream()) {
+      Util.dumpTo(in, content);
+    }
+    return new String(content.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Starts the stub server.
+   * 
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    server = new StubOrigin();
+    createContext("/shared.css", null);
+    createContext("/localized.css", "Accept-Language, Accept-Encoding");
+    server.start();
+    cacheManager = environment.getContext().getBean(CacheManager.class);
+  }
+
+  /**
+   * Stops the stub server.
+   */
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  /**
+   * Test that clients with distinct headers share the cached response of a
+   * resource which does not vary.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testSharedAcrossClients() throws Exception {
+    final URL url = server.url("/shared.css");
+    final long hitsBefore = cacheManager.getHitCount();
+    final long missesBefore = cacheManager.getMissCount();
+
+    for (int i = 0; i < REQUEST_COUNT; ++i) {
+      for (int client = 0; client < CLIENT_COUNT; ++client) {
+        request(url, client, false);
+      }
+    }
+
+    final long hits = cacheManager.getHitCount() - hitsBefore;
+    final long misses = cacheManager.getMissCount() - missesBefore;
+    logger.info("Hit ratio {}/{}", hits, hits + misses);
+    Assert.assertEquals(1, server.getHits());
+    Assert.assertTrue(hits >= CLIENT_COUNT * REQUEST_COUNT - 1);
+  }
+
+  /**
+   * Test that the clients do not share the cached responses of the requests
+   * sent with their own cookies.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNotSharedWithCookies() throws Exception {
+    final URL url = server.url("/shared.css");
+
+    for (int i = 0; i < REQUEST_COUNT; ++i) {
+      for (int client = 0; client < CLIENT_COUNT; ++client) {
+        request(url, client, true);
+      }
+    }
+
+    Assert.assertEquals(CLIENT_COUNT, server.getHits());
+  }
+
+  /**
+   * Test that the clients only share the variants of a resource matching the
+   * headers named by its Vary header.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testVariants() throws Exception {
+    final URL url = server.url("/localized.css");
+
+    for (int i = 0; i < REQUEST_COUNT; ++i) {
+      for (int client = 0; client < CLIENT_COUNT; ++client) {
+        Assert.assertEquals("/* " + LANGUAGES[client] + " */", request(url, client, false));
+      }
+    }
+
+    Assert.assertEquals(2, server.getHits());
+  }
+}
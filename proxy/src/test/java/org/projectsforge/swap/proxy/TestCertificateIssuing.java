@@ -0,0 +1,203 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.projectsforge.swap.proxy.certificate.CertificateManager;
+import org.projectsforge.swap.proxy.certificate.CertificateManagerException;
+import org.projectsforge.swap.proxy.certificate.CertificatePropertyHolder;
+import org.projectsforge.swap.proxy.certificate.CertificateTarget;
+import org.projectsforge.swap.proxy.certificate.KeyPairPool;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+
+/**
+ * Test that the key pairs of the issued certificates are generated in
+ * background and that a host is contacted once by the concurrent connections
+ * to it.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestCertificateIssuing extends ProxyEnvironmentTestBase {
+
+  /** The number of concurrent connections. */
+  private static final int CONNECTION_COUNT = 8;
+
+  /** The maximum time (in milliseconds) to wait for the background work. */
+  private static final long TIMEOUT = 60000;
+
+  /**
+   * Wait until the key pair pool is full.
+   *
+   * @param pool the pool
+   * @throws InterruptedException the interrupted exception
+   */
+  private static void waitFull(final KeyPairPool pool) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (pool.getSize() < CertificatePropertyHolder.keyPairPoolSize.get()) {
+      Assert.assertTrue("The pool has not been refilled", System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+
+  /**
+   * Test that the key pairs are taken from the pool without being generated
+   * on demand and that the pool is refilled in background.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testKeyPairPoolRefill() throws Exception {
+    final KeyPairPool pool = environment.getContext().getBean(KeyPairPool.class);
+    final int size = CertificatePropertyHolder.keyPairPoolSize.get();
+    waitFull(pool);
+
+    final long hits = pool.getHitCount();
+    final long misses = pool.getMissCount();
+    final List<KeyPair> keyPairs = new ArrayList<>();
+    for (int i = 0; i < size; ++i) {
+      final KeyPair keyPair = pool.take();
+      for (final KeyPair other : keyPairs) {
+        Assert.assertNotSame(other, keyPair);
+        Assert.assertFalse(other.getPublic().equals(keyPair.getPublic()));
+      }
+      keyPairs.add(keyPair);
+    }
+    Assert.assertEquals(hits + size, pool.getHitCount());
+    Assert.assertEquals(misses, pool.getMissCount());
+
+    // the pool is refilled without exceeding its size
+    waitFull(pool);
+    Assert.assertEquals(size, pool.getSize());
+  }
+
+  /**
+   * Test that the concurrent connections to the same host share the same
+   * issuing, which contacts the host once, and that a failed issuing is not
+   * kept.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testSingleFlight() throws Exception {
+    final CertificateManager certificateManager = environment.getContext().getBean(CertificateManager.class);
+    final List<Socket> accepted = new CopyOnWriteArrayList<>();
+    final CountDownLatch contacted = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(CONNECTION_COUNT + 1);
+
+    // a host which accepts the connections but never answers the handshake
+    try (final ServerSocket host = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              accepted.add(host.accept());
+              contacted.countDown();
+            }
+          } catch (final IOException e) {
+            // closed
+          }
+        }
+      });
+      final CertificateTarget target = new CertificateTarget("127.0.0.1", host.getLocalPort());
+
+      final CompletableFuture<KeyStore> first = certificateManager.prepareKeyStoreForTarget(target);
+      Assert.assertTrue(contacted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+      final List<Future<KeyStore>> connections = new ArrayList<>();
+      for (int i = 0; i < CONNECTION_COUNT; ++i) {
+        connections.add(executor.submit(new Callable<KeyStore>() {
+          @Override
+          public KeyStore call() throws Exception {
+            return certificateManager.getKeyStoreForTarget(target);
+          }
+        }));
+      }
+      Assert.assertSame(first, certificateManager.prepareKeyStoreForTarget(target));
+      Assert.assertFalse(first.isDone());
+
+      // the host goes away during the handshake
+      host.close();
+      for (final Socket socket : accepted) {
+        socket.close();
+      }
+
+      for (final Future<KeyStore> connection : connections) {
+        try {
+          connection.get(TIMEOUT, TimeUnit.MILLISECONDS);
+          Assert.fail("The certificate should not have been issued");
+        } catch (final ExecutionException e) {
+          Assert.assertTrue(e.getCause() instanceof CertificateManagerException);
+        }
+      }
+      Assert.assertTrue(first.isCompletedExceptionally());
+      Assert.assertEquals(1, accepted.size());
+
+      // the failure is not kept: the next connection contacts the host again
+      final CompletableFuture<KeyStore> next = certificateManager.prepareKeyStoreForTarget(target);
+      Assert.assertNotSame(first, next);
+      try {
+        next.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.fail("The certificate should not have been issued");
+      } catch (final ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof CertificateManagerException);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Test that the issuing fails instead of blocking an issuer thread when a
+   * host accepts the connection but never answers the handshake.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testProbeTimeout() throws Exception {
+    final CertificateManager certificateManager = environment.getContext().getBean(CertificateManager.class);
+    final int previousTimeout = CertificatePropertyHolder.probeTimeout.get();
+    CertificatePropertyHolder.probeTimeout.set(500);
+    try (final ServerSocket host = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+      final CertificateTarget target = new CertificateTarget("127.0.0.1", host.getLocalPort());
+      try {
+        certificateManager.getKeyStoreForTarget(target);
+        Assert.fail("The certificate should not have been issued");
+      } catch (final CertificateManagerException e) {
+        // the probe gave up before the wait for the issuing
+        Assert.assertFalse(e.getCause() instanceof TimeoutException);
+      }
+    } finally {
+      CertificatePropertyHolder.probeTimeout.set(previousTimeout);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.swap.core.mime.html.nodes.Document;
+import org.projectsforge.swap.core.mime.html.nodes.Node;
+import org.projectsforge.swap.core.mime.html.nodes.elements.AbstractElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.Attributes;
+import org.projectsforge.swap.core.mime.html.nodes.elements.DIVElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.ElementFactory;
+import org.projectsforge.swap.core.mime.html.nodes.elements.HEADElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.LINKElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.SCRIPTElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.STYLEElement;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the indexes of the elements of the documents and measure the lookups on
+ * a large page.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestDocumentIndexes extends ProxyEnvironmentTestBase {
+
+  /** The number of measured rounds. */
+  private static final int ROUNDS = 5;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestDocumentIndexes.class);
+
+  /** The element factory. */
+  private ElementFactory elementFactory;
+
+  /**
+   * Collect the elements of a tree the way the lookups were done before.
+   *
+   * @param node the node
+   * @param types the classes of the elements
+   * @return the elements in document order
+   */
+  private static List<AbstractElement> walk(final Node node, final Class<?>... types) {
+    final List<AbstractElement> result = new ArrayList<>();
+    for (final Node current : node.getChildrenToLeaves()) {
+      if (Arrays.asList(types).contains(current.getClass())) {
+        result.add((AbstractElement) current);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Generate a page.
+   *
+   * @param rows the number of rows
+   * @return the page
+   */
+  private static byte[] page(final int rows) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("<html><head><title>Page</title><link rel=\"stylesheet\" href=\"/a.css\">");
+    sb.append("<style>p { color: red; }</style><link rel=\"stylesheet\" href=\"/b.css\"></head><body>");
+    for (int i = 0; i < rows; ++i) {
+      sb.append("<div class=\"row  item").append(i % 2 == 0 ? " even" : "").append("\" id=\"r").append(i)
+          .append("\"><p>Row ").append(i).append(" <a href=\"/row?id=").append(i).append("\">link</a></p></div>\n");
+    }
+    sb.append("<style>div { margin: 0; }</style></body></html>");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets the element factory.
+   */
+  @Before
+  public void setUp() {
+    elementFactory = environment.getContext().getBean(ElementFactory.class);
+  }
+
+  /**
+   * Test that the indexes are built by the parser and follow the mutations of
+   * the document.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testIndexes() throws Exception {
+    final Document document = parse(page(10));
+    final HEADElement head = document.getFirstElement(HEADElement.class);
+    Assert.assertSame(document.getFirstChildrenToLeaves(HEADElement.class), head);
+    Assert.assertEquals(walk(document, STYLEElement.class, LINKElement.class),
+        document.getElements(STYLEElement.class, LINKElement.class));
+    Assert.assertEquals(4, document.getElements(STYLEElement.class, LINKElement.class).size());
+    Assert.assertEquals(walk(document, DIVElement.class), document.getElements(DIVElement.class));
+    Assert.assertEquals("r3", document.getElementById("r3").getAttribute(Attributes.ID));
+    Assert.assertEquals(10, document.getElementsByClassName("item").size());
+    Assert.assertEquals(5, document.getElementsByClassName("even").size());
+    Assert.assertTrue(document.getElementsByClassName("row  item").isEmpty());
+
+    // an element inserted before the others
+    final SCRIPTElement first = elementFactory.newElement(SCRIPTElement.class);
+    head.addChildAtStart(first);
+    final SCRIPTElement last = elementFactory.newElement(SCRIPTElement.class);
+    head.getLastChild().addNodeAfter(last);
+    final SCRIPTElement middle = elementFactory.newElement(SCRIPTElement.class);
+    last.addNodeBefore(middle);
+    Assert.assertEquals(Arrays.asList(first, middle, last), document.getElements(SCRIPTElement.class));
+    Assert.assertSame(first, document.getFirstElement(SCRIPTElement.class));
+
+    // the attributes
+    final AbstractElement row = document.getElementById("r3");
+    row.setAttribute(Attributes.ID, "moved");
+    Assert.assertNull(document.getElementById("r3"));
+    Assert.assertSame(row, document.getElementById("moved"));
+    row.removeAttribute(Attributes.CLASS);
+    Assert.assertEquals(9, document.getElementsByClassName("item").size());
+    row.setAttribute(Attributes.CLASS, "item");
+    Assert.assertEquals(walk(document, DIVElement.class), document.getElementsByClassName("item"));
+    row.clearAttributes();
+    Assert.assertNull(document.getElementById("moved"));
+
+    // a detached subtree
+    final AbstractElement other = document.getElementById("r4");
+    other.detachFromParent();
+    Assert.assertNull(document.getElementById("r4"));
+    Assert.assertFalse(document.getElements(DIVElement.class).contains(other));
+    other.setAttribute(Attributes.ID, "r4bis");
+    Assert.assertNull(document.getElementById("r4bis"));
+    head.addChildAtEnd(other);
+    Assert.assertSame(other, document.getElementById("r4bis"));
+    Assert.assertEquals(walk(document, DIVElement.class), document.getElements(DIVElement.class));
+
+    head.detachFromParent();
+    Assert.assertNull(document.getFirstElement(HEADElement.class));
+    Assert.assertTrue(document.getElements(SCRIPTElement.class).isEmpty());
+    Assert.assertEquals(1, document.getElements(STYLEElement.class, LINKElement.class).size());
+  }
+
+  /**
+   * Test that the elements repeatedly inserted at the same place, which
+   * exhaust the room between the stamps of their neighbours, are kept in
+   * document order.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testRepeatedInsertions() throws Exception {
+    final Document document = parse(page(10));
+    final HEADElement head = document.getFirstElement(HEADElement.class);
+    final AbstractElement row = document.getElementById("r5");
+    final List<SCRIPTElement> scripts = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      final SCRIPTElement script = elementFactory.newElement(SCRIPTElement.class);
+      script.setAttribute(Attributes.CLASS, "item");
+      head.addChildAtStart(script);
+      scripts.add(0, script);
+      row.addNodeAfter(elementFactory.newElement(DIVElement.class));
+    }
+    Assert.assertEquals(scripts, document.getElements(SCRIPTElement.class));
+    Assert.assertEquals(walk(document, DIVElement.class), document.getElements(DIVElement.class));
+    Assert.assertEquals(walk(document, SCRIPTElement.class, DIVElement.class),
+        document.getElements(SCRIPTElement.class, DIVElement.class));
+    Assert.assertEquals(scripts, document.getElementsByClassName("item").subList(0, scripts.size()));
+    Assert.assertEquals(scripts.size() + 10, document.getElementsByClassName("item").size());
+  }
+
+  /**
+   * Measure the lookups of the stylesheets and of the head on a large page.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testLookups() throws Exception {
+    final Document document = parse(page(5000));
+    long walked = Long.MAX_VALUE;
+    long indexed = Long.MAX_VALUE;
+    long checksum = 0;
+    for (int round = 0; round < ROUNDS + 1; ++round) {
+      long start = System.nanoTime();
+      checksum += walk(document, STYLEElement.class, LINKElement.class).size();
+      checksum += document.getFirstChildrenToLeaves(HEADElement.class).getAttributesCount();
+      // the first round is a warm up
+      if (round > 0) {
+        walked = Math.min(walked, System.nanoTime() - start);
+      }
+
+      start = System.nanoTime();
+      checksum -= document.getElements(STYLEElement.class, LINKElement.class).size();
+      checksum -= document.getFirstElement(HEADElement.class).getAttributesCount();
+      if (round > 0) {
+        indexed = Math.min(indexed, System.nanoTime() - start);
+      }
+    }
+    logger.info("Lookups of the stylesheets and of the head: {} µs with a walk, {} µs with the indexes",
+        walked / 1000, indexed / 1000);
+    Assert.assertEquals(0, checksum);
+  }
+}
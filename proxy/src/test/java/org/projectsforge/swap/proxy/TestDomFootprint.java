@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Assert;
+import org.junit.Test;
+import org.projectsforge.swap.core.mime.html.nodes.Document;
+import org.projectsforge.swap.core.mime.html.nodes.Node;
+import org.projectsforge.swap.core.mime.html.nodes.Text;
+import org.projectsforge.swap.core.mime.html.nodes.elements.AElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.AbstractElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.Attributes;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.utils.icasestring.ICaseString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the DOM nodes and measure the heap retained per node on a large page.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestDomFootprint extends ProxyEnvironmentTestBase {
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestDomFootprint.class);
+
+  /**
+   * Count the nodes of a tree.
+   *
+   * @param node the node
+   * @return the number of nodes
+   */
+  private static int count(final Node node) {
+    int count = 1;
+    for (final Node child : node.getChildrenCollection()) {
+      count += count(child);
+    }
+    return count;
+  }
+
+  /**
+   * Generate a large page.
+   *
+   * @return the page
+   */
+  private static byte[] page() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("<html><head><title>Large page</title></head><body><ul>");
+    for (int i = 0; i < 20000; ++i) {
+      sb.append("<li class=\"item\" id=\"i").append(i).append("\"><a href=\"/item?id=").append(i % 100)
+          .append("\" title=\"Item\">Item ").append(i % 100).append("</a> <em>new</em>\n  </li>\n");
+    }
+    sb.append("</ul></body></html>");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets the used heap after garbage collection.
+   *
+   * @return the used heap
+   * @throws InterruptedException the interrupted exception
+   */
+  private static long usedHeap() throws InterruptedException {
+    final Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; ++i) {
+      System.gc();
+      Thread.sleep(50);
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  /**
+   * Test the attributes, the annotations and the texts.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNodes() throws Exception {
+    final Document document = parse(page());
+    final AElement anchor = document.getFirstChildrenToLeaves(AElement.class);
+    Assert.assertEquals(AElement.TAGNAME, anchor.getTagName());
+    Assert.assertEquals(2, anchor.getAttributesCount());
+    Assert.assertEquals("/item?id=0", anchor.getAttribute(Attributes.HREF));
+    Assert.assertEquals(Attributes.HREF, anchor.getAttributeName(0));
+
+    // the attributes keep their insertion order
+    anchor.setAttribute(Attributes.HREF, "/other");
+    anchor.setAttribute(Attributes.ID, "a0");
+    Assert.assertEquals("/other", anchor.removeAttribute(Attributes.HREF));
+    Assert.assertEquals(2, anchor.getAttributesCount());
+    Assert.assertEquals("a0", anchor.getAttributeValue(1));
+    Assert.assertEquals(Attributes.TITLE, anchor.getAttributeName(0));
+    Assert.assertFalse(anchor.hasAttribute(Attributes.HREF));
+
+    final ICaseString key = new ICaseString("test.annotation");
+    anchor.getParent(AbstractElement.class).setAnnotation(key, "value");
+    Assert.assertNull(anchor.getAnnotation(key, String.class));
+    Assert.assertEquals("value", anchor.getAnnotationRecursively(key, String.class));
+    anchor.getParent(AbstractElement.class).removeAnnotation(key);
+    Assert.assertNull(anchor.getAnnotationRecursively(key, String.class));
+
+    final Text text = new Text("a  b");
+    text.addContent("\t\tc");
+    Assert.assertEquals("a  b\t\tc", text.getContent());
+    Assert.assertEquals("a b c", text.getCleanedContent());
+  }
+
+  /**
+   * Measure the heap retained per node.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testFootprint() throws Exception {
+    final byte[] page = page();
+    final long before = usedHeap();
+    final Document document = parse(page);
+    final long after = usedHeap();
+    final int nodes = count(document);
+    final long bytesPerNode = (after - before) / nodes;
+    logger.info("Page of {} bytes: {} nodes retaining {} bytes ({} bytes per node)", page.length, nodes,
+        after - before, bytesPerNode);
+    // keep the document reachable until the heap has been measured
+    Assert.assertNotNull(document.getFirstChild());
+  }
+}
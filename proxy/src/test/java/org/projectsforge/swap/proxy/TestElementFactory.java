@@ -0,0 +1,161 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.swap.core.mime.html.nodes.Node;
+import org.projectsforge.swap.core.mime.html.nodes.elements.AbstractElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.DIVElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.DefaultElement;
+import org.projectsforge.swap.core.mime.html.nodes.elements.ElementFactory;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.utils.icasestring.ICaseString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the element factory and measure the number of nodes created and parsed
+ * per second.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestElementFactory extends ProxyEnvironmentTestBase {
+
+  /** The number of measured rounds. */
+  private static final int ROUNDS = 5;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestElementFactory.class);
+
+  /** The element factory. */
+  private ElementFactory elementFactory;
+
+  /**
+   * Collect the elements of a tree whose tag is known.
+   *
+   * @param node the node
+   * @param elements the elements
+   * @return the number of nodes
+   */
+  private static int collect(final Node node, final List<AbstractElement> elements) {
+    int count = 1;
+    if (node instanceof AbstractElement && !(node instanceof DefaultElement)) {
+      elements.add((AbstractElement) node);
+    }
+    for (final Node child : node.getChildrenCollection()) {
+      count += collect(child, elements);
+    }
+    return count;
+  }
+
+  /**
+   * Generate a page of about 5,000 nodes.
+   *
+   * @return the page
+   */
+  private static byte[] page() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("<html><head><title>Page</title></head><body><table>");
+    for (int i = 0; i < 600; ++i) {
+      sb.append("<tr><td><div class=\"item\"><span>Item ").append(i).append("</span> <a href=\"/item?id=").append(i)
+          .append("\"><img src=\"/i.png\" alt=\"\"></a></div></td></tr>\n");
+    }
+    sb.append("</table></body></html>");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets the element factory.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    elementFactory = environment.getContext().getBean(ElementFactory.class);
+  }
+
+  /**
+   * Test the created elements.
+   */
+  @Test
+  public void testNewElement() {
+    Assert.assertEquals(DIVElement.class, elementFactory.newElement(new ICaseString("DIV")).getClass());
+    Assert.assertEquals(DIVElement.class, elementFactory.newElement(DIVElement.class).getClass());
+    final AbstractElement unknown = elementFactory.newElement(new ICaseString("unknowntag"));
+    Assert.assertEquals(DefaultElement.class, unknown.getClass());
+    Assert.assertEquals(new ICaseString("unknowntag"), unknown.getTagName());
+    Assert.assertNotSame(elementFactory.newElement(DIVElement.class), elementFactory.newElement(DIVElement.class));
+  }
+
+  /**
+   * Measure the number of nodes created and parsed per second.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testNodesPerSecond() throws Exception {
+    final byte[] page = page();
+    final List<AbstractElement> elements = new ArrayList<>();
+    final int nodes = collect(parse(page), elements);
+    logger.info("Page of {} nodes ({} elements)", nodes, elements.size());
+    Assert.assertTrue(nodes > 5000);
+
+    final List<ICaseString> tagNames = new ArrayList<>();
+    final List<Constructor<? extends AbstractElement>> constructors = new ArrayList<>();
+    for (final AbstractElement element : elements) {
+      tagNames.add(element.getTagName());
+      final Constructor<? extends AbstractElement> constructor = element.getClass().getDeclaredConstructor();
+      constructor.setAccessible(true);
+      constructors.add(constructor);
+    }
+
+    long reflective = Long.MAX_VALUE;
+    long factory = Long.MAX_VALUE;
+    long parsing = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS + 1; ++round) {
+      // the way the elements were created before: reflection and autowiring
+      long start = System.nanoTime();
+      for (final Constructor<? extends AbstractElement> constructor : constructors) {
+        Assert.assertNotNull(environment.autowireBean(constructor.newInstance()));
+      }
+      // the first round is a warm up
+      if (round > 0) {
+        reflective = Math.min(reflective, System.nanoTime() - start);
+      }
+
+      start = System.nanoTime();
+      for (final ICaseString tagName : tagNames) {
+        Assert.assertNotNull(elementFactory.newElement(tagName));
+      }
+      if (round > 0) {
+        factory = Math.min(factory, System.nanoTime() - start);
+      }
+
+      start = System.nanoTime();
+      Assert.assertNotNull(parse(page));
+      if (round > 0) {
+        parsing = Math.min(parsing, System.nanoTime() - start);
+      }
+    }
+
+    logger.info("Elements created per second: {} with reflection and autowiring, {} with the factory",
+        elements.size() * 1000000000L / reflective, elements.size() * 1000000000L / factory);
+    logger.info("Nodes parsed per second: {}", nodes * 1000000000L / parsing);
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.swap.core.http.ContentMemoryBudget;
+import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.core.mime.html.HTMLEncodingWriter;
+import org.projectsforge.swap.core.mime.html.HTMLSerializerVisitor;
+import org.projectsforge.swap.core.mime.html.nodes.Document;
+import org.projectsforge.swap.core.mime.html.parser.HtmlParser;
+import org.projectsforge.swap.proxy.starter.ProxyEnvironment;
+import org.projectsforge.utils.temporarystreams.ContentHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the serialization of the HTML documents and measure the memory it
+ * allocates per page.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestHtmlSerialization {
+
+  /** The number of measured serializations. */
+  private static final int ITERATIONS = 5;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestHtmlSerialization.class);
+
+  /** The environment. */
+  private ProxyEnvironment environment;
+
+  /** The budget. */
+  private ContentMemoryBudget budget;
+
+  /**
+   * Gets the bytes allocated by the current thread.
+   *
+   * @return the allocated bytes or -1 if not supported
+   */
+  private static long allocatedBytes() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * Read a content.
+   *
+   * @param content the content
+   * @return the bytes
+   * @throws Exception the exception
+   */
+  private static byte[] read(final ContentHolder content) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final InputStream in = content.getInputStream()) {
+      Util.dumpTo(in, out);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Generate a page.
+   *
+   * @param paragraphs the number of paragraphs
+   * @return the page
+   */
+  private static String page(final int paragraphs) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("<!DOCTYPE html>\n<html><head><title>Page</title>");
+    sb.append("<script>var s = \"café € 中\";</script></head><body>");
+    for (int i = 0; i < paragraphs; ++i) {
+      sb.append("<div class=\"item\" id=\"p").append(i).append("\"><p>Paragraph ").append(i)
+          .append(" with some text &amp; an <a href=\"/page?id=").append(i).append("\">anchor</a>.</p></div>\n");
+    }
+    sb.append("</body></html>");
+    return sb.toString();
+  }
+
+  /**
+   * Parse a page.
+   *
+   * @param page the page
+   * @param charset the charset
+   * @return the document
+   * @throws Exception the exception
+   */
+  private Document parse(final String page, final Charset charset) throws Exception {
+    try (final InputStream in = new ByteArrayInputStream(page.getBytes(charset))) {
+      return environment.autowireBean(new HtmlParser()).parse(charset.name(), in);
+    }
+  }
+
+  /**
+   * Serialize a document the way it was done before: in a string which is
+   * encoded once complete.
+   *
+   * @param document the document
+   * @return the content
+   * @throws Exception the exception
+   */
+  private ContentHolder serializeInString(final Document document) throws Exception {
+    final StringWriter sw = new StringWriter();
+    environment.autowireBean(new HTMLSerializerVisitor(sw)).recurse(document, null);
+    final ContentMemoryBudget.ContentOutputStream storage = budget.newContentOutputStream();
+    try (final OutputStream out = storage) {
+      out.write(sw.toString().getBytes(HTMLEncodingWriter.toCharset(document.getEncoding())));
+    }
+    return storage.getContent();
+  }
+
+  /**
+   * Serialize a document directly in the content.
+   *
+   * @param document the document
+   * @return the content
+   * @throws Exception the exception
+   */
+  private ContentHolder serializeInContent(final Document document) throws Exception {
+    final ContentMemoryBudget.ContentOutputStream storage = budget.newContentOutputStream();
+    try (final Writer out = new HTMLEncodingWriter(storage, HTMLEncodingWriter.toCharset(document.getEncoding()))) {
+      environment.autowireBean(new HTMLSerializerVisitor(out)).recurse(document, null);
+    }
+    return storage.getContent();
+  }
+
+  /**
+   * Starts the environment.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    environment = new ProxyEnvironment("Test SWAP client");
+    environment.start();
+    budget = environment.getContext().getBean(ContentMemoryBudget.class);
+  }
+
+  /**
+   * Stops the environment.
+   */
+  @After
+  public void tearDown() {
+    try {
+      environment.stop();
+    } catch (final Exception e) {
+      logger.info("An error occurred", e);
+    }
+  }
+
+  /**
+   * Test that the characters not available in the charset of the document are
+   * written as character references.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testCharset() throws Exception {
+    final Document document = parse(page(1), StandardCharsets.UTF_8);
+    final String serialized = new String(read(serializeInContent(document)), StandardCharsets.UTF_8);
+    Assert.assertTrue(serialized.contains("café € 中"));
+
+    // as if the document had been decoded with ISO-8859-1
+    document.setEncoding("ISO-8859-1");
+    final String latin1Serialized = new String(read(serializeInContent(document)), StandardCharsets.ISO_8859_1);
+    logger.info("Serialized page: {}", latin1Serialized);
+    Assert.assertTrue(latin1Serialized.contains("café &#8364; &#20013;"));
+  }
+
+  /**
+   * Measure the memory allocated to serialize a page of about 2 MB.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testAllocationPerPage() throws Exception {
+    Assume.assumeTrue(allocatedBytes() >= 0);
+    final Document document = parse(page(20000), StandardCharsets.UTF_8);
+
+    // warm up and check that both serializations give the same bytes
+    final byte[] expected = read(serializeInString(document));
+    Assert.assertTrue(Arrays.equals(expected, read(serializeInContent(document))));
+
+    long inString = Long.MAX_VALUE;
+    long inContent = Long.MAX_VALUE;
+    for (int i = 0; i < ITERATIONS; ++i) {
+      long start = allocatedBytes();
+      ContentHolder content = serializeInString(document);
+      inString = Math.min(inString, allocatedBytes() - start);
+      content.release();
+
+      start = allocatedBytes();
+      content = serializeInContent(document);
+      inContent = Math.min(inContent, allocatedBytes() - start);
+      content.release();
+    }
+    logger.info("Page of {} bytes: {} bytes allocated through a string, {} bytes allocated when streamed",
+        expected.length, inString, inContent);
+    Assert.assertTrue(inContent < inString);
+  }
+}
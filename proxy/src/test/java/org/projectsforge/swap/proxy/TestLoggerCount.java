@@ -0,0 +1,160 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.LogManager;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.swap.proxy.test.StubOrigin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Memory regression test: the number of loggers must not depend on the number
+ * of proxied URLs. The test at the scale of 100k URLs is long, it only runs
+ * when the system property {@value #LONG_TESTS_PROPERTY} is true.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestLoggerCount extends ProxyEnvironmentTestBase {
+
+  /** The number of distinct URLs proxied to warm up the proxy. */
+  private static final int WARMUP_COUNT = 100;
+
+  /** The number of distinct URLs, enough to detect a logger per URL. */
+  private static final int URL_COUNT = 1000;
+
+  /** The number of distinct URLs of the long test. */
+  private static final int LONG_URL_COUNT = 100000;
+
+  /** The system property enabling the long test. */
+  private static final String LONG_TESTS_PROPERTY = "swap.test.long";
+
+  /** The number of clients. */
+  private static final int CLIENT_COUNT = 8;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestLoggerCount.class);
+
+  /**
+   * Count the loggers known by log4j.
+   *
+   * @return the logger count
+   */
+  private static int countLoggers() {
+    return Collections.list(LogManager.getCurrentLoggers()).size();
+  }
+
+  /**
+   * Proxy distinct URLs.
+   *
+   * @param executor the executor
+   * @param server the server
+   * @param first the index of the first URL
+   * @param count the number of URLs
+   * @throws Exception the exception
+   */
+  private static void proxy(final ExecutorService executor, final StubOrigin server, final int first,
+      final int count) throws Exception {
+    final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(ProxyPropertyHolder.httpHost.get(),
+        ProxyPropertyHolder.httpPort.get()));
+    final AtomicInteger next = new AtomicInteger(first);
+    final List<Future<Void>> clients = new ArrayList<>();
+    for (int i = 0; i < CLIENT_COUNT; ++i) {
+      clients.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          int index;
+          while ((index = next.getAndIncrement()) < first + count) {
+            final URL url = server.url("/style-" + index + ".css?v=" + index);
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+            Assert.assertEquals(200, connection.getResponseCode());
+            try (final InputStream in = connection.getInputStream()) {
+              Util.dumpTo(in, new ByteArrayOutputStream());
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    for (final Future<Void> client : clients) {
+      client.get();
+    }
+  }
+
+  /**
+   * Check that proxying distinct URLs does not create loggers.
+   *
+   * @param urlCount the number of distinct URLs
+   * @throws Exception the exception
+   */
+  private void checkDistinctUrls(final int urlCount) throws Exception {
+    final StubOrigin server = new StubOrigin().serve("/", "no-store")
+        .setExecutor(Executors.newFixedThreadPool(CLIENT_COUNT)).start();
+    final ExecutorService executor = Executors.newFixedThreadPool(CLIENT_COUNT);
+    try {
+      // the loggers of the classes are created lazily
+      proxy(executor, server, 0, WARMUP_COUNT);
+      final int loggersBefore = countLoggers();
+
+      proxy(executor, server, WARMUP_COUNT, urlCount);
+      final int loggersAfter = countLoggers();
+      logger.info("{} loggers before and {} loggers after proxying {} distinct URLs", new Object[] { loggersBefore,
+          loggersAfter, urlCount });
+      Assert.assertEquals(loggersBefore, loggersAfter);
+    } finally {
+      executor.shutdownNow();
+      server.stop();
+    }
+  }
+
+  /**
+   * Test that proxying distinct URLs does not create loggers.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDistinctUrls() throws Exception {
+    checkDistinctUrls(URL_COUNT);
+  }
+
+  /**
+   * Test that proxying 100k distinct URLs does not create loggers. It runs
+   * with -D{@value #LONG_TESTS_PROPERTY}=true.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testDistinctUrlsLong() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean(LONG_TESTS_PROPERTY));
+    checkDistinctUrls(LONG_URL_COUNT);
+  }
+}
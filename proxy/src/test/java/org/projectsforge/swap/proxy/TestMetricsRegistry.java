@@ -0,0 +1,139 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import org.junit.Assert;
+import org.junit.Test;
+import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.handlers.mime.StatisticsCollector;
+import org.projectsforge.swap.handlers.mime.metrics.Histogram;
+import org.projectsforge.swap.handlers.mime.metrics.MetricsRegistry;
+import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
+import org.projectsforge.swap.proxy.starter.ProxyEnvironment;
+import org.projectsforge.swap.proxy.test.StubOrigin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test that the proxied requests feed the metrics registry.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestMetricsRegistry {
+
+  /** The number of proxied requests. */
+  private static final int REQUEST_COUNT = 50;
+
+  /** The maximum time to wait for the timing of the requests in seconds. */
+  private static final int WAIT_TIMEOUT = 30;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestMetricsRegistry.class);
+
+  /**
+   * Test the percentiles of the histograms.
+   */
+  @Test
+  public void testHistogram() {
+    final Histogram histogram = new MetricsRegistry().histogram("test.histogram");
+    for (int i = 1; i <= 1000; ++i) {
+      histogram.record(i * 1000000L);
+    }
+    final Histogram.Snapshot snapshot = histogram.snapshot();
+    Assert.assertEquals(1000, snapshot.getCount());
+    Assert.assertEquals(500.5, snapshot.getMean(), 0.001);
+    Assert.assertEquals(500, snapshot.getP50(), 500 / 16.0);
+    Assert.assertEquals(990, snapshot.getP99(), 990 / 16.0);
+    Assert.assertEquals(1000, snapshot.getMax(), 0.001);
+    Assert.assertTrue(snapshot.getP50() <= snapshot.getP99());
+  }
+
+  /**
+   * Test that the timers and flags which are not keys of the collector are
+   * aggregated like the other ones.
+   */
+  @Test
+  public void testUnknownKeys() {
+    final MetricsRegistry registry = new MetricsRegistry();
+    final StatisticsCollector collector = new StatisticsCollector(registry);
+    collector.startTimer("test.timer");
+    collector.stopTimer("test.timer");
+    Assert.assertTrue(collector.getElapsedTimer("test.timer") >= 0);
+    Assert.assertEquals(1, registry.histogram("test.timer").snapshot().getCount());
+
+    collector.setFlag("test.flag", true);
+    collector.setFlag("test.flag", false);
+    Assert.assertEquals(Boolean.FALSE, collector.getValue("test.flag", Boolean.class));
+    Assert.assertEquals(1, registry.counter("test.flag").getCount());
+
+    collector.getTimer("test.family", TestMetricsRegistry.class).record(1000000L);
+    Assert.assertEquals(1, registry.histogramFamily("test.family").get(TestMetricsRegistry.class).snapshot()
+        .getCount());
+  }
+
+  /**
+   * Test that the proxied requests are timed.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testProxiedRequests() throws Exception {
+    final StubOrigin server = new StubOrigin().serve("/", "no-store").start();
+
+    final ProxyEnvironment environment = new ProxyEnvironment("Test SWAP client");
+    try {
+      environment.start();
+      final MetricsRegistry registry = environment.getContext().getBean(MetricsRegistry.class);
+      final Histogram timer = registry.histogram(StatisticsCollector.PROXY_ALL_TIMER_KEY);
+      final long countBefore = timer.snapshot().getCount();
+
+      final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(ProxyPropertyHolder.httpHost.get(),
+          ProxyPropertyHolder.httpPort.get()));
+      for (int i = 0; i < REQUEST_COUNT; ++i) {
+        final URL url = server.url("/style-" + i + ".css");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+        Assert.assertEquals(200, connection.getResponseCode());
+        try (final InputStream in = connection.getInputStream()) {
+          Util.dumpTo(in, new ByteArrayOutputStream());
+        }
+      }
+
+      // a request is timed once its response has been sent to the client
+      final long deadline = System.currentTimeMillis() + WAIT_TIMEOUT * 1000L;
+      while (timer.snapshot().getCount() - countBefore < REQUEST_COUNT && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      final Histogram.Snapshot snapshot = timer.snapshot();
+      Assert.assertEquals(REQUEST_COUNT, snapshot.getCount() - countBefore);
+      Assert.assertTrue(snapshot.getP50() <= snapshot.getP99());
+      Assert.assertTrue(snapshot.getP99() <= snapshot.getMax());
+
+      final String json = registry.toJson();
+      logger.info("Metrics: {}", json);
+      Assert.assertTrue(json.contains("\"" + StatisticsCollector.PROXY_ALL_TIMER_KEY + "\""));
+    } finally {
+      server.stop();
+      try {
+        environment.stop();
+      } catch (final Exception e) {
+        logger.info("An error occurred", e);
+      }
+    }
+  }
+}
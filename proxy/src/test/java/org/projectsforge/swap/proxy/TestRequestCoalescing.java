@@ -0,0 +1,231 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+import org.projectsforge.swap.core.http.CacheManager;
+import org.projectsforge.swap.core.http.CacheManagerPropertyHolder;
+import org.projectsforge.swap.core.http.Response;
+import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.swap.proxy.test.StubOrigin;
+
+/**
+ * Unit test the coalescing of concurrent identical requests.
+ * 
+ * @author Sébastien Aupetit
+ */
+public class TestRequestCoalescing extends ProxyEnvironmentTestBase {
+
+  /** The number of concurrent requests. */
+  private static final int REQUEST_COUNT = 8;
+
+  /** The maximum time to wait for the concurrent requests in seconds. */
+  private static final int WAIT_TIMEOUT = 30;
+
+  /**
+   * Test that concurrent identical requests contact the server only once and
+   * share the same content.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testCoalescing() throws Exception {
+    final CountDownLatch received = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    final StubOrigin origin = new StubOrigin().handle("/style.css", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        received.countDown();
+        // the other requests wait for this one while it is in flight
+        released.await(WAIT_TIMEOUT, TimeUnit.SECONDS);
+        StubOrigin.send(exchange, StubOrigin.CONTENT, null);
+      }
+    }).setExecutor(Executors.newCachedThreadPool()).start();
+
+    final ExecutorService executor = Executors.newFixedThreadPool(REQUEST_COUNT);
+    try {
+      final CacheManager cacheManager = environment.getContext().getBean(CacheManager.class);
+      final URL url = origin.url("/style.css");
+      final long coalescedBefore = cacheManager.getCoalescedCount();
+
+      final CountDownLatch startSignal = new CountDownLatch(1);
+      final List<Future<Response>> responses = new ArrayList<>();
+      for (int i = 0; i < REQUEST_COUNT; ++i) {
+        responses.add(executor.submit(new Callable<Response>() {
+          @Override
+          public Response call() throws Exception {
+            startSignal.await();
+            return cacheManager.newRequest(url).doRequest(false);
+          }
+        }));
+      }
+      startSignal.countDown();
+
+      Assert.assertTrue(received.await(WAIT_TIMEOUT, TimeUnit.SECONDS));
+      final long deadline = System.currentTimeMillis() + WAIT_TIMEOUT * 1000L;
+      while (cacheManager.getCoalescedCount() - coalescedBefore < REQUEST_COUNT - 1
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      released.countDown();
+
+      for (final Future<Response> future : responses) {
+        final Response response = future.get();
+        Assert.assertEquals(200, response.getStatusCode());
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (final InputStream in = response.getContent().getInputStream()) {
+          Util.dumpTo(in, content);
+        }
+        Assert.assertEquals(StubOrigin.CONTENT, new String(content.toByteArray(), StandardCharsets.UTF_8));
+      }
+
+      Assert.assertEquals(1, origin.getHits());
+      Assert.assertEquals(REQUEST_COUNT - 1, cacheManager.getCoalescedCount() - coalescedBefore);
+    } finally {
+      executor.shutdownNow();
+      origin.stop();
+    }
+  }
+
+  /**
+   * Send the requests concurrently and wait until the server has been contacted
+   * by each of them while the first one is still in flight.
+   * 
+   * @param origin the origin
+   * @param path the path
+   * @param released the latch releasing the first request
+   * @return the status codes of the responses
+   * @throws Exception the exception
+   */
+  private List<Integer> requestUntilAllContacted(final StubOrigin origin, final String path,
+      final CountDownLatch released) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(REQUEST_COUNT);
+    try {
+      final CacheManager cacheManager = environment.getContext().getBean(CacheManager.class);
+      final URL url = origin.url(path);
+      final List<Future<Response>> responses = new ArrayList<>();
+      for (int i = 0; i < REQUEST_COUNT; ++i) {
+        responses.add(executor.submit(new Callable<Response>() {
+          @Override
+          public Response call() throws Exception {
+            return cacheManager.newRequest(url).doRequest(false);
+          }
+        }));
+      }
+
+      final long deadline = System.currentTimeMillis() + WAIT_TIMEOUT * 1000L;
+      while (origin.getHits() < REQUEST_COUNT && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals("The requests have been serialized", REQUEST_COUNT, origin.getHits());
+      released.countDown();
+
+      final List<Integer> statusCodes = new ArrayList<>();
+      for (final Future<Response> future : responses) {
+        statusCodes.add(future.get(WAIT_TIMEOUT, TimeUnit.SECONDS).getStatusCode());
+      }
+      return statusCodes;
+    } finally {
+      released.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Test that the requests waiting for a refresh whose content will not be
+   * stored are released as soon as its headers are received.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testUnshareableNotCoalesced() throws Exception {
+    final AtomicBoolean first = new AtomicBoolean(true);
+    final CountDownLatch released = new CountDownLatch(1);
+    final StubOrigin origin = new StubOrigin().handle("/private.css", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        if (!first.getAndSet(false)) {
+          StubOrigin.send(exchange, StubOrigin.CONTENT, "no-store");
+          return;
+        }
+        // the headers are sent but the content is held back
+        final byte[] bytes = StubOrigin.CONTENT.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/css");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+          out.flush();
+          released.await(WAIT_TIMEOUT, TimeUnit.SECONDS);
+          out.write(bytes);
+        }
+      }
+    }).setExecutor(Executors.newCachedThreadPool()).start();
+
+    try {
+      for (final int statusCode : requestUntilAllContacted(origin, "/private.css", released)) {
+        Assert.assertEquals(200, statusCode);
+      }
+    } finally {
+      origin.stop();
+    }
+  }
+
+  /**
+   * Test that the requests waiting for a refresh stop waiting after the
+   * coalescing timeout and contact the server by themselves.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testCoalescingTimeout() throws Exception {
+    final AtomicBoolean first = new AtomicBoolean(true);
+    final CountDownLatch released = new CountDownLatch(1);
+    final StubOrigin origin = new StubOrigin().handle("/slow.css", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        if (first.getAndSet(false)) {
+          released.await(WAIT_TIMEOUT, TimeUnit.SECONDS);
+        }
+        StubOrigin.send(exchange, StubOrigin.CONTENT, null);
+      }
+    }).setExecutor(Executors.newCachedThreadPool()).start();
+
+    final int previousTimeout = CacheManagerPropertyHolder.coalescingTimeout.get();
+    CacheManagerPropertyHolder.coalescingTimeout.set(100);
+    try {
+      for (final int statusCode : requestUntilAllContacted(origin, "/slow.css", released)) {
+        Assert.assertEquals(200, statusCode);
+      }
+    } finally {
+      CacheManagerPropertyHolder.coalescingTimeout.set(previousTimeout);
+      origin.stop();
+    }
+  }
+}
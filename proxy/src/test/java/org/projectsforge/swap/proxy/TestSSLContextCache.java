@@ -0,0 +1,319 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V1CertificateGenerator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.swap.core.environment.impl.EnvironmentPropertyHolder;
+import org.projectsforge.swap.proxy.certificate.CertificateManager;
+import org.projectsforge.swap.proxy.certificate.CertificatePropertyHolder;
+import org.projectsforge.swap.proxy.certificate.CertificateTarget;
+import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
+import org.projectsforge.swap.proxy.proxy.ProxySSLEngine;
+import org.projectsforge.swap.proxy.proxy.SSLContextCache;
+import org.projectsforge.swap.proxy.starter.ProxyEnvironment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test that the SSL context of a target is created once, is bounded and lets
+ * the browsers resume their TLS sessions.
+ * 
+ * @author Sébastien Aupetit
+ */
+public class TestSSLContextCache {
+
+  /** The number of concurrent connections. */
+  private static final int CONNECTION_COUNT = 8;
+
+  /** The target of the intercepted connections. */
+  private static final CertificateTarget TARGET = new CertificateTarget("first.swap.invalid", 443);
+
+  /** Another target of the intercepted connections. */
+  private static final CertificateTarget OTHER_TARGET = new CertificateTarget("second.swap.invalid", 443);
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestSSLContextCache.class);
+
+  /** The environment. */
+  private ProxyEnvironment environment;
+
+  /** The certificate manager. */
+  private CertificateManager certificateManager;
+
+  /**
+   * Creates the SSL context of the simulated browser. It trusts any
+   * certificate and keeps its own session cache so that it tries to resume its
+   * sessions.
+   * 
+   * @return the SSL context
+   * @throws Exception the exception
+   */
+  private SSLContext createClientContext() throws Exception {
+    final SSLContext context = SSLContext.getInstance("TLSv1.2");
+    context.init(null, new TrustManager[] { new X509TrustManager() {
+      @Override
+      public void checkClientTrusted(final X509Certificate[] chain, final String authType) {
+        // trust all
+      }
+
+      @Override
+      public void checkServerTrusted(final X509Certificate[] chain, final String authType) {
+        // trust all
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    } }, null);
+    return context;
+  }
+
+  /**
+   * Stores a self-signed certificate for a target where the certificate
+   * manager looks for it, so that it does not contact the target.
+   * 
+   * @param target the target
+   * @throws Exception the exception
+   */
+  private void createTargetKeyStore(final CertificateTarget target) throws Exception {
+    final KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+    keyGen.initialize(2048);
+    final KeyPair keypair = keyGen.generateKeyPair();
+
+    final X509V1CertificateGenerator certGen = new X509V1CertificateGenerator();
+    final X500Principal dnName = new X500Principal("CN=" + target.getHostname());
+    certGen.setSerialNumber(BigInteger.ONE);
+    certGen.setIssuerDN(dnName);
+    certGen.setNotBefore(new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000L));
+    certGen.setNotAfter(new Date(System.currentTimeMillis() + 24 * 60 * 60 * 1000L));
+    certGen.setSubjectDN(dnName);
+    certGen.setPublicKey(keypair.getPublic());
+    certGen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+    final X509Certificate certificate = certGen.generate(keypair.getPrivate(), BouncyCastleProvider.PROVIDER_NAME);
+
+    final char[] password = CertificatePropertyHolder.pemPassword.get().toCharArray();
+    final KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, password);
+    keyStore.setKeyEntry("proxiedhost", keypair.getPrivate(), password, new Certificate[] { certificate });
+
+    final File pemDirectory = new File(EnvironmentPropertyHolder.configurationDirectory.get(),
+        CertificatePropertyHolder.pemDirectory.get());
+    pemDirectory.mkdirs();
+    try (final FileOutputStream fos = new FileOutputStream(new File(pemDirectory, target + ".keystore"))) {
+      keyStore.store(fos, password);
+    }
+  }
+
+  /**
+   * Performs a handshake between two engines by exchanging their packets in
+   * memory.
+   * 
+   * @param client the client engine
+   * @param server the server engine
+   * @throws SSLException the SSL exception
+   */
+  private void handshake(final SSLEngine client, final SSLEngine server) throws SSLException {
+    final int packetSize = client.getSession().getPacketBufferSize();
+    final int applicationSize = client.getSession().getApplicationBufferSize();
+    final ByteBuffer empty = ByteBuffer.allocate(0);
+    final ByteBuffer toServer = ByteBuffer.allocate(packetSize);
+    final ByteBuffer toClient = ByteBuffer.allocate(packetSize);
+    final ByteBuffer clientData = ByteBuffer.allocate(applicationSize);
+    final ByteBuffer serverData = ByteBuffer.allocate(applicationSize);
+
+    client.beginHandshake();
+    server.beginHandshake();
+    for (int i = 0; i < 1000; ++i) {
+      final boolean clientProgress = step(client, empty, toServer, toClient, clientData);
+      final boolean serverProgress = step(server, empty, toClient, toServer, serverData);
+      if (!clientProgress && !serverProgress) {
+        return;
+      }
+    }
+    Assert.fail("The handshake did not complete");
+  }
+
+  /**
+   * Performs the handshake of a new connection to the target.
+   * 
+   * @param clientContext the SSL context of the simulated browser
+   * @param cache the SSL context cache
+   * @throws Exception the exception
+   */
+  private void handshake(final SSLContext clientContext, final SSLContextCache cache) throws Exception {
+    final ProxySSLEngine server = new ProxySSLEngine(cache);
+    server.setUseClientMode(false);
+    server.setHost(TARGET);
+    final SSLEngine client = clientContext.createSSLEngine(TARGET.getHostname(), TARGET.getPort());
+    client.setUseClientMode(true);
+    handshake(client, server);
+  }
+
+  /**
+   * Starts the environment and stores the certificates of the targets.
+   * 
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    environment = new ProxyEnvironment("Test SWAP client");
+    environment.start();
+    createTargetKeyStore(TARGET);
+    createTargetKeyStore(OTHER_TARGET);
+    certificateManager = environment.getContext().getBean(CertificateManager.class);
+  }
+
+  /**
+   * Performs the next operation required by the handshake of an engine.
+   * 
+   * @param engine the engine
+   * @param empty an empty buffer
+   * @param out the packets sent to the peer
+   * @param in the packets received from the peer
+   * @param data the application data
+   * @return true, if the engine is still handshaking
+   * @throws SSLException the SSL exception
+   */
+  private boolean step(final SSLEngine engine, final ByteBuffer empty, final ByteBuffer out, final ByteBuffer in,
+      final ByteBuffer data) throws SSLException {
+    final HandshakeStatus status = engine.getHandshakeStatus();
+    switch (status) {
+      case NEED_TASK:
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+          task.run();
+        }
+        return true;
+      case NEED_WRAP:
+        engine.wrap(empty, out);
+        return true;
+      case NEED_UNWRAP:
+        in.flip();
+        engine.unwrap(in, data);
+        in.compact();
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Stops the environment.
+   */
+  @After
+  public void tearDown() {
+    try {
+      environment.stop();
+    } catch (final Exception e) {
+      logger.info("An error occurred", e);
+    }
+  }
+
+  /**
+   * Test that the concurrent connections to a target share a single context
+   * created once and that the number of contexts is bounded.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testContexts() throws Exception {
+    final SSLContextCache cache = new SSLContextCache(certificateManager);
+    final CountDownLatch start = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(CONNECTION_COUNT);
+    try {
+      final List<Future<SSLContext>> contexts = new ArrayList<>();
+      for (int i = 0; i < CONNECTION_COUNT; ++i) {
+        contexts.add(executor.submit(new Callable<SSLContext>() {
+          @Override
+          public SSLContext call() throws Exception {
+            start.await();
+            return cache.getContext(TARGET);
+          }
+        }));
+      }
+      start.countDown();
+      final SSLContext context = contexts.get(0).get();
+      for (final Future<SSLContext> other : contexts) {
+        Assert.assertSame(context, other.get());
+      }
+      Assert.assertEquals(1, cache.getMissCount());
+      Assert.assertEquals(CONNECTION_COUNT - 1, cache.getHitCount());
+      Assert.assertSame(context, cache.getContext(TARGET));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    final int previousMaxEntries = ProxyPropertyHolder.sslContextCacheMaxEntries.get();
+    ProxyPropertyHolder.sslContextCacheMaxEntries.set(1);
+    try {
+      final SSLContext other = cache.getContext(OTHER_TARGET);
+      Assert.assertEquals(1, cache.getSize());
+      Assert.assertSame(other, cache.getContext(OTHER_TARGET));
+      Assert.assertEquals(2, cache.getMissCount());
+    } finally {
+      ProxyPropertyHolder.sslContextCacheMaxEntries.set(previousMaxEntries);
+    }
+  }
+
+  /**
+   * Test that the connections to the same target resume their TLS sessions
+   * when the SSL context is cached and perform a full handshake otherwise.
+   * 
+   * @throws Exception the exception
+   */
+  @Test
+  public void testSessionResumption() throws Exception {
+    final SSLContextCache cache = new SSLContextCache(certificateManager);
+    final SSLContext clientContext = createClientContext();
+    handshake(clientContext, cache);
+    handshake(clientContext, cache);
+    Assert.assertEquals(1, cache.getFullHandshakeCount());
+    Assert.assertEquals(1, cache.getAbbreviatedHandshakeCount());
+
+    // a new context does not know the sessions of the previous one
+    final SSLContextCache uncached = new SSLContextCache(certificateManager);
+    handshake(clientContext, uncached);
+    Assert.assertEquals(1, uncached.getFullHandshakeCount());
+    Assert.assertEquals(0, uncached.getAbbreviatedHandshakeCount());
+  }
+}
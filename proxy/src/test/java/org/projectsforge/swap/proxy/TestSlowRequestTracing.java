@@ -0,0 +1,128 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Executors;
+import org.junit.Assert;
+import org.junit.Test;
+import org.projectsforge.swap.core.environment.trace.Span;
+import org.projectsforge.swap.core.environment.trace.Trace;
+import org.projectsforge.swap.core.environment.trace.Tracer;
+import org.projectsforge.swap.core.http.Util;
+import org.projectsforge.swap.handlers.mime.StatisticsCollector;
+import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.swap.proxy.test.StubOrigin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test that the slow requests are traced and the fast ones are not.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestSlowRequestTracing extends ProxyEnvironmentTestBase {
+
+  /** The delay of the slow URLs (in ms). */
+  private static final int DELAY = 600;
+
+  /** The threshold of the tracer (in ms). */
+  private static final int THRESHOLD = 400;
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestSlowRequestTracing.class);
+
+  /**
+   * Fetch an URL through the proxy.
+   *
+   * @param url the url
+   * @throws Exception the exception
+   */
+  private static void fetch(final URL url) throws Exception {
+    final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(ProxyPropertyHolder.httpHost.get(),
+        ProxyPropertyHolder.httpPort.get()));
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection(proxy);
+    Assert.assertEquals(200, connection.getResponseCode());
+    try (final InputStream in = connection.getInputStream()) {
+      Util.dumpTo(in, new ByteArrayOutputStream());
+    }
+  }
+
+  /**
+   * Find a span by name.
+   *
+   * @param trace the trace
+   * @param name the name
+   * @return the span or null
+   */
+  private static Span findSpan(final Trace trace, final String name) {
+    for (final Span span : trace.getSpans()) {
+      if (name.equals(span.getName())) {
+        return span;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Test the tracing of slow requests.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testSlowRequests() throws Exception {
+    final StubOrigin server = new StubOrigin().serve("/", "no-store").handle("/slow", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        Thread.sleep(DELAY);
+        StubOrigin.send(exchange, StubOrigin.CONTENT, "no-store");
+      }
+    }).setExecutor(Executors.newFixedThreadPool(4)).start();
+    try {
+      // disabled: nothing is recorded
+      Tracer.configure(false, THRESHOLD, 16);
+      Tracer.clear();
+      fetch(server.url("/slow-disabled.css"));
+      Assert.assertTrue(Tracer.getTraces().isEmpty());
+
+      Tracer.configure(true, THRESHOLD, 16);
+      fetch(server.url("/fast.css"));
+      fetch(server.url("/slow.css"));
+
+      final List<Trace> traces = Tracer.getTraces();
+      logger.info("Traces: {}", Tracer.toJson());
+      Assert.assertEquals(1, traces.size());
+      final Trace trace = traces.get(0);
+      Assert.assertTrue(trace.getUrl().contains("slow.css"));
+      Assert.assertTrue(trace.getDuration() >= DELAY);
+
+      final Span getResponse = findSpan(trace, StatisticsCollector.PROXY_GETRESPONSE_TIMER_KEY);
+      Assert.assertNotNull(getResponse);
+      Assert.assertTrue(getResponse.getDuration() >= DELAY);
+      Assert.assertTrue(getResponse.getDepth() > 0);
+      Assert.assertTrue(Tracer.toJson().contains("slow.css"));
+    } finally {
+      Tracer.configure(false, THRESHOLD, 16);
+      Tracer.clear();
+      server.stop();
+    }
+  }
+}
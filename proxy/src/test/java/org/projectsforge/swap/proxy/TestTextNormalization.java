@@ -0,0 +1,209 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import org.junit.Assert;
+import org.junit.Test;
+import org.projectsforge.swap.core.mime.html.nodes.Text;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the normalization of the whitespaces of the text nodes and measure it
+ * on a text-heavy page.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestTextNormalization extends ProxyEnvironmentTestBase {
+
+  /** The number of measured rounds. */
+  private static final int ROUNDS = 5;
+
+  /** The pattern used by the former normalization. */
+  private static final Pattern CLEAN_PATTERN = Pattern.compile(" +|\t+|\n+");
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestTextNormalization.class);
+
+  /**
+   * The former normalization: regex replacements until the string is stable.
+   *
+   * @param content the content
+   * @return the cleaned content
+   */
+  private static String legacyClean(String content) {
+    boolean again;
+    do {
+      final String newContent = CLEAN_PATTERN.matcher(content).replaceAll(" ");
+      again = !content.equals(newContent);
+      content = newContent;
+    } while (again);
+    return content;
+  }
+
+  /**
+   * Generate a text-heavy page.
+   *
+   * @param random the random
+   * @return the page
+   */
+  private static byte[] page(final Random random) {
+    final String[] words = { "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit" };
+    final String[] separators = { " ", "  ", "\n", " \n\t", "\t", "\r\n" };
+    final StringBuilder sb = new StringBuilder("<html><body>");
+    for (int i = 0; i < 2000; ++i) {
+      sb.append("<p>");
+      for (int j = 0; j < 40; ++j) {
+        sb.append(words[random.nextInt(words.length)]).append(separators[random.nextInt(separators.length)]);
+      }
+      sb.append("<b>bold</b>\n    ");
+      for (int j = 0; j < 20; ++j) {
+        sb.append(words[random.nextInt(words.length)]).append(' ');
+      }
+      sb.append("</p>\n");
+    }
+    sb.append("</body></html>");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Test that the normalization gives the same result as before.
+   */
+  @Test
+  public void testSameAsRegex() {
+    final Random random = new Random(42);
+    final char[] alphabet = { 'a', 'b', ' ', '\t', '\n', '\r' };
+    for (int i = 0; i < 10000; ++i) {
+      final char[] chars = new char[random.nextInt(12)];
+      for (int j = 0; j < chars.length; ++j) {
+        chars[j] = alphabet[random.nextInt(alphabet.length)];
+      }
+      final String content = new String(chars);
+      final Text text = new Text();
+      // the content may be added in several chunks
+      final int split = random.nextInt(content.length() + 1);
+      text.addContent(content.substring(0, split));
+      text.addContent(content.substring(split));
+      Assert.assertEquals(content, text.getContent());
+      Assert.assertEquals(legacyClean(content), text.getCleanedContent());
+      Assert.assertEquals(legacyClean(content).length(), new Text(content).getCleanedContentLength());
+    }
+    final String clean = "already clean text";
+    Assert.assertSame(clean, new Text(clean).getCleanedContent());
+  }
+
+  /**
+   * Measure the normalization on a text-heavy page and check the concurrent
+   * readers.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testTextHeavyPage() throws Exception {
+    final List<String> contents = new ArrayList<>();
+    for (final Text text : parse(page(new Random(42))).getChildrenToLeaves(Text.class)) {
+      contents.add(text.getContent());
+    }
+    long chars = 0;
+    for (final String content : contents) {
+      chars += content.length();
+    }
+
+    long legacy = Long.MAX_VALUE;
+    long scanner = Long.MAX_VALUE;
+    long length = Long.MAX_VALUE;
+    long checksum = 0;
+    for (int round = 0; round < ROUNDS + 1; ++round) {
+      long start = System.nanoTime();
+      for (final String content : contents) {
+        checksum += legacyClean(content).length();
+      }
+      // the first round is a warm up
+      if (round > 0) {
+        legacy = Math.min(legacy, System.nanoTime() - start);
+      }
+
+      final List<Text> texts = new ArrayList<>();
+      for (final String content : contents) {
+        texts.add(new Text(content));
+      }
+      start = System.nanoTime();
+      for (final Text text : texts) {
+        checksum -= text.getCleanedContent().length();
+      }
+      if (round > 0) {
+        scanner = Math.min(scanner, System.nanoTime() - start);
+      }
+
+      texts.clear();
+      for (final String content : contents) {
+        texts.add(new Text(content));
+      }
+      start = System.nanoTime();
+      for (final Text text : texts) {
+        checksum += text.getCleanedContentLength();
+      }
+      if (round > 0) {
+        length = Math.min(length, System.nanoTime() - start);
+      }
+    }
+    logger.info("{} texts ({} chars): regex {} µs, scanner {} µs, length only {} µs", contents.size(), chars,
+        legacy / 1000, scanner / 1000, length / 1000);
+    Assert.assertTrue(checksum > 0);
+
+    // concurrent readers of the same nodes
+    final List<Text> shared = new ArrayList<>();
+    for (final String content : contents) {
+      final Text text = new Text();
+      text.addContent(content);
+      text.addContent(" \n end");
+      shared.add(text);
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Long>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        futures.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() {
+            long sum = 0;
+            for (final Text text : shared) {
+              sum += text.getCleanedContentLength() + text.getCleanedContent().length() + text.getContent().length();
+            }
+            return sum;
+          }
+        }));
+      }
+      long expected = 0;
+      for (final String content : contents) {
+        final String full = content + " \n end";
+        expected += 2 * legacyClean(full).length() + full.length();
+      }
+      for (final Future<Long> future : futures) {
+        Assert.assertEquals(expected, future.get().longValue());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.projectsforge.swap.proxy.proxy.ProxyPropertyHolder;
+import org.projectsforge.swap.proxy.proxy.ProxyServlet;
+import org.projectsforge.swap.proxy.proxy.TunnelRelay;
+import org.projectsforge.swap.proxy.starter.ProxyEnvironment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Soak test of the CONNECT tunnels: the number of threads must not depend on
+ * the number of open tunnels.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestTunnelRelay {
+
+  /** The number of tunnels. */
+  private static final int TUNNEL_COUNT = 200;
+
+  /** The number of bytes echoed through each tunnel. */
+  private static final int DATA_SIZE = 64 * 1024;
+
+  /** The prefix of the names of the threads of the echo server. */
+  private static final String ECHO_THREAD_NAME = "tunnel-test-echo";
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(TestTunnelRelay.class);
+
+  /**
+   * Count the threads which do not belong to the echo server.
+   *
+   * @return the thread count
+   */
+  private static int countThreads() {
+    int count = 0;
+    for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (!thread.getName().startsWith(ECHO_THREAD_NAME)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Send a CONNECT request through the proxy.
+   *
+   * @param socket the socket connected to the proxy
+   * @param targetPort the port of the target on the local host
+   * @return the status line and the headers of the reply
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static String connect(final Socket socket, final int targetPort) throws IOException {
+    return connect(socket, "127.0.0.1:" + targetPort);
+  }
+
+  /**
+   * Send a CONNECT request through the proxy.
+   *
+   * @param socket the socket connected to the proxy
+   * @param authority the host and port of the target
+   * @return the status line and the headers of the reply
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static String connect(final Socket socket, final String authority) throws IOException {
+    socket.setSoTimeout(30000);
+    socket.getOutputStream().write(
+        ("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    final InputStream in = socket.getInputStream();
+    final StringBuilder reply = new StringBuilder();
+    while (reply.indexOf("\r\n\r\n") == -1) {
+      final int c = in.read();
+      Assert.assertTrue("Unexpected end of the CONNECT reply", c != -1);
+      reply.append((char) c);
+    }
+    return reply.toString();
+  }
+
+  /**
+   * Open a tunnel through the proxy.
+   *
+   * @param targetPort the port of the target on the local host
+   * @return the socket of the tunnel
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static Socket openTunnel(final int targetPort) throws IOException {
+    final Socket socket = new Socket(ProxyPropertyHolder.httpHost.get(), ProxyPropertyHolder.httpPort.get());
+    final String reply = connect(socket, targetPort);
+    Assert.assertTrue(reply, reply.startsWith("HTTP/1.1 200"));
+    return socket;
+  }
+
+  /**
+   * Read exactly the given number of bytes.
+   *
+   * @param in the input stream
+   * @param length the length
+   * @return the bytes
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static byte[] readFully(final InputStream in, final int length) throws IOException {
+    final byte[] result = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      final int read = in.read(result, offset, length - offset);
+      Assert.assertTrue("Unexpected end of stream", read != -1);
+      offset += read;
+    }
+    return result;
+  }
+
+  /**
+   * Start an echo server using one thread per connection. The output of a
+   * connection is shut down once its input is exhausted.
+   *
+   * @return the server socket
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private ServerSocket startEchoServer() throws IOException {
+    final ServerSocket serverSocket = new ServerSocket(0);
+    final Thread acceptor = new Thread(ECHO_THREAD_NAME + "-acceptor") {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            final Thread worker = new Thread(ECHO_THREAD_NAME) {
+              @Override
+              public void run() {
+                try (final Socket s = socket) {
+                  final InputStream in = s.getInputStream();
+                  final OutputStream out = s.getOutputStream();
+                  final byte[] buffer = new byte[8192];
+                  int read;
+                  while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                  }
+                  s.shutdownOutput();
+                } catch (final IOException e) {
+                  logger.debug("An exception occurred", e);
+                }
+              }
+            };
+            worker.setDaemon(true);
+            worker.start();
+          }
+        } catch (final IOException e) {
+          logger.debug("Echo server stopped", e);
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return serverSocket;
+  }
+
+  /**
+   * Test that a CONNECT request to a closed port is answered with a 502 and
+   * does not leave a tunnel open.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testConnectRefused() throws Exception {
+    final int closedPort;
+    try (final ServerSocket serverSocket = new ServerSocket(0)) {
+      closedPort = serverSocket.getLocalPort();
+    }
+    final ProxyEnvironment environment = new ProxyEnvironment("Test SWAP client");
+    try {
+      environment.start();
+      final TunnelRelay tunnelRelay = environment.getContext().getBean(ProxyServlet.class).getTunnelRelay();
+      final int activeBefore = tunnelRelay.getActiveTunnelCount();
+      try (final Socket socket = new Socket(ProxyPropertyHolder.httpHost.get(), ProxyPropertyHolder.httpPort.get())) {
+        final String reply = connect(socket, closedPort);
+        Assert.assertTrue(reply, reply.startsWith("HTTP/1.1 502"));
+      }
+      Assert.assertEquals(activeBefore, tunnelRelay.getActiveTunnelCount());
+    } finally {
+      try {
+        environment.stop();
+      } catch (final Exception e) {
+        logger.info("An error occurred", e);
+      }
+    }
+  }
+
+  /**
+   * Test that a CONNECT request to a host which can not be resolved is
+   * answered with a 502 and does not leave a tunnel open.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testConnectUnknownHost() throws Exception {
+    final ProxyEnvironment environment = new ProxyEnvironment("Test SWAP client");
+    try {
+      environment.start();
+      final TunnelRelay tunnelRelay = environment.getContext().getBean(ProxyServlet.class).getTunnelRelay();
+      final int activeBefore = tunnelRelay.getActiveTunnelCount();
+      try (final Socket socket = new Socket(ProxyPropertyHolder.httpHost.get(), ProxyPropertyHolder.httpPort.get())) {
+        final String reply = connect(socket, "unknown-host.invalid:443");
+        Assert.assertTrue(reply, reply.startsWith("HTTP/1.1 502"));
+      }
+      Assert.assertEquals(activeBefore, tunnelRelay.getActiveTunnelCount());
+    } finally {
+      try {
+        environment.stop();
+      } catch (final Exception e) {
+        logger.info("An error occurred", e);
+      }
+    }
+  }
+
+  /**
+   * Test that many tunnels can be open with a bounded number of threads, that
+   * the data are relayed in both directions and that a half-close is
+   * forwarded.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testSoak() throws Exception {
+    final ServerSocket echoServer = startEchoServer();
+    final ProxyEnvironment environment = new ProxyEnvironment("Test SWAP client");
+    final List<Socket> sockets = new ArrayList<>();
+    try {
+      environment.start();
+      final TunnelRelay tunnelRelay = environment.getContext().getBean(ProxyServlet.class).getTunnelRelay();
+      final int activeBefore = tunnelRelay.getActiveTunnelCount();
+      final long bytesBefore = tunnelRelay.getBytesRelayed();
+
+      sockets.add(openTunnel(echoServer.getLocalPort()));
+      final int threadsBefore = countThreads();
+      while (sockets.size() < TUNNEL_COUNT) {
+        sockets.add(openTunnel(echoServer.getLocalPort()));
+      }
+      final int threadsAfter = countThreads();
+      logger.info("{} threads with 1 tunnel, {} threads with {} tunnels", new Object[] { threadsBefore,
+          threadsAfter, TUNNEL_COUNT });
+      Assert.assertEquals(TUNNEL_COUNT, tunnelRelay.getActiveTunnelCount() - activeBefore);
+      // at most the growth of the thread pools, whatever the number of tunnels
+      Assert.assertTrue(threadsAfter - threadsBefore <= ProxyPropertyHolder.httpMaxThread.get()
+          + ProxyPropertyHolder.tunnelMaxThreads.get() + ProxyPropertyHolder.tunnelResolverThreads.get());
+      Assert.assertTrue(threadsAfter - threadsBefore < TUNNEL_COUNT);
+
+      final byte[] data = new byte[DATA_SIZE];
+      new Random(0).nextBytes(data);
+      for (final Socket socket : sockets) {
+        socket.getOutputStream().write(data);
+        Assert.assertTrue(Arrays.equals(data, readFully(socket.getInputStream(), DATA_SIZE)));
+      }
+      Assert.assertTrue(tunnelRelay.getBytesRelayed() - bytesBefore >= 2L * TUNNEL_COUNT * DATA_SIZE);
+
+      // half-close: the end of the request is forwarded and the end of the
+      // response comes back
+      final Socket halfClosed = sockets.get(0);
+      halfClosed.getOutputStream().write(data);
+      halfClosed.shutdownOutput();
+      Assert.assertTrue(Arrays.equals(data, readFully(halfClosed.getInputStream(), DATA_SIZE)));
+      Assert.assertEquals(-1, halfClosed.getInputStream().read());
+
+      for (final Socket socket : sockets) {
+        socket.close();
+      }
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (tunnelRelay.getActiveTunnelCount() != activeBefore && System.currentTimeMillis() < deadline) {
+        Thread.sleep(100);
+      }
+      Assert.assertEquals(activeBefore, tunnelRelay.getActiveTunnelCount());
+    } finally {
+      for (final Socket socket : sockets) {
+        socket.close();
+      }
+      echoServer.close();
+      try {
+        environment.stop();
+      } catch (final Exception e) {
+        logger.info("An error occurred", e);
+      }
+    }
+  }
+}
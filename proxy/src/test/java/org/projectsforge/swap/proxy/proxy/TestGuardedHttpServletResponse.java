@@ -0,0 +1,157 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.io.EofException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test that the proxying can no longer write to a response once it has
+ * been closed to be completed.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestGuardedHttpServletResponse {
+
+  /** The maximum time to wait for the other thread in seconds. */
+  private static final int WAIT_TIMEOUT = 30;
+
+  /** The names of the methods called on the wrapped response. */
+  private final List<String> calls = new ArrayList<>();
+
+  /** The content written to the wrapped response. */
+  private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+  /** The latch released when a write to the wrapped response has started. */
+  private final CountDownLatch writing = new CountDownLatch(1);
+
+  /** The latch blocking the writes to the wrapped response. */
+  private CountDownLatch blocked = new CountDownLatch(0);
+
+  /** The guarded response. */
+  private GuardedHttpServletResponse guardedResponse;
+
+  /**
+   * Creates the guarded response of a response recording the calls.
+   */
+  @Before
+  public void setUp() {
+    final ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(final int b) throws IOException {
+        writing.countDown();
+        try {
+          blocked.await(WAIT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        content.write(b);
+      }
+    };
+    final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            calls.add(method.getName());
+            return "getOutputStream".equals(method.getName()) ? out : null;
+          }
+        });
+    guardedResponse = new GuardedHttpServletResponse(response);
+  }
+
+  /**
+   * Test that the operations reach the wrapped response until it is closed,
+   * then that they are ignored and that the output stream fails.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testClose() throws Exception {
+    final ServletOutputStream out = guardedResponse.getOutputStream();
+    guardedResponse.setStatus(200);
+    guardedResponse.addHeader("Content-Type", "text/css");
+    out.write('a');
+    guardedResponse.flushBuffer();
+
+    guardedResponse.close();
+    guardedResponse.setStatus(500);
+    guardedResponse.addHeader("Content-Type", "text/html");
+    guardedResponse.sendError(500);
+    guardedResponse.flushBuffer();
+    try {
+      out.write('b');
+      Assert.fail("The write should have failed");
+    } catch (final EofException e) {
+      // expected
+    }
+
+    Assert.assertEquals("a", content.toString("ISO-8859-1"));
+    Assert.assertEquals(4, calls.size());
+    Assert.assertEquals("getOutputStream", calls.get(0));
+    Assert.assertEquals("setStatus", calls.get(1));
+    Assert.assertEquals("addHeader", calls.get(2));
+    Assert.assertEquals("flushBuffer", calls.get(3));
+  }
+
+  /**
+   * Test that closing waits for the write in progress.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testCloseWaitsForWrite() throws Exception {
+    blocked = new CountDownLatch(1);
+    final ServletOutputStream out = guardedResponse.getOutputStream();
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          out.write('a');
+        } catch (final IOException e) {
+          // not expected, checked by the content
+        }
+      }
+    };
+    writer.start();
+    Assert.assertTrue(writing.await(WAIT_TIMEOUT, TimeUnit.SECONDS));
+
+    final CountDownLatch closed = new CountDownLatch(1);
+    final Thread closer = new Thread() {
+      @Override
+      public void run() {
+        guardedResponse.close();
+        closed.countDown();
+      }
+    };
+    closer.start();
+    Assert.assertFalse(closed.await(200, TimeUnit.MILLISECONDS));
+
+    blocked.countDown();
+    Assert.assertTrue(closed.await(WAIT_TIMEOUT, TimeUnit.SECONDS));
+    writer.join();
+    Assert.assertEquals("a", content.toString("ISO-8859-1"));
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.net.URL;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectsforge.swap.core.http.CacheManager;
+import org.projectsforge.swap.core.http.Response;
+import org.projectsforge.swap.proxy.test.ProxyEnvironmentTestBase;
+import org.projectsforge.swap.proxy.test.StubOrigin;
+
+/**
+ * Unit test the invalidation of the transformed responses when their origin
+ * response is refreshed or leaves the response cache.
+ *
+ * @author Sébastien Aupetit
+ */
+public class TestTransformedResponseCache extends ProxyEnvironmentTestBase {
+
+  /** The stub server. */
+  private StubOrigin server;
+
+  /** The cache manager. */
+  private CacheManager cacheManager;
+
+  /**
+   * Gets the key of a transformation of a response without handler.
+   *
+   * @param origin the origin response
+   * @return the key
+   */
+  private static TransformedResponseCache.Key key(final Response origin) {
+    return new TransformedResponseCache.Key(origin.getVersion(), Collections.<Class<?>> emptySet(),
+        Collections.<String> emptyList());
+  }
+
+  /**
+   * Starts the stub server. It serves a new content to each request, which
+   * must always be revalidated, and forbids to store it from the third
+   * request.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    server = new StubOrigin().handle("/style.css", new StubOrigin.Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        final int hit = server.getHits();
+        StubOrigin.send(exchange, StubOrigin.CONTENT + " /* " + hit + " */", hit < 3 ? "max-age=0" : "no-store");
+      }
+    }).start();
+    cacheManager = environment.getContext().getBean(CacheManager.class);
+  }
+
+  /**
+   * Stops the stub server.
+   */
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  /**
+   * Test that a transformed response is not reused once its origin response
+   * has been refreshed and is dropped when the origin response leaves the
+   * response cache.
+   *
+   * @throws Exception the exception
+   */
+  @Test
+  public void testInvalidation() throws Exception {
+    final TransformedResponseCache cache = new TransformedResponseCache();
+    cacheManager.addRemovalListener(response -> cache.remove(response));
+    final URL url = server.url("/style.css");
+
+    final Response origin = cacheManager.newRequest(url).doRequest(false);
+    Assert.assertTrue(origin.isCached());
+    final TransformedResponseCache.Key key = key(origin);
+    final Response transformed = new Response(origin);
+    cache.put(origin, key, transformed);
+    Assert.assertSame(transformed, cache.get(origin, key));
+    Assert.assertEquals(1, cache.getHitCount());
+
+    // the cached response is shared and refreshed with a new content
+    final Response refreshed = cacheManager.newRequest(url).doRequest(false);
+    Assert.assertEquals(2, server.getHits());
+    Assert.assertSame(origin, refreshed);
+    Assert.assertFalse(key.equals(key(refreshed)));
+    Assert.assertNull(cache.get(refreshed, key(refreshed)));
+    Assert.assertEquals(0, cache.getSize());
+    Assert.assertNull(cache.get(origin, key));
+    Assert.assertEquals(2, cache.getMissCount());
+
+    // a transformation of a replaced content is not stored
+    cache.put(refreshed, key, transformed);
+    Assert.assertEquals(0, cache.getSize());
+
+    // the response is removed from the response cache when it can no longer
+    // be stored
+    cache.put(refreshed, key(refreshed), new Response(refreshed));
+    Assert.assertEquals(1, cache.getSize());
+    cacheManager.newRequest(url).doRequest(false);
+    Assert.assertEquals(3, server.getHits());
+    Assert.assertEquals(0, cache.getSize());
+  }
+}
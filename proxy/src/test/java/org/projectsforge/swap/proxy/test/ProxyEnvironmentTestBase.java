@@ -0,0 +1,74 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.projectsforge.swap.core.mime.html.nodes.Document;
+import org.projectsforge.swap.core.mime.html.parser.HtmlParser;
+import org.projectsforge.swap.proxy.starter.ProxyEnvironment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The base class of the tests run in a proxy environment started before each
+ * test and stopped after it.
+ *
+ * @author Sébastien Aupetit
+ */
+public abstract class ProxyEnvironmentTestBase {
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(ProxyEnvironmentTestBase.class);
+
+  /** The environment. */
+  protected ProxyEnvironment environment;
+
+  /**
+   * Parse an UTF-8 page.
+   *
+   * @param page the page
+   * @return the document
+   * @throws Exception the exception
+   */
+  protected Document parse(final byte[] page) throws Exception {
+    try (final InputStream in = new ByteArrayInputStream(page)) {
+      return environment.autowireBean(new HtmlParser()).parse("UTF-8", in);
+    }
+  }
+
+  /**
+   * Starts the environment.
+   *
+   * @throws Exception the exception
+   */
+  @Before
+  public void startEnvironment() throws Exception {
+    environment = new ProxyEnvironment("Test SWAP client");
+    environment.start();
+  }
+
+  /**
+   * Stops the environment.
+   */
+  @After
+  public void stopEnvironment() {
+    try {
+      environment.stop();
+    } catch (final Exception e) {
+      logger.info("An error occurred", e);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2012 Sébastien Aupetit <sebastien.aupetit@univ-tours.fr> This
+ * software is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version. This software is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser
+ * General Public License for more details. You should have received a copy of
+ * the GNU Lesser General Public License along with this software. If not, see
+ * <http://www.gnu.org/licenses/>. $Id$
+ */
+package org.projectsforge.swap.proxy.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stub origin server listening on the loopback interface. It counts the
+ * requests it receives and answers them with a stylesheet or with the handler
+ * registered for their path.
+ *
+ * @author Sébastien Aupetit
+ */
+public class StubOrigin {
+
+  /**
+   * The handler of the requests of a path. The exchange is closed once the
+   * handler returns.
+   */
+  public interface Handler {
+
+    /**
+     * Answer a request.
+     *
+     * @param exchange the exchange
+     * @throws Exception the exception
+     */
+    void handle(HttpExchange exchange) throws Exception;
+  }
+
+  /** The stylesheet served by default. */
+  public static final String CONTENT = "body { color: red; }";
+
+  /** The logger. */
+  private final Logger logger = LoggerFactory.getLogger(StubOrigin.class);
+
+  /** The number of requests received. */
+  private final AtomicInteger hits = new AtomicInteger();
+
+  /** The server. */
+  private final HttpServer server;
+
+  /** The executor of the server or null to use the calling thread. */
+  private ExecutorService executor;
+
+  /**
+   * Instantiates a new stub origin.
+   *
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public StubOrigin() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+  }
+
+  /**
+   * Send a CSS content.
+   *
+   * @param exchange the exchange
+   * @param content the content
+   * @param cacheControl the value of the Cache-Control header or null
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public static void send(final HttpExchange exchange, final String content, final String cacheControl)
+      throws IOException {
+    final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/css");
+    if (cacheControl != null) {
+      exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+    }
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (final OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Gets the number of requests received.
+   *
+   * @return the number of requests
+   */
+  public int getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Answer the requests of a path (and of the paths below it) with a handler.
+   *
+   * @param path the path
+   * @param handler the handler
+   * @return the stub origin
+   */
+  public StubOrigin handle(final String path, final Handler handler) {
+    server.createContext(path, new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) {
+        try {
+          hits.incrementAndGet();
+          handler.handle(exchange);
+        } catch (final Exception e) {
+          logger.error("An error occurred", e);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    return this;
+  }
+
+  /**
+   * Serve the stylesheet on a path (and on the paths below it).
+   *
+   * @param path the path
+   * @param cacheControl the value of the Cache-Control header or null
+   * @return the stub origin
+   */
+  public StubOrigin serve(final String path, final String cacheControl) {
+    return handle(path, new Handler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws Exception {
+        send(exchange, CONTENT, cacheControl);
+      }
+    });
+  }
+
+  /**
+   * Sets the executor of the server. It is shut down when the server stops.
+   *
+   * @param executor the executor
+   * @return the stub origin
+   */
+  public StubOrigin setExecutor(final ExecutorService executor) {
+    this.executor = executor;
+    server.setExecutor(executor);
+    return this;
+  }
+
+  /**
+   * Start the server.
+   *
+   * @return the stub origin
+   */
+  public StubOrigin start() {
+    server.start();
+    return this;
+  }
+
+  /**
+   * Stop the server.
+   */
+  public void stop() {
+    server.stop(0);
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Gets the URL of a path of the server.
+   *
+   * @param path the path
+   * @return the URL
+   * @throws MalformedURLException the malformed URL exception
+   */
+  public URL url(final String path) throws MalformedURLException {
+    return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+  }
+}